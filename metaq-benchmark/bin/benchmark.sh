@@ -0,0 +1,29 @@
+#!/bin/bash
+
+# metaq-storeѹ⣬baseline/baseline.csvԱȣScore10%ʱط0
+# Ϊʱͬط0״ʹҪڷѹִ benchmark.sh -u ¼
+# metaq-benchmarkĿ¼ִ mvn package  target/benchmarks.jar
+# usage:
+#      benchmark.sh                        ȫѹⲢԱȻ
+#      benchmark.sh GetMessageBenchmark    ֻƥѹ⣬ֱӴJMH
+#      benchmark.sh -u                     ȫѹ⣬ñν»ߣֻڷѹִУ
+
+BASE_DIR=$(cd $(dirname $0)/..; pwd)
+BASELINE=$BASE_DIR/baseline/baseline.csv
+RESULT=$BASE_DIR/target/result.csv
+
+UPDATE_BASELINE=false
+if [ "$1" = "-u" ]; then
+        UPDATE_BASELINE=true
+        shift
+fi
+
+java -jar $BASE_DIR/target/benchmarks.jar -rf csv -rff $RESULT $@ || exit 1
+
+if [ $UPDATE_BASELINE = true ]; then
+        cp $RESULT $BASELINE
+        echo "baseline updated: $BASELINE"
+        exit 0
+fi
+
+java -cp $BASE_DIR/target/benchmarks.jar com.taobao.metaq.benchmark.BaselineCompare $RESULT $BASELINE 10
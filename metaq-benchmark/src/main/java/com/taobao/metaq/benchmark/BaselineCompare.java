@@ -0,0 +1,137 @@
+/**
+ * $Id: BaselineCompare.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * 对比JMH的CSV结果（-rf csv）与基线，Score变差超过阈值时返回非0<br>
+ * 吞吐量模式（thrpt）分数越大越好，其他模式分数越小越好；基线中没有的项只打印不判断<br>
+ * 基线为空时返回非0，避免没有记录基线时对比永远通过<br>
+ * 用法：BaselineCompare [本次结果] [基线] [阈值百分比，默认10]
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class BaselineCompare {
+    /**
+     * 解析一行CSV，支持双引号包含的字段
+     */
+    static List<String> parseLine(final String line) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    sb.append(c);
+                    i++;
+                }
+                else {
+                    quoted = !quoted;
+                }
+            }
+            else if (c == ',' && !quoted) {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString());
+        return fields;
+    }
+
+
+    /**
+     * 读取结果文件，key为Benchmark、Mode与全部参数，value为[Score, Unit]
+     */
+    static Map<String, String[]> load(final String fileName) throws IOException {
+        Map<String, String[]> result = new LinkedHashMap<String, String[]>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            if (null == line) {
+                return result;
+            }
+
+            List<String> header = parseLine(line);
+            int benchmarkIndex = header.indexOf("Benchmark");
+            int modeIndex = header.indexOf("Mode");
+            int scoreIndex = header.indexOf("Score");
+            int unitIndex = header.indexOf("Unit");
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+
+                List<String> fields = parseLine(line);
+                StringBuilder key = new StringBuilder();
+                key.append(fields.get(benchmarkIndex)).append(" ").append(fields.get(modeIndex));
+                for (int i = 0; i < header.size() && i < fields.size(); i++) {
+                    if (header.get(i).startsWith("Param: ")) {
+                        key.append(" ").append(header.get(i).substring("Param: ".length())).append("=")
+                            .append(fields.get(i));
+                    }
+                }
+                result.put(key.toString(), new String[] { fields.get(scoreIndex), fields.get(unitIndex) });
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return result;
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: BaselineCompare result.csv baseline.csv [thresholdPercent]");
+            System.exit(2);
+        }
+        final double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        Map<String, String[]> current = load(args[0]);
+        Map<String, String[]> baseline = load(args[1]);
+        if (baseline.isEmpty()) {
+            System.out.println("ERROR baseline " + args[1]
+                    + " has no entries, record it with benchmark.sh -u on the reference host");
+            System.exit(3);
+        }
+
+        int regressions = 0;
+        for (Map.Entry<String, String[]> entry : current.entrySet()) {
+            double score = Double.parseDouble(entry.getValue()[0]);
+            String[] base = baseline.get(entry.getKey());
+            if (null == base) {
+                System.out.println("NEW   " + entry.getKey() + " " + score + " " + entry.getValue()[1]);
+                continue;
+            }
+
+            double baseScore = Double.parseDouble(base[0]);
+            boolean higherIsBetter = entry.getKey().contains(" thrpt");
+            double change = baseScore == 0 ? 0 : (score - baseScore) * 100 / baseScore;
+            boolean regression = higherIsBetter ? change < -threshold : change > threshold;
+            if (regression) {
+                regressions++;
+            }
+
+            System.out.println((regression ? "WORSE " : "OK    ") + entry.getKey() + " " + baseScore + " -> "
+                    + score + " " + entry.getValue()[1] + String.format(" (%+.1f%%)", change));
+        }
+
+        System.out.println(regressions + " regressions, threshold " + threshold + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+}
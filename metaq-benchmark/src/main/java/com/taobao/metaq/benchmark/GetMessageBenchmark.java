@@ -0,0 +1,114 @@
+/**
+ * $Id: GetMessageBenchmark.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.benchmark;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.metaq.store.DefaultMetaStore;
+import com.taobao.metaq.store.GetMessageResult;
+
+
+/**
+ * DefaultMetaStore.getMessage<br>
+ * hot从每个队列最新的HotWindow条消息中拉取，cold从更早的消息中随机拉取；type只订阅一种消息类型，其余消息被过滤<br>
+ * 数据集大于物理内存时cold才会真正读盘，可以通过msgsPerQueue调整数据集大小
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class GetMessageBenchmark {
+    @Param({ "hot", "cold" })
+    public String position;
+
+    @Param({ "none", "type" })
+    public String filter;
+
+    @Param({ "100000" })
+    public int msgsPerQueue;
+
+    // 队列个数
+    private static final int Queues = 4;
+    // 消息大小
+    private static final int BodySize = 512;
+    // 每次最多拉取的消息条数
+    private static final int BatchSize = 32;
+    // 最新的多少条消息算作hot
+    private static final int HotWindow = 1024;
+
+    private String storePath;
+    private DefaultMetaStore metaStore;
+    private Set<Integer> types;
+    private final Random random = new Random(0);
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.storePath = StoreDataGenerator.createStorePath("get");
+        this.metaStore = new DefaultMetaStore(StoreDataGenerator.createMetaStoreConfig(this.storePath));
+        if (!this.metaStore.load()) {
+            throw new IllegalStateException("load store failed, " + this.storePath);
+        }
+        this.metaStore.start();
+        StoreDataGenerator.generate(this.metaStore, Queues, this.msgsPerQueue, BodySize);
+
+        if ("type".equals(this.filter)) {
+            this.types = new HashSet<Integer>();
+            this.types.add(StoreDataGenerator.Types[0].hashCode());
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.metaStore.shutdown();
+        this.metaStore.destroy();
+        StoreDataGenerator.deleteStorePath(new File(this.storePath));
+    }
+
+
+    @Benchmark
+    public int getMessage() {
+        final int queueId = this.random.nextInt(Queues);
+        final int hotWindow = Math.min(HotWindow, this.msgsPerQueue);
+        final long offset;
+        if ("hot".equals(this.position)) {
+            offset = this.msgsPerQueue - hotWindow + this.random.nextInt(hotWindow);
+        }
+        else {
+            offset = this.random.nextInt(Math.max(this.msgsPerQueue - hotWindow, 1));
+        }
+
+        GetMessageResult result =
+                this.metaStore.getMessage(StoreDataGenerator.Topic, queueId, offset, BatchSize, this.types);
+        try {
+            return result.getMessageCount();
+        }
+        finally {
+            result.release();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * $Id: MapedFileBenchmark.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.metaq.store.MapedFile;
+import com.taobao.metaq.store.SelectMapedBufferResult;
+
+
+/**
+ * MapedFile追加写与切片读，不经过DefaultMetaStore<br>
+ * 文件写满后从头覆盖写，只有首轮写入会触发缺页中断
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class MapedFileBenchmark {
+    @Param({ "128", "1024" })
+    public int dataSize;
+
+    // 文件大小
+    private static final int FileSize = 1024 * 1024 * 64;
+
+    private String storePath;
+    private MapedFile mapedFile;
+    private byte[] data;
+    // 切片读的位置
+    private int readPosition = 0;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        this.storePath = StoreDataGenerator.createStorePath("mapedfile");
+        this.mapedFile = new MapedFile(this.storePath + File.separator + "00000000000000000000", FileSize);
+        this.data = new byte[this.dataSize];
+        // 预先写满，切片读不会读到空洞
+        while (this.mapedFile.appendMessage(this.data)) {
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.mapedFile.destroy(1000);
+        StoreDataGenerator.deleteStorePath(new File(this.storePath));
+    }
+
+
+    @Benchmark
+    public boolean append() {
+        if (!this.mapedFile.appendMessage(this.data)) {
+            this.mapedFile.setWrotePostion(0);
+            return this.mapedFile.appendMessage(this.data);
+        }
+        return true;
+    }
+
+
+    @Benchmark
+    public int slice() {
+        if (this.readPosition + this.dataSize > FileSize) {
+            this.readPosition = 0;
+        }
+
+        SelectMapedBufferResult result = this.mapedFile.selectMapedBuffer(this.readPosition, this.dataSize);
+        this.readPosition += this.dataSize;
+        if (null == result) {
+            return 0;
+        }
+
+        try {
+            return result.getByteBuffer().get(0);
+        }
+        finally {
+            result.release();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * $Id: OffsetByTimeBenchmark.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.benchmark;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.metaq.store.DefaultMetaStore;
+
+
+/**
+ * DefaultMetaStore.getOffsetInQueueByTime，时间点在数据集写入时间范围内随机选取
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class OffsetByTimeBenchmark {
+    @Param({ "100000" })
+    public int msgsPerQueue;
+
+    // 队列个数
+    private static final int Queues = 4;
+    // 消息大小
+    private static final int BodySize = 128;
+
+    private String storePath;
+    private DefaultMetaStore metaStore;
+    private long beginTimestamp;
+    private long endTimestamp;
+    private final Random random = new Random(0);
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.storePath = StoreDataGenerator.createStorePath("time");
+        this.metaStore = new DefaultMetaStore(StoreDataGenerator.createMetaStoreConfig(this.storePath));
+        if (!this.metaStore.load()) {
+            throw new IllegalStateException("load store failed, " + this.storePath);
+        }
+        this.metaStore.start();
+
+        this.beginTimestamp = System.currentTimeMillis();
+        StoreDataGenerator.generate(this.metaStore, Queues, this.msgsPerQueue, BodySize);
+        this.endTimestamp = System.currentTimeMillis();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.metaStore.shutdown();
+        this.metaStore.destroy();
+        StoreDataGenerator.deleteStorePath(new File(this.storePath));
+    }
+
+
+    @Benchmark
+    public long getOffsetInQueueByTime() {
+        long timestamp =
+                this.beginTimestamp + (long) (this.random.nextDouble() * (this.endTimestamp - this.beginTimestamp));
+        return this.metaStore.getOffsetInQueueByTime(StoreDataGenerator.Topic, this.random.nextInt(Queues),
+            timestamp);
+    }
+}
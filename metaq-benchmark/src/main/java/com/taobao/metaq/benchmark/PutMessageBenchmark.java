@@ -0,0 +1,89 @@
+/**
+ * $Id: PutMessageBenchmark.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.benchmark;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.metaq.commons.MetaMessage;
+import com.taobao.metaq.store.DefaultMetaStore;
+import com.taobao.metaq.store.MetaStoreConfig;
+import com.taobao.metaq.store.PutMessageResult;
+
+
+/**
+ * DefaultMetaStore.putMessage，分别测试异步刷盘与同步刷盘（GroupCommit）
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class PutMessageBenchmark {
+    @Param({ "async", "sync" })
+    public String flush;
+
+    @Param({ "128", "1024" })
+    public int bodySize;
+
+    // 消息写入的队列个数
+    private static final int Queues = 8;
+
+    private String storePath;
+    private DefaultMetaStore metaStore;
+    private MetaMessage[] messages;
+    private final AtomicInteger queueId = new AtomicInteger(0);
+
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        this.storePath = StoreDataGenerator.createStorePath("put-" + this.flush);
+        MetaStoreConfig metaStoreConfig = StoreDataGenerator.createMetaStoreConfig(this.storePath);
+        metaStoreConfig.setGroupCommitEnable("sync".equals(this.flush));
+        this.metaStore = new DefaultMetaStore(metaStoreConfig);
+        if (!this.metaStore.load()) {
+            throw new IllegalStateException("load store failed, " + this.storePath);
+        }
+        this.metaStore.start();
+
+        this.messages = new MetaMessage[StoreDataGenerator.Types.length];
+        for (int i = 0; i < this.messages.length; i++) {
+            this.messages[i] = StoreDataGenerator.buildMessage(StoreDataGenerator.Types[i], new byte[this.bodySize]);
+        }
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.metaStore.shutdown();
+        this.metaStore.destroy();
+        StoreDataGenerator.deleteStorePath(new File(this.storePath));
+    }
+
+
+    @Benchmark
+    public PutMessageResult putMessage() {
+        int index = this.queueId.getAndIncrement() & Integer.MAX_VALUE;
+        return this.metaStore.putMessage(this.messages[index % this.messages.length],
+            StoreDataGenerator.buildMessageAnnotation(index % Queues));
+    }
+}
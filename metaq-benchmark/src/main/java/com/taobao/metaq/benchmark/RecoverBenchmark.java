@@ -0,0 +1,101 @@
+/**
+ * $Id: RecoverBenchmark.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.taobao.metaq.store.DefaultMetaStore;
+import com.taobao.metaq.store.MetaStoreConfig;
+
+
+/**
+ * DefaultMetaStore.load，在生成的数据集上测试启动恢复耗时<br>
+ * normal为正常关闭后启动，abnormal为存在异常退出文件时启动，需要从物理队列恢复
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RecoverBenchmark {
+    @Param({ "normal", "abnormal" })
+    public String shutdown;
+
+    @Param({ "100000" })
+    public int msgsPerQueue;
+
+    // 队列个数
+    private static final int Queues = 8;
+    // 消息大小
+    private static final int BodySize = 512;
+
+    private String storePath;
+    private MetaStoreConfig metaStoreConfig;
+    private DefaultMetaStore metaStore;
+
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws Exception {
+        this.storePath = StoreDataGenerator.createStorePath("recover");
+        this.metaStoreConfig = StoreDataGenerator.createMetaStoreConfig(this.storePath);
+        DefaultMetaStore generator = new DefaultMetaStore(this.metaStoreConfig);
+        if (!generator.load()) {
+            throw new IllegalStateException("load store failed, " + this.storePath);
+        }
+        generator.start();
+        StoreDataGenerator.generate(generator, Queues, this.msgsPerQueue, BodySize);
+        generator.shutdown();
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDownTrial() {
+        StoreDataGenerator.deleteStorePath(new File(this.storePath));
+    }
+
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() throws IOException {
+        if ("abnormal".equals(this.shutdown)) {
+            new File(this.metaStoreConfig.getAbortFile()).createNewFile();
+        }
+        this.metaStore = new DefaultMetaStore(this.metaStoreConfig);
+    }
+
+
+    @TearDown(Level.Invocation)
+    public void tearDownInvocation() throws Exception {
+        // 只有启动过的存储才会执行关闭流程，正常关闭后删除异常退出文件，下次仍然按照参数恢复
+        this.metaStore.start();
+        this.metaStore.shutdown();
+    }
+
+
+    @Benchmark
+    public boolean recover() {
+        if (!this.metaStore.load()) {
+            throw new IllegalStateException("recover failed, " + this.storePath);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * $Id: StoreDataGenerator.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.benchmark;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.taobao.metaq.commons.MetaMessage;
+import com.taobao.metaq.commons.MetaMessageAnnotation;
+import com.taobao.metaq.store.DefaultMetaStore;
+import com.taobao.metaq.store.MetaStore;
+import com.taobao.metaq.store.MetaStoreConfig;
+import com.taobao.metaq.store.PutMessageResult;
+
+
+/**
+ * 压测数据生成，所有压测都通过这里构造存储配置与消息，保证不同版本之间的数据集一致<br>
+ * 消息按照队列轮流写入，消息类型按照Types轮流使用<br>
+ * 单独运行时在指定目录生成数据集：StoreDataGenerator [存储目录] [队列数] [每个队列消息数] [消息大小]
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class StoreDataGenerator {
+    public static final String Topic = "TOPIC_BENCHMARK";
+    public static final String[] Types = { "MSG_TYPE_A", "MSG_TYPE_B", "MSG_TYPE_C", "MSG_TYPE_D" };
+    // 物理队列每个文件大小，比默认值小，便于在普通机器上生成多个文件
+    public static final int MapedFileSizePhysic = 1024 * 1024 * 64;
+
+    private static final SocketAddress StoreHost;
+    private static final SocketAddress BornHost;
+
+    static {
+        try {
+            StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+            BornHost = new InetSocketAddress(InetAddress.getLocalHost(), 0);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /**
+     * 所有目录都放在storePath下
+     */
+    public static MetaStoreConfig createMetaStoreConfig(final String storePath) {
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        metaStoreConfig.setMapedFileSizePhysic(MapedFileSizePhysic);
+        metaStoreConfig.setStorePathPhysic(storePath + File.separator + "physic");
+        metaStoreConfig.setStorePathLogics(storePath + File.separator + "logics");
+        metaStoreConfig.setStorePathTimeIndex(storePath + File.separator + "timeindex");
+        metaStoreConfig.setStorePathTagBits(storePath + File.separator + "tagbits");
+        metaStoreConfig.setStorePathCold(storePath + File.separator + "cold");
+        metaStoreConfig.setStorePathCompressed(storePath + File.separator + "compressed");
+        metaStoreConfig.setStorePathCompacted(storePath + File.separator + "compacted");
+        metaStoreConfig.setStorePathIndex(storePath + File.separator + "index");
+        metaStoreConfig.setStoreCheckpoint(storePath + File.separator + "metaStoreCheckpoint");
+        metaStoreConfig.setAbortFile(storePath + File.separator + "metaStoreAbort");
+        return metaStoreConfig;
+    }
+
+
+    /**
+     * 在临时目录下创建一个新的存储目录
+     */
+    public static String createStorePath(final String name) {
+        File dir =
+                new File(System.getProperty("java.io.tmpdir") + File.separator + "metaq-benchmark" + File.separator
+                        + name + "-" + System.nanoTime());
+        dir.mkdirs();
+        return dir.getPath();
+    }
+
+
+    public static void deleteStorePath(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteStorePath(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    public static MetaMessage buildMessage(final String type, final byte[] body) {
+        MetaMessage msg = new MetaMessage(Topic, type, body);
+        msg.setAttribute("");
+        return msg;
+    }
+
+
+    public static MetaMessageAnnotation buildMessageAnnotation(final int queueId) {
+        MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+        msgant.setQueueId(queueId);
+        msgant.setBornTimestamp(System.currentTimeMillis());
+        msgant.setStoreHost(StoreHost);
+        msgant.setBornHost(BornHost);
+        return msgant;
+    }
+
+
+    /**
+     * 写入数据集，等待逻辑队列构建完成后返回
+     */
+    public static void generate(final MetaStore metaStore, final int queues, final int msgsPerQueue,
+            final int bodySize) throws InterruptedException {
+        final byte[] body = new byte[bodySize];
+        for (int i = 0; i < msgsPerQueue; i++) {
+            for (int queueId = 0; queueId < queues; queueId++) {
+                PutMessageResult result =
+                        metaStore.putMessage(buildMessage(Types[i % Types.length], body),
+                            buildMessageAnnotation(queueId));
+                if (null == result || !result.isOk()) {
+                    throw new IllegalStateException("put message failed, " + result);
+                }
+            }
+        }
+
+        for (int queueId = 0; queueId < queues; queueId++) {
+            while (metaStore.getMaxOffsetInQuque(Topic, queueId) < msgsPerQueue) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        String storePath = args.length > 0 ? args[0] : createStorePath("dataset");
+        int queues = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int msgsPerQueue = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        int bodySize = args.length > 3 ? Integer.parseInt(args[3]) : 512;
+
+        MetaStore metaStore = new DefaultMetaStore(createMetaStoreConfig(storePath));
+        if (!metaStore.load()) {
+            System.out.println("load store failed, " + storePath);
+            return;
+        }
+        metaStore.start();
+
+        long beginTimestamp = System.currentTimeMillis();
+        generate(metaStore, queues, msgsPerQueue, bodySize);
+        System.out.println("generate " + queues * (long) msgsPerQueue + " messages to " + storePath
+                + ", eclipse time(ms): " + (System.currentTimeMillis() - beginTimestamp));
+        metaStore.shutdown();
+    }
+}
@@ -14,13 +14,36 @@ import javax.management.ObjectName;
  * 
  */
 public class MetaMBeanServer {
+    private static ObjectName createObjectName(Object o, String name) throws Exception {
+        return new ObjectName(o.getClass().getPackage().getName() + ":type=" + o.getClass().getSimpleName()
+                + (null == name ? ",id=" + o.hashCode() : ",name=" + name + "-" + o.hashCode()));
+    }
+
+
     public static void registMBean(Object o, String name) {
         MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
         if (null != mbs) {
             try {
-                mbs.registerMBean(o, new ObjectName(o.getClass().getPackage().getName() + ":type="
-                        + o.getClass().getSimpleName()
-                        + (null == name ? ",id=" + o.hashCode() : ",name=" + name + "-" + o.hashCode())));
+                mbs.registerMBean(o, createObjectName(o, name));
+            }
+            catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
+    /**
+     * 取消registMBean的注册，没有注册过时忽略
+     */
+    public static void unregistMBean(Object o, String name) {
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        if (null != mbs) {
+            try {
+                ObjectName objectName = createObjectName(o, name);
+                if (mbs.isRegistered(objectName)) {
+                    mbs.unregisterMBean(objectName);
+                }
             }
             catch (Exception e) {
                 throw new RuntimeException(e);
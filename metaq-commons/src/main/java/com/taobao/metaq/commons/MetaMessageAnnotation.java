@@ -203,6 +203,38 @@ public class MetaMessageAnnotation {
     }
 
 
+    /**
+     * 定时消息延时级别，0表示不延时
+     */
+    public int getDelayLevel() {
+        return (this.sysFlag & MetaMessageDecoder.DelayLevelMask) >>> MetaMessageDecoder.DelayLevelShift;
+    }
+
+
+    public void setDelayLevel(int delayLevel) {
+        this.sysFlag =
+                (this.sysFlag & ~MetaMessageDecoder.DelayLevelMask)
+                        | ((delayLevel << MetaMessageDecoder.DelayLevelShift) & MetaMessageDecoder.DelayLevelMask);
+    }
+
+
+    /**
+     * 定时消息指定的投递时间，没有指定时返回0
+     */
+    public long getDeliverTimestamp() {
+        return (this.sysFlag & MetaMessageDecoder.DeliverAtFlag) != 0 ? this.requestId : 0;
+    }
+
+
+    /**
+     * 指定投递时间，与延时级别同时设置时以投递时间为准
+     */
+    public void setDeliverTimestamp(long deliverTimestamp) {
+        this.sysFlag |= MetaMessageDecoder.DeliverAtFlag;
+        this.requestId = deliverTimestamp;
+    }
+
+
     public int getStoreSize() {
         return storeSize;
     }
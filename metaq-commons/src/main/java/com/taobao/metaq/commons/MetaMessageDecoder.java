@@ -26,14 +26,34 @@ public class MetaMessageDecoder {
      */
     public final static int MessageMagicCodePostion = 4;
     public final static int MessageFlagPostion = 16;
+    public final static int MessageQueueOffsetPostion = 20;
     public final static int MessagePhysicOffsetPostion = 28;
+    public final static int MessageSysFlagPostion = 36;
     public final static int MessageStoreTimestampPostion = 56;
+    public final static int MessageRequestIdPostion = 72;
+    public final static int MessageTopicPostion = 80;
 
     /**
      * 标记服务器版本为新版本
      */
     public final static int NewServerFlag = (1 << 31);
 
+    /**
+     * 定时消息的延时级别，存储在SYSFLAG的8~15位，0表示不延时
+     */
+    public final static int DelayLevelShift = 8;
+    public final static int DelayLevelMask = (0xFF << DelayLevelShift);
+
+    /**
+     * 定时消息按照指定时间投递，投递时间存储在REQUESTID字段
+     */
+    public final static int DeliverAtFlag = (1 << 16);
+
+    /**
+     * 定时消息到期后重新写入的消息，延时级别位记录定时队列ID + 1，REQUESTID记录消息在定时队列中的Offset
+     */
+    public final static int ScheduleDeliveredFlag = (1 << 17);
+
 
     public static String createMessageId(final ByteBuffer input, final int time, final ByteBuffer addr,
             final long offset) {
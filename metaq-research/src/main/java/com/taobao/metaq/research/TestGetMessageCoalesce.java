@@ -0,0 +1,132 @@
+/**
+ * $Id: TestGetMessageCoalesce.java 2 2013-01-05 08:09:27Z shijia $
+ */
+package com.taobao.metaq.research;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.taobao.metaq.commons.MetaMessage;
+import com.taobao.metaq.commons.MetaMessageAnnotation;
+import com.taobao.metaq.store.DefaultMetaStore;
+import com.taobao.metaq.store.GetMessageResult;
+import com.taobao.metaq.store.GetMessageStatus;
+import com.taobao.metaq.store.MetaStoreConfig;
+
+
+/**
+ * 拉消息压测，统计每批消息的hold次数、发送时的ByteBuffer个数（即writev的iovec个数）以及内存分配量<br>
+ * 物理连续的消息合并后，每批消息的hold次数与ByteBuffer个数远小于消息条数<br>
+ * 用法：TestGetMessageCoalesce [消息条数] [消息大小] [每批最大消息数] [true|false 是否复用GetMessageResult]
+ */
+public class TestGetMessageCoalesce {
+    private static final String Topic = "TOPIC_BENCHMARK";
+
+
+    private static long getAllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread()
+                .getId());
+        }
+
+        return -1;
+    }
+
+
+    private static void doPut(final DefaultMetaStore metaStore, final int msgs, final byte[] body)
+            throws Exception {
+        SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        SocketAddress bornHost = new InetSocketAddress(InetAddress.getLocalHost(), 0);
+        for (int i = 0; i < msgs; i++) {
+            MetaMessage msg = new MetaMessage(Topic, "MSG_TYPE_A", body);
+            msg.setAttribute("");
+
+            MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+            msgant.setQueueId(0);
+            msgant.setBornTimestamp(System.currentTimeMillis());
+            msgant.setStoreHost(storeHost);
+            msgant.setBornHost(bornHost);
+            metaStore.putMessage(msg, msgant);
+        }
+
+        // 等待逻辑队列构建完成
+        while (metaStore.getMaxOffsetInQuque(Topic, 0) < msgs) {
+            Thread.sleep(100);
+        }
+    }
+
+
+    private static void doGet(final DefaultMetaStore metaStore, final int batchSize, final boolean recycle) {
+        long batches = 0;
+        long messages = 0;
+        long holds = 0;
+        long buffers = 0;
+        long offset = 0;
+
+        long coalescedBefore = metaStore.getMetaStatsService().getGetMessageCoalescedCount().get();
+        long allocatedBefore = getAllocatedBytes();
+        long beginTimestamp = System.currentTimeMillis();
+        while (true) {
+            GetMessageResult result = metaStore.getMessage(Topic, 0, offset, batchSize, null);
+            if (result.getStatus() != GetMessageStatus.FOUND) {
+                if (recycle) {
+                    result.recycle();
+                }
+                else {
+                    result.release();
+                }
+                break;
+            }
+
+            batches++;
+            messages += result.getMessageCount();
+            holds += result.getMessageMapedList().size();
+            buffers += result.getTransferBufferList().size();
+            offset = result.getNextBeginOffset();
+            if (recycle) {
+                result.recycle();
+            }
+            else {
+                result.release();
+            }
+        }
+        long eclipseTime = System.currentTimeMillis() - beginTimestamp;
+        long allocated = getAllocatedBytes() - allocatedBefore;
+
+        batches = Math.max(batches, 1);
+        System.out.println("recycle: " + recycle + " batches: " + batches + " messages: " + messages
+                + " eclipse time(ms): " + eclipseTime);
+        System.out.println("per batch: messages " + (messages / batches) + " holds " + (holds / batches)
+                + " buffers " + (buffers / batches) + " allocated bytes "
+                + (allocatedBefore >= 0 ? String.valueOf(allocated / batches) : "unknown"));
+        System.out.println("coalesced messages: "
+                + (metaStore.getMetaStatsService().getGetMessageCoalescedCount().get() - coalescedBefore));
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int msgs = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int msgSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+        boolean recycle = args.length > 3 ? Boolean.parseBoolean(args[3]) : true;
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        DefaultMetaStore metaStore = new DefaultMetaStore(metaStoreConfig);
+        if (!metaStore.load()) {
+            System.out.println("load store failed");
+            return;
+        }
+        metaStore.start();
+
+        doPut(metaStore, msgs, new byte[msgSize]);
+        // 第一轮预热
+        doGet(metaStore, batchSize, recycle);
+        doGet(metaStore, batchSize, recycle);
+
+        metaStore.shutdown();
+        metaStore.destroy();
+    }
+}
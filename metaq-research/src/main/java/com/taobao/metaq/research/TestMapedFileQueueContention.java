@@ -0,0 +1,107 @@
+/**
+ * $Id: TestMapedFileQueueContention.java 2 2013-01-05 08:09:27Z shijia $
+ */
+package com.taobao.metaq.research;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.taobao.metaq.store.AllocateMapedFileService;
+import com.taobao.metaq.store.MapedFile;
+import com.taobao.metaq.store.MapedFileQueue;
+
+
+/**
+ * 多线程读MapedFileQueue压测，模拟大量拉消息线程并发查找文件并hold/release<br>
+ * 同时有一个线程不断追加新文件，统计读线程的吞吐量与最大RT，用于对比加锁与无锁实现<br>
+ * 用法：TestMapedFileQueueContention [读线程数] [文件个数] [压测时间(秒)]
+ */
+public class TestMapedFileQueueContention {
+    private static final int MapedFileSize = 1024 * 64;
+
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        final int files = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+        AllocateMapedFileService allocateMapedFileService = new AllocateMapedFileService();
+        allocateMapedFileService.start();
+        final MapedFileQueue mapedFileQueue =
+                new MapedFileQueue(System.getProperty("user.home") + "/metastore/contention", MapedFileSize,
+                    allocateMapedFileService);
+        final byte[] data = new byte[MapedFileSize];
+        for (int i = 0; i < files; i++) {
+            mapedFileQueue.getLastMapedFile().appendMessage(data);
+        }
+
+        final long endTimestamp = System.currentTimeMillis() + seconds * 1000L;
+        final CountDownLatch countDownLatch = new CountDownLatch(threads + 1);
+        final AtomicLong readTotal = new AtomicLong(0);
+        final AtomicLong holdFailedTotal = new AtomicLong(0);
+        final AtomicLong maxRT = new AtomicLong(0);
+
+        for (int i = 0; i < threads; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        Random random = new Random();
+                        long reads = 0;
+                        while (System.currentTimeMillis() < endTimestamp) {
+                            for (int k = 0; k < 1000; k++) {
+                                long offset = (long) random.nextInt(files) * MapedFileSize;
+                                long begin = System.nanoTime();
+                                MapedFile mapedFile = mapedFileQueue.findMapedFileByOffset(offset);
+                                if (mapedFile != null && mapedFile.hold()) {
+                                    mapedFile.release();
+                                }
+                                else {
+                                    holdFailedTotal.incrementAndGet();
+                                }
+                                long rt = System.nanoTime() - begin;
+
+                                long cur = maxRT.get();
+                                while (rt > cur && !maxRT.compareAndSet(cur, rt)) {
+                                    cur = maxRT.get();
+                                }
+                            }
+                            reads += 1000;
+                        }
+                        readTotal.addAndGet(reads);
+                    }
+                    finally {
+                        countDownLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        // 写线程，模拟物理队列不断追加新文件
+        new Thread() {
+            public void run() {
+                try {
+                    while (System.currentTimeMillis() < endTimestamp) {
+                        mapedFileQueue.getLastMapedFile().appendMessage(data);
+                        Thread.sleep(100);
+                    }
+                }
+                catch (InterruptedException e) {
+                }
+                finally {
+                    countDownLatch.countDown();
+                }
+            }
+        }.start();
+
+        countDownLatch.await();
+
+        System.out.println("threads: " + threads + " files: " + files + " reads: " + readTotal.get()
+                + " reads/s: " + (readTotal.get() / seconds) + " hold failed: " + holdFailedTotal.get()
+                + " max RT(us): " + (maxRT.get() / 1000));
+
+        mapedFileQueue.shutdown(1000);
+        mapedFileQueue.destroy();
+        allocateMapedFileService.shutdown();
+    }
+}
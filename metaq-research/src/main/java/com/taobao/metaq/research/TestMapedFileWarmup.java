@@ -0,0 +1,128 @@
+/**
+ * $Id: TestMapedFileWarmup.java 2 2013-01-05 08:09:27Z shijia $
+ */
+package com.taobao.metaq.research;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import com.taobao.metaq.commons.MetaMessage;
+import com.taobao.metaq.commons.MetaMessageAnnotation;
+import com.taobao.metaq.store.DefaultMetaStore;
+import com.taobao.metaq.store.MetaStore;
+import com.taobao.metaq.store.MetaStoreConfig;
+import com.taobao.metaq.store.PutMessageResult;
+
+
+/**
+ * 对比物理队列文件预热前后，切换文件附近写消息的RT分布<br>
+ * 未预热时，新文件每个page第一次写入都会触发缺页中断，切换文件后一段时间内RT明显升高<br>
+ * 用法：TestMapedFileWarmup [消息数] [消息大小] [true|false 是否预热文件]
+ */
+public class TestMapedFileWarmup {
+    // RT分布区间（微秒），最后一个区间表示大于等于最大值
+    private static final long[] Buckets = new long[] { 10, 50, 100, 500, 1000, 5000, 10000, 50000 };
+    // 切换文件后统计的消息条数
+    private static final int AfterRollMessages = 10000;
+
+
+    private static int bucketIndex(final long rtMicros) {
+        for (int i = 0; i < Buckets.length; i++) {
+            if (rtMicros < Buckets[i]) {
+                return i;
+            }
+        }
+
+        return Buckets.length;
+    }
+
+
+    private static void printHistogram(final String name, final long[] histogram, final long maxRT) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append(" max RT(us): ").append(maxRT).append("\r\n");
+        for (int i = 0; i < histogram.length; i++) {
+            if (i < Buckets.length) {
+                sb.append("\t< ").append(Buckets[i]);
+            }
+            else {
+                sb.append("\t>= ").append(Buckets[Buckets.length - 1]);
+            }
+            sb.append("us: ").append(histogram[i]).append("\r\n");
+        }
+
+        System.out.print(sb.toString());
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int msgs = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int msgSize = args.length > 1 ? Integer.parseInt(args[1]) : 512;
+        boolean warm = args.length > 2 ? Boolean.parseBoolean(args[2]) : true;
+
+        SocketAddress storeHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        SocketAddress bornHost = new InetSocketAddress(InetAddress.getLocalHost(), 0);
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        metaStoreConfig.setWarmMapedFileEnable(warm);
+
+        MetaStore metaStore = new DefaultMetaStore(metaStoreConfig);
+        if (!metaStore.load()) {
+            System.out.println("load store failed");
+            return;
+        }
+        metaStore.start();
+
+        final int mapedFileSize = metaStoreConfig.getMapedFileSizePhysic();
+        final long[] steadyHistogram = new long[Buckets.length + 1];
+        final long[] rollHistogram = new long[Buckets.length + 1];
+        long steadyMaxRT = 0;
+        long rollMaxRT = 0;
+        long lastFileIndex = -1;
+        int afterRoll = 0;
+        int rollTimes = 0;
+
+        byte[] body = new byte[msgSize];
+        for (int i = 0; i < msgs; i++) {
+            MetaMessage msg = new MetaMessage("TOPIC_BENCHMARK", "MSG_TYPE_A", body);
+            msg.setAttribute("");
+
+            MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+            msgant.setQueueId(0);
+            msgant.setBornTimestamp(System.currentTimeMillis());
+            msgant.setStoreHost(storeHost);
+            msgant.setBornHost(bornHost);
+
+            long begin = System.nanoTime();
+            PutMessageResult result = metaStore.putMessage(msg, msgant);
+            long rt = (System.nanoTime() - begin) / 1000;
+            if (!result.isOk()) {
+                continue;
+            }
+
+            long fileIndex = result.getAppendMessageResult().getWroteOffset() / mapedFileSize;
+            if (lastFileIndex >= 0 && fileIndex != lastFileIndex) {
+                afterRoll = AfterRollMessages;
+                rollTimes++;
+            }
+            lastFileIndex = fileIndex;
+
+            if (afterRoll > 0) {
+                afterRoll--;
+                rollHistogram[bucketIndex(rt)]++;
+                rollMaxRT = Math.max(rollMaxRT, rt);
+            }
+            else {
+                steadyHistogram[bucketIndex(rt)]++;
+                steadyMaxRT = Math.max(steadyMaxRT, rt);
+            }
+        }
+
+        System.out.println("warmMapedFileEnable: " + warm + " msgSize: " + msgSize + " roll times: " + rollTimes);
+        printHistogram("steady", steadyHistogram, steadyMaxRT);
+        printHistogram("after roll " + AfterRollMessages + " msgs", rollHistogram, rollMaxRT);
+
+        metaStore.shutdown();
+        metaStore.destroy();
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * $Id: TestPutMessageConcurrency.java 2 2013-01-05 08:09:27Z shijia $
+ */
+package com.taobao.metaq.research;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.taobao.metaq.commons.MetaMessage;
+import com.taobao.metaq.commons.MetaMessageAnnotation;
+import com.taobao.metaq.store.DefaultMetaStore;
+import com.taobao.metaq.store.MetaStore;
+import com.taobao.metaq.store.MetaStoreConfig;
+import com.taobao.metaq.store.PutMessageResult;
+
+
+/**
+ * 多线程写物理队列压测，对比加锁写与无锁写的TPS<br>
+ * 用法：TestPutMessageConcurrency [线程数] [每个线程发送消息数] [消息大小] [true|false 是否开启无锁写]
+ */
+public class TestPutMessageConcurrency {
+    private static SocketAddress BornHost;
+    private static SocketAddress StoreHost;
+
+
+    private static void doPut(final MetaStore metaStore, final int threads, final int msgsPerThread,
+            final byte[] body) throws InterruptedException {
+        final CountDownLatch countDownLatch = new CountDownLatch(threads);
+        final AtomicLong putOKTotal = new AtomicLong(0);
+        final AtomicLong maxRT = new AtomicLong(0);
+
+        long beginTimestamp = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            final int queueId = i;
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int k = 0; k < msgsPerThread; k++) {
+                            MetaMessage msg = new MetaMessage("TOPIC_BENCHMARK", "MSG_TYPE_A", body);
+                            msg.setAttribute("");
+
+                            MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+                            msgant.setQueueId(queueId);
+                            msgant.setBornTimestamp(System.currentTimeMillis());
+                            msgant.setStoreHost(StoreHost);
+                            msgant.setBornHost(BornHost);
+
+                            long begin = System.currentTimeMillis();
+                            PutMessageResult result = metaStore.putMessage(msg, msgant);
+                            long rt = System.currentTimeMillis() - begin;
+                            if (result.isOk()) {
+                                putOKTotal.incrementAndGet();
+                            }
+
+                            long cur = maxRT.get();
+                            while (rt > cur && !maxRT.compareAndSet(cur, rt)) {
+                                cur = maxRT.get();
+                            }
+                        }
+                    }
+                    finally {
+                        countDownLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        countDownLatch.await();
+        long eclipseTime = System.currentTimeMillis() - beginTimestamp;
+
+        System.out.println("threads: " + threads + " put OK: " + putOKTotal.get() + " eclipse time(ms): "
+                + eclipseTime + " TPS: " + (putOKTotal.get() * 1000 / Math.max(eclipseTime, 1)) + " max RT(ms): "
+                + maxRT.get());
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int msgsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int msgSize = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        boolean lockFree = args.length > 3 ? Boolean.parseBoolean(args[3]) : true;
+
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getLocalHost(), 0);
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        metaStoreConfig.setLockFreeAppendEnable(lockFree);
+
+        MetaStore metaStore = new DefaultMetaStore(metaStoreConfig);
+        if (!metaStore.load()) {
+            System.out.println("load store failed");
+            return;
+        }
+        metaStore.start();
+
+        System.out.println("lockFreeAppendEnable: " + lockFree + " msgSize: " + msgSize);
+        doPut(metaStore, threads, msgsPerThread, new byte[msgSize]);
+
+        metaStore.shutdown();
+        metaStore.destroy();
+    }
+}
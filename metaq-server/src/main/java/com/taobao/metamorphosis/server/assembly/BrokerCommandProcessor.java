@@ -57,6 +57,7 @@ import com.taobao.metaq.commons.MetaMessageDecoder;
 import com.taobao.metaq.commons.MetaUtil;
 import com.taobao.metaq.store.GetMessageResult;
 import com.taobao.metaq.store.MetaStore;
+import com.taobao.metaq.store.PutMessageCallback;
 import com.taobao.metaq.store.PutMessageResult;
 import com.taobao.metaq.store.SelectMapedBufferResult;
 
@@ -370,7 +371,7 @@ public class BrokerCommandProcessor implements CommandProcessor {
                 System.arraycopy(request.getData(), 4 + attrLen, bodyData, 0, bodyLen);
                 message.setBody(bodyData);
             }
-            int partitionId=this.getPartition(request);
+            final int partitionId=this.getPartition(request);
             MetaMessageAnnotation msgant = new MetaMessageAnnotation();
             msgant.setQueueId(partitionId);
             msgant.setSysFlag(0);
@@ -390,30 +391,13 @@ public class BrokerCommandProcessor implements CommandProcessor {
             
             msgant.setBodyCRC(MetaUtil.crc32(request.getData()));
 
-            PutMessageResult result = metaStore.putMessage(message, msgant);
-            if (result != null && result.isOk()) {
-                if (cb != null) {
-
-                    // 1 1.4版本消息ID
-                    String resultStr = String.valueOf(result.getAppendMessageResult().getWroteOffset());
-                    resultStr += " ";
-                    // 2 分区信息
-                    resultStr += String.valueOf(partitionId);
-                    resultStr += " ";
-                    // 3 物理分区offset
-                    resultStr += String.valueOf(result.getAppendMessageResult().getWroteOffset());
-                    resultStr += " ";
-                    // 4 2.0版本消息ID
-                    resultStr += result.getAppendMessageResult().getMsgId();
-
-                    cb.putComplete(new BooleanCommand(request.getOpaque(), HttpStatus.Success, resultStr));
+            // 同步刷盘时不阻塞当前线程，刷盘完成后在回调中应答
+            metaStore.putMessageAsync(message, msgant, new PutMessageCallback() {
+                @Override
+                public void putMessageComplete(final PutMessageResult result, final boolean flushOK) {
+                    BrokerCommandProcessor.this.putMessageComplete(request, partitionId, result, cb);
                 }
-            }
-            else {
-                cb.putComplete(new BooleanCommand(request.getOpaque(), HttpStatus.InternalServerError,
-                    "put message failed"));
-            }
-
+            });
         }
         catch (final Exception e) {
             this.statsManager.statsPutFailed(request.getTopic(), partitionString, 1);
@@ -426,6 +410,34 @@ public class BrokerCommandProcessor implements CommandProcessor {
     }
 
 
+    private void putMessageComplete(final PutCommand request, final int partitionId,
+            final PutMessageResult result, final PutCallback cb) {
+        if (null == cb) {
+            return;
+        }
+
+        if (result != null && result.getAppendMessageResult() != null && result.isOk()) {
+            // 1 1.4版本消息ID
+            String resultStr = String.valueOf(result.getAppendMessageResult().getWroteOffset());
+            resultStr += " ";
+            // 2 分区信息
+            resultStr += String.valueOf(partitionId);
+            resultStr += " ";
+            // 3 物理分区offset
+            resultStr += String.valueOf(result.getAppendMessageResult().getWroteOffset());
+            resultStr += " ";
+            // 4 2.0版本消息ID
+            resultStr += result.getAppendMessageResult().getMsgId();
+
+            cb.putComplete(new BooleanCommand(request.getOpaque(), HttpStatus.Success, resultStr));
+        }
+        else {
+            cb.putComplete(new BooleanCommand(request.getOpaque(), HttpStatus.InternalServerError,
+                "put message failed"));
+        }
+    }
+
+
     protected int getPartition(final PutCommand request) {
         int partition = request.getPartition();
         if (partition == Partition.RandomPartiton.getPartition()) {
@@ -474,14 +486,15 @@ public class BrokerCommandProcessor implements CommandProcessor {
 
             @Override
             public void onResponse(ResponseCommand responseCommand, Connection conn) {
-                getMessageResult.release();
+                getMessageResult.recycle();
 
             }
 
 
             @Override
             public void onException(Exception e) {
-                getMessageResult.release();
+                // 超时后发送可能仍在进行，之后还可能收到onResponse，不能放回对象池
+                getMessageResult.discard();
             }
 
 
@@ -492,12 +505,12 @@ public class BrokerCommandProcessor implements CommandProcessor {
         };
 
         try {
-            ctx.getConnection().transferPageCache(head, null, getMessageResult.getMessageBufferList(), 0,
+            ctx.getConnection().transferPageCache(head, null, getMessageResult.getTransferBufferList(), 0,
                 getMessageResult.getBufferTotalSize(), request.getOpaque(), listener, 10000L,
                 TimeUnit.MILLISECONDS);
         }
         catch (NotifyRemotingException e1) {
-            getMessageResult.release();
+            getMessageResult.discard();
         }
     }
 
@@ -584,8 +597,10 @@ public class BrokerCommandProcessor implements CommandProcessor {
             }
         }
         Set<Integer> messageTypeList = this.messageTypeManager.getMessageTypeHash(group, topic);
+        Set<String> messageTypeNames = this.messageTypeManager.getMessageTypeNames(group, topic);
         GetMessageResult getMessageResult =
-                metaStore.getMessage(topic, request.getPartition(), reqOffset, request.getMaxSize(), messageTypeList);
+                metaStore.getMessage(topic, request.getPartition(), reqOffset, request.getMaxSize(), messageTypeList,
+                    messageTypeNames);
         if (getMessageResult != null) {
             switch (getMessageResult.getStatus()) {
             // 找到消息
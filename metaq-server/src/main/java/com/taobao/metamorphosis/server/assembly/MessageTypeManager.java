@@ -66,6 +66,20 @@ public class MessageTypeManager {
 		return hashList;
 	}
 
+	/**
+	 * 服务端按照消息类型名称精确过滤，排除hashcode冲突的类型
+	 * @param group
+	 * @param topic
+	 * @return
+	 */
+	public Set<String> getMessageTypeNames(String group, String topic) {
+		MessageTypeSet value = getMessageType(group, topic);
+		if (value == null) {
+			return null;
+		}
+		return value.getMessageTypes();
+	}
+
 	public Set<String> getMessageType(String group, String topic, long version) {
 		MessageTypeSet value = getMessageType(group, topic);
 		if (value == null) {
@@ -50,10 +50,13 @@ public class FetchProcessorTest extends BaseProcessorUnitTest {
 		EasyMock.expect(this.messageTypeManager.getMessageType(group, topic, clientStartTime)).andReturn(
 				new HashSet<String>());
 		EasyMock.expect(this.messageTypeManager.getMessageTypeHash(group, topic)).andReturn(hashList);
+		Set<String> typeNames = new HashSet<String>();
+		typeNames.add("*");
+		EasyMock.expect(this.messageTypeManager.getMessageTypeNames(group, topic)).andReturn(typeNames);
 		GetMessageResult getResult = this.mocksControl.createMock(GetMessageResult.class);
 		EasyMock.expect(getResult.getStatus()).andReturn(GetMessageStatus.NO_MATCHED_MESSAGE);
 		EasyMock.expect(getResult.getNextBeginOffset()).andReturn(1000L);
-		EasyMock.expect(this.metaStore.getMessage(topic, partition, offset, maxSize, hashList)).andReturn(getResult);
+		EasyMock.expect(this.metaStore.getMessage(topic, partition, offset, maxSize, hashList, typeNames)).andReturn(getResult);
 		conn.response(new BooleanCommand(opaque, HttpStatus.Moved, "1000"));
 		this.mocksControl.replay();
 		FetchCommand fetchCommand = new FetchCommand(version, topic, group, partition, offset, maxSize, opaque,
@@ -0,0 +1,172 @@
+/**
+ * $Id: AdaptiveFlushController.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 自适应刷盘控制，由刷盘线程在每次等待前调用update，刷盘后调用onFlushed<br>
+ * 根据写入速度与实测刷盘速度计算本次刷盘的脏数据上限：不超过配置的脏数据目标，且按实测速度刷完不超过刷盘耗时目标<br>
+ * 脏数据上限折算为最少页数，等待时间为按当前写入速度积累到上限所需的时间，空闲时按照最大间隔唤醒
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class AdaptiveFlushController {
+    // 平滑系数，新样本所占比重
+    private static final double Alpha = 0.2;
+    // 名称，用于统计输出
+    private final String name;
+    private final MetaStoreConfig metaStoreConfig;
+    // 上次采样时的写入位置与时间，只由刷盘线程访问
+    private long lastWriteWhere = -1;
+    private long lastSampleTimestamp = 0;
+    // 写入速度，字节/毫秒
+    private volatile double writeBytesPerMs = 0;
+    // 实测刷盘速度，字节/毫秒，还没有样本时为0
+    private volatile double flushBytesPerMs = 0;
+    // 当前脏数据量
+    private volatile long dirtyBytes = 0;
+    // 本次刷盘的脏数据上限
+    private volatile long flushBytesLimit = 0;
+    // 本次刷盘的最少页数
+    private volatile int flushLeastPages = 0;
+    // 本次等待时间
+    private volatile int waitInterval = 0;
+    // 刷盘次数
+    private final AtomicLong flushTimes = new AtomicLong(0);
+    // 刷盘字节总数
+    private final AtomicLong flushBytesTotal = new AtomicLong(0);
+    // 最近一次刷盘耗时
+    private volatile long flushTimeLast = 0;
+    // 最大刷盘耗时
+    private volatile long flushTimeMax = 0;
+
+
+    public AdaptiveFlushController(final String name, final MetaStoreConfig metaStoreConfig) {
+        this.name = name;
+        this.metaStoreConfig = metaStoreConfig;
+    }
+
+
+    /**
+     * 采样写入速度并计算本次刷盘参数
+     *
+     * @param writeWhere
+     *            写入到哪里
+     * @param flushedWhere
+     *            刷盘刷到哪里
+     * @param dirtyBytesTarget
+     *            脏数据目标上限
+     */
+    public void update(final long writeWhere, final long flushedWhere, final long dirtyBytesTarget) {
+        final long now = System.currentTimeMillis();
+        if (this.lastWriteWhere >= 0 && now > this.lastSampleTimestamp) {
+            // 队列被删除时写入位置可能变小，按照没有写入处理
+            long wrote = Math.max(writeWhere - this.lastWriteWhere, 0);
+            double rate = wrote / (double) (now - this.lastSampleTimestamp);
+            this.writeBytesPerMs = this.writeBytesPerMs * (1 - Alpha) + rate * Alpha;
+        }
+        if (now > this.lastSampleTimestamp || this.lastWriteWhere < 0) {
+            this.lastWriteWhere = writeWhere;
+            this.lastSampleTimestamp = now;
+        }
+
+        long limit = dirtyBytesTarget;
+        if (this.flushBytesPerMs > 0) {
+            limit = Math.min(limit, (long) (this.flushBytesPerMs * this.metaStoreConfig.getAdaptiveFlushTimeTarget()));
+        }
+        limit = Math.max(limit, MapedFile.OS_PAGE_SIZE);
+
+        final long dirty = Math.max(writeWhere - flushedWhere, 0);
+        final int intervalMin = Math.max(this.metaStoreConfig.getAdaptiveFlushIntervalMin(), 1);
+        final int intervalMax = Math.max(this.metaStoreConfig.getAdaptiveFlushIntervalMax(), intervalMin);
+        long interval = intervalMax;
+        if (dirty >= limit) {
+            interval = intervalMin;
+        }
+        else if (this.writeBytesPerMs > 0) {
+            interval = (long) ((limit - dirty) / this.writeBytesPerMs);
+        }
+
+        this.dirtyBytes = dirty;
+        this.flushBytesLimit = limit;
+        this.flushLeastPages = (int) Math.max(limit / MapedFile.OS_PAGE_SIZE, 1);
+        this.waitInterval = (int) Math.min(Math.max(interval, intervalMin), intervalMax);
+    }
+
+
+    /**
+     * 记录一次刷盘的数据量与耗时，没有数据刷盘时不调用
+     */
+    public void onFlushed(final long flushedBytes, final long costTime) {
+        if (flushedBytes <= 0) {
+            return;
+        }
+
+        double rate = flushedBytes / (double) Math.max(costTime, 1);
+        this.flushBytesPerMs = this.flushBytesPerMs > 0 ? this.flushBytesPerMs * (1 - Alpha) + rate * Alpha : rate;
+        this.flushTimes.incrementAndGet();
+        this.flushBytesTotal.addAndGet(flushedBytes);
+        this.flushTimeLast = costTime;
+        if (costTime > this.flushTimeMax) {
+            this.flushTimeMax = costTime;
+        }
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    public double getWriteBytesPerMs() {
+        return writeBytesPerMs;
+    }
+
+
+    public double getFlushBytesPerMs() {
+        return flushBytesPerMs;
+    }
+
+
+    public long getDirtyBytes() {
+        return dirtyBytes;
+    }
+
+
+    public long getFlushBytesLimit() {
+        return flushBytesLimit;
+    }
+
+
+    public int getFlushLeastPages() {
+        return flushLeastPages;
+    }
+
+
+    public int getWaitInterval() {
+        return waitInterval;
+    }
+
+
+    public long getFlushTimes() {
+        return flushTimes.get();
+    }
+
+
+    public long getFlushBytesTotal() {
+        return flushBytesTotal.get();
+    }
+
+
+    public long getFlushTimeLast() {
+        return flushTimeLast;
+    }
+
+
+    public long getFlushTimeMax() {
+        return flushTimeMax;
+    }
+}
@@ -8,6 +8,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
@@ -30,11 +31,16 @@ public class AllocateMapedFileService extends ServiceThread {
         private CountDownLatch countDownLatch = new CountDownLatch(1);
         // MapedFile
         private volatile MapedFile mapedFile = null;
+        // 写缓冲池，可以为null
+        private final TransientStorePool transientStorePool;
+        // 写消息线程是否已经在等待此文件，等待时不预热或者停止预热，避免等待超时
+        private final AtomicBoolean waiting = new AtomicBoolean(false);
 
 
-        public AllocateRequest(String filePath, int fileSize) {
+        public AllocateRequest(String filePath, int fileSize, TransientStorePool transientStorePool) {
             this.filePath = filePath;
             this.fileSize = fileSize;
+            this.transientStorePool = transientStorePool;
         }
 
 
@@ -78,6 +84,11 @@ public class AllocateMapedFileService extends ServiceThread {
         }
 
 
+        public TransientStorePool getTransientStorePool() {
+            return transientStorePool;
+        }
+
+
         public int compareTo(AllocateRequest other) {
             return this.fileSize < other.fileSize ? 1 : this.fileSize > other.fileSize ? -1 : 0;
         }
@@ -90,11 +101,62 @@ public class AllocateMapedFileService extends ServiceThread {
             new ConcurrentHashMap<String, AllocateRequest>();
     private PriorityBlockingQueue<AllocateRequest> requestQueue = new PriorityBlockingQueue<AllocateRequest>();
     private volatile boolean hasException = false;
+    // 存储配置，为null时不预热文件
+    private final MetaStoreConfig metaStoreConfig;
+    // 预热文件时调用的本地方法扩展
+    private final MapedFileWarmHook mapedFileWarmHook;
+    // 等待文件创建的耗时统计，为null时不统计
+    private volatile LatencyRecorder allocateLatencyRecorder = null;
+
+
+    public AllocateMapedFileService() {
+        this(null);
+    }
+
+
+    public AllocateMapedFileService(final MetaStoreConfig metaStoreConfig) {
+        this.metaStoreConfig = metaStoreConfig;
+        this.mapedFileWarmHook = null == metaStoreConfig ? null : createWarmHook(metaStoreConfig);
+    }
+
+
+    private static MapedFileWarmHook createWarmHook(final MetaStoreConfig metaStoreConfig) {
+        String className = metaStoreConfig.getMapedFileWarmHookClass();
+        if (null == className || className.trim().length() == 0) {
+            return null;
+        }
+
+        try {
+            MapedFileWarmHook hook = (MapedFileWarmHook) Class.forName(className.trim()).newInstance();
+            log.info("create maped file warm hook " + className + " OK");
+            return hook;
+        }
+        catch (Throwable e) {
+            log.warn("create maped file warm hook " + className + " failed, ignore it", e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 只预热物理队列文件，逻辑队列文件较小，并且写入频率低
+     */
+    private boolean isWarmNeeded(final AllocateRequest req) {
+        return this.metaStoreConfig != null && this.metaStoreConfig.isWarmMapedFileEnable()
+                && req.getFileSize() >= this.metaStoreConfig.getMapedFileSizePhysic();
+    }
 
 
     public MapedFile putRequestAndReturnMapedFile(String nextFilePath, String nextNextFilePath, int fileSize) {
-        AllocateRequest nextReq = new AllocateRequest(nextFilePath, fileSize);
-        AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize);
+        return this.putRequestAndReturnMapedFile(nextFilePath, nextNextFilePath, fileSize, null);
+    }
+
+
+    public MapedFile putRequestAndReturnMapedFile(String nextFilePath, String nextNextFilePath, int fileSize,
+            TransientStorePool transientStorePool) {
+        AllocateRequest nextReq = new AllocateRequest(nextFilePath, fileSize, transientStorePool);
+        AllocateRequest nextNextReq = new AllocateRequest(nextNextFilePath, fileSize, transientStorePool);
         boolean nextPutOK = (this.requestTable.putIfAbsent(nextFilePath, nextReq) == null);
         boolean nextNextPutOK = (this.requestTable.putIfAbsent(nextNextFilePath, nextNextReq) == null);
 
@@ -120,7 +182,13 @@ public class AllocateMapedFileService extends ServiceThread {
         AllocateRequest result = this.requestTable.get(nextFilePath);
         try {
             if (result != null) {
+                result.waiting.set(true);
+                final long beginNanos = System.nanoTime();
                 boolean waitOK = result.getCountDownLatch().await(WaitTimeOut, TimeUnit.MILLISECONDS);
+                final LatencyRecorder recorder = this.allocateLatencyRecorder;
+                if (recorder != null) {
+                    recorder.recordSince(beginNanos);
+                }
                 if (!waitOK) {
                     log.warn("create mmap timeout " + result.getFilePath() + " " + result.getFileSize());
                 }
@@ -139,6 +207,60 @@ public class AllocateMapedFileService extends ServiceThread {
     }
 
 
+    /**
+     * 队列配置多个存储目录时，为新文件选择目录，返回目录下标<br>
+     * 依次比较：磁盘使用率是否超过上限，是否与相邻文件在同一目录，目录中队列文件个数，磁盘使用率，都小的优先<br>
+     * 连续的文件落在不同磁盘上，刷盘与预热新文件时各磁盘可以并行，全部目录都超过上限时仍然分配
+     *
+     * @param fileNums
+     *            各目录中队列已有的文件个数
+     * @param adjacentIndex
+     *            相邻文件所在目录的下标，没有时为-1
+     */
+    public int selectStorePath(final String[] storePaths, final int[] fileNums, final int adjacentIndex) {
+        final double maxRatio =
+                null == this.metaStoreConfig ? 1.0 : this.metaStoreConfig.getDiskMaxUsedSpaceRatio() / 100.0;
+
+        int selected = -1;
+        boolean selectedFull = false;
+        boolean selectedAdjacent = false;
+        double selectedRatio = 0;
+        for (int i = 0; i < storePaths.length; i++) {
+            final double ratio = MetaUtil.getDiskPartitionSpaceUsedPercent(storePaths[i]);
+            final boolean full = ratio < 0 || ratio > maxRatio;
+            final boolean adjacent = i == adjacentIndex;
+
+            boolean better = selected < 0;
+            if (!better && full != selectedFull) {
+                better = !full;
+            }
+            else if (!better && adjacent != selectedAdjacent) {
+                better = !adjacent;
+            }
+            else if (!better && fileNums[i] != fileNums[selected]) {
+                better = fileNums[i] < fileNums[selected];
+            }
+            else if (!better) {
+                better = ratio < selectedRatio;
+            }
+
+            if (better) {
+                selected = i;
+                selectedFull = full;
+                selectedAdjacent = adjacent;
+                selectedRatio = ratio;
+            }
+        }
+
+        return selected;
+    }
+
+
+    public void setAllocateLatencyRecorder(LatencyRecorder allocateLatencyRecorder) {
+        this.allocateLatencyRecorder = allocateLatencyRecorder;
+    }
+
+
     public void shutdown() {
         this.stoped = true;
         this.thread.interrupt();
@@ -173,7 +295,13 @@ public class AllocateMapedFileService extends ServiceThread {
 
             if (req.getMapedFile() == null) {
                 long beginTime = System.currentTimeMillis();
-                MapedFile mapedFile = new MapedFile(req.getFilePath(), req.getFileSize());
+                MapedFile mapedFile =
+                        new MapedFile(req.getFilePath(), req.getFileSize(), req.getTransientStorePool());
+                // 只预热提前分配的文件，写消息线程已经在等待的文件直接交出
+                if (this.isWarmNeeded(req) && !req.waiting.get()) {
+                    mapedFile.warmMapedFile(this.metaStoreConfig.getFlushLeastPagesWhenWarmMapedFile(),
+                        this.mapedFileWarmHook, req.waiting);
+                }
                 long eclipseTime = MetaUtil.computeEclipseTimeMilliseconds(beginTime);
                 // 记录大于10ms的
                 if (eclipseTime > 10) {
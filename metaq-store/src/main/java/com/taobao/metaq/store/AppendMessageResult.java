@@ -3,6 +3,10 @@
  */
 package com.taobao.metaq.store;
 
+import java.nio.ByteBuffer;
+
+import com.taobao.metaq.commons.MetaMessageDecoder;
+
 /**
  * 写入消息结果
  * 
@@ -15,8 +19,10 @@ public class AppendMessageResult {
     private long wroteOffset;
     // 写入字节数
     private int wroteBytes;
-    // 消息ID
+    // 消息ID，为null时由storeHostBytes延迟生成
     private String msgId;
+    // 存储主机地址，用来延迟生成消息ID
+    private byte[] storeHostBytes;
     // 消息存储时间
     private long storeTimestamp;
     // 写入逻辑队列的offset（递进1）
@@ -34,6 +40,16 @@ public class AppendMessageResult {
     }
 
 
+    /**
+     * 消息ID在调用getMsgId时才生成，避免在写锁内格式化字符串
+     */
+    public AppendMessageResult(AppendMessageStatus status, long wroteOffset, int wroteBytes,
+            byte[] storeHostBytes, long storeTimestamp, long logicsOffset) {
+        this(status, wroteOffset, wroteBytes, (String) null, storeTimestamp, logicsOffset);
+        this.storeHostBytes = storeHostBytes;
+    }
+
+
     public boolean isOk() {
         return this.status == AppendMessageStatus.PUT_OK;
     }
@@ -75,6 +91,12 @@ public class AppendMessageResult {
 
 
     public String getMsgId() {
+        if (null == this.msgId && this.storeHostBytes != null) {
+            this.msgId =
+                    MetaMessageDecoder.createMessageId(ByteBuffer.allocate(MetaMessageDecoder.MSG_ID_LENGTH),
+                        (int) (this.storeTimestamp / 1000), ByteBuffer.wrap(this.storeHostBytes), this.wroteOffset);
+        }
+
         return msgId;
     }
 
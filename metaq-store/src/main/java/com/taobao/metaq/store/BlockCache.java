@@ -0,0 +1,104 @@
+/**
+ * $Id: BlockCache.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 解压后数据块的LRU缓存，按照字节数限制大小<br>
+ * Key为数据块在物理队列中的起始Offset
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class BlockCache {
+    // 缓存的最大字节数
+    private final long capacity;
+    // 按照访问顺序排列
+    private final LinkedHashMap<Long, byte[]> blockTable = new LinkedHashMap<Long, byte[]>(1024, 0.75f, true);
+    // 当前缓存的字节数
+    private long cachedBytes = 0;
+    // 命中次数
+    private final AtomicLong hitTimes = new AtomicLong(0);
+    // 未命中次数
+    private final AtomicLong missTimes = new AtomicLong(0);
+
+
+    public BlockCache(final long capacity) {
+        this.capacity = capacity;
+    }
+
+
+    public byte[] get(final long blockOffset) {
+        byte[] block;
+        synchronized (this) {
+            block = this.blockTable.get(blockOffset);
+        }
+
+        if (block != null) {
+            this.hitTimes.incrementAndGet();
+        }
+        else {
+            this.missTimes.incrementAndGet();
+        }
+        return block;
+    }
+
+
+    public void put(final long blockOffset, final byte[] block) {
+        if (block.length > this.capacity) {
+            return;
+        }
+
+        synchronized (this) {
+            byte[] old = this.blockTable.put(blockOffset, block);
+            if (old != null) {
+                this.cachedBytes -= old.length;
+            }
+            this.cachedBytes += block.length;
+
+            Iterator<Map.Entry<Long, byte[]>> it = this.blockTable.entrySet().iterator();
+            while (this.cachedBytes > this.capacity && it.hasNext()) {
+                Map.Entry<Long, byte[]> eldest = it.next();
+                this.cachedBytes -= eldest.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+
+    /**
+     * 删除[fromOffset, toOffset)区间的数据块，文件删除时调用
+     */
+    public void remove(final long fromOffset, final long toOffset) {
+        synchronized (this) {
+            Iterator<Map.Entry<Long, byte[]>> it = this.blockTable.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, byte[]> entry = it.next();
+                if (entry.getKey() >= fromOffset && entry.getKey() < toOffset) {
+                    this.cachedBytes -= entry.getValue().length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+
+    public long getHitTimes() {
+        return hitTimes.get();
+    }
+
+
+    public long getMissTimes() {
+        return missTimes.get();
+    }
+}
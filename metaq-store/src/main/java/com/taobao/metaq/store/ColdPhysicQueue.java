@@ -0,0 +1,335 @@
+/**
+ * $Id: ColdPhysicQueue.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.taobao.metaq.commons.MetaUtil;
+
+
+/**
+ * 物理队列的冷数据部分，已经封存并刷盘的物理文件按块压缩后保存到ColdStorage<br>
+ * 用于上传到冷存储，以及本地压缩冷数据两种场景，原始文件删除后的消息按块读取，解压后的块放入LRU缓存
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class ColdPhysicQueue {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 存储顶层对象
+    private final DefaultMetaStore defaultMetaStore;
+    // 名称，用于打印日志
+    private final String name;
+    // 冷存储实现，创建失败时为null
+    private final ColdStorage coldStorage;
+    // 压缩块大小
+    private final int blockSize;
+    // 解压后数据块的缓存
+    private final BlockCache blockCache;
+    // 冷存储中的文件，按照起始Offset排序
+    private final ConcurrentSkipListMap<Long, CompressedBlockFile> fileTable =
+            new ConcurrentSkipListMap<Long, CompressedBlockFile>();
+    // 上传的文件个数
+    private final AtomicLong offloadFileCount = new AtomicLong(0);
+    // 上传的原始数据大小
+    private final AtomicLong offloadRawBytes = new AtomicLong(0);
+    // 上传的压缩后数据大小
+    private final AtomicLong offloadCompressedBytes = new AtomicLong(0);
+    // 从冷存储读取消息的次数
+    private final AtomicLong readTimes = new AtomicLong(0);
+    // 从冷存储读取消息失败的次数
+    private final AtomicLong readFailedTimes = new AtomicLong(0);
+
+
+    public ColdPhysicQueue(final DefaultMetaStore defaultMetaStore, final String name,
+            final ColdStorage coldStorage, final int blockSize, final int blockCacheSize) {
+        this.defaultMetaStore = defaultMetaStore;
+        this.name = name;
+        this.coldStorage = coldStorage;
+        this.blockSize = blockSize;
+        this.blockCache = new BlockCache(blockCacheSize);
+    }
+
+
+    /**
+     * 根据配置的类名创建冷存储实现，失败返回null
+     */
+    public static ColdStorage createColdStorage(final MetaStoreConfig metaStoreConfig) {
+        String className = metaStoreConfig.getColdStorageClass();
+        try {
+            ColdStorage coldStorage = (ColdStorage) Class.forName(className.trim()).newInstance();
+            log.info("create cold storage " + className + " OK");
+            return coldStorage;
+        }
+        catch (Throwable e) {
+            log.error("create cold storage " + className + " failed", e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 加载冷存储中已有的文件，只读取文件名，文件头在第一次读取时加载
+     */
+    public boolean load() {
+        if (null == this.coldStorage || !this.coldStorage.init(this.defaultMetaStore.getMetaStoreConfig())) {
+            log.error("init " + this.name + " storage failed");
+            return false;
+        }
+
+        for (String fileName : this.coldStorage.listFiles()) {
+            try {
+                long fileFromOffset = Long.parseLong(fileName);
+                this.fileTable.put(fileFromOffset, this.createBlockFile(fileName));
+            }
+            catch (NumberFormatException e) {
+                log.warn("ignore illegal " + this.name + " file " + fileName);
+            }
+        }
+
+        log.info("load " + this.name + " physic queue OK, " + this.fileTable.size() + " files");
+        return true;
+    }
+
+
+    private CompressedBlockFile createBlockFile(final String fileName) {
+        return new CompressedBlockFile(fileName, new CompressedBlockFile.DataSource() {
+            public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+                return ColdPhysicQueue.this.coldStorage.read(fileName, position, buffer, offset, length);
+            }
+        });
+    }
+
+
+    /**
+     * 冷存储中最小的物理Offset，没有文件时返回-1
+     */
+    public long getMinOffset() {
+        Map.Entry<Long, CompressedBlockFile> entry = this.fileTable.firstEntry();
+        return entry != null ? entry.getKey() : -1;
+    }
+
+
+    /**
+     * 冷存储中最大的物理Offset，没有文件时返回-1
+     */
+    public long getMaxOffset() {
+        Map.Entry<Long, CompressedBlockFile> entry = this.fileTable.lastEntry();
+        if (entry != null) {
+            try {
+                return entry.getKey() + entry.getValue().getFileSize();
+            }
+            catch (IOException e) {
+                log.warn("load " + this.name + " file " + entry.getValue().getFileName() + " failed", e);
+                return entry.getKey() + this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizePhysic();
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * 压缩并保存一个已经封存的物理文件，已经保存过直接返回true
+     */
+    public boolean offload(final MapedFile mapedFile) {
+        final long fileFromOffset = mapedFile.getFileFromOffset();
+        if (this.fileTable.containsKey(fileFromOffset)) {
+            return true;
+        }
+
+        final String fileName = MetaUtil.Offset2FileName(fileFromOffset);
+        final File tmpFile =
+                new File(this.defaultMetaStore.getMetaStoreConfig().getStorePathPhysicList()[0] + "." + this.name);
+        long beginTime = System.currentTimeMillis();
+        long compressedSize;
+        if (!mapedFile.hold()) {
+            return false;
+        }
+        try {
+            ByteBuffer byteBuffer = mapedFile.getMappedByteBuffer().slice();
+            compressedSize =
+                    CompressedBlockFile.compress(byteBuffer, mapedFile.getFileSize(), fileFromOffset,
+                        mapedFile.getLastModifiedTimestamp(), this.blockSize, tmpFile);
+        }
+        catch (IOException e) {
+            log.error("compress " + mapedFile.getFileName() + " failed", e);
+            tmpFile.delete();
+            return false;
+        }
+        finally {
+            mapedFile.release();
+        }
+
+        boolean result = this.coldStorage.upload(fileName, tmpFile);
+        tmpFile.delete();
+        if (result) {
+            this.fileTable.put(fileFromOffset, this.createBlockFile(fileName));
+            this.offloadFileCount.incrementAndGet();
+            this.offloadRawBytes.addAndGet(mapedFile.getFileSize());
+            this.offloadCompressedBytes.addAndGet(compressedSize);
+            log.info("offload " + mapedFile.getFileName() + " to " + this.name + " storage OK, "
+                    + mapedFile.getFileSize()
+                    + " -> " + compressedSize + " bytes, " + (System.currentTimeMillis() - beginTime) + "ms");
+        }
+        else {
+            log.warn("offload " + mapedFile.getFileName() + " to " + this.name + " storage failed");
+        }
+
+        return result;
+    }
+
+
+    /**
+     * 从冷存储读取消息，只解压消息所在的块，不存在或者读取失败返回null<br>
+     * 返回结果不占用MapedFile，release为空操作
+     */
+    public SelectMapedBufferResult getMessage(final long offset, final int size) {
+        Map.Entry<Long, CompressedBlockFile> entry = this.fileTable.floorEntry(offset);
+        if (null == entry) {
+            return null;
+        }
+
+        this.readTimes.incrementAndGet();
+        final CompressedBlockFile blockFile = entry.getValue();
+        try {
+            final long fileFromOffset = entry.getKey();
+            final int blockSize = blockFile.getBlockSize();
+            long pos = offset - fileFromOffset;
+            if (pos + size > blockFile.getFileSize()) {
+                return null;
+            }
+
+            byte[] data = new byte[size];
+            int copied = 0;
+            while (copied < size) {
+                int blockIndex = (int) (pos / blockSize);
+                long blockOffset = fileFromOffset + (long) blockIndex * blockSize;
+                byte[] block = this.blockCache.get(blockOffset);
+                if (null == block) {
+                    block = blockFile.readBlock(blockIndex);
+                    this.blockCache.put(blockOffset, block);
+                }
+
+                int posInBlock = (int) (pos % blockSize);
+                int length = Math.min(size - copied, block.length - posInBlock);
+                System.arraycopy(block, posInBlock, data, copied, length);
+                copied += length;
+                pos += length;
+            }
+
+            return new SelectMapedBufferResult(offset, ByteBuffer.wrap(data), size, null);
+        }
+        catch (IOException e) {
+            this.readFailedTimes.incrementAndGet();
+            log.warn("read message from " + this.name + " file " + blockFile.getFileName() + " failed, offset "
+                    + offset, e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 删除压缩前最后修改时间超过expiredTime的文件
+     */
+    public int deleteExpiredFiles(final long expiredTime) {
+        return this.deleteExpiredFiles(expiredTime, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * 删除压缩前最后修改时间超过expiredTime，且文件尾部不大于maxDeleteOffset的文件
+     */
+    public int deleteExpiredFiles(final long expiredTime, final long maxDeleteOffset) {
+        int deleteCount = 0;
+        for (Map.Entry<Long, CompressedBlockFile> entry : this.fileTable.entrySet()) {
+            long fileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizePhysic();
+            try {
+                if (System.currentTimeMillis() < entry.getValue().getStoreTimestamp() + expiredTime) {
+                    break;
+                }
+                fileSize = entry.getValue().getFileSize();
+            }
+            catch (IOException e) {
+                log.warn("load " + this.name + " file " + entry.getValue().getFileName() + " failed, delete it", e);
+            }
+
+            if (entry.getKey() + fileSize > maxDeleteOffset) {
+                break;
+            }
+
+            // 先从表中删除，正在读的请求读取失败后返回null
+            this.fileTable.remove(entry.getKey());
+            this.blockCache.remove(entry.getKey(), entry.getKey() + fileSize);
+            if (this.coldStorage.delete(entry.getValue().getFileName())) {
+                log.info("delete expired " + this.name + " file " + entry.getValue().getFileName() + " OK");
+            }
+            else {
+                log.warn("delete expired " + this.name + " file " + entry.getValue().getFileName() + " failed");
+            }
+            deleteCount++;
+        }
+
+        return deleteCount;
+    }
+
+
+    public void shutdown() {
+        if (this.coldStorage != null) {
+            this.coldStorage.shutdown();
+        }
+    }
+
+
+    public void destroy() {
+        for (CompressedBlockFile blockFile : this.fileTable.values()) {
+            this.coldStorage.delete(blockFile.getFileName());
+        }
+        this.fileTable.clear();
+        this.blockCache.remove(0, Long.MAX_VALUE);
+    }
+
+
+    public int getFileNums() {
+        return this.fileTable.size();
+    }
+
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+
+    public long getOffloadFileCount() {
+        return offloadFileCount.get();
+    }
+
+
+    public long getOffloadRawBytes() {
+        return offloadRawBytes.get();
+    }
+
+
+    public long getOffloadCompressedBytes() {
+        return offloadCompressedBytes.get();
+    }
+
+
+    public long getReadTimes() {
+        return readTimes.get();
+    }
+
+
+    public long getReadFailedTimes() {
+        return readFailedTimes.get();
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * $Id: ColdStorage.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ * 物理队列冷存储的扩展接口，已经封存的物理文件压缩后上传，本地删除后从冷存储读取<br>
+ * 实现类通过MetaStoreConfig.coldStorageClass配置，必须有无参构造函数，且必须线程安全
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public interface ColdStorage {
+    /**
+     * 启动时调用，返回false表示冷存储不可用
+     */
+    public boolean init(final MetaStoreConfig metaStoreConfig);
+
+
+    /**
+     * 上传一个完整文件，返回成功后才允许被读到
+     */
+    public boolean upload(final String fileName, final File file);
+
+
+    /**
+     * 从文件的position处读取length个字节到buffer，返回实际读取的字节数
+     */
+    public int read(final String fileName, final long position, final byte[] buffer, final int offset,
+            final int length) throws IOException;
+
+
+    /**
+     * 列出全部文件
+     */
+    public List<String> listFiles();
+
+
+    public boolean delete(final String fileName);
+
+
+    public void shutdown();
+}
@@ -0,0 +1,243 @@
+/**
+ * $Id: CompressedBlockFile.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * 按块压缩的物理文件，每块独立压缩，读取时只解压需要的块<br>
+ * 文件格式=Header + BlockOffsetTable + Blocks<br>
+ * Header=MagicCode(4) + Version(4) + FileFromOffset(8) + FileSize(4) + BlockSize(4) + BlockCount(4) +
+ * StoreTimestamp(8)<br>
+ * BlockOffsetTable=(BlockCount + 1) * 8，每块在文件中的起始位置，最后一项为文件结尾
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class CompressedBlockFile {
+    // 文件头对应的MAGIC CODE
+    public final static int MagicCode = 0xCCDDEEAA ^ 1880681586 + 8;
+    // 文件格式版本
+    public final static int Version = 1;
+    // 文件头大小
+    public final static int HeaderSize = 4 + 4 + 8 + 4 + 4 + 4 + 8;
+
+    /**
+     * 读取压缩文件的数据源，必须线程安全
+     */
+    public interface DataSource {
+        public int read(final long position, final byte[] buffer, final int offset, final int length)
+                throws IOException;
+    }
+
+    private final String fileName;
+    private final DataSource dataSource;
+    // 以下字段load后有效
+    private volatile boolean loaded = false;
+    private long fileFromOffset;
+    private int fileSize;
+    private int blockSize;
+    private long storeTimestamp;
+    private long[] blockOffsets;
+
+
+    public CompressedBlockFile(final String fileName, final DataSource dataSource) {
+        this.fileName = fileName;
+        this.dataSource = dataSource;
+    }
+
+
+    /**
+     * 压缩data中[0, size)区间的数据，写入target
+     *
+     * @return 压缩后的文件大小
+     */
+    public static long compress(final ByteBuffer data, final int size, final long fileFromOffset,
+            final long storeTimestamp, final int blockSize, final File target) throws IOException {
+        final int blockCount = (size + blockSize - 1) / blockSize;
+        final long[] blockOffsets = new long[blockCount + 1];
+        final byte[] input = new byte[blockSize];
+        final byte[] output = new byte[blockSize + 1024];
+        final ByteArrayOutputStream block = new ByteArrayOutputStream(blockSize);
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        try {
+            raf.setLength(0);
+            long position = HeaderSize + (blockCount + 1) * 8L;
+            raf.seek(position);
+            for (int i = 0; i < blockCount; i++) {
+                int length = Math.min(blockSize, size - i * blockSize);
+                data.position(i * blockSize);
+                data.get(input, 0, length);
+
+                deflater.reset();
+                deflater.setInput(input, 0, length);
+                deflater.finish();
+                block.reset();
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(output);
+                    block.write(output, 0, n);
+                }
+
+                blockOffsets[i] = position;
+                raf.write(block.toByteArray());
+                position += block.size();
+            }
+            blockOffsets[blockCount] = position;
+
+            ByteBuffer header = ByteBuffer.allocate(HeaderSize + (blockCount + 1) * 8);
+            header.putInt(MagicCode);
+            header.putInt(Version);
+            header.putLong(fileFromOffset);
+            header.putInt(size);
+            header.putInt(blockSize);
+            header.putInt(blockCount);
+            header.putLong(storeTimestamp);
+            for (long offset : blockOffsets) {
+                header.putLong(offset);
+            }
+            raf.seek(0);
+            raf.write(header.array());
+            raf.getFD().sync();
+            return position;
+        }
+        finally {
+            deflater.end();
+            raf.close();
+        }
+    }
+
+
+    /**
+     * 读取文件头与块索引，只需要调用一次
+     */
+    public synchronized void load() throws IOException {
+        if (this.loaded) {
+            return;
+        }
+
+        byte[] headerBytes = new byte[HeaderSize];
+        this.readFully(0, headerBytes);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes);
+        int magicCode = header.getInt();
+        int version = header.getInt();
+        if (magicCode != MagicCode || version != Version) {
+            throw new IOException("illegal compressed file " + this.fileName + ", magic code 0x"
+                    + Integer.toHexString(magicCode) + " version " + version);
+        }
+
+        this.fileFromOffset = header.getLong();
+        this.fileSize = header.getInt();
+        this.blockSize = header.getInt();
+        int blockCount = header.getInt();
+        this.storeTimestamp = header.getLong();
+
+        byte[] tableBytes = new byte[(blockCount + 1) * 8];
+        this.readFully(HeaderSize, tableBytes);
+        ByteBuffer table = ByteBuffer.wrap(tableBytes);
+        this.blockOffsets = new long[blockCount + 1];
+        for (int i = 0; i <= blockCount; i++) {
+            this.blockOffsets[i] = table.getLong();
+        }
+
+        this.loaded = true;
+    }
+
+
+    /**
+     * 读取并解压第index块
+     */
+    public byte[] readBlock(final int index) throws IOException {
+        this.load();
+        int length = (int) (this.blockOffsets[index + 1] - this.blockOffsets[index]);
+        byte[] compressed = new byte[length];
+        this.readFully(this.blockOffsets[index], compressed);
+
+        byte[] block = new byte[Math.min(this.blockSize, this.fileSize - index * this.blockSize)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int total = 0;
+            while (total < block.length && !inflater.finished()) {
+                int n = inflater.inflate(block, total, block.length - total);
+                if (0 == n && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                total += n;
+            }
+
+            if (total != block.length) {
+                throw new IOException("decompress block " + index + " of " + this.fileName + " failed, " + total
+                        + " " + block.length);
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("decompress block " + index + " of " + this.fileName + " failed, "
+                    + e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+
+        return block;
+    }
+
+
+    private void readFully(final long position, final byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = this.dataSource.read(position + total, buffer, total, buffer.length - total);
+            if (n <= 0) {
+                throw new IOException("read " + this.fileName + " at " + (position + total) + " failed");
+            }
+            total += n;
+        }
+    }
+
+
+    public String getFileName() {
+        return fileName;
+    }
+
+
+    public long getFileFromOffset() throws IOException {
+        this.load();
+        return fileFromOffset;
+    }
+
+
+    public int getFileSize() throws IOException {
+        this.load();
+        return fileSize;
+    }
+
+
+    public int getBlockSize() throws IOException {
+        this.load();
+        return blockSize;
+    }
+
+
+    public long getStoreTimestamp() throws IOException {
+        this.load();
+        return storeTimestamp;
+    }
+
+
+    /**
+     * 压缩后的文件大小
+     */
+    public long getCompressedSize() throws IOException {
+        this.load();
+        return this.blockOffsets[this.blockOffsets.length - 1];
+    }
+}
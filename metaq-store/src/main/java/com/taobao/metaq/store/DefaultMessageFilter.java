@@ -3,6 +3,7 @@
  */
 package com.taobao.metaq.store;
 
+import java.nio.ByteBuffer;
 import java.util.Set;
 
 
@@ -19,4 +20,31 @@ public class DefaultMessageFilter implements MessageFilter {
             return true;
         return types.contains(type);
     }
+
+
+    public boolean isMessageTypeMatched(Set<String> typeNames, ByteBuffer byteBuffer, int typeLenPos) {
+        if (null == typeNames || typeNames.isEmpty() || typeNames.contains("*"))
+            return true;
+        if (typeLenPos < 0)
+            return false;
+
+        // 消息类型为ASCII字符，逐个字符与字节比较，不创建String
+        final int typeLen = byteBuffer.get(typeLenPos);
+        for (String typeName : typeNames) {
+            if (typeName.length() == typeLen && isTypeEquals(typeName, byteBuffer, typeLenPos + 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean isTypeEquals(String typeName, ByteBuffer byteBuffer, int typePos) {
+        for (int i = 0; i < typeName.length(); i++) {
+            if (typeName.charAt(i) != byteBuffer.get(typePos + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
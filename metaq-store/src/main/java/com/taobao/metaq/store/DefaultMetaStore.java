@@ -5,15 +5,28 @@ package com.taobao.metaq.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
+import com.taobao.metamorphosis.utils.MetaMBeanServer;
 import com.taobao.metaq.commons.MetaMessage;
 import com.taobao.metaq.commons.MetaMessageAnnotation;
 import com.taobao.metaq.commons.MetaMessageDecoder;
@@ -47,14 +60,34 @@ public class DefaultMetaStore implements MetaStore {
     private final CleanPhysicFileService cleanPhysicFileService;
     // 清理逻辑文件服务
     private final CleanLogicsFileService cleanLogicsFileService;
+    // 物理队列冷存储，未开启时为null
+    private final ColdPhysicQueue coldPhysicQueue;
+    // 上传物理文件到冷存储服务，未开启冷存储时为null
+    private final OffloadPhysicFileService offloadPhysicFileService;
+    // 物理队列本地压缩文件，未开启时为null
+    private final ColdPhysicQueue compressedPhysicQueue;
+    // 本地压缩物理文件服务，未开启时为null
+    private final CompressPhysicFileService compressPhysicFileService;
+    // 按照消息Key压缩逻辑队列服务
+    private final CompactLogicsQueueService compactLogicsQueueService;
     // 分发消息索引服务
     private final DispatchMessageService dispatchMessageService;
     // 预分配MapedFile对象服务
     private final AllocateMapedFileService allocateMapedFileService;
+    // 后台回收过期物理文件服务，未开启时为null
+    private final ReclaimMapedFileService reclaimMapedFileService;
+    // 物理队列写缓冲池，未开启时为null
+    private final TransientStorePool transientStorePool;
+    // 估算消息是否在PageCache，未开启时为null
+    private final PageCacheResidency pageCacheResidency;
     // 从物理队列解析消息重新发送到逻辑队列
     private final ReputMessageService reputMessageService;
     // 运行时数据统计
     private final MetaStatsService metaStatsService;
+    // 消息Key哈希索引服务
+    private final MetaIndexService metaIndexService;
+    // 定时消息服务，未开启或者SLAVE时为null
+    private final ScheduleMessageService scheduleMessageService;
     // 运行过程标志位
     private final RunningFlags runningFlags = new RunningFlags();
     // 存储检查点
@@ -67,7 +100,20 @@ public class DefaultMetaStore implements MetaStore {
 
     public DefaultMetaStore(final MetaStoreConfig metaStoreConfig) {
         this.metaStoreConfig = metaStoreConfig;
-        this.allocateMapedFileService = new AllocateMapedFileService();
+        this.allocateMapedFileService = new AllocateMapedFileService(metaStoreConfig);
+        // 写缓冲池只对异步刷盘的Master生效，同步刷盘需要等待数据落盘，SLAVE直接追加复制的数据
+        if (metaStoreConfig.isTransientStorePoolEnable() && metaStoreConfig.isMaster()
+                && !metaStoreConfig.isGroupCommitEnable()) {
+            this.transientStorePool =
+                    new TransientStorePool(metaStoreConfig.getTransientStorePoolSize(),
+                        metaStoreConfig.getMapedFileSizePhysic());
+            this.transientStorePool.init();
+        }
+        else {
+            this.transientStorePool = null;
+        }
+        this.reclaimMapedFileService =
+                metaStoreConfig.isReclaimMapedFileEnable() ? new ReclaimMapedFileService(metaStoreConfig) : null;
         this.metaQueuePhysical = new MetaQueuePhysical(this);
         this.metaQueueLogisticTable =
                 new ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, MetaQueueLogistic>>(
@@ -76,8 +122,48 @@ public class DefaultMetaStore implements MetaStore {
         this.flushLogicQueueService = new FlushLogicQueueService();
         this.cleanPhysicFileService = new CleanPhysicFileService();
         this.cleanLogicsFileService = new CleanLogicsFileService();
-        this.dispatchMessageService = new DispatchMessageService(this.metaStoreConfig.getPutMsgIndexHightWater());
+        this.compactLogicsQueueService = new CompactLogicsQueueService();
+        if (metaStoreConfig.isColdStorageEnable()) {
+            this.coldPhysicQueue =
+                    new ColdPhysicQueue(this, "cold", ColdPhysicQueue.createColdStorage(metaStoreConfig),
+                        metaStoreConfig.getColdBlockSize(), metaStoreConfig.getColdBlockCacheSize());
+            this.offloadPhysicFileService = new OffloadPhysicFileService();
+        }
+        else {
+            this.coldPhysicQueue = null;
+            this.offloadPhysicFileService = null;
+        }
+        if (metaStoreConfig.isCompressPhysicFileEnable()) {
+            this.compressedPhysicQueue =
+                    new ColdPhysicQueue(this, "compressed", new LocalColdStorage(
+                        metaStoreConfig.getStorePathCompressed()), metaStoreConfig.getCompressBlockSize(),
+                        metaStoreConfig.getCompressBlockCacheSize());
+            this.compressPhysicFileService = new CompressPhysicFileService();
+        }
+        else {
+            this.compressedPhysicQueue = null;
+            this.compressPhysicFileService = null;
+        }
+        this.dispatchMessageService =
+                new DispatchMessageService(this.metaStoreConfig.getDispatchMessageThreadNums(),
+                    this.metaStoreConfig.getPutMsgIndexHightWater(), this.metaStoreConfig.isMessageIndexEnable());
         this.metaStatsService = new MetaStatsService();
+        this.metaStatsService.setTransientStorePool(this.transientStorePool);
+        this.pageCacheResidency =
+                metaStoreConfig.isPageCacheResidencyEnable() ? new PageCacheResidency(this) : null;
+        this.metaStatsService.setPageCacheResidency(this.pageCacheResidency);
+        this.metaStatsService.setColdPhysicQueue(this.coldPhysicQueue);
+        this.metaStatsService.setCompressedPhysicQueue(this.compressedPhysicQueue);
+        this.metaStatsService.setPhysicFlushController(this.metaQueuePhysical.getFlushController());
+        this.metaStatsService.setLogicsFlushController(this.flushLogicQueueService.getFlushController());
+        this.metaStatsService.setReclaimMapedFileService(this.reclaimMapedFileService);
+        this.metaStatsService.setMetaQueueLogisticTable(this.metaQueueLogisticTable);
+        this.allocateMapedFileService.setAllocateLatencyRecorder(this.metaStatsService
+            .getAllocateLatencyRecorder());
+        this.metaIndexService = new MetaIndexService(this);
+        this.scheduleMessageService =
+                metaStoreConfig.isScheduleMessageEnable() && metaStoreConfig.isMaster() ? new ScheduleMessageService(
+                    this) : null;
 
         if (!this.metaStoreConfig.isMaster()) {
             this.reputMessageService = new ReputMessageService();
@@ -134,8 +220,14 @@ public class DefaultMetaStore implements MetaStore {
 
             // 检测物理文件磁盘空间
             {
-                String storePathPhysic = DefaultMetaStore.this.getMetaStoreConfig().getStorePathPhysic();
-                double physicRatio = MetaUtil.getDiskPartitionSpaceUsedPercent(storePathPhysic);
+                // 配置多个目录时，超过上限的目录不再分配新文件，取使用率最低的目录
+                double physicRatio = -1;
+                for (String storePathPhysic : DefaultMetaStore.this.getMetaStoreConfig().getStorePathPhysicList()) {
+                    double pathRatio = MetaUtil.getDiskPartitionSpaceUsedPercent(storePathPhysic);
+                    if (pathRatio >= 0 && (physicRatio < 0 || pathRatio < physicRatio)) {
+                        physicRatio = pathRatio;
+                    }
+                }
                 if (physicRatio > DiskSpaveWarningLevelRatio) {
                     boolean diskok = DefaultMetaStore.this.runningFlags.getAndMakeDiskFull();
                     if (diskok) {
@@ -211,6 +303,17 @@ public class DefaultMetaStore implements MetaStore {
                 deleteCount =
                         DefaultMetaStore.this.metaQueuePhysical.deleteExpiredFile(fileReservedTime,
                             deletePhysicFilesInterval, destroyMapedFileIntervalForcibly);
+
+                // 删除本地压缩文件，开启冷存储时只删除已经上传的文件
+                if (DefaultMetaStore.this.compressedPhysicQueue != null) {
+                    long maxDeleteOffset =
+                            DefaultMetaStore.this.coldPhysicQueue != null ? DefaultMetaStore.this.coldPhysicQueue
+                                .getMaxOffset() : Long.MAX_VALUE;
+                    deleteCount +=
+                            DefaultMetaStore.this.compressedPhysicQueue.deleteExpiredFiles(fileReservedTime,
+                                maxDeleteOffset);
+                }
+
                 if (deleteCount > 0) {
                     DefaultMetaStore.this.cleanLogicsFileService.wakeup();
                 }
@@ -275,6 +378,210 @@ public class DefaultMetaStore implements MetaStore {
         }
     }
 
+    /**
+     * 上传物理文件到冷存储服务，并删除冷存储中的过期文件
+     */
+    class OffloadPhysicFileService extends ServiceThread {
+        /**
+         * 按顺序上传已经写满并刷盘的文件，上传失败时下次从失败的文件重试
+         */
+        private void offloadSealedFiles() {
+            ColdPhysicQueue coldPhysicQueue = DefaultMetaStore.this.coldPhysicQueue;
+            long flushedWhere = DefaultMetaStore.this.metaQueuePhysical.getFlushedWhere();
+            for (MapedFile mapedFile : DefaultMetaStore.this.metaQueuePhysical.getSealedMapedFiles()) {
+                if (this.isStoped()) {
+                    break;
+                }
+
+                if ((mapedFile.getFileFromOffset() + mapedFile.getFileSize()) > flushedWhere) {
+                    break;
+                }
+
+                if (mapedFile.getFileFromOffset() < coldPhysicQueue.getMaxOffset()) {
+                    continue;
+                }
+
+                if (!coldPhysicQueue.offload(mapedFile)) {
+                    break;
+                }
+            }
+        }
+
+
+        private void deleteExpiredColdFiles() {
+            // 小时转化成毫秒
+            long coldFileReservedTime =
+                    DefaultMetaStore.this.getMetaStoreConfig().getColdFileReservedTime() * 60L * 60 * 1000;
+            if (DefaultMetaStore.this.coldPhysicQueue.deleteExpiredFiles(coldFileReservedTime) > 0) {
+                DefaultMetaStore.this.cleanLogicsFileService.wakeup();
+            }
+        }
+
+
+        public void run() {
+            DefaultMetaStore.log.info(this.getServiceName() + " service started");
+            int cleanResourceInterval = DefaultMetaStore.this.getMetaStoreConfig().getCleanResourceInterval();
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(cleanResourceInterval);
+
+                    this.offloadSealedFiles();
+
+                    this.deleteExpiredColdFiles();
+                }
+                catch (Exception e) {
+                    DefaultMetaStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            DefaultMetaStore.log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return OffloadPhysicFileService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 本地压缩物理文件服务，较早的文件按块压缩后删除原始文件，物理Offset保持不变
+     */
+    class CompressPhysicFileService extends ServiceThread {
+        /**
+         * 从头部开始按顺序压缩，原始文件只能从头部删除，遇到不满足条件的文件即停止
+         */
+        private void compressSealedFiles() {
+            ColdPhysicQueue compressedPhysicQueue = DefaultMetaStore.this.compressedPhysicQueue;
+            ColdPhysicQueue coldPhysicQueue = DefaultMetaStore.this.coldPhysicQueue;
+            // 小时转化成毫秒
+            long compressAfterTime =
+                    DefaultMetaStore.this.getMetaStoreConfig().getCompressPhysicFileAfterTime() * 60L * 60 * 1000;
+            long flushedWhere = DefaultMetaStore.this.metaQueuePhysical.getFlushedWhere();
+            long maxCompressedOffset = -1;
+            for (MapedFile mapedFile : DefaultMetaStore.this.metaQueuePhysical.getSealedMapedFiles()) {
+                if (this.isStoped()) {
+                    break;
+                }
+
+                long fileEndOffset = mapedFile.getFileFromOffset() + mapedFile.getFileSize();
+                if (fileEndOffset > flushedWhere) {
+                    break;
+                }
+
+                if (System.currentTimeMillis() < mapedFile.getLastModifiedTimestamp() + compressAfterTime) {
+                    break;
+                }
+
+                // 开启冷存储时，上传后才允许压缩，原始文件压缩后会被删除
+                if (coldPhysicQueue != null && fileEndOffset > coldPhysicQueue.getMaxOffset()) {
+                    break;
+                }
+
+                if (!compressedPhysicQueue.offload(mapedFile)) {
+                    break;
+                }
+                maxCompressedOffset = fileEndOffset;
+            }
+
+            if (maxCompressedOffset > 0) {
+                int destroyMapedFileIntervalForcibly =
+                        DefaultMetaStore.this.getMetaStoreConfig().getDestroyMapedFileIntervalForcibly();
+                DefaultMetaStore.this.metaQueuePhysical.deleteCompressedFile(maxCompressedOffset,
+                    destroyMapedFileIntervalForcibly);
+            }
+        }
+
+
+        public void run() {
+            DefaultMetaStore.log.info(this.getServiceName() + " service started");
+            int cleanResourceInterval = DefaultMetaStore.this.getMetaStoreConfig().getCleanResourceInterval();
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(cleanResourceInterval);
+
+                    this.compressSealedFiles();
+                }
+                catch (Exception e) {
+                    DefaultMetaStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            DefaultMetaStore.log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return CompressPhysicFileService.class.getSimpleName();
+        }
+    }
+
+    /**
+     * 按照消息Key压缩逻辑队列服务，只压缩已经封存的物理文件中的消息
+     */
+    class CompactLogicsQueueService extends ServiceThread {
+        private void compactLogicsQueue() {
+            Map<String, Integer> compactTopicTable =
+                    DefaultMetaStore.this.getMetaStoreConfig().getCompactTopicTable();
+            if (compactTopicTable.isEmpty()) {
+                return;
+            }
+
+            // 正在写的物理文件不压缩
+            int mapedFileSizePhysic = DefaultMetaStore.this.getMetaStoreConfig().getMapedFileSizePhysic();
+            long flushedWhere = DefaultMetaStore.this.metaQueuePhysical.getFlushedWhere();
+            long sealedPhyOffset = flushedWhere - flushedWhere % mapedFileSizePhysic;
+
+            for (Map.Entry<String, Integer> entry : compactTopicTable.entrySet()) {
+                ConcurrentHashMap<Integer, MetaQueueLogistic> map =
+                        DefaultMetaStore.this.metaQueueLogisticTable.get(entry.getKey());
+                if (null == map) {
+                    continue;
+                }
+
+                // 小时转化成毫秒
+                long tombstoneReservedTime = entry.getValue() * 60L * 60 * 1000;
+                for (MetaQueueLogistic logic : map.values()) {
+                    if (this.isStoped()) {
+                        return;
+                    }
+
+                    try {
+                        logic.getCompacted().compact(logic, sealedPhyOffset, tombstoneReservedTime);
+                    }
+                    catch (IOException e) {
+                        DefaultMetaStore.log.warn("compact " + logic.getTopic() + "-" + logic.getQueueId()
+                                + " failed", e);
+                    }
+                }
+            }
+        }
+
+
+        public void run() {
+            DefaultMetaStore.log.info(this.getServiceName() + " service started");
+            while (!this.isStoped()) {
+                try {
+                    this.waitForRunning(DefaultMetaStore.this.getMetaStoreConfig().getCompactLogicsInterval());
+
+                    this.compactLogicsQueue();
+                }
+                catch (Exception e) {
+                    DefaultMetaStore.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            DefaultMetaStore.log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return CompactLogicsQueueService.class.getSimpleName();
+        }
+    }
+
     /**
      * 清理逻辑文件服务
      */
@@ -294,6 +601,9 @@ public class DefaultMetaStore implements MetaStore {
                 ConcurrentHashMap<String, ConcurrentHashMap<Integer, MetaQueueLogistic>> tables =
                         DefaultMetaStore.this.metaQueueLogisticTable;
 
+                // 删除消息Key索引文件
+                DefaultMetaStore.this.metaIndexService.deleteExpiredFile(minOffset);
+
                 for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : tables.values()) {
                     for (MetaQueueLogistic logic : maps.values()) {
                         int deleteCount = logic.deleteExpiredFile(minOffset);
@@ -342,17 +652,53 @@ public class DefaultMetaStore implements MetaStore {
     class FlushLogicQueueService extends ServiceThread {
         private static final int RetryTimesOver = 3;
         private long lastFlushTimestamp = 0;
+        // 自适应刷盘控制，按照所有逻辑队列合计的脏数据计算
+        private final AdaptiveFlushController flushController = new AdaptiveFlushController("logics",
+            DefaultMetaStore.this.metaStoreConfig);
+
+
+        private long getLogicsFlushedWhere() {
+            long flushedWhere = 0;
+            for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : DefaultMetaStore.this.metaQueueLogisticTable
+                .values()) {
+                for (MetaQueueLogistic logic : maps.values()) {
+                    flushedWhere += logic.getFlushedWhere();
+                }
+            }
+
+            return flushedWhere;
+        }
+
+
+        private long getLogicsDirtyBytes() {
+            long dirtyBytes = 0;
+            for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : DefaultMetaStore.this.metaQueueLogisticTable
+                .values()) {
+                for (MetaQueueLogistic logic : maps.values()) {
+                    dirtyBytes += logic.getDirtyBytes();
+                }
+            }
+
+            return dirtyBytes;
+        }
 
 
         private void doFlush(int retryTimes) {
             int flushLogicsQueueLeastPages =
                     DefaultMetaStore.this.getMetaStoreConfig().getFlushLogicsQueueLeastPages();
 
+            // 自适应刷盘，所有逻辑队列合计的脏数据达到上限时全部刷盘
+            final boolean adaptiveFlush = DefaultMetaStore.this.getMetaStoreConfig().isAdaptiveFlushEnable();
+            if (adaptiveFlush && this.getLogicsDirtyBytes() >= this.flushController.getFlushBytesLimit()) {
+                flushLogicsQueueLeastPages = 0;
+            }
+
             if (retryTimes == RetryTimesOver) {
                 flushLogicsQueueLeastPages = 0;
             }
 
             long logicsMsgTimestamp = 0;
+            long snapshotPhyOffset = -1;
 
             // 定时刷盘
             int flushLogicsQueueThoroughInterval =
@@ -362,11 +708,17 @@ public class DefaultMetaStore implements MetaStore {
                 this.lastFlushTimestamp = currentTimeMillis;
                 flushLogicsQueueLeastPages = 0;
                 logicsMsgTimestamp = DefaultMetaStore.this.getStoreCheckpoint().getLogicsMsgTimestamp();
+                // 刷盘之前记录，刷盘完成后这个位置之前的消息都已经写入逻辑队列
+                snapshotPhyOffset =
+                        Math.min(DefaultMetaStore.this.dispatchMessageService.getDispatchedPhyOffset(),
+                            DefaultMetaStore.this.metaQueuePhysical.getFlushedWhere());
             }
 
             ConcurrentHashMap<String, ConcurrentHashMap<Integer, MetaQueueLogistic>> tables =
                     DefaultMetaStore.this.metaQueueLogisticTable;
 
+            final long flushedWhere = adaptiveFlush ? this.getLogicsFlushedWhere() : 0;
+            final long beginTime = System.currentTimeMillis();
             for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : tables.values()) {
                 for (MetaQueueLogistic logic : maps.values()) {
                     boolean result = false;
@@ -375,9 +727,18 @@ public class DefaultMetaStore implements MetaStore {
                     }
                 }
             }
+            if (adaptiveFlush) {
+                this.flushController.onFlushed(this.getLogicsFlushedWhere() - flushedWhere,
+                    System.currentTimeMillis() - beginTime);
+            }
 
             if (0 == flushLogicsQueueLeastPages) {
+                DefaultMetaStore.this.metaIndexService.flush();
                 DefaultMetaStore.this.getStoreCheckpoint().flush(logicsMsgTimestamp);
+
+                if (snapshotPhyOffset >= 0 && DefaultMetaStore.this.metaStoreConfig.isQueueSnapshotEnable()) {
+                    DefaultMetaStore.this.flushQueueSnapshot(snapshotPhyOffset, false);
+                }
             }
         }
 
@@ -387,7 +748,15 @@ public class DefaultMetaStore implements MetaStore {
 
             while (!this.isStoped()) {
                 try {
-                    int interval = DefaultMetaStore.this.getMetaStoreConfig().getFlushIntervalLogics();
+                    final MetaStoreConfig metaStoreConfig = DefaultMetaStore.this.getMetaStoreConfig();
+                    int interval = metaStoreConfig.getFlushIntervalLogics();
+                    // 自适应刷盘，根据写入速度与实测刷盘速度计算等待时间
+                    if (metaStoreConfig.isAdaptiveFlushEnable()) {
+                        long flushedWhere = this.getLogicsFlushedWhere();
+                        this.flushController.update(flushedWhere + this.getLogicsDirtyBytes(), flushedWhere,
+                            metaStoreConfig.getAdaptiveFlushDirtyBytesLogics());
+                        interval = this.flushController.getWaitInterval();
+                    }
                     this.waitForRunning(interval);
                     this.doFlush(1);
                 }
@@ -409,6 +778,11 @@ public class DefaultMetaStore implements MetaStore {
         }
 
 
+        public AdaptiveFlushController getFlushController() {
+            return flushController;
+        }
+
+
         @Override
         public long getJointime() {
             return 1000 * 60;
@@ -416,21 +790,26 @@ public class DefaultMetaStore implements MetaStore {
     }
 
     /**
-     * 分发消息索引服务
+     * 分发消息索引服务<br>
+     * 每个分发线程持有一个预分配的环形缓冲区，按照topic+queueId哈希选择线程，保证同一个队列的索引顺序写入<br>
+     * 消息Key索引要求按照物理Offset顺序写入，由单独的一个线程构建
      */
-    class DispatchMessageService extends ServiceThread {
+    class DispatchMessageService {
         class DispatchRequest {
-            private final String topic;
-            private final int queueId;
-            private final long offset;
-            private final int size;
-            private final int type;
-            private final long storeTimestamp;
-            private final long logicOffset;
+            private String topic;
+            private int queueId;
+            private long offset;
+            private int size;
+            private int type;
+            private long storeTimestamp;
+            private long logicOffset;
+            private String key;
+            // 无锁写失败时留下的跳过记录，只占空间，不分发
+            private boolean skip;
 
 
             public DispatchRequest(String topic, int queueId, long offset, int size, int type,
-                    long storeTimestamp, long logicOffset) {
+                    long storeTimestamp, long logicOffset, String key) {
                 this.topic = topic;
                 this.queueId = queueId;
                 this.offset = offset;
@@ -438,6 +817,7 @@ public class DefaultMetaStore implements MetaStore {
                 this.type = type;
                 this.storeTimestamp = storeTimestamp;
                 this.logicOffset = logicOffset;
+                this.key = key;
             }
 
 
@@ -449,6 +829,29 @@ public class DefaultMetaStore implements MetaStore {
                 this.type = 0;
                 this.storeTimestamp = 0;
                 this.logicOffset = 0;
+                this.key = null;
+            }
+
+
+            public DispatchRequest(int size, boolean skip) {
+                this(size);
+                this.skip = skip;
+            }
+
+
+            /**
+             * 环形缓冲区中的请求对象重复使用，写入前覆盖全部字段
+             */
+            private void reset(String topic, int queueId, long offset, int size, int type, long storeTimestamp,
+                    long logicOffset, String key) {
+                this.topic = topic;
+                this.queueId = queueId;
+                this.offset = offset;
+                this.size = size;
+                this.type = type;
+                this.storeTimestamp = storeTimestamp;
+                this.logicOffset = logicOffset;
+                this.key = key;
             }
 
 
@@ -485,125 +888,387 @@ public class DefaultMetaStore implements MetaStore {
             public long getLogicOffset() {
                 return logicOffset;
             }
-        }
 
-        private volatile List<DispatchRequest> requestsWrite;
-        private volatile List<DispatchRequest> requestsRead;
+
+            public String getKey() {
+                return key;
+            }
 
 
-        public DispatchMessageService(int putMsgIndexHightWater) {
-            putMsgIndexHightWater *= 1.5;
-            this.requestsWrite = new ArrayList<DispatchRequest>(putMsgIndexHightWater);
-            this.requestsRead = new ArrayList<DispatchRequest>(putMsgIndexHightWater);
+            public boolean isSkip() {
+                return skip;
+            }
         }
 
+        /**
+         * 分发线程，顺序处理自己环形缓冲区中的请求
+         */
+        class DispatchShard extends ServiceThread {
+            // 缓冲区满时，写消息线程每次等待的时间
+            private static final int WaitNotFullInterval = 10;
+            // 分发线程每处理多少条请求，唤醒一次等待的写消息线程
+            private static final int SignalNotFullBatch = 1024;
+            // 是否为构建消息Key索引的线程
+            private final boolean indexShard;
+            // 请求对象，第一次使用时创建，之后复用
+            private final DispatchRequest[] ringBuffer;
+            private final int mask;
+            // 下一个写入的序号，写消息线程在putLock内更新
+            private volatile long putSequence = 0;
+            // 下一个分发的序号，只有分发线程更新
+            private volatile long takeSequence = 0;
+            // 写消息线程是否在等待缓冲区空闲
+            private volatile boolean putWaiting = false;
+            private final ReentrantLock putLock = new ReentrantLock();
+            private final Condition notFull = this.putLock.newCondition();
+            // 最后一条分发完成的消息存储时间
+            private volatile long dispatchedTimestamp = 0;
+            // 最后一条分发完成的消息结束位置的物理Offset
+            private volatile long dispatchedPhyOffset = 0;
+
+
+            public DispatchShard(final String name, final int capacity, final boolean indexShard) {
+                this.indexShard = indexShard;
+                this.ringBuffer = new DispatchRequest[capacity];
+                this.mask = capacity - 1;
+                this.thread.setName(name);
+            }
 
-        private void swapRequests() {
-            List<DispatchRequest> tmp = this.requestsWrite;
-            this.requestsWrite = this.requestsRead;
-            this.requestsRead = tmp;
-        }
 
+            public void putRequest(String topic, int queueId, long offset, int size, int type,
+                    long storeTimestamp, long logicOffset, String key) {
+                long pending = 0;
+                this.putLock.lock();
+                try {
+                    final long seq = this.putSequence;
+                    if (seq - this.takeSequence >= this.ringBuffer.length && !this.awaitNotFull(seq)) {
+                        log.error("dispatch buffer is full and " + this.thread.getName()
+                                + " is stopped, discard request " + topic + ":" + queueId + " " + offset);
+                        return;
+                    }
+
+                    // 缓冲区按照高水位分配，只有积压到的位置才创建请求对象
+                    DispatchRequest request = this.ringBuffer[(int) (seq & this.mask)];
+                    if (null == request) {
+                        request = new DispatchRequest(0);
+                        this.ringBuffer[(int) (seq & this.mask)] = request;
+                    }
+                    request.reset(topic, queueId, offset, size, type, storeTimestamp, logicOffset, key);
+                    // 写序号之前的请求内容对分发线程可见
+                    this.putSequence = seq + 1;
+                    pending = seq + 1 - this.takeSequence;
+                }
+                finally {
+                    this.putLock.unlock();
+                }
+
+                DefaultMetaStore.this.getMetaStatsService().setDispatchMaxBuffer(pending);
 
-        public void putRequest(String topic, int queueId, long offset, int size, int type, long storeTimestamp,
-                long logicOffset) {
-            DispatchRequest dispatchRequest =
-                    new DispatchRequest(topic, queueId, offset, size, type, storeTimestamp, logicOffset);
-            int requestsWriteSize = 0;
-            int putMsgIndexHightWater = DefaultMetaStore.this.getMetaStoreConfig().getPutMsgIndexHightWater();
-            synchronized (this) {
-                this.requestsWrite.add(dispatchRequest);
-                requestsWriteSize = this.requestsWrite.size();
                 if (!this.hasNotified) {
-                    this.hasNotified = true;
-                    this.notify();
+                    this.wakeup();
                 }
             }
 
-            DefaultMetaStore.this.getMetaStatsService().setDispatchMaxBuffer(requestsWriteSize);
 
-            if (requestsWriteSize > putMsgIndexHightWater) {
+            /**
+             * 缓冲区满时有界等待分发线程取走请求，分发线程已经退出时返回false
+             */
+            private boolean awaitNotFull(final long seq) {
+                DefaultMetaStore.this.getMetaStatsService().getDispatchBufferFullTimes().incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("Message index buffer of " + this.thread.getName() + " is full, size "
+                            + this.ringBuffer.length);
+                }
+
+                this.putWaiting = true;
                 try {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Message index buffer size " + requestsWriteSize + " > high water "
-                                + putMsgIndexHightWater);
-                    }
+                    while (seq - this.takeSequence >= this.ringBuffer.length) {
+                        if (this.isStoped() && !this.thread.isAlive()) {
+                            return false;
+                        }
 
-                    Thread.sleep(1);
+                        this.notFull.await(WaitNotFullInterval, TimeUnit.MILLISECONDS);
+                    }
                 }
                 catch (InterruptedException e) {
-                    e.printStackTrace();
+                    log.warn("wait dispatch buffer not full interrupted", e);
+                    return false;
                 }
+                finally {
+                    this.putWaiting = false;
+                }
+
+                return true;
             }
-        }
 
 
-        private void doDispatch() {
-            if (!this.requestsRead.isEmpty()) {
-                for (DispatchRequest req : this.requestsRead) {
-                    // 将请求发到具体的逻辑队列
-                    DefaultMetaStore.this.putIndex(req.topic, req.queueId, req.offset, req.size, req.type,
-                        req.storeTimestamp, req.logicOffset);
+            private void signalNotFull() {
+                this.putLock.lock();
+                try {
+                    this.notFull.signalAll();
+                }
+                finally {
+                    this.putLock.unlock();
                 }
-
-                this.requestsRead.clear();
             }
-        }
 
 
-        public void run() {
-            DefaultMetaStore.log.info(this.getServiceName() + " service started");
+            private void doDispatch() {
+                long seq = this.takeSequence;
+                final long end = this.putSequence;
+                if (seq >= end) {
+                    return;
+                }
 
-            while (!this.isStoped()) {
-                try {
-                    this.waitForRunning(0);
-                    this.doDispatch();
+                for (; seq < end; seq++) {
+                    DispatchRequest req = this.ringBuffer[(int) (seq & this.mask)];
+                    if (this.indexShard) {
+                        DefaultMetaStore.this.metaIndexService.buildIndex(req.topic, req.key, req.offset,
+                            req.storeTimestamp);
+                    }
+                    else {
+                        DefaultMetaStore.this.putLogicIndex(req.topic, req.queueId, req.offset, req.size,
+                            req.type, req.storeTimestamp, req.logicOffset);
+                        // 从写入物理队列到逻辑队列可见的延迟，精度为毫秒
+                        DefaultMetaStore.this.metaStatsService.getDispatchLatencyRecorder().record(
+                            (DefaultMetaStore.this.systemClock.now() - req.storeTimestamp) * 1000);
+                    }
+
+                    this.dispatchedTimestamp = req.storeTimestamp;
+                    this.dispatchedPhyOffset = req.offset + req.size;
+                    this.takeSequence = seq + 1;
+
+                    if (this.putWaiting && ((seq + 1) % SignalNotFullBatch) == 0) {
+                        this.signalNotFull();
+                    }
                 }
-                catch (Exception e) {
-                    DefaultMetaStore.log.warn(this.getServiceName() + " service has exception. ", e);
+
+                if (this.putWaiting) {
+                    this.signalNotFull();
                 }
-            }
 
-            // 在正常shutdown情况下，要保证所有消息都dispatch
-            try {
-                Thread.sleep(5 * 1000);
+                DispatchMessageService.this.updateDispatchedCheckpoint();
             }
-            catch (InterruptedException e) {
-                DefaultMetaStore.log.warn("DispatchMessageService Exception, ", e);
+
+
+            /**
+             * 最早一条未分发请求的消息存储时间，没有未分发的请求时返回Long.MAX_VALUE
+             */
+            public long getPendingTimestamp() {
+                while (true) {
+                    final long take = this.takeSequence;
+                    if (take >= this.putSequence) {
+                        return Long.MAX_VALUE;
+                    }
+
+                    long storeTimestamp = this.ringBuffer[(int) (take & this.mask)].storeTimestamp;
+                    // 读取期间序号未变化，说明请求对象没有被重复使用
+                    if (take == this.takeSequence) {
+                        return storeTimestamp;
+                    }
+                }
             }
 
-            synchronized (this) {
-                this.swapRequests();
+
+            /**
+             * 最早一条未分发请求的物理Offset，没有未分发的请求时返回Long.MAX_VALUE
+             */
+            public long getPendingPhyOffset() {
+                while (true) {
+                    final long take = this.takeSequence;
+                    if (take >= this.putSequence) {
+                        return Long.MAX_VALUE;
+                    }
+
+                    long offset = this.ringBuffer[(int) (take & this.mask)].offset;
+                    if (take == this.takeSequence) {
+                        return offset;
+                    }
+                }
             }
 
-            this.doDispatch();
 
-            DefaultMetaStore.log.info(this.getServiceName() + " service end");
-        }
+            public long getDispatchedTimestamp() {
+                return dispatchedTimestamp;
+            }
 
 
-        @Override
-        protected void onWaitEnd() {
-            this.swapRequests();
-        }
+            public long getDispatchedPhyOffset() {
+                return dispatchedPhyOffset;
+            }
 
 
-        @Override
-        public String getServiceName() {
-            return DispatchMessageService.class.getSimpleName();
-        }
-    }
+            public long getPendingRequests() {
+                return this.putSequence - this.takeSequence;
+            }
 
-    /**
-     * SLAVE: 从物理队列Load消息，并分发到各个逻辑队列
-     */
-    class ReputMessageService extends ServiceThread {
-        // 从这里开始解析物理队列数据，并分发到逻辑队列
-        private volatile long reputFromOffset = 0;
 
+            public void run() {
+                DefaultMetaStore.log.info(this.thread.getName() + " service started");
 
-        private void doReput() {
-            for (boolean doNext = true; doNext;) {
+                while (!this.isStoped()) {
+                    try {
+                        this.waitForRunning(1000);
+                        this.doDispatch();
+                    }
+                    catch (Exception e) {
+                        DefaultMetaStore.log.warn(this.thread.getName() + " service has exception. ", e);
+                    }
+                }
+
+                // 在正常shutdown情况下，要保证所有消息都dispatch
+                while (this.getPendingRequests() > 0) {
+                    try {
+                        this.doDispatch();
+                    }
+                    catch (Exception e) {
+                        DefaultMetaStore.log.warn(this.thread.getName() + " service has exception. ", e);
+                        break;
+                    }
+                }
+
+                DefaultMetaStore.log.info(this.thread.getName() + " service end");
+            }
+
+
+            @Override
+            public String getServiceName() {
+                return DispatchMessageService.class.getSimpleName();
+            }
+        }
+
+        // 写逻辑队列的分发线程
+        private final DispatchShard[] queueShards;
+        // 构建消息Key索引的分发线程，未开启消息索引时为null
+        private final DispatchShard indexShard;
+        // 全部分发线程
+        private final List<DispatchShard> shards = new ArrayList<DispatchShard>();
+        // 小于此物理Offset的消息都已经分发完成
+        private volatile long dispatchedPhyOffset = 0;
+
+
+        public DispatchMessageService(int threadNums, int putMsgIndexHightWater, boolean messageIndexEnable) {
+            threadNums = Math.max(threadNums, 1);
+            // 缓冲区大小取2的幂，序号直接与掩码计算位置
+            int capacity = 1024;
+            while (capacity < putMsgIndexHightWater / threadNums) {
+                capacity <<= 1;
+            }
+
+            this.queueShards = new DispatchShard[threadNums];
+            for (int i = 0; i < threadNums; i++) {
+                this.queueShards[i] =
+                        new DispatchShard(DispatchMessageService.class.getSimpleName() + "-" + i, capacity, false);
+                this.shards.add(this.queueShards[i]);
+            }
+
+            if (messageIndexEnable) {
+                this.indexShard =
+                        new DispatchShard(DispatchMessageService.class.getSimpleName() + "-Index", capacity, true);
+                this.shards.add(this.indexShard);
+            }
+            else {
+                this.indexShard = null;
+            }
+        }
+
+
+        public void start() {
+            for (DispatchShard shard : this.shards) {
+                shard.start();
+            }
+        }
+
+
+        public void shutdown() {
+            for (DispatchShard shard : this.shards) {
+                shard.shutdown();
+            }
+        }
+
+
+        public void putRequest(String topic, int queueId, long offset, int size, int type, long storeTimestamp,
+                long logicOffset, String key) {
+            int hash = 31 * topic.hashCode() + queueId;
+            DispatchShard shard = this.queueShards[(hash & Integer.MAX_VALUE) % this.queueShards.length];
+            shard.putRequest(topic, queueId, offset, size, type, storeTimestamp, logicOffset, key);
+
+            if (this.indexShard != null && key != null && key.length() > 0
+                    && DefaultMetaStore.this.getMetaStoreConfig().isMessageIndexEnable()) {
+                this.indexShard.putRequest(topic, queueId, offset, size, type, storeTimestamp, logicOffset, key);
+            }
+        }
+
+
+        /**
+         * 多个线程并行分发，Checkpoint只能记录全部线程都已经分发完成的时间点与物理Offset<br>
+         * 请求按照物理Offset顺序放入各线程，先读取全部线程的已分发位置，再读取未分发位置，
+         * 保证已分发位置之前的请求要么已经分发，要么能被读到
+         */
+        private void updateDispatchedCheckpoint() {
+            long maxDispatchedTimestamp = 0;
+            long maxDispatchedPhyOffset = 0;
+            for (DispatchShard shard : this.shards) {
+                maxDispatchedTimestamp = Math.max(maxDispatchedTimestamp, shard.getDispatchedTimestamp());
+                maxDispatchedPhyOffset = Math.max(maxDispatchedPhyOffset, shard.getDispatchedPhyOffset());
+            }
+
+            long minPendingTimestamp = Long.MAX_VALUE;
+            long minPendingPhyOffset = Long.MAX_VALUE;
+            for (DispatchShard shard : this.shards) {
+                minPendingTimestamp = Math.min(minPendingTimestamp, shard.getPendingTimestamp());
+                minPendingPhyOffset = Math.min(minPendingPhyOffset, shard.getPendingPhyOffset());
+            }
+
+            long logicsMsgTimestamp = maxDispatchedTimestamp;
+            if (minPendingTimestamp != Long.MAX_VALUE) {
+                logicsMsgTimestamp = Math.min(logicsMsgTimestamp, minPendingTimestamp - 1);
+            }
+
+            if (logicsMsgTimestamp > DefaultMetaStore.this.getStoreCheckpoint().getLogicsMsgTimestamp()) {
+                DefaultMetaStore.this.getStoreCheckpoint().setLogicsMsgTimestamp(logicsMsgTimestamp);
+            }
+
+            long phyOffset = Math.min(maxDispatchedPhyOffset, minPendingPhyOffset);
+            if (phyOffset > this.dispatchedPhyOffset) {
+                this.dispatchedPhyOffset = phyOffset;
+            }
+        }
+
+
+        public long getDispatchedPhyOffset() {
+            return dispatchedPhyOffset;
+        }
+
+
+        /**
+         * 启动恢复完成后，物理队列中的消息都已经分发
+         */
+        public void setDispatchedPhyOffset(long dispatchedPhyOffset) {
+            this.dispatchedPhyOffset = dispatchedPhyOffset;
+        }
+
+
+        public long getPendingRequests() {
+            long pending = 0;
+            for (DispatchShard shard : this.shards) {
+                pending += shard.getPendingRequests();
+            }
+
+            return pending;
+        }
+    }
+
+    /**
+     * SLAVE: 从物理队列Load消息，并分发到各个逻辑队列
+     */
+    class ReputMessageService extends ServiceThread {
+        // 从这里开始解析物理队列数据，并分发到逻辑队列
+        private volatile long reputFromOffset = 0;
+
+
+        private void doReput() {
+            for (boolean doNext = true; doNext;) {
                 SelectMapedBufferResult result = DefaultMetaStore.this.metaQueuePhysical.getData(reputFromOffset);
                 if (result != null) {
                     try {
@@ -612,12 +1277,18 @@ public class DefaultMetaStore implements MetaStore {
                                     DefaultMetaStore.this.metaQueuePhysical.checkMessageAndReturnSize(
                                         result.getByteBuffer(), false, false);
                             int size = dispatchRequest.getSize();
+                            // 跳过记录
+                            if (size > 0 && dispatchRequest.isSkip()) {
+                                this.reputFromOffset += size;
+                                readSize += size;
+                            }
                             // 正常数据
-                            if (size > 0) {
+                            else if (size > 0) {
                                 DefaultMetaStore.this.putDispatchRequest(dispatchRequest.getTopic(),
                                     dispatchRequest.getQueueId(), dispatchRequest.getOffset(),
                                     dispatchRequest.getSize(), dispatchRequest.getType(),
-                                    dispatchRequest.getStoreTimestamp(), dispatchRequest.getLogicOffset());
+                                    dispatchRequest.getStoreTimestamp(), dispatchRequest.getLogicOffset(),
+                                    dispatchRequest.getKey());
 
                                 this.reputFromOffset += size;
                                 readSize += size;
@@ -696,19 +1367,42 @@ public class DefaultMetaStore implements MetaStore {
 
 
     private void recover(final boolean lastExitOK) {
-        // 先按照正常流程恢复逻辑队列
-        this.recoverLogics();
-
-        // 正常数据恢复
-        if (lastExitOK) {
-            this.metaQueuePhysical.recoverNormally();
-        }
-        // 异常数据恢复，OS CRASH或者JVM CRASH或者机器掉电
-        else {
-            this.metaQueuePhysical.recoverAbnormally();
+        this.metaStatsService.setRecoverBeginTimestamp(System.currentTimeMillis());
+
+        // 正常关闭且有快照时，直接根据快照恢复，不扫描文件
+        boolean recoverBySnapshot =
+                lastExitOK && this.metaStoreConfig.isQueueSnapshotEnable() && this.storeCheckpoint.isSnapshotValid()
+                        && this.storeCheckpoint.isSnapshotNormal() && this.recoverBySnapshot();
+        this.metaStatsService.setRecoverBySnapshot(recoverBySnapshot);
+        if (!recoverBySnapshot) {
+            // 先按照正常流程恢复逻辑队列
+            this.recoverLogics();
+
+            // 正常数据恢复
+            if (lastExitOK) {
+                this.metaQueuePhysical.recoverNormally();
+            }
+            // 异常数据恢复，OS CRASH或者JVM CRASH或者机器掉电
+            else {
+                this.metaQueuePhysical.recoverAbnormally();
+            }
         }
 
         this.recoverTopicQueueTable();
+
+        // 截断的物理队列数据需要重新建立消息Key索引
+        this.metaIndexService.truncateDirty(this.metaQueuePhysical.getMaxOffset());
+
+        // 逻辑队列恢复完成后，再恢复时间索引
+        this.recoverTimeIndex();
+
+        // 快照只对本次重启有效，之后由刷盘线程重新记录
+        this.storeCheckpoint.deleteSnapshot();
+        this.dispatchMessageService.setDispatchedPhyOffset(this.metaQueuePhysical.getMaxOffset());
+
+        this.metaStatsService.setRecoverEndTimestamp(System.currentTimeMillis());
+        log.info("recover store over, " + (lastExitOK ? "normally" : "abnormally") + ", progress "
+                + this.metaStatsService.getRecoverProgress());
     }
 
 
@@ -727,13 +1421,29 @@ public class DefaultMetaStore implements MetaStore {
             // load 物理队列
             result = this.metaQueuePhysical.load();
 
+            // load 冷存储与本地压缩文件，恢复时计算逻辑队列最小Offset需要
+            if (this.coldPhysicQueue != null) {
+                result = result && this.coldPhysicQueue.load();
+            }
+            if (this.compressedPhysicQueue != null) {
+                result = result && this.compressedPhysicQueue.load();
+            }
+
             // load 逻辑队列
             result = result && this.loadLogics();
 
+            // load 消息Key索引
+            result = result && this.metaIndexService.load();
+
             if (result) {
                 this.storeCheckpoint = new StoreCheckpoint(this.metaStoreConfig.getStoreCheckpoint());
                 // 尝试恢复数据
                 this.recover(lastExitOK);
+
+                // 逻辑队列恢复完成后，加载定时消息投递进度
+                if (this.scheduleMessageService != null) {
+                    this.scheduleMessageService.load(lastExitOK);
+                }
             }
         }
         catch (Exception e) {
@@ -823,12 +1533,26 @@ public class DefaultMetaStore implements MetaStore {
      * @throws Exception
      */
     public void start() throws Exception {
+        if (this.reclaimMapedFileService != null) {
+            this.reclaimMapedFileService.start();
+        }
         this.cleanPhysicFileService.start();
         this.cleanLogicsFileService.start();
+        if (this.offloadPhysicFileService != null) {
+            this.offloadPhysicFileService.start();
+        }
+        if (this.compressPhysicFileService != null) {
+            this.compressPhysicFileService.start();
+        }
+        this.compactLogicsQueueService.start();
         this.dispatchMessageService.start();
         this.flushLogicQueueService.start();
         this.metaQueuePhysical.start();
+        if (this.scheduleMessageService != null) {
+            this.scheduleMessageService.start();
+        }
         this.metaStatsService.start();
+        this.registerStatsMBean();
 
         if (!this.metaStoreConfig.isMaster()) {
             this.reputMessageService.setReputFromOffset(this.metaQueuePhysical.getMaxOffset());
@@ -853,9 +1577,24 @@ public class DefaultMetaStore implements MetaStore {
             catch (InterruptedException e) {
                 log.error("shutdown Exception, ", e);
             }
+            if (this.scheduleMessageService != null) {
+                this.scheduleMessageService.shutdown();
+            }
             this.metaStatsService.shutdown();
+            this.unregisterStatsMBean();
             this.cleanPhysicFileService.shutdown();
+            // 等待正在回收的文件删除完成
+            if (this.reclaimMapedFileService != null) {
+                this.reclaimMapedFileService.shutdown();
+            }
             this.cleanLogicsFileService.shutdown();
+            if (this.offloadPhysicFileService != null) {
+                this.offloadPhysicFileService.shutdown();
+            }
+            if (this.compressPhysicFileService != null) {
+                this.compressPhysicFileService.shutdown();
+            }
+            this.compactLogicsQueueService.shutdown();
             this.dispatchMessageService.shutdown();
             this.flushLogicQueueService.shutdown();
             this.metaQueuePhysical.shutdown();
@@ -863,16 +1602,80 @@ public class DefaultMetaStore implements MetaStore {
             if (!this.metaStoreConfig.isMaster()) {
                 this.reputMessageService.shutdown();
             }
+            this.flushNormalQueueSnapshot();
+            // 物理队列已经全部刷盘，投递进度全部写入Checkpoint
+            if (this.scheduleMessageService != null) {
+                this.scheduleMessageService.updateCheckpoint();
+            }
             this.storeCheckpoint.shutdown();
+            if (this.coldPhysicQueue != null) {
+                this.coldPhysicQueue.shutdown();
+            }
+            if (this.compressedPhysicQueue != null) {
+                this.compressedPhysicQueue.shutdown();
+            }
+            if (this.transientStorePool != null) {
+                this.transientStorePool.destroy();
+            }
             this.deleteFile(this.metaStoreConfig.getAbortFile());
         }
     }
 
 
-    public PutMessageResult putMessage(MetaMessage msg, MetaMessageAnnotation msgant) {
+    /**
+     * 统计数据注册到JMX，注册失败不影响存储启动
+     */
+    private void registerStatsMBean() {
+        try {
+            MetaMBeanServer.registMBean(this.metaStatsService, null);
+        }
+        catch (Exception e) {
+            log.warn("register MetaStatsService MBean failed", e);
+        }
+    }
+
+
+    private void unregisterStatsMBean() {
+        try {
+            MetaMBeanServer.unregistMBean(this.metaStatsService, null);
+        }
+        catch (Exception e) {
+            log.warn("unregister MetaStatsService MBean failed", e);
+        }
+    }
+
+
+    /**
+     * 正常关闭时记录快照，只有全部消息都已经分发并刷盘时才记录，否则删除旧快照
+     */
+    private void flushNormalQueueSnapshot() {
+        if (!this.metaStoreConfig.isQueueSnapshotEnable()) {
+            this.storeCheckpoint.deleteSnapshot();
+            return;
+        }
+
+        long maxPhyOffset = this.metaQueuePhysical.getMaxOffset();
+        if (this.dispatchMessageService.getPendingRequests() == 0
+                && this.dispatchMessageService.getDispatchedPhyOffset() == maxPhyOffset
+                && this.metaQueuePhysical.getFlushedWhere() == maxPhyOffset) {
+            this.flushQueueSnapshot(maxPhyOffset, true);
+        }
+        else {
+            log.warn("messages not all dispatched or flushed, do not flush queue offset snapshot, dispatched "
+                    + this.dispatchMessageService.getDispatchedPhyOffset() + ", flushed "
+                    + this.metaQueuePhysical.getFlushedWhere() + ", max " + maxPhyOffset);
+            this.storeCheckpoint.deleteSnapshot();
+        }
+    }
+
+
+    /**
+     * 检查存储是否允许写入
+     */
+    private boolean isPutMessageAllowed() {
         if (this.shutdown) {
             log.warn("meta store has shutdown, so putMessage is forbidden");
-            return null;
+            return false;
         }
 
         if (!this.metaStoreConfig.isMaster()) {
@@ -881,7 +1684,7 @@ public class DefaultMetaStore implements MetaStore {
                 log.warn("meta store is slave mode, so putMessage is forbidden ");
             }
 
-            return null;
+            return false;
         }
 
         if (!this.runningFlags.isWriteable()) {
@@ -891,52 +1694,185 @@ public class DefaultMetaStore implements MetaStore {
                         + this.runningFlags.getFlagBits());
             }
 
-            return null;
+            return false;
         }
         else {
             this.printTimes.set(0);
         }
 
+        return true;
+    }
+
+
+    /**
+     * 校验消息各字段长度是否超出存储格式限制，在定时消息改写之前调用，改写后的属性长度同样校验
+     */
+    private boolean isMessageValid(final MetaMessage msg, final MetaMessageAnnotation msgant) {
         // message topic长度校验
         if (msg.getTopic().length() > Byte.MAX_VALUE) {
             log.warn("putMessage message topic length too long " + msg.getTopic().length());
-            return null;
+            return false;
         }
 
         // message type长度校验
         if (msg.getType() != null && msg.getType().length() > Byte.MAX_VALUE) {
             log.warn("putMessage message type length too long " + msg.getType().length());
-            return null;
+            return false;
         }
 
         // message attribute长度校验
         if (msg.getAttribute() != null && msg.getAttribute().length() > Short.MAX_VALUE) {
             log.warn("putMessage message attribute length too long " + msg.getAttribute().length());
+            return false;
+        }
+
+        // 定时消息改写后的attribute长度校验
+        if (this.scheduleMessageService != null) {
+            int length = this.scheduleMessageService.getTransformedAttributeLength(msg, msgant);
+            if (length > Short.MAX_VALUE) {
+                log.warn("putMessage delayed message attribute length too long " + length);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    public PutMessageResult putMessage(MetaMessage msg, MetaMessageAnnotation msgant) {
+        if (!this.isPutMessageAllowed()) {
             return null;
         }
 
+        if (!this.isMessageValid(msg, msgant)) {
+            return null;
+        }
+
+        if (this.scheduleMessageService != null) {
+            this.scheduleMessageService.transformDelayedMessage(msg, msgant);
+        }
+
         long beginTime = this.getSystemClock().now();
+        long beginNanos = System.nanoTime();
         AppendMessageResult result = this.metaQueuePhysical.putMessage(msg, msgant);
         // 性能数据统计
         long eclipseTime = this.getSystemClock().now() - beginTime;
         if (eclipseTime > 1000) {
             log.warn("putMessage not in lock eclipse time(ms) " + eclipseTime);
         }
-        this.metaStatsService.setPutMessageEntireTimeMax(eclipseTime);
+        this.metaStatsService.getPutLatencyRecorder().recordSince(beginNanos);
         this.metaStatsService.getPutMessageTimesTotal().incrementAndGet();
 
         if (null == result || !result.isOk()) {
             this.metaStatsService.getPutMessageFailedTimes().incrementAndGet();
         }
+        else {
+            this.findMetaQueueLogistic(msg.getTopic(), msgant.getQueueId()).getQueueStats().onPut(
+                result.getWroteOffset(), result.getWroteBytes());
+        }
 
         return new PutMessageResult(result);
     }
 
 
-    private boolean isTheBatchFull(long offsetPy, int sizePy, int maxSize, int bufferTotal, int messageTotal) {
+    public void putMessageAsync(MetaMessage msg, MetaMessageAnnotation msgant, PutMessageCallback callback) {
+        if (!this.isPutMessageAllowed() || !this.isMessageValid(msg, msgant)) {
+            callback.putMessageComplete(null, false);
+            return;
+        }
+
+        if (this.scheduleMessageService != null) {
+            this.scheduleMessageService.transformDelayedMessage(msg, msgant);
+        }
+
+        long beginTime = this.getSystemClock().now();
+        long beginNanos = System.nanoTime();
+        AppendMessageResult result = this.metaQueuePhysical.putMessageAsync(msg, msgant, callback);
+        // 性能数据统计，不包含等待刷盘的时间
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 1000) {
+            log.warn("putMessageAsync not in lock eclipse time(ms) " + eclipseTime);
+        }
+        this.metaStatsService.getPutLatencyRecorder().recordSince(beginNanos);
+        this.metaStatsService.getPutMessageTimesTotal().incrementAndGet();
+
+        if (null == result || !result.isOk()) {
+            this.metaStatsService.getPutMessageFailedTimes().incrementAndGet();
+        }
+        else {
+            this.findMetaQueueLogistic(msg.getTopic(), msgant.getQueueId()).getQueueStats().onPut(
+                result.getWroteOffset(), result.getWroteBytes());
+        }
+    }
+
+
+    public List<PutMessageResult> putMessages(List<MetaMessageWrapper> msgs) {
+        if (!this.isPutMessageAllowed()) {
+            return null;
+        }
+
+        // 有一条消息不合法，整批拒绝，校验全部通过后再改写定时消息，避免被拒绝的批次重试时重复改写
+        for (MetaMessageWrapper wrapper : msgs) {
+            if (!this.isMessageValid(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation())) {
+                return null;
+            }
+        }
+
+        if (this.scheduleMessageService != null) {
+            for (MetaMessageWrapper wrapper : msgs) {
+                this.scheduleMessageService.transformDelayedMessage(wrapper.getMetaMessage(),
+                    wrapper.getMetaMessageAnnotation());
+            }
+        }
+
+        long beginTime = this.getSystemClock().now();
+        long beginNanos = System.nanoTime();
+        List<AppendMessageResult> appendResults = this.metaQueuePhysical.putMessages(msgs);
+        // 性能数据统计
+        long eclipseTime = this.getSystemClock().now() - beginTime;
+        if (eclipseTime > 1000) {
+            log.warn("putMessages not in lock eclipse time(ms) " + eclipseTime + " batch size: " + msgs.size());
+        }
+        this.metaStatsService.getPutLatencyRecorder().recordSince(beginNanos);
+        this.metaStatsService.getPutMessageTimesTotal().addAndGet(msgs.size());
+
+        List<PutMessageResult> results = new ArrayList<PutMessageResult>(msgs.size());
+        for (int i = 0; i < msgs.size(); i++) {
+            AppendMessageResult result =
+                    (null == appendResults || i >= appendResults.size()) ? null : appendResults.get(i);
+            if (null == result || !result.isOk()) {
+                this.metaStatsService.getPutMessageFailedTimes().incrementAndGet();
+            }
+            else {
+                MetaMessageWrapper wrapper = msgs.get(i);
+                this.findMetaQueueLogistic(wrapper.getMetaMessage().getTopic(),
+                    wrapper.getMetaMessageAnnotation().getQueueId()).getQueueStats().onPut(
+                    result.getWroteOffset(), result.getWroteBytes());
+            }
+
+            results.add(new PutMessageResult(result));
+        }
+
+        return results;
+    }
+
+
+    /**
+     * 消息是否在内存，开启PageCache估算时根据读写记录或者探测接口判断，否则根据可用物理内存大小判断
+     */
+    private boolean isMessageInMemory(final long offsetPy) {
+        if (this.pageCacheResidency != null) {
+            return this.pageCacheResidency.isResident(offsetPy);
+        }
+
         long maxOffsetPy = this.metaQueuePhysical.getMaxOffset();
         long memory = this.metaStoreConfig.getTotalPhysicMemory() * 1024L * 1024L * 1024L;
+        return (maxOffsetPy - offsetPy) <= memory;
+    }
 
+
+    private boolean isTheBatchFull(long offsetPy, int sizePy, int maxSize, int bufferTotal, int messageTotal,
+            boolean isInMemory) {
         // 第一条消息可以不做限制
         if (0 == bufferTotal || 0 == messageTotal) {
             return false;
@@ -947,7 +1883,7 @@ public class DefaultMetaStore implements MetaStore {
         }
 
         // 消息在磁盘
-        if ((maxOffsetPy - offsetPy) > memory) {
+        if (!isInMemory) {
             if ((bufferTotal + sizePy) > this.metaStoreConfig.getMaxTransferBytesOnMessageInDisk()) {
                 return true;
             }
@@ -972,6 +1908,12 @@ public class DefaultMetaStore implements MetaStore {
 
 
     public GetMessageResult getMessage(String topic, int queueId, long offset, int maxSize, Set<Integer> types) {
+        return this.getMessage(topic, queueId, offset, maxSize, types, null);
+    }
+
+
+    public GetMessageResult getMessage(String topic, int queueId, long offset, int maxSize, Set<Integer> types,
+            Set<String> typeNames) {
         if (this.shutdown) {
             log.warn("meta store has shutdown, so getMessage is forbidden");
             return null;
@@ -982,7 +1924,7 @@ public class DefaultMetaStore implements MetaStore {
             return null;
         }
 
-        long beginTime = this.getSystemClock().now();
+        long beginNanos = System.nanoTime();
 
         // 枚举变量，取消息结果
         GetMessageStatus status = GetMessageStatus.NO_MESSAGE_IN_QUEUE;
@@ -993,11 +1935,13 @@ public class DefaultMetaStore implements MetaStore {
         // 逻辑队列中的最大Offset
         long maxOffset = 0;
 
-        GetMessageResult getResult = new GetMessageResult();
+        GetMessageResult getResult = GetMessageResult.obtain();
 
         MetaQueueLogistic logicQueue = findMetaQueueLogistic(topic, queueId);
         if (logicQueue != null) {
-            minOffset = logicQueue.getMinOffsetInQuque();
+            // 按照消息Key压缩过的队列，压缩段之前的消息从压缩段读取
+            final MetaQueueCompacted compacted = logicQueue.getCompacted();
+            minOffset = logicQueue.getReadableMinOffset();
             maxOffset = logicQueue.getMaxOffsetInQuque();
 
             if (maxOffset == 0) {
@@ -1012,6 +1956,24 @@ public class DefaultMetaStore implements MetaStore {
             else if (offset > maxOffset) {
                 status = GetMessageStatus.OFFSET_OVERFLOW_BADLY;
             }
+            else if (offset < compacted.getCompactedOffset()) {
+                final MetaQueueCompacted.Segment segment = compacted.holdSegment(offset);
+                if (segment != null) {
+                    try {
+                        nextBeginOffset =
+                                this.getMessageFromCompacted(segment, offset, maxSize, types, typeNames, getResult);
+                        status = getResult.getStatus();
+                    }
+                    finally {
+                        segment.release();
+                    }
+                }
+                else {
+                    // 压缩段正在替换，客户端从原位置重试
+                    status = GetMessageStatus.MESSAGE_WAS_REMOVING;
+                    nextBeginOffset = offset;
+                }
+            }
             else {
                 SelectMapedBufferResult bufferLogic = logicQueue.getIndexBuffer(offset);
                 if (bufferLogic != null) {
@@ -1019,11 +1981,42 @@ public class DefaultMetaStore implements MetaStore {
                         status = GetMessageStatus.NO_MATCHED_MESSAGE;
 
                         long nextPhyFileStartOffset = Long.MIN_VALUE;
+                        // 写缓冲池模式下，逻辑队列可能先于物理数据写入FileChannel
+                        final long maxReadableOffsetPy =
+                                this.transientStorePool != null ? this.metaQueuePhysical.getMaxOffset()
+                                        : Long.MAX_VALUE;
+                        // 第一条消息是否在内存，用来统计冷热消费比例
+                        Boolean firstInMemory = null;
+                        // 订阅类型的Bloom位，不需要过滤或者没有类型位图时为null
+                        final MetaQueueTagBits tagBits = logicQueue.getTagBits();
+                        final long[] tagMasks = tagBits != null ? MetaQueueTagBits.buildMasks(types) : null;
+                        final long endOffset = offset + bufferLogic.getSize() / MetaQueueLogistic.StoreUnitSize;
 
                         int i = 0;
+                        // 实际检查过的存储单元大小，跳过的整页不计算在内
+                        int filterSize = 0;
                         final int MaxFilterMessageCount = 16000;
-                        for (; i < bufferLogic.getSize() && i < MaxFilterMessageCount; i +=
+                        for (; i < bufferLogic.getSize() && filterSize < MaxFilterMessageCount; i +=
                                 MetaQueueLogistic.StoreUnitSize) {
+                            // 每页开始时检查汇总位图，跳过不可能匹配的整页
+                            final long unitOffset = offset + i / MetaQueueLogistic.StoreUnitSize;
+                            if (tagMasks != null && (0 == i || 0 == unitOffset % MetaQueueTagBits.PageUnits)) {
+                                long matchedOffset =
+                                        tagBits.skipUnmatchedPages(unitOffset, Math.min(endOffset, maxOffset),
+                                            tagMasks);
+                                if (matchedOffset > unitOffset) {
+                                    this.metaStatsService.getGetMessageSkippedUnits().addAndGet(
+                                        matchedOffset - unitOffset);
+                                    i += (int) (matchedOffset - unitOffset) * MetaQueueLogistic.StoreUnitSize;
+                                    if (i >= bufferLogic.getSize()) {
+                                        i = bufferLogic.getSize();
+                                        break;
+                                    }
+                                    bufferLogic.getByteBuffer().position(i);
+                                }
+                            }
+
+                            filterSize += MetaQueueLogistic.StoreUnitSize;
                             long offsetPy = bufferLogic.getByteBuffer().getLong();
                             int sizePy = bufferLogic.getByteBuffer().getInt();
                             int typeLogic = bufferLogic.getByteBuffer().getInt();
@@ -1034,19 +2027,61 @@ public class DefaultMetaStore implements MetaStore {
                                     continue;
                             }
 
-                            // 此批消息达到上限了
+                            // 消息还没有写入FileChannel，下次再读
+                            if ((offsetPy + sizePy) > maxReadableOffsetPy) {
+                                if (getResult.getBufferTotalSize() == 0) {
+                                    status = GetMessageStatus.OFFSET_OVERFLOW_ONE;
+                                }
+                                break;
+                            }
+
+                            // 此批消息达到上限了，每条消息重新判断是否在内存，一批消息可能跨越冷热数据
+                            boolean isInMemory = this.isMessageInMemory(offsetPy);
                             if (this.isTheBatchFull(offsetPy, sizePy, maxSize, getResult.getBufferTotalSize(),
-                                getResult.getMessageCount())) {
+                                getResult.getMessageCount(), isInMemory)) {
                                 break;
                             }
 
                             // 消息过滤
                             if (this.messageFilter.isMessageMatched(types, typeLogic)) {
-                                SelectMapedBufferResult selectResult =
-                                        this.metaQueuePhysical.getMessage(offsetPy, sizePy);
-                                if (selectResult != null) {
+                                // 与上一条消息物理连续时合并到同一个区间，不再单独hold
+                                final int contiguousPos = getResult.appendContiguousMessage(offsetPy, sizePy);
+                                SelectMapedBufferResult selectResult = null;
+                                if (contiguousPos < 0) {
+                                    selectResult = this.metaQueuePhysical.getMessage(offsetPy, sizePy);
+                                }
+                                else {
+                                    this.metaStatsService.getGetMessageCoalescedCount().incrementAndGet();
+                                }
+                                final boolean selected = contiguousPos >= 0 || selectResult != null;
+                                // hashCode冲突时，按照物理队列中的类型名称精确过滤
+                                if (selected
+                                        && typeNames != null
+                                        && !this.isSelectedMessageTypeMatched(typeNames, getResult, contiguousPos,
+                                            selectResult)) {
+                                    if (contiguousPos >= 0) {
+                                        getResult.removeContiguousMessage(sizePy);
+                                    }
+                                    else {
+                                        selectResult.release();
+                                    }
+                                    this.metaStatsService.getGetMessageTypeMismatchCount().incrementAndGet();
+                                    if (getResult.getBufferTotalSize() == 0) {
+                                        status = GetMessageStatus.NO_MATCHED_MESSAGE;
+                                    }
+                                    nextPhyFileStartOffset = Long.MIN_VALUE;
+                                }
+                                else if (selected) {
                                     this.metaStatsService.getGetMessageTransferedMsgCount().incrementAndGet();
-                                    getResult.addMessage(selectResult);
+                                    if (null == firstInMemory) {
+                                        firstInMemory = isInMemory;
+                                    }
+                                    if (this.pageCacheResidency != null) {
+                                        this.pageCacheResidency.touch(offsetPy);
+                                    }
+                                    if (selectResult != null) {
+                                        getResult.addMessage(selectResult);
+                                    }
                                     status = GetMessageStatus.FOUND;
                                     nextPhyFileStartOffset = Long.MIN_VALUE;
                                 }
@@ -1072,6 +2107,15 @@ public class DefaultMetaStore implements MetaStore {
                         }
 
                         nextBeginOffset = offset + (i / MetaQueueLogistic.StoreUnitSize);
+
+                        if (firstInMemory != null) {
+                            if (firstInMemory) {
+                                this.metaStatsService.getGetMessageHotTimes().incrementAndGet();
+                            }
+                            else {
+                                this.metaStatsService.getGetMessageColdTimes().incrementAndGet();
+                            }
+                        }
                     }
                     finally {
                         // 必须释放资源
@@ -1093,12 +2137,12 @@ public class DefaultMetaStore implements MetaStore {
 
         if (GetMessageStatus.FOUND == status) {
             this.metaStatsService.getGetMessageTimesTotalFound().incrementAndGet();
+            logicQueue.getQueueStats().onGet(getResult.getMessageCount(), getResult.getBufferTotalSize());
         }
         else {
             this.metaStatsService.getGetMessageTimesTotalMiss().incrementAndGet();
         }
-        long eclipseTime = this.getSystemClock().now() - beginTime;
-        this.metaStatsService.setGetMessageEntireTimeMax(eclipseTime);
+        this.metaStatsService.getGetLatencyRecorder().recordSince(beginNanos);
 
         getResult.setStatus(status);
         getResult.setNextBeginOffset(nextBeginOffset);
@@ -1108,6 +2152,65 @@ public class DefaultMetaStore implements MetaStore {
     }
 
 
+    /**
+     * 刚选中的消息类型是否与typeNames精确匹配，合并到连续区间的消息从最后一个区间中读取
+     */
+    private boolean isSelectedMessageTypeMatched(final Set<String> typeNames, final GetMessageResult getResult,
+            final int contiguousPos, final SelectMapedBufferResult selectResult) {
+        final ByteBuffer byteBuffer = contiguousPos >= 0 ? getResult.getLastBuffer() : selectResult.getByteBuffer();
+        final int typeLenPos =
+                this.metaQueuePhysical.pickupMessageTypePosition(byteBuffer, contiguousPos >= 0 ? contiguousPos : 0);
+        return this.messageFilter.isMessageTypeMatched(typeNames, byteBuffer, typeLenPos);
+    }
+
+
+    /**
+     * 从压缩段读取消息，被压缩掉的Offset直接跳过，结果状态设置到getResult<br>
+     * 调用方需要hold住segment
+     *
+     * @return 下一次开始的Offset
+     */
+    private long getMessageFromCompacted(final MetaQueueCompacted.Segment segment, final long offset,
+            final int maxSize, final Set<Integer> types, final Set<String> typeNames, final GetMessageResult getResult) {
+        GetMessageStatus status = GetMessageStatus.NO_MATCHED_MESSAGE;
+        final int MaxFilterMessageCount = 1000;
+        int i = segment.find(offset);
+        for (int n = 0; i < segment.size() && n < MaxFilterMessageCount; i++, n++) {
+            // 压缩段中的消息都在磁盘
+            if (this.isTheBatchFull(0, segment.getSize(i), maxSize, getResult.getBufferTotalSize(),
+                getResult.getMessageCount(), false)) {
+                break;
+            }
+
+            if (segment.isRemoved(i)) {
+                continue;
+            }
+
+            // 读取失败时停在这条消息，返回已经读到的消息，没有读到消息时客户端从这里重试
+            SelectMapedBufferResult selectResult = segment.getMessage(i);
+            if (null == selectResult) {
+                if (getResult.getBufferTotalSize() == 0) {
+                    status = GetMessageStatus.MESSAGE_WAS_REMOVING;
+                }
+                break;
+            }
+
+            final ByteBuffer byteBuffer = selectResult.getByteBuffer();
+            final int typeLenPos = this.metaQueuePhysical.pickupMessageTypePosition(byteBuffer, 0);
+            if (typeLenPos >= 0
+                    && this.messageFilter.isMessageMatched(types, MetaQueuePhysical.hashMessageType(byteBuffer,
+                        typeLenPos)) && this.messageFilter.isMessageTypeMatched(typeNames, byteBuffer, typeLenPos)) {
+                this.metaStatsService.getGetMessageTransferedMsgCount().incrementAndGet();
+                getResult.addMessage(selectResult);
+                status = GetMessageStatus.FOUND;
+            }
+        }
+
+        getResult.setStatus(status);
+        return i < segment.size() ? segment.getLogicOffset(i) : segment.getEndOffset();
+    }
+
+
     private MetaQueueLogistic findMetaQueueLogistic(String topic, int queueId) {
         ConcurrentHashMap<Integer, MetaQueueLogistic> map = metaQueueLogisticTable.get(topic);
         if (null == map) {
@@ -1140,14 +2243,39 @@ public class DefaultMetaStore implements MetaStore {
 
 
     public void putIndex(String topic, int queueId, long offset, int size, int type, long storeTimestamp,
-            long logicOffset) {
+            long logicOffset, String key) {
+        if (this.putLogicIndex(topic, queueId, offset, size, type, storeTimestamp, logicOffset)) {
+            this.getStoreCheckpoint().setLogicsMsgTimestamp(storeTimestamp);
+            if (this.metaStoreConfig.isMessageIndexEnable()) {
+                this.metaIndexService.buildIndex(topic, key, offset, storeTimestamp);
+            }
+        }
+    }
+
+
+    /**
+     * 写入逻辑队列，失败后重试，全部失败则标记逻辑队列错误
+     */
+    private boolean putLogicIndex(String topic, int queueId, long offset, int size, int type,
+            long storeTimestamp, long logicOffset) {
+        // 定时队列的类型字段记录投递状态
+        final boolean scheduleTopic = ScheduleMessageService.ScheduleTopic.equals(topic);
+        if (scheduleTopic) {
+            type = ScheduleMessageService.UnitTypePending;
+        }
+
         final int MaxRetries = 5;
         boolean canWrite = this.runningFlags.isWriteable();
         for (int i = 0; i < MaxRetries && canWrite; i++) {
-            boolean result = this.findMetaQueueLogistic(topic, queueId).putIndex(offset, size, type, logicOffset);
+            boolean result =
+                    this.findMetaQueueLogistic(topic, queueId).putIndex(offset, size, type, storeTimestamp,
+                        logicOffset);
             if (result) {
-                this.getStoreCheckpoint().setLogicsMsgTimestamp(storeTimestamp);
-                return;
+                // 定时消息写入后唤醒定时消息服务加载
+                if (scheduleTopic && this.scheduleMessageService != null) {
+                    this.scheduleMessageService.wakeup();
+                }
+                return true;
             }
             // 只有一种情况会失败，创建新的MapedFile时报错或者超时
             else {
@@ -1163,12 +2291,14 @@ public class DefaultMetaStore implements MetaStore {
         }
 
         this.runningFlags.makeLogicsQueueError();
+        return false;
     }
 
 
     public void putDispatchRequest(String topic, int queueId, long offset, int size, int type,
-            long storeTimestamp, long logicOffset) {
-        this.dispatchMessageService.putRequest(topic, queueId, offset, size, type, storeTimestamp, logicOffset);
+            long storeTimestamp, long logicOffset, String key) {
+        this.dispatchMessageService.putRequest(topic, queueId, offset, size, type, storeTimestamp, logicOffset,
+            key);
     }
 
 
@@ -1177,6 +2307,21 @@ public class DefaultMetaStore implements MetaStore {
     }
 
 
+    public PageCacheResidency getPageCacheResidency() {
+        return pageCacheResidency;
+    }
+
+
+    public ColdPhysicQueue getColdPhysicQueue() {
+        return coldPhysicQueue;
+    }
+
+
+    public ColdPhysicQueue getCompressedPhysicQueue() {
+        return compressedPhysicQueue;
+    }
+
+
     public MetaQueuePhysical getMetaQueuePhysical() {
         return metaQueuePhysical;
     }
@@ -1207,7 +2352,7 @@ public class DefaultMetaStore implements MetaStore {
     public long getMinOffsetInQuque(String topic, int queueId) {
         MetaQueueLogistic logic = this.findMetaQueueLogistic(topic, queueId);
         if (logic != null) {
-            return logic.getMinOffsetInQuque();
+            return logic.getReadableMinOffset();
         }
 
         return -1;
@@ -1219,16 +2364,41 @@ public class DefaultMetaStore implements MetaStore {
     }
 
 
+    public ReclaimMapedFileService getReclaimMapedFileService() {
+        return reclaimMapedFileService;
+    }
+
+
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+
     public MetaStatsService getMetaStatsService() {
         return metaStatsService;
     }
 
 
+    public ScheduleMessageService getScheduleMessageService() {
+        return scheduleMessageService;
+    }
+
+
     public String getRunningDataInfo() {
         return this.metaStatsService.toString();
     }
 
 
+    public List<MetaQueueStats> getTopQueuesByRate(final Comparator<MetaQueueStats> comparator, final int topN) {
+        return this.metaStatsService.getTopQueuesByRate(comparator, topN);
+    }
+
+
+    public MetaQueueStats getTopicStats(final String topic) {
+        return this.metaStatsService.getTopicStats(topic);
+    }
+
+
     public RunningFlags getAccessRights() {
         return runningFlags;
     }
@@ -1276,6 +2446,68 @@ public class DefaultMetaStore implements MetaStore {
     }
 
 
+    public List<MetaMessageWrapper> queryMessage(String topic, String key, int maxNum, long begin, long end) {
+        List<MetaMessageWrapper> msgs = new ArrayList<MetaMessageWrapper>();
+        if (this.shutdown) {
+            log.warn("meta store has shutdown, so queryMessage is forbidden");
+            return msgs;
+        }
+
+        if (!this.runningFlags.isReadable()) {
+            log.warn("meta store is not readable, so queryMessage is forbidden " + this.runningFlags.getFlagBits());
+            return msgs;
+        }
+
+        List<Long> phyOffsets = this.metaIndexService.queryPhyOffset(topic, key, maxNum, begin, end);
+        Set<Long> visited = new HashSet<Long>();
+        for (Long phyOffset : phyOffsets) {
+            // 异常恢复后可能有重复索引
+            if (!visited.add(phyOffset)) {
+                continue;
+            }
+
+            MetaMessageWrapper wrapper = this.lookMessageByOffset(phyOffset.longValue());
+            if (null == wrapper) {
+                continue;
+            }
+
+            // 哈希冲突或者脏索引，读出消息后再比较一次
+            long storeTimestamp = wrapper.getMetaMessageAnnotation().getStoreTimestamp();
+            if (topic.equals(wrapper.getMetaMessage().getTopic())
+                    && key.equals(wrapper.getMetaMessage().getAttribute()) && storeTimestamp >= begin
+                    && storeTimestamp <= end) {
+                msgs.add(wrapper);
+            }
+        }
+
+        return msgs;
+    }
+
+
+    public MetaMessageWrapper lookMessageByMsgId(String msgId) {
+        byte[] bytes = MetaUtil.string2bytes(msgId);
+        if (null == bytes || bytes.length != MetaMessageDecoder.MSG_ID_LENGTH) {
+            log.warn("lookMessageByMsgId illegal msgId " + msgId);
+            return null;
+        }
+
+        // 消息ID=存储时间(4)+存储主机(8)+物理Offset(8)
+        long phyOffset = ByteBuffer.wrap(bytes).getLong(MetaMessageDecoder.MSG_ID_LENGTH - 8);
+        MetaMessageWrapper wrapper = this.lookMessageByOffset(phyOffset);
+        // 物理文件被删除后，同一位置可能是其他消息
+        if (wrapper != null && msgId.equals(wrapper.getMetaMessageAnnotation().getMsgId())) {
+            return wrapper;
+        }
+
+        return null;
+    }
+
+
+    public MetaIndexService getMetaIndexService() {
+        return metaIndexService;
+    }
+
+
     public ConcurrentHashMap<String, ConcurrentHashMap<Integer, MetaQueueLogistic>> getMetaQueueLogisticTable() {
         return metaQueueLogisticTable;
     }
@@ -1286,23 +2518,190 @@ public class DefaultMetaStore implements MetaStore {
     }
 
 
-    private void recoverLogics() {
+    /**
+     * 创建恢复线程池，恢复完成后由调用方关闭
+     */
+    ExecutorService createRecoverExecutor(final String name, final int threadNums) {
+        return Executors.newFixedThreadPool(threadNums, new ThreadFactory() {
+            private final AtomicLong threadIndex = new AtomicLong(0);
+
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "_" + this.threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * 在恢复线程池中执行一批任务，等待全部完成，任务异常直接抛出<br>
+     * 各逻辑队列的文件相互独立，可以并行恢复
+     */
+    private void runRecoverTasks(final String name, final List<Callable<Object>> tasks) {
+        int threadNums = Math.min(this.metaStoreConfig.getRecoverThreadNums(), tasks.size());
+        if (threadNums <= 1) {
+            for (Callable<Object> task : tasks) {
+                try {
+                    task.call();
+                }
+                catch (RuntimeException e) {
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return;
+        }
+
+        ExecutorService executor = this.createRecoverExecutor(name, threadNums);
+        try {
+            List<Future<Object>> futures = executor.invokeAll(tasks);
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException(name + " interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException(name + " failed", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * 根据正常关闭时记录的快照恢复逻辑队列与物理队列，磁盘数据与快照不一致时返回false
+     */
+    private boolean recoverBySnapshot() {
+        long beginTime = System.currentTimeMillis();
+        final AtomicLong notMatched = new AtomicLong(0);
+        long lastMsgPhyOffset = -1;
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : this.metaQueueLogisticTable.values()) {
+            for (final MetaQueueLogistic logic : maps.values()) {
+                final StoreCheckpoint.QueueOffset queueOffset =
+                        this.storeCheckpoint.getSnapshotQueueOffset(logic.getTopic(), logic.getQueueId());
+                if (null == queueOffset) {
+                    log.info("logics queue " + logic.getTopic() + "-" + logic.getQueueId()
+                            + " not in queue offset snapshot");
+                    return false;
+                }
+
+                lastMsgPhyOffset = Math.max(lastMsgPhyOffset, queueOffset.getMaxPhysicOffset());
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        if (logic.recoverBySnapshot(queueOffset.getNextOffset(), queueOffset.getMaxPhysicOffset())) {
+                            DefaultMetaStore.this.metaStatsService.getRecoverLogicsRecovered().incrementAndGet();
+                        }
+                        else {
+                            notMatched.incrementAndGet();
+                            log.info("logics queue " + logic.getTopic() + "-" + logic.getQueueId()
+                                    + " not matched queue offset snapshot " + queueOffset.getNextOffset());
+                        }
+                        return null;
+                    }
+                });
+            }
+        }
+
+        this.metaStatsService.getRecoverLogicsTotal().set(tasks.size());
+        this.metaStatsService.getRecoverLogicsRecovered().set(0);
+        this.runRecoverTasks("RecoverLogicsThread", tasks);
+        if (notMatched.get() > 0) {
+            return false;
+        }
+
+        long phyOffset = this.storeCheckpoint.getSnapshotPhyOffset();
+        if (!this.metaQueuePhysical.recoverNormallyBySnapshot(phyOffset, lastMsgPhyOffset)) {
+            log.info("physics queue not matched queue offset snapshot " + phyOffset);
+            return false;
+        }
+
+        log.info("recover by queue offset snapshot OK, " + tasks.size() + " queues, phy offset " + phyOffset
+                + ", " + (System.currentTimeMillis() - beginTime) + "ms");
+        return true;
+    }
+
+
+    /**
+     * 记录全部逻辑队列的位置快照
+     */
+    private void flushQueueSnapshot(final long phyOffset, final boolean normal) {
+        List<StoreCheckpoint.QueueOffset> queueOffsets = new ArrayList<StoreCheckpoint.QueueOffset>();
         for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : this.metaQueueLogisticTable.values()) {
             for (MetaQueueLogistic logic : maps.values()) {
-                logic.recover();
+                queueOffsets.add(new StoreCheckpoint.QueueOffset(logic.getTopic(), logic.getQueueId(), logic
+                    .getMaxOffsetInQuque(), logic.getMaxPhysicOffset()));
+            }
+        }
+
+        if (this.storeCheckpoint.flushSnapshot(phyOffset, normal, queueOffsets) && normal) {
+            log.info("flush queue offset snapshot OK, " + queueOffsets.size() + " queues, phy offset " + phyOffset);
+        }
+    }
+
+
+    private void recoverLogics() {
+        long beginTime = System.currentTimeMillis();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : this.metaQueueLogisticTable.values()) {
+            for (final MetaQueueLogistic logic : maps.values()) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        logic.recover();
+                        long recovered = DefaultMetaStore.this.metaStatsService.getRecoverLogicsRecovered()
+                            .incrementAndGet();
+                        if (recovered % 1000 == 0) {
+                            log.info("recover logics queue progress " + recovered + "/"
+                                    + DefaultMetaStore.this.metaStatsService.getRecoverLogicsTotal().get());
+                        }
+                        return null;
+                    }
+                });
             }
         }
+
+        this.metaStatsService.getRecoverLogicsTotal().set(tasks.size());
+        this.metaStatsService.getRecoverLogicsRecovered().set(0);
+        this.runRecoverTasks("RecoverLogicsThread", tasks);
+        log.info("recover logics queue over, " + tasks.size() + " queues, "
+                + (System.currentTimeMillis() - beginTime) + "ms");
+    }
+
+
+    private void recoverTimeIndex() {
+        long beginTime = System.currentTimeMillis();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : this.metaQueueLogisticTable.values()) {
+            for (final MetaQueueLogistic logic : maps.values()) {
+                tasks.add(new Callable<Object>() {
+                    public Object call() {
+                        logic.recoverTimeIndex();
+                        return null;
+                    }
+                });
+            }
+        }
+
+        this.runRecoverTasks("RecoverTimeIndexThread", tasks);
+        log.info("recover time index over, " + tasks.size() + " queues, "
+                + (System.currentTimeMillis() - beginTime) + "ms");
     }
 
 
     private void recoverTopicQueueTable() {
-        HashMap<String/* topic-queueid */, Long/* offset */> table = new HashMap<String, Long>(1024);
+        TopicQueueOffsetTable table = new TopicQueueOffsetTable();
         long minPhyOffset = this.metaQueuePhysical.getMinOffset();
         for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : this.metaQueueLogisticTable.values()) {
             for (MetaQueueLogistic logic : maps.values()) {
                 // 恢复写入消息时，记录的队列offset
-                String key = logic.getTopic() + "-" + logic.getQueueId();
-                table.put(key, logic.getMaxOffsetInQuque());
+                table.put(logic.getTopic(), logic.getQueueId(), logic.getMaxOffsetInQuque());
                 // 恢复每个队列的最小offset
                 logic.correctMinOffset(minPhyOffset);
             }
@@ -1323,7 +2722,14 @@ public class DefaultMetaStore implements MetaStore {
 
     public void destroy() {
         this.destroyLogics();
+        this.metaIndexService.destroy();
         this.metaQueuePhysical.destroy();
+        if (this.coldPhysicQueue != null) {
+            this.coldPhysicQueue.destroy();
+        }
+        if (this.compressedPhysicQueue != null) {
+            this.compressedPhysicQueue.destroy();
+        }
         this.deleteFile(this.metaStoreConfig.getAbortFile());
         this.deleteFile(this.metaStoreConfig.getStoreCheckpoint());
     }
@@ -6,14 +6,25 @@ package com.taobao.metaq.store;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
- * 拉消息结果
+ * 拉消息结果<br>
+ * 物理连续的消息合并到同一个区间，共用一次hold，发送时每个区间只对应一个ByteBuffer<br>
+ * 通过obtain获取的对象在发送完成后调用recycle放回对象池
  * 
  * @author vintage.wang@gmail.com shijia.wxr@taobao.com
  */
 public class GetMessageResult {
+    // 对象池最多缓存的对象个数
+    private static final int PoolSizeMax = 1024;
+    // 对象池
+    private static final ConcurrentLinkedQueue<GetMessageResult> Pool = new ConcurrentLinkedQueue<GetMessageResult>();
+    // 对象池中的对象个数
+    private static final AtomicInteger PoolSize = new AtomicInteger(0);
     // 枚举变量，取消息结果
     private GetMessageStatus status;
     // 当被过滤后，返回下一次开始的Offset
@@ -24,16 +35,76 @@ public class GetMessageResult {
     private long maxOffset;
     // 多个连续的消息集合
     private final List<SelectMapedBufferResult> messageMapedList = new ArrayList<SelectMapedBufferResult>(100);
-    // 用来向Consumer传送消息
+    // 用来向Consumer传送消息，每个连续区间一个ByteBuffer
+    private final List<ByteBuffer> transferBufferList = new ArrayList<ByteBuffer>(100);
+    // 每条消息一个ByteBuffer，第一次调用getMessageBufferList时生成
     private final List<ByteBuffer> messageBufferList = new ArrayList<ByteBuffer>(100);
     // ByteBuffer 总字节数
     private int bufferTotalSize = 0;
+    // 消息条数
+    private int messageCount = 0;
+    // 是否已经recycle或者discard，同一次发送的回调可能被调用多次，只有第一次生效
+    private final AtomicBoolean recycled = new AtomicBoolean(false);
 
 
     public GetMessageResult() {
     }
 
 
+    /**
+     * 从对象池获取，池中没有时创建
+     */
+    public static GetMessageResult obtain() {
+        GetMessageResult result = Pool.poll();
+        if (result != null) {
+            PoolSize.decrementAndGet();
+            result.recycled.set(false);
+            return result;
+        }
+
+        return new GetMessageResult();
+    }
+
+
+    /**
+     * 释放资源并放回对象池，调用后不能再使用此对象，重复调用不生效
+     */
+    public void recycle() {
+        if (!this.recycled.compareAndSet(false, true)) {
+            return;
+        }
+
+        this.release();
+        this.status = null;
+        this.nextBeginOffset = 0;
+        this.minOffset = 0;
+        this.maxOffset = 0;
+        this.messageMapedList.clear();
+        this.transferBufferList.clear();
+        this.messageBufferList.clear();
+        this.bufferTotalSize = 0;
+        this.messageCount = 0;
+
+        if (PoolSize.incrementAndGet() <= PoolSizeMax) {
+            Pool.offer(this);
+        }
+        else {
+            PoolSize.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * 只释放资源，不放回对象池，用于发送超时或者失败时，发送可能仍在进行，不能清空或者复用缓冲区列表<br>
+     * 之后再调用recycle不生效
+     */
+    public void discard() {
+        if (this.recycled.compareAndSet(false, true)) {
+            this.release();
+        }
+    }
+
+
     public GetMessageStatus getStatus() {
         return status;
     }
@@ -79,15 +150,88 @@ public class GetMessageResult {
     }
 
 
+    /**
+     * 每个连续区间一个ByteBuffer，用于零拷贝发送
+     */
+    public List<ByteBuffer> getTransferBufferList() {
+        return transferBufferList;
+    }
+
+
+    /**
+     * 每条消息一个ByteBuffer，按照消息头部的TOTALSIZE从连续区间中切分
+     */
     public List<ByteBuffer> getMessageBufferList() {
+        if (this.messageBufferList.size() != this.messageCount) {
+            this.messageBufferList.clear();
+            for (SelectMapedBufferResult select : this.messageMapedList) {
+                ByteBuffer byteBuffer = select.getByteBuffer();
+                int pos = 0;
+                while (pos < select.getSize()) {
+                    int msgSize = byteBuffer.getInt(pos);
+                    if (msgSize <= 0) {
+                        break;
+                    }
+
+                    ByteBuffer message = byteBuffer.duplicate();
+                    message.limit(pos + msgSize);
+                    message.position(pos);
+                    this.messageBufferList.add(message.slice());
+                    pos += msgSize;
+                }
+            }
+        }
+
         return messageBufferList;
     }
 
 
     public void addMessage(final SelectMapedBufferResult mapedBuffer) {
         this.messageMapedList.add(mapedBuffer);
-        this.messageBufferList.add(mapedBuffer.getByteBuffer());
+        this.transferBufferList.add(mapedBuffer.getByteBuffer());
         this.bufferTotalSize += mapedBuffer.getSize();
+        this.messageCount++;
+    }
+
+
+    /**
+     * 与最后一个区间物理连续时，合并到最后一个区间，不需要再次hold
+     *
+     * @return 消息在最后一个区间中的位置，不能合并时返回-1
+     */
+    public int appendContiguousMessage(final long offsetPy, final int sizePy) {
+        if (this.messageMapedList.isEmpty()) {
+            return -1;
+        }
+
+        SelectMapedBufferResult last = this.messageMapedList.get(this.messageMapedList.size() - 1);
+        int pos = last.getSize();
+        if (last.appendContiguous(offsetPy, sizePy)) {
+            this.bufferTotalSize += sizePy;
+            this.messageCount++;
+            return pos;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * 撤销最后一次合并的消息
+     */
+    public void removeContiguousMessage(final int sizePy) {
+        SelectMapedBufferResult last = this.messageMapedList.get(this.messageMapedList.size() - 1);
+        last.truncate(last.getSize() - sizePy);
+        this.bufferTotalSize -= sizePy;
+        this.messageCount--;
+    }
+
+
+    /**
+     * 最后一个区间的ByteBuffer
+     */
+    public ByteBuffer getLastBuffer() {
+        return this.transferBufferList.get(this.transferBufferList.size() - 1);
     }
 
 
@@ -104,7 +248,7 @@ public class GetMessageResult {
 
 
     public int getMessageCount() {
-        return this.messageMapedList.size();
+        return this.messageCount;
     }
 
 
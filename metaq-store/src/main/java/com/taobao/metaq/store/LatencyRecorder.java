@@ -0,0 +1,242 @@
+/**
+ * $Id: LatencyRecorder.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * 延迟直方图，单位微秒，按照对数线性分桶：小于32的值精确记录，之后每个2的幂区间等分成32个桶，相对误差不超过1/32<br>
+ * 记录只对一个桶做原子自增，不加锁，多个线程并发记录没有竞争<br>
+ * 统计线程每10秒保存一次累计值快照，窗口内的分布为两次快照之差，提供最近10秒、1分钟、10分钟的分位数
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class LatencyRecorder {
+    private static final int SubBucketBits = 5;
+    private static final int SubBucketCount = 1 << SubBucketBits;
+    // 最大记录值的2的幂，超过按照最大值记录（微秒，约50天）
+    private static final int MaxExponent = 41;
+    private static final int BucketCount = SubBucketCount + (MaxExponent - SubBucketBits + 1) * SubBucketCount;
+    private static final long MaxValue = (1L << (MaxExponent + 1)) - 1;
+    // 快照间隔
+    public static final int SnapshotInterval = 1000 * 10;
+    // 10秒快照保留个数，覆盖1分钟，多保留一个，读取最早的快照时不会被统计线程覆盖
+    private static final int ShortSnapshotNums = 6 + 2;
+    // 每隔多少个10秒快照保存一个1分钟快照
+    private static final int LongSnapshotEvery = 6;
+    // 1分钟快照保留个数，覆盖10分钟
+    private static final int LongSnapshotNums = 10 + 2;
+    // 窗口名称
+    public static final String[] WindowNames = { "10s", "1m", "10m" };
+
+    // 名称，用于统计输出
+    private final String name;
+    // 累计计数
+    private final AtomicLongArray counts = new AtomicLongArray(BucketCount);
+    // 10秒快照与1分钟快照，只有统计线程写入
+    private final AtomicReferenceArray<long[]> shortSnapshots = new AtomicReferenceArray<long[]>(ShortSnapshotNums);
+    private final AtomicReferenceArray<long[]> longSnapshots = new AtomicReferenceArray<long[]>(LongSnapshotNums);
+    // 已经保存的10秒快照个数
+    private volatile long snapshotTimes = 0;
+    private long lastSnapshotTimestamp = System.currentTimeMillis();
+
+
+    public LatencyRecorder(final String name) {
+        this.name = name;
+    }
+
+
+    static int bucketIndex(final long value) {
+        final long v = Math.min(Math.max(value, 0), MaxValue);
+        if (v < SubBucketCount) {
+            return (int) v;
+        }
+
+        final int exponent = 63 - Long.numberOfLeadingZeros(v);
+        final int shift = exponent - SubBucketBits;
+        return SubBucketCount + shift * SubBucketCount + (int) (v >> shift) - SubBucketCount;
+    }
+
+
+    /**
+     * 桶内的最大值，分位数按照桶的最大值返回，不会低估延迟
+     */
+    static long bucketHighValue(final int index) {
+        if (index < SubBucketCount) {
+            return index;
+        }
+
+        final int shift = (index - SubBucketCount) / SubBucketCount;
+        final long sub = (index - SubBucketCount) % SubBucketCount;
+        return ((SubBucketCount + sub + 1) << shift) - 1;
+    }
+
+
+    /**
+     * 记录一次延迟
+     *
+     * @param micros
+     *            微秒
+     */
+    public void record(final long micros) {
+        this.counts.incrementAndGet(bucketIndex(micros));
+    }
+
+
+    /**
+     * 记录从beginNanos到现在的延迟
+     */
+    public void recordSince(final long beginNanos) {
+        this.record((System.nanoTime() - beginNanos) / 1000);
+    }
+
+
+    private long[] copyCounts() {
+        long[] snapshot = new long[BucketCount];
+        for (int i = 0; i < BucketCount; i++) {
+            snapshot[i] = this.counts.get(i);
+        }
+        return snapshot;
+    }
+
+
+    /**
+     * 由统计线程定时调用，每10秒保存一次快照
+     */
+    public void tick(final long now) {
+        if (now - this.lastSnapshotTimestamp < SnapshotInterval) {
+            return;
+        }
+
+        this.lastSnapshotTimestamp = now;
+        final long times = this.snapshotTimes;
+        long[] snapshot = this.copyCounts();
+        this.shortSnapshots.set((int) (times % ShortSnapshotNums), snapshot);
+        if (times % LongSnapshotEvery == 0) {
+            this.longSnapshots.set((int) ((times / LongSnapshotEvery) % LongSnapshotNums), snapshot);
+        }
+        this.snapshotTimes = times + 1;
+    }
+
+
+    /**
+     * 最近一个窗口内的分布，还没有足够的快照时从启动开始计算
+     *
+     * @param window
+     *            0：10秒，1：1分钟，2：10分钟
+     */
+    long[] getWindowCounts(final int window) {
+        final long times = this.snapshotTimes;
+        if (0 == times) {
+            return new long[BucketCount];
+        }
+
+        final long last = times - 1;
+        final long[] end = this.shortSnapshots.get((int) (last % ShortSnapshotNums));
+        long[] begin = null;
+        if (0 == window && last >= 1) {
+            begin = this.shortSnapshots.get((int) ((last - 1) % ShortSnapshotNums));
+        }
+        else if (1 == window && last >= LongSnapshotEvery) {
+            begin = this.shortSnapshots.get((int) ((last - LongSnapshotEvery) % ShortSnapshotNums));
+        }
+        else if (2 == window) {
+            // 1分钟快照的序号，取10分钟以前的那一个
+            final long longIndex = last / LongSnapshotEvery - 10;
+            if (longIndex >= 0) {
+                begin = this.longSnapshots.get((int) (longIndex % LongSnapshotNums));
+            }
+        }
+
+        long[] result = new long[BucketCount];
+        for (int i = 0; i < BucketCount; i++) {
+            result[i] = end[i] - (begin != null ? begin[i] : 0);
+        }
+        return result;
+    }
+
+
+    /**
+     * 计算分位数
+     *
+     * @return 依次为p50、p99、p999、max，单位微秒，没有记录时全部为0
+     */
+    static long[] percentiles(final long[] counts) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+
+        final double[] ratios = { 0.5, 0.99, 0.999 };
+        long[] result = new long[ratios.length + 1];
+        if (0 == total) {
+            return result;
+        }
+
+        int r = 0;
+        long accumulated = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (0 == counts[i]) {
+                continue;
+            }
+
+            accumulated += counts[i];
+            while (r < ratios.length && accumulated >= (long) Math.ceil(total * ratios[r])) {
+                result[r++] = bucketHighValue(i);
+            }
+            result[ratios.length] = bucketHighValue(i);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * 窗口内的p50、p99、p999、max
+     */
+    public long[] getPercentiles(final int window) {
+        return percentiles(this.getWindowCounts(window));
+    }
+
+
+    /**
+     * 窗口内的记录次数
+     */
+    public long getCount(final int window) {
+        long total = 0;
+        for (long c : this.getWindowCounts(window)) {
+            total += c;
+        }
+        return total;
+    }
+
+
+    /**
+     * 启动以来的最大值
+     */
+    public long getMaxTotal() {
+        for (int i = BucketCount - 1; i >= 0; i--) {
+            if (this.counts.get(i) > 0) {
+                return bucketHighValue(i);
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * 格式：p50 p99 p999 max
+     */
+    public String getPercentilesString(final int window) {
+        long[] p = this.getPercentiles(window);
+        return p[0] + " " + p[1] + " " + p[2] + " " + p[3];
+    }
+
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * $Id: LocalColdStorage.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * 冷存储的本地目录实现，目录通常挂载在大容量磁盘或者网络文件系统上<br>
+ * 也用于保存本地压缩的物理文件，此时通过构造函数指定目录
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class LocalColdStorage implements ColdStorage {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 上传过程中的临时文件后缀
+    private static final String TmpSuffix = ".tmp";
+    // 指定的存储目录，为null时使用MetaStoreConfig.storePathCold
+    private final String storePath;
+    // 存储目录
+    private File storeDir;
+    // 已经打开的文件
+    private final ConcurrentHashMap<String, FileChannel> channelTable = new ConcurrentHashMap<String, FileChannel>();
+
+
+    public LocalColdStorage() {
+        this(null);
+    }
+
+
+    public LocalColdStorage(final String storePath) {
+        this.storePath = storePath;
+    }
+
+
+    public boolean init(final MetaStoreConfig metaStoreConfig) {
+        this.storeDir = new File(this.storePath != null ? this.storePath : metaStoreConfig.getStorePathCold());
+        if (!this.storeDir.exists() && !this.storeDir.mkdirs()) {
+            log.error("create storage dir " + this.storeDir + " failed");
+            return false;
+        }
+
+        return this.storeDir.isDirectory();
+    }
+
+
+    public boolean upload(final String fileName, final File file) {
+        File tmpFile = new File(this.storeDir, fileName + TmpSuffix);
+        FileChannel in = null;
+        FileChannel out = null;
+        try {
+            in = new FileInputStream(file).getChannel();
+            out = new FileOutputStream(tmpFile).getChannel();
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(true);
+        }
+        catch (IOException e) {
+            log.error("upload " + fileName + " to " + this.storeDir + " failed", e);
+            tmpFile.delete();
+            return false;
+        }
+        finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+
+        return tmpFile.renameTo(new File(this.storeDir, fileName));
+    }
+
+
+    public int read(final String fileName, final long position, final byte[] buffer, final int offset,
+            final int length) throws IOException {
+        FileChannel channel = this.channelTable.get(fileName);
+        if (null == channel) {
+            FileChannel newChannel = new RandomAccessFile(new File(this.storeDir, fileName), "r").getChannel();
+            channel = this.channelTable.putIfAbsent(fileName, newChannel);
+            if (channel != null) {
+                newChannel.close();
+            }
+            else {
+                channel = newChannel;
+            }
+        }
+
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+        int total = 0;
+        while (byteBuffer.hasRemaining()) {
+            int n = channel.read(byteBuffer, position + total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+
+        return total;
+    }
+
+
+    public List<String> listFiles() {
+        List<String> result = new ArrayList<String>();
+        File[] files = this.storeDir.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                if (file.isFile() && !file.getName().endsWith(TmpSuffix)) {
+                    result.add(file.getName());
+                }
+                else if (file.getName().endsWith(TmpSuffix)) {
+                    // 上传未完成的文件
+                    file.delete();
+                }
+            }
+        }
+
+        return result;
+    }
+
+
+    public boolean delete(final String fileName) {
+        closeQuietly(this.channelTable.remove(fileName));
+        return new File(this.storeDir, fileName).delete();
+    }
+
+
+    public void shutdown() {
+        for (FileChannel channel : this.channelTable.values()) {
+            closeQuietly(channel);
+        }
+        this.channelTable.clear();
+    }
+
+
+    private static void closeQuietly(final FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                log.warn("close file channel error", e);
+            }
+        }
+    }
+}
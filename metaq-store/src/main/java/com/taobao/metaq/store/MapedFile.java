@@ -14,6 +14,7 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -30,6 +31,10 @@ import com.taobao.metaq.commons.MetaUtil;
 public class MapedFile extends ReferenceResource {
     private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
     public static final int OS_PAGE_SIZE = 1024 * 4;
+    // 无锁追加时，等待发布先自旋多少次再让出CPU
+    private static final int SpinTimesBeforeYield = 64;
+    // 无锁追加时，等待发布的最长时间，超时说明前面预留空间的线程没有发布
+    private static final long PublishTurnTimeoutMillis = 1000 * 10;
     // 当前JVM中映射的虚拟内存总大小
     private static final AtomicLong TotalMapedVitualMemory = new AtomicLong(0);
     // 当前JVM中mmap句柄数量
@@ -41,8 +46,8 @@ public class MapedFile extends ReferenceResource {
     private final long fileFromOffset;
     // 映射的文件大小，定长
     private final int fileSize;
-    // 映射的文件
-    private final File file;
+    // 映射的文件，回收前会被改名
+    private volatile File file;
     // 映射的FileChannel对象
     private final FileChannel fileChannel;
     // 映射的内存对象，position永远不变
@@ -51,13 +56,30 @@ public class MapedFile extends ReferenceResource {
     private final AtomicInteger wrotePostion = new AtomicInteger(0);
     // Flush到什么位置
     private final AtomicInteger committedPosition = new AtomicInteger(0);
+    // 无锁追加时，已经预留到什么位置（预留的空间写完后才会推进wrotePostion）
+    private final AtomicInteger reservedPosition = new AtomicInteger(0);
+    // 写入FileChannel到什么位置，只有开启写缓冲池时使用
+    private final AtomicInteger channelPostion = new AtomicInteger(0);
     // 最后一条消息存储时间
     private volatile long storeTimestamp = 0;
+    // 写缓冲池，为null表示消息直接写入映射内存
+    private final TransientStorePool transientStorePool;
+    // 从写缓冲池借来的缓冲区，全部写入FileChannel后归还
+    private volatile ByteBuffer writeBuffer = null;
 
     private boolean firstCreateInQueue = false;
 
 
     public MapedFile(final String fileName, final int fileSize) throws IOException {
+        this(fileName, fileSize, null);
+    }
+
+
+    /**
+     * 写缓冲池没有空闲缓冲区时，退化成直接写映射内存
+     */
+    public MapedFile(final String fileName, final int fileSize, final TransientStorePool transientStorePool)
+            throws IOException {
         this.fileName = fileName;
         this.fileSize = fileSize;
         this.file = new File(fileName);
@@ -72,6 +94,11 @@ public class MapedFile extends ReferenceResource {
             TotalMapedVitualMemory.addAndGet(fileSize);
             TotalMapedFiles.incrementAndGet();
             ok = true;
+
+            if (transientStorePool != null) {
+                this.writeBuffer = transientStorePool.borrowBuffer();
+            }
+            this.transientStorePool = null == this.writeBuffer ? null : transientStorePool;
         }
         catch (FileNotFoundException e) {
             log.error("create file channel " + this.fileName + " Failed. ", e);
@@ -153,7 +180,7 @@ public class MapedFile extends ReferenceResource {
 
         // 表示有空余空间
         if (currentPos < this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = this.getAppendBuffer().slice();
             byteBuffer.position(currentPos);
             AppendMessageResult result =
                     cb.doAppend(this.getFileFromOffset(), byteBuffer, this.fileSize - currentPos, msg);
@@ -169,6 +196,97 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 无锁追加，通过CAS预留一段空间，预留成功后调用方可以并发写入
+     * 
+     * @param size
+     *            要预留的字节数
+     * @param minBlank
+     *            预留后文件末尾至少要保留的空间
+     * @return 预留空间的起始位置，如果剩余空间不足，返回-1
+     */
+    public int reserveSpace(final int size, final int minBlank) {
+        for (;;) {
+            int currentPos = this.reservedPosition.get();
+            if ((currentPos + size + minBlank) > this.fileSize) {
+                return -1;
+            }
+
+            if (this.reservedPosition.compareAndSet(currentPos, currentPos + size)) {
+                return currentPos;
+            }
+        }
+    }
+
+
+    /**
+     * 无锁追加，预留文件末尾剩余的全部空间，用来写文件末尾空洞，只会有一个线程成功
+     * 
+     * @return 预留空间的起始位置，如果文件已经被其他线程预留满，返回-1
+     */
+    public int reserveRemainingSpace() {
+        for (;;) {
+            int currentPos = this.reservedPosition.get();
+            if (currentPos >= this.fileSize) {
+                return -1;
+            }
+
+            if (this.reservedPosition.compareAndSet(currentPos, this.fileSize)) {
+                return currentPos;
+            }
+        }
+    }
+
+
+    /**
+     * 无锁追加，返回预留空间对应的ByteBuffer，position从0开始
+     */
+    public ByteBuffer sliceReservedSpace(final int pos, final int size) {
+        ByteBuffer byteBuffer = this.getAppendBuffer().slice();
+        byteBuffer.position(pos);
+        ByteBuffer byteBufferNew = byteBuffer.slice();
+        byteBufferNew.limit(size);
+        return byteBufferNew;
+    }
+
+
+    /**
+     * 无锁追加，等待pos之前预留的空间全部发布，保证wrotePostion连续推进
+     * 
+     * @return 等待超时返回false，此时不能发布pos之后的空间
+     */
+    public boolean waitForPublishTurn(final int pos) {
+        long beginTime = 0;
+        for (int spins = 0; this.wrotePostion.get() != pos; spins++) {
+            if (spins > SpinTimesBeforeYield) {
+                // 自旋阶段不取时间
+                if (0 == beginTime) {
+                    beginTime = System.currentTimeMillis();
+                }
+                else if (System.currentTimeMillis() - beginTime > PublishTurnTimeoutMillis) {
+                    log.error("wait for publish turn timeout, " + this.fileName + " wait position: " + pos
+                            + " wrote position: " + this.wrotePostion.get());
+                    return false;
+                }
+                Thread.yield();
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 无锁追加，发布写完的空间，对刷盘、读取可见，必须先调用waitForPublishTurn
+     */
+    public void publishReservedSpace(final int pos, final int size, final long storeTimestamp) {
+        if (storeTimestamp > 0) {
+            this.storeTimestamp = storeTimestamp;
+        }
+        this.wrotePostion.set(pos + size);
+    }
+
+
     /**
      * 向存储层追加数据，一般在SLAVE存储结构中使用
      * 
@@ -179,7 +297,7 @@ public class MapedFile extends ReferenceResource {
 
         // 表示有空余空间
         if ((currentPos + data.length) <= this.fileSize) {
-            ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
+            ByteBuffer byteBuffer = this.getAppendBuffer().slice();
             byteBuffer.position(currentPos);
             byteBuffer.put(data);
             this.wrotePostion.addAndGet(data.length);
@@ -190,9 +308,101 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 写消息使用的缓冲区，开启写缓冲池时为堆外缓冲区，否则为映射内存
+     */
+    private ByteBuffer getAppendBuffer() {
+        ByteBuffer byteBuffer = this.writeBuffer;
+        return byteBuffer != null ? byteBuffer : this.mappedByteBuffer;
+    }
+
+
+    /**
+     * 对刷盘、读取可见的位置，开启写缓冲池时只有写入FileChannel的数据可见
+     */
+    public int getReadPosition() {
+        return null == this.transientStorePool ? this.wrotePostion.get() : this.channelPostion.get();
+    }
+
+
+    private boolean isAbleToCommitToChannel(final int commitLeastPages) {
+        int commit = this.channelPostion.get();
+        int write = this.wrotePostion.get();
+
+        // 如果当前文件已经写满，应该立刻提交
+        if (this.isFull()) {
+            return write > commit;
+        }
+
+        // 只有未提交数据满足指定page数目才提交
+        if (commitLeastPages > 0) {
+            return ((write / OS_PAGE_SIZE) - (commit / OS_PAGE_SIZE)) >= commitLeastPages;
+        }
+
+        return write > commit;
+    }
+
+
+    /**
+     * 将写缓冲区中的数据写入FileChannel，文件写满并且全部提交后，归还缓冲区
+     * 
+     * @param commitLeastPages
+     *            至少提交几个page
+     * @return 已经写入FileChannel的位置
+     */
+    public int commitToChannel(final int commitLeastPages) {
+        // 没有使用写缓冲池，数据已经在映射内存中
+        if (null == this.transientStorePool) {
+            return this.wrotePostion.get();
+        }
+
+        if (this.writeBuffer != null && this.isAbleToCommitToChannel(commitLeastPages)) {
+            if (this.hold()) {
+                try {
+                    int lastCommit = this.channelPostion.get();
+                    int write = this.wrotePostion.get();
+                    ByteBuffer byteBuffer = this.writeBuffer.slice();
+                    byteBuffer.position(lastCommit);
+                    byteBuffer.limit(write);
+                    this.fileChannel.position(lastCommit);
+                    while (byteBuffer.hasRemaining()) {
+                        this.fileChannel.write(byteBuffer);
+                    }
+                    this.channelPostion.set(write);
+                }
+                catch (IOException e) {
+                    log.error("commit to file channel " + this.fileName + " error, commit position "
+                            + this.channelPostion.get(), e);
+                }
+                finally {
+                    this.release();
+                }
+            }
+            else {
+                log.warn("in commitToChannel, hold failed, commit position = " + this.channelPostion.get());
+            }
+        }
+
+        // 文件已经写满并且全部提交，缓冲区不会再被使用
+        if (this.writeBuffer != null && this.channelPostion.get() == this.fileSize) {
+            this.returnWriteBuffer();
+        }
+
+        return this.channelPostion.get();
+    }
+
+
+    private synchronized void returnWriteBuffer() {
+        if (this.writeBuffer != null) {
+            this.transientStorePool.returnBuffer(this.writeBuffer);
+            this.writeBuffer = null;
+        }
+    }
+
+
     private boolean isAbleToFlush(final int flushLeastPages) {
         int flush = this.committedPosition.get();
-        int write = this.wrotePostion.get();
+        int write = this.getReadPosition();
 
         // 如果当前文件已经写满，应该立刻刷盘
         if (this.isFull()) {
@@ -218,14 +428,25 @@ public class MapedFile extends ReferenceResource {
     public int commit(final int flushLeastPages) {
         if (this.isAbleToFlush(flushLeastPages)) {
             if (this.hold()) {
-                int value = this.wrotePostion.get();
-                this.mappedByteBuffer.force();
+                int value = this.getReadPosition();
+                try {
+                    // 写缓冲池模式下数据通过FileChannel写入，所以也通过FileChannel刷盘
+                    if (this.transientStorePool != null) {
+                        this.fileChannel.force(false);
+                    }
+                    else {
+                        this.mappedByteBuffer.force();
+                    }
+                }
+                catch (IOException e) {
+                    log.error("force file channel " + this.fileName + " error", e);
+                }
                 this.committedPosition.set(value);
                 this.release();
             }
             else {
                 log.warn("in commit, hold failed, commit offset = " + this.committedPosition.get());
-                this.committedPosition.set(this.wrotePostion.get());
+                this.committedPosition.set(this.getReadPosition());
             }
         }
 
@@ -235,7 +456,7 @@ public class MapedFile extends ReferenceResource {
 
     public SelectMapedBufferResult selectMapedBuffer(int pos, int size) {
         // 有消息
-        if ((pos + size) <= this.wrotePostion.get()) {
+        if ((pos + size) <= this.getReadPosition()) {
             // 从MapedBuffer读
             if (this.hold()) {
                 ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
@@ -264,11 +485,12 @@ public class MapedFile extends ReferenceResource {
      * 读逻辑分区
      */
     public SelectMapedBufferResult selectMapedBuffer(int pos) {
-        if (pos < this.wrotePostion.get() && pos >= 0) {
+        int readPosition = this.getReadPosition();
+        if (pos < readPosition && pos >= 0) {
             if (this.hold()) {
                 ByteBuffer byteBuffer = this.mappedByteBuffer.slice();
                 byteBuffer.position(pos);
-                int size = this.wrotePostion.get() - pos;
+                int size = readPosition - pos;
                 ByteBuffer byteBufferNew = byteBuffer.slice();
                 byteBufferNew.limit(size);
                 return new SelectMapedBufferResult(this.fileFromOffset + pos, byteBufferNew, size, this);
@@ -338,6 +560,9 @@ public class MapedFile extends ReferenceResource {
         }
 
         clean(this.mappedByteBuffer);
+        if (this.transientStorePool != null) {
+            this.returnWriteBuffer();
+        }
         TotalMapedVitualMemory.addAndGet(this.fileSize * (-1));
         TotalMapedFiles.decrementAndGet();
         log.info("unmap file[REF:" + currentRef + "] " + this.fileName + " OK");
@@ -379,6 +604,36 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 文件改名，映射与FileChannel不受影响，用于回收前标记文件
+     */
+    public boolean renameTo(final String newFileName) {
+        File newFile = new File(newFileName);
+        if (this.file.renameTo(newFile)) {
+            this.file = newFile;
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 截断文件到指定大小，被截断部分的映射内存不能再访问，只有引用已经释放完的文件才能调用
+     */
+    public boolean truncate(final long size) {
+        try {
+            this.fileChannel.truncate(size);
+            return true;
+        }
+        catch (IOException e) {
+            log.warn("truncate file " + this.fileName + " to " + size + " Failed. ", e);
+        }
+
+        return false;
+    }
+
+
     public int getWrotePostion() {
         return wrotePostion.get();
     }
@@ -389,8 +644,15 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    public int getChannelPostion() {
+        return channelPostion.get();
+    }
+
+
     public void setWrotePostion(int pos) {
         this.wrotePostion.set(pos);
+        this.reservedPosition.set(pos);
+        this.channelPostion.set(pos);
     }
 
 
@@ -399,6 +661,58 @@ public class MapedFile extends ReferenceResource {
     }
 
 
+    /**
+     * 预热新创建的文件，每个page写入一个字节，让写消息时不再触发缺页中断<br>
+     * 每写入flushLeastPages个page刷一次盘，避免一次产生过多脏页
+     */
+    public void warmMapedFile(final int flushLeastPages, final MapedFileWarmHook hook) {
+        this.warmMapedFile(flushLeastPages, hook, null);
+    }
+
+
+    /**
+     * 预热新创建的文件，abort被设置后立即停止，已经预热的部分保留
+     *
+     * @return 是否完整预热
+     */
+    public boolean warmMapedFile(final int flushLeastPages, final MapedFileWarmHook hook,
+            final AtomicBoolean abort) {
+        long beginTime = System.currentTimeMillis();
+        if (hook != null) {
+            hook.beforeWarm(this.mappedByteBuffer, this.fileSize);
+        }
+
+        int flushedPages = 0;
+        for (int i = 0, pages = 0; i < this.fileSize; i += OS_PAGE_SIZE, pages++) {
+            if (abort != null && abort.get()) {
+                this.mappedByteBuffer.force();
+                log.info("warm maped file " + this.fileName + " aborted at " + i + ", "
+                        + MetaUtil.computeEclipseTimeMilliseconds(beginTime) + "ms");
+                return false;
+            }
+
+            this.mappedByteBuffer.put(i, (byte) 0);
+
+            if (flushLeastPages > 0 && (pages - flushedPages) >= flushLeastPages) {
+                flushedPages = pages;
+                this.mappedByteBuffer.force();
+                // 让出CPU，避免长时间占用IO
+                Thread.yield();
+            }
+        }
+
+        this.mappedByteBuffer.force();
+
+        if (hook != null) {
+            hook.afterWarm(this.mappedByteBuffer, this.fileSize);
+        }
+
+        log.info("warm maped file " + this.fileName + " OK, "
+                + MetaUtil.computeEclipseTimeMilliseconds(beginTime) + "ms");
+        return true;
+    }
+
+
     public static int getTotalmapedfiles() {
         return TotalMapedFiles.get();
     }
@@ -7,9 +7,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.log4j.Logger;
 
@@ -18,7 +18,8 @@ import com.taobao.metaq.commons.MetaUtil;
 
 /**
  * Meta内部的存储队列，数据定时删除，无限增长<br>
- * 队列是由多个文件组成
+ * 队列是由多个文件组成，文件列表写时复制，读操作不加锁，按照Offset直接计算下标<br>
+ * 可以配置多个存储目录，文件分散在各目录中，文件名即起始Offset，按照文件名排序后仍然连续
  *
  * @author vintage.wang@gmail.com shijia.wxr@taobao.com
  */
@@ -26,27 +27,54 @@ public class MapedFileQueue {
     private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
     // 每次触发删除文件，最多删除多少个文件
     private static final int DeleteFilesBatchMax = 30;
-    // 文件存储位置
+    // 文件存储位置，配置多个目录时为第一个目录
     private final String storePath;
+    // 全部存储目录
+    private final String[] storePaths;
+    // 已经提交预分配的下一个文件路径，只有写线程访问
+    private String preallocatedFilePath = null;
     // 每个文件的大小
     private final int mapedFileSize;
     // 刷盘刷到哪里
     private long committedWhere = 0;
-    // 各个文件
-    private final List<MapedFile> mapedFiles = new ArrayList<MapedFile>();
-    // 读写锁（针对mapedFiles）
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    // 写入FileChannel到哪里，只有开启写缓冲池时使用
+    private long channelWhere = 0;
+    // 各个文件，数组发布后不再修改，增删文件时复制出新数组
+    private volatile MapedFile[] mapedFiles = new MapedFile[0];
+    // 修改mapedFiles时加锁，读操作不加锁
+    private final Object mapedFilesLock = new Object();
     // 预分配MapedFile对象服务
     private final AllocateMapedFileService allocateMapedFileService;
     // 最后一条消息存储时间
     private volatile long storeTimestamp = 0;
+    // 写缓冲池，为null表示消息直接写入映射内存
+    private final TransientStorePool transientStorePool;
+    // 后台回收过期文件服务，为null时删除文件的线程直接销毁文件
+    private volatile ReclaimMapedFileService reclaimMapedFileService = null;
 
 
     public MapedFileQueue(final String storePath, int mapedFileSize,
             AllocateMapedFileService allocateMapedFileService) {
-        this.storePath = storePath;
+        this(storePath, mapedFileSize, allocateMapedFileService, null);
+    }
+
+
+    public MapedFileQueue(final String storePath, int mapedFileSize,
+            AllocateMapedFileService allocateMapedFileService, TransientStorePool transientStorePool) {
+        this(new String[] { storePath }, mapedFileSize, allocateMapedFileService, transientStorePool);
+    }
+
+
+    public MapedFileQueue(final String[] storePaths, int mapedFileSize,
+            AllocateMapedFileService allocateMapedFileService, TransientStorePool transientStorePool) {
+        this.storePath = storePaths[0];
+        this.storePaths = new String[storePaths.length];
+        for (int i = 0; i < storePaths.length; i++) {
+            this.storePaths[i] = new File(storePaths[i]).getPath();
+        }
         this.mapedFileSize = mapedFileSize;
         this.allocateMapedFileService = allocateMapedFileService;
+        this.transientStorePool = transientStorePool;
     }
 
 
@@ -93,12 +121,76 @@ public class MapedFileQueue {
 
 
     public boolean load() {
-        File dir = new File(this.storePath);
-        File[] files = dir.listFiles();
+        List<File> fileList = new ArrayList<File>();
+        for (String path : this.storePaths) {
+            File dir = new File(path);
+            // 目录不存在表示还没有写入过数据
+            if (!dir.exists()) {
+                continue;
+            }
+
+            // 目录存在但是无法读取，不能当作空目录加载，否则会丢失其中的文件
+            File[] files = dir.listFiles();
+            if (null == files) {
+                log.error("list maped files in " + dir.getPath() + " failed");
+                return false;
+            }
+            fileList.addAll(Arrays.asList(files));
+        }
+
+        // 各目录的文件按照文件名合并排序
+        File[] files = fileList.toArray(new File[fileList.size()]);
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        for (int i = 1; i < files.length; i++) {
+            if (files[i].getName().equals(files[i - 1].getName())) {
+                log.error("duplicate maped file " + files[i - 1].getPath() + " " + files[i].getPath());
+                return false;
+            }
+        }
+
+        List<MapedFile> loadedFiles = new ArrayList<MapedFile>();
+        try {
+            return this.loadFiles(files, loadedFiles);
+        }
+        finally {
+            this.addMapedFiles(loadedFiles);
+        }
+    }
+
+
+    private boolean loadFiles(final File[] files, final List<MapedFile> loadedFiles) {
         if (files != null) {
-            // ascending order
-            Arrays.sort(files);
             for (File file : files) {
+                // 上次没有回收完成的文件
+                if (file.getName().endsWith(ReclaimMapedFileService.ReclaimFileSuffix)) {
+                    boolean result = file.delete();
+                    log.info("delete reclaim file " + file.getPath() + (result ? " OK" : " Failed"));
+                    continue;
+                }
+
+                // 校验文件起始Offset是否与上一个文件连续
+                long fileFromOffset;
+                try {
+                    fileFromOffset = Long.parseLong(file.getName());
+                }
+                catch (NumberFormatException e) {
+                    log.error("illegal maped file name " + file.getPath());
+                    return false;
+                }
+                if (!loadedFiles.isEmpty()) {
+                    long expectedOffset =
+                            loadedFiles.get(loadedFiles.size() - 1).getFileFromOffset() + this.mapedFileSize;
+                    if (fileFromOffset != expectedOffset) {
+                        log.error("maped file " + file.getPath() + " not continuous, expected offset "
+                                + expectedOffset);
+                        return false;
+                    }
+                }
+
                 // 校验文件大小是否匹配
                 if (file.length() != this.mapedFileSize) {
                     log.warn(file + "\t" + file.length()
@@ -112,7 +204,7 @@ public class MapedFileQueue {
 
                     mapedFile.setWrotePostion(this.mapedFileSize);
                     mapedFile.setCommittedPosition(this.mapedFileSize);
-                    this.mapedFiles.add(mapedFile);
+                    loadedFiles.add(mapedFile);
                     log.info("load " + file.getPath() + " OK");
                 }
                 catch (IOException e) {
@@ -131,7 +223,8 @@ public class MapedFileQueue {
      */
     public long howMuchFallBehind() {
         long committed = this.committedWhere;
-        MapedFile mapedFile = this.getLastMapedFile();
+        // 只读取，不能创建新文件，否则与写消息线程并发创建同一个文件
+        MapedFile mapedFile = this.getLastMapedFile2();
         if (mapedFile != null) {
             return (mapedFile.getFileFromOffset() + mapedFile.getWrotePostion()) - committed;
         }
@@ -144,17 +237,9 @@ public class MapedFileQueue {
      * 获取队列的最小Offset，如果队列为空，则返回-1
      */
     public long getMinOffset() {
-        try {
-            this.readWriteLock.readLock().lock();
-            if (!this.mapedFiles.isEmpty()) {
-                return this.mapedFiles.get(0).getFileFromOffset();
-            }
-        }
-        catch (Exception e) {
-            log.error("getMinOffset has exception.", e);
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
+        MapedFile[] mfs = this.mapedFiles;
+        if (mfs.length > 0) {
+            return mfs[0].getFileFromOffset();
         }
 
         return -1;
@@ -162,19 +247,10 @@ public class MapedFileQueue {
 
 
     public long getMaxOffset() {
-        try {
-            this.readWriteLock.readLock().lock();
-            if (!this.mapedFiles.isEmpty()) {
-                int lastIndex = this.mapedFiles.size() - 1;
-                MapedFile mapedFile = this.mapedFiles.get(lastIndex);
-                return mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
-            }
-        }
-        catch (Exception e) {
-            log.error("getMinOffset has exception.", e);
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
+        MapedFile[] mfs = this.mapedFiles;
+        if (mfs.length > 0) {
+            MapedFile mapedFile = mfs[mfs.length - 1];
+            return mapedFile.getFileFromOffset() + mapedFile.getReadPosition();
         }
 
         return 0;
@@ -185,11 +261,10 @@ public class MapedFileQueue {
      * 恢复时调用
      */
     public void deleteLastMapedFile() {
-        if (!this.mapedFiles.isEmpty()) {
-            int lastIndex = this.mapedFiles.size() - 1;
-            MapedFile mapedFile = this.mapedFiles.get(lastIndex);
+        MapedFile mapedFile = this.getLastMapedFile2();
+        if (mapedFile != null) {
             mapedFile.destroy(1000);
-            this.mapedFiles.remove(mapedFile);
+            this.removeMapedFiles(Collections.singletonList(mapedFile));
             log.info("on recover, destroy a logic maped file " + mapedFile.getFileName());
         }
     }
@@ -200,21 +275,43 @@ public class MapedFileQueue {
      */
     private void deleteExpiredFile(List<MapedFile> files) {
         if (!files.isEmpty()) {
-            try {
-                this.readWriteLock.writeLock().lock();
-                for (MapedFile file : files) {
-                    if (!this.mapedFiles.remove(file)) {
-                        log.error("deleteExpiredFile remove failed.");
-                        break;
-                    }
-                }
-            }
-            catch (Exception e) {
-                log.error("deleteExpiredFile has exception.", e);
+            this.removeMapedFiles(files);
+        }
+    }
+
+
+    /**
+     * 在文件列表尾部追加文件，发布新数组
+     */
+    private void addMapedFiles(final List<MapedFile> files) {
+        if (files.isEmpty()) {
+            return;
+        }
+
+        synchronized (this.mapedFilesLock) {
+            MapedFile[] mfs = this.mapedFiles;
+            MapedFile[] newMfs = Arrays.copyOf(mfs, mfs.length + files.size());
+            for (int i = 0; i < files.size(); i++) {
+                newMfs[mfs.length + i] = files.get(i);
             }
-            finally {
-                this.readWriteLock.writeLock().unlock();
+            this.mapedFiles = newMfs;
+        }
+    }
+
+
+    /**
+     * 从文件列表中删除文件，发布新数组，遇到不存在的文件停止删除
+     */
+    private void removeMapedFiles(final List<MapedFile> files) {
+        synchronized (this.mapedFilesLock) {
+            List<MapedFile> remains = new ArrayList<MapedFile>(Arrays.asList(this.mapedFiles));
+            for (MapedFile file : files) {
+                if (!remains.remove(file)) {
+                    log.error("deleteExpiredFile remove failed.");
+                    break;
+                }
             }
+            this.mapedFiles = remains.toArray(new MapedFile[remains.size()]);
         }
     }
 
@@ -224,6 +321,15 @@ public class MapedFileQueue {
      */
     public int deleteExpiredFileByTime(final long expiredTime, final int deleteFilesInterval,
             final long intervalForcibly) {
+        return this.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * 根据文件过期时间来删除物理队列文件，只删除文件尾部不大于maxDeleteOffset的文件
+     */
+    public int deleteExpiredFileByTime(final long expiredTime, final int deleteFilesInterval,
+            final long intervalForcibly, final long maxDeleteOffset) {
         Object[] mfs = this.copyMapedFiles(0);
 
         if (null == mfs)
@@ -236,8 +342,24 @@ public class MapedFileQueue {
         if (null != mfs) {
             for (int i = 0; i < mfsLength; i++) {
                 MapedFile mapedFile = (MapedFile) mfs[i];
+                if ((mapedFile.getFileFromOffset() + this.mapedFileSize) > maxDeleteOffset) {
+                    break;
+                }
+
                 long liveMaxTimestamp = mapedFile.getLastModifiedTimestamp() + expiredTime;
                 if (System.currentTimeMillis() >= liveMaxTimestamp) {
+                    // 交给回收服务，只禁止访问，从队列中摘除后再提交回收
+                    if (this.reclaimMapedFileService != null) {
+                        mapedFile.markUnavailable();
+                        files.add(mapedFile);
+                        deleteCount++;
+
+                        if (files.size() >= DeleteFilesBatchMax) {
+                            break;
+                        }
+                        continue;
+                    }
+
                     if (mapedFile.destroy(intervalForcibly)) {
                         files.add(mapedFile);
                         deleteCount++;
@@ -264,6 +386,12 @@ public class MapedFileQueue {
 
         deleteExpiredFile(files);
 
+        if (this.reclaimMapedFileService != null) {
+            for (MapedFile mapedFile : files) {
+                this.reclaimMapedFileService.reclaim(mapedFile);
+            }
+        }
+
         return deleteCount;
     }
 
@@ -320,6 +448,38 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * 删除文件尾部不大于offset的文件，用于存储单元不包含物理Offset的队列
+     * 
+     * @param offset
+     *            队列中需要保留的最小offset
+     */
+    public int deleteExpiredFileByFileOffset(long offset) {
+        Object[] mfs = this.copyMapedFiles(0);
+
+        List<MapedFile> files = new ArrayList<MapedFile>();
+        int deleteCount = 0;
+        if (null != mfs) {
+            // 最后一个文件处于写状态，不能删除
+            int mfsLength = mfs.length - 1;
+            for (int i = 0; i < mfsLength; i++) {
+                MapedFile mapedFile = (MapedFile) mfs[i];
+                if ((mapedFile.getFileFromOffset() + this.mapedFileSize) <= offset && mapedFile.destroy(1000 * 60)) {
+                    files.add(mapedFile);
+                    deleteCount++;
+                }
+                else {
+                    break;
+                }
+            }
+        }
+
+        deleteExpiredFile(files);
+
+        return deleteCount;
+    }
+
+
     /**
      * 返回值表示是否全部刷盘完成
      * 
@@ -343,11 +503,29 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * 将写缓冲区中的数据写入FileChannel，返回值表示是否全部提交完成
+     */
+    public boolean commitToChannel(final int commitLeastPages) {
+        boolean result = true;
+        MapedFile mapedFile = this.findMapedFileByOffset(this.channelWhere, true);
+        if (mapedFile != null) {
+            int offset = mapedFile.commitToChannel(commitLeastPages);
+            long where = mapedFile.getFileFromOffset() + offset;
+            result = (where == this.channelWhere);
+            this.channelWhere = where;
+        }
+
+        return result;
+    }
+
+
     public MapedFile getLastMapedFile2() {
-        if (this.mapedFiles.isEmpty()) {
+        MapedFile[] mfs = this.mapedFiles;
+        if (0 == mfs.length) {
             return null;
         }
-        return this.mapedFiles.get(this.mapedFiles.size() - 1);
+        return mfs[mfs.length - 1];
     }
 
 
@@ -365,16 +543,9 @@ public class MapedFileQueue {
      */
     public MapedFile getLastMapedFile(final long startOffset) {
         long createOffset = -1;
-        MapedFile mapedFileLast = null;
-        {
-            this.readWriteLock.readLock().lock();
-            if (this.mapedFiles.isEmpty()) {
-                createOffset = startOffset - (startOffset % this.mapedFileSize);
-            }
-            else {
-                mapedFileLast = this.mapedFiles.get(this.mapedFiles.size() - 1);
-            }
-            this.readWriteLock.readLock().unlock();
+        MapedFile mapedFileLast = this.getLastMapedFile2();
+        if (null == mapedFileLast) {
+            createOffset = startOffset - (startOffset % this.mapedFileSize);
         }
 
         if (mapedFileLast != null && mapedFileLast.isFull()) {
@@ -382,19 +553,18 @@ public class MapedFileQueue {
         }
 
         if (createOffset != -1) {
-            String nextFilePath = this.storePath + File.separator + MetaUtil.Offset2FileName(createOffset);
-            String nextNextFilePath =
-                    this.storePath + File.separator + MetaUtil.Offset2FileName(createOffset + this.mapedFileSize);
+            String nextFilePath =
+                    this.selectFilePath(createOffset, null == mapedFileLast ? null : mapedFileLast.getFileName());
+            String nextNextFilePath = this.selectFilePath(createOffset + this.mapedFileSize, nextFilePath);
+            this.preallocatedFilePath = nextNextFilePath;
             MapedFile mapedFile =
                     this.allocateMapedFileService.putRequestAndReturnMapedFile(nextFilePath, nextNextFilePath,
-                        this.mapedFileSize);
+                        this.mapedFileSize, this.transientStorePool);
             if (mapedFile != null) {
-                this.readWriteLock.writeLock().lock();
-                if (this.mapedFiles.isEmpty()) {
+                if (0 == this.mapedFiles.length) {
                     mapedFile.setFirstCreateInQueue(true);
                 }
-                this.mapedFiles.add(mapedFile);
-                this.readWriteLock.writeLock().unlock();
+                this.addMapedFiles(Collections.singletonList(mapedFile));
             }
 
             return mapedFile;
@@ -404,23 +574,65 @@ public class MapedFileQueue {
     }
 
 
-    private MapedFile getFirstMapedFile() {
-        if (this.mapedFiles.isEmpty()) {
-            return null;
+    private int indexOfStorePath(final String filePath) {
+        final String parent = new File(filePath).getParent();
+        for (int i = 0; i < this.storePaths.length; i++) {
+            if (this.storePaths[i].equals(parent)) {
+                return i;
+            }
         }
 
-        return this.mapedFiles.get(0);
+        return -1;
     }
 
 
-    public MapedFile getFirstMapedFileOnLock() {
-        try {
-            this.readWriteLock.readLock().lock();
-            return this.getFirstMapedFile();
+    /**
+     * 为新文件选择存储目录，已经提交预分配的文件沿用之前选择的目录
+     *
+     * @param adjacentFilePath
+     *            前一个文件的路径，没有时为null
+     */
+    private String selectFilePath(final long offset, final String adjacentFilePath) {
+        final String fileName = MetaUtil.Offset2FileName(offset);
+        if (1 == this.storePaths.length) {
+            return this.storePath + File.separator + fileName;
         }
-        finally {
-            this.readWriteLock.readLock().unlock();
+
+        if (this.preallocatedFilePath != null && new File(this.preallocatedFilePath).getName().equals(fileName)) {
+            return this.preallocatedFilePath;
         }
+
+        int[] fileNums = new int[this.storePaths.length];
+        for (MapedFile mf : this.mapedFiles) {
+            int index = this.indexOfStorePath(mf.getFileName());
+            if (index >= 0) {
+                fileNums[index]++;
+            }
+        }
+
+        int adjacentIndex = -1;
+        if (adjacentFilePath != null) {
+            adjacentIndex = this.indexOfStorePath(adjacentFilePath);
+            // 前一个文件还没有加入队列
+            MapedFile mapedFileLast = this.getLastMapedFile2();
+            if (adjacentIndex >= 0
+                    && (null == mapedFileLast || !mapedFileLast.getFileName().equals(adjacentFilePath))) {
+                fileNums[adjacentIndex]++;
+            }
+        }
+
+        final int index = this.allocateMapedFileService.selectStorePath(this.storePaths, fileNums, adjacentIndex);
+        return this.storePaths[index] + File.separator + fileName;
+    }
+
+
+    public MapedFile getFirstMapedFileOnLock() {
+        MapedFile[] mfs = this.mapedFiles;
+        if (0 == mfs.length) {
+            return null;
+        }
+
+        return mfs[0];
     }
 
 
@@ -429,36 +641,24 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * 文件连续且大小相同，根据Offset直接计算下标，不加锁
+     */
     public MapedFile findMapedFileByOffset(final long offset, final boolean returnFirstOnNotFound) {
-        try {
-            this.readWriteLock.readLock().lock();
-            MapedFile mapedFile = this.getFirstMapedFile();
-
-            if (mapedFile != null) {
-                int index =
-                        (int) ((offset / this.mapedFileSize) - (mapedFile.getFileFromOffset() / this.mapedFileSize));
-                if (index < 0 || index >= this.mapedFiles.size()) {
-                    log.warn("findMapedFileByOffset offset not matched, request Offset: " + offset + ", index: "
-                            + index + ", mapedFileSize: " + this.mapedFileSize + ", mapedFiles count: "
-                            + this.mapedFiles.size());
-                }
+        MapedFile[] mfs = this.mapedFiles;
+        if (mfs.length > 0) {
+            MapedFile mapedFile = mfs[0];
+            long index = (offset / this.mapedFileSize) - (mapedFile.getFileFromOffset() / this.mapedFileSize);
+            if (index >= 0 && index < mfs.length) {
+                return mfs[(int) index];
+            }
 
-                try {
-                    return this.mapedFiles.get(index);
-                }
-                catch (Exception e) {
-                    if (returnFirstOnNotFound) {
-                        return mapedFile;
-                    }
-                }
+            log.warn("findMapedFileByOffset offset not matched, request Offset: " + offset + ", index: " + index
+                    + ", mapedFileSize: " + this.mapedFileSize + ", mapedFiles count: " + mfs.length);
+            if (returnFirstOnNotFound) {
+                return mapedFile;
             }
         }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
-        }
 
         return null;
     }
@@ -480,24 +680,32 @@ public class MapedFileQueue {
     }
 
 
+    /**
+     * 返回当前文件数组，数组不会被修改，调用方不需要复制
+     */
     private Object[] copyMapedFiles(final int reservedMapedFiles) {
-        Object[] mfs = null;
+        MapedFile[] mfs = this.mapedFiles;
+        if (mfs.length <= reservedMapedFiles) {
+            return null;
+        }
 
-        try {
-            this.readWriteLock.readLock().lock();
-            if (this.mapedFiles.size() <= reservedMapedFiles) {
-                return null;
-            }
+        return mfs;
+    }
 
-            mfs = this.mapedFiles.toArray();
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
-        finally {
-            this.readWriteLock.readLock().unlock();
+
+    /**
+     * 返回除最后一个文件外的全部文件，最后一个文件处于写状态
+     */
+    public List<MapedFile> getSealedMapedFiles() {
+        List<MapedFile> result = new ArrayList<MapedFile>();
+        Object[] mfs = this.copyMapedFiles(1);
+        if (mfs != null) {
+            for (int i = 0; i < mfs.length - 1; i++) {
+                result.add((MapedFile) mfs[i]);
+            }
         }
-        return mfs;
+
+        return result;
     }
 
 
@@ -529,11 +737,9 @@ public class MapedFileQueue {
      * 关闭队列，队列数据还在，但是不能访问
      */
     public void shutdown(final long intervalForcibly) {
-        this.readWriteLock.readLock().lock();
         for (MapedFile mf : this.mapedFiles) {
             mf.shutdown(intervalForcibly);
         }
-        this.readWriteLock.readLock().unlock();
     }
 
 
@@ -541,13 +747,24 @@ public class MapedFileQueue {
      * 销毁队列，队列数据被删除，此函数有可能不成功
      */
     public void destroy() {
-        this.readWriteLock.writeLock().lock();
-        for (MapedFile mf : this.mapedFiles) {
-            mf.destroy(1000 * 3);
+        synchronized (this.mapedFilesLock) {
+            for (MapedFile mf : this.mapedFiles) {
+                mf.destroy(1000 * 3);
+            }
+            this.mapedFiles = new MapedFile[0];
+            this.committedWhere = 0;
+            this.channelWhere = 0;
         }
-        this.mapedFiles.clear();
-        this.committedWhere = 0;
-        this.readWriteLock.writeLock().unlock();
+    }
+
+
+    public ReclaimMapedFileService getReclaimMapedFileService() {
+        return reclaimMapedFileService;
+    }
+
+
+    public void setReclaimMapedFileService(ReclaimMapedFileService reclaimMapedFileService) {
+        this.reclaimMapedFileService = reclaimMapedFileService;
     }
 
 
@@ -561,17 +778,35 @@ public class MapedFileQueue {
     }
 
 
+    public long getChannelWhere() {
+        return channelWhere;
+    }
+
+
+    public void setChannelWhere(long channelWhere) {
+        this.channelWhere = channelWhere;
+    }
+
+
     public long getStoreTimestamp() {
         return storeTimestamp;
     }
 
 
+    /**
+     * 当前文件列表的只读快照
+     */
     public List<MapedFile> getMapedFiles() {
-        return mapedFiles;
+        return Collections.unmodifiableList(Arrays.asList(this.mapedFiles));
     }
 
 
     public int getMapedFileSize() {
         return mapedFileSize;
     }
+
+
+    public String[] getStorePaths() {
+        return storePaths;
+    }
 }
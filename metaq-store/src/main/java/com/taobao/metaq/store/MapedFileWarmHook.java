@@ -0,0 +1,26 @@
+/**
+ * $Id: MapedFileWarmHook.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.nio.MappedByteBuffer;
+
+
+/**
+ * 预热MapedFile时的扩展接口，用来调用madvise、mlock等本地方法<br>
+ * 实现类通过MetaStoreConfig.mapedFileWarmHookClass配置，必须有无参构造函数
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public interface MapedFileWarmHook {
+    /**
+     * 文件映射完成、逐页预热之前调用，例如madvise(MADV_WILLNEED)
+     */
+    public void beforeWarm(final MappedByteBuffer mappedByteBuffer, final int fileSize);
+
+
+    /**
+     * 逐页预热完成后调用，例如mlock锁定物理内存
+     */
+    public void afterWarm(final MappedByteBuffer mappedByteBuffer, final int fileSize);
+}
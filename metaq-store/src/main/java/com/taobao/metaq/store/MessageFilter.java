@@ -3,6 +3,7 @@
  */
 package com.taobao.metaq.store;
 
+import java.nio.ByteBuffer;
 import java.util.Set;
 
 /**
@@ -12,4 +13,14 @@ import java.util.Set;
  */
 public interface MessageFilter {
     public boolean isMessageMatched(final Set<Integer> types, int type);
+
+
+    /**
+     * 按照消息类型名称精确匹配，用来排除hashCode冲突的类型，直接比较消息中的类型字节
+     *
+     * @param typeLenPos
+     *            消息中类型长度字段的位置，消息格式不正确时为-1
+     */
+    public boolean isMessageTypeMatched(final Set<String> typeNames, final ByteBuffer byteBuffer,
+            final int typeLenPos);
 }
@@ -0,0 +1,245 @@
+/**
+ * $Id: MetaIndexFile.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * 消息Key哈希索引文件，槽位数固定，哈希冲突的索引通过链表串联<br>
+ * 文件格式=Header(40Byte)+哈希槽(4Byte*槽位数)+索引(20Byte*索引条数)<br>
+ * 索引单元=KeyHash(4Byte)+PhyOffset(8Byte)+TimeDiff(4Byte，相对文件起始时间的秒数)+PrevIndex(4Byte)
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class MetaIndexFile {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // Header大小
+    public static final int HeaderSize = 40;
+    // 哈希槽大小
+    public static final int HashSlotSize = 4;
+    // 索引单元大小
+    public static final int IndexUnitSize = 20;
+    // Header各字段位置
+    private static final int BeginTimestampPostion = 0;
+    private static final int EndTimestampPostion = 8;
+    private static final int BeginPhyOffsetPostion = 16;
+    private static final int EndPhyOffsetPostion = 24;
+    private static final int HashSlotNumPostion = 32;
+    private static final int IndexCountPostion = 36;
+
+    private final MapedFile mapedFile;
+    private final MappedByteBuffer mappedByteBuffer;
+    private final int hashSlotNum;
+    private final int indexNum;
+    // 第一条索引的存储时间
+    private volatile long beginTimestamp = 0;
+    // 最后一条索引的存储时间
+    private volatile long endTimestamp = 0;
+    // 第一条索引的物理Offset
+    private volatile long beginPhyOffset = 0;
+    // 最后一条索引的物理Offset
+    private volatile long endPhyOffset = 0;
+    // 已经写入的索引条数，索引编号从1开始，0表示哈希槽为空
+    private volatile int indexCount = 0;
+
+
+    public MetaIndexFile(final String fileName, final int hashSlotNum, final int indexNum) throws IOException {
+        this.hashSlotNum = hashSlotNum;
+        this.indexNum = indexNum;
+        int fileSize = HeaderSize + hashSlotNum * HashSlotSize + indexNum * IndexUnitSize;
+        this.mapedFile = new MapedFile(fileName, fileSize);
+        this.mappedByteBuffer = this.mapedFile.getMappedByteBuffer();
+    }
+
+
+    /**
+     * 加载已有文件的Header，槽位数与配置不一致时以文件为准会导致越界，所以直接返回失败
+     */
+    public boolean load() {
+        int slotNum = this.mappedByteBuffer.getInt(HashSlotNumPostion);
+        int count = this.mappedByteBuffer.getInt(IndexCountPostion);
+        if (count > 0 && slotNum != this.hashSlotNum) {
+            log.error("load index file " + this.mapedFile.getFileName() + " failed, hash slot num " + slotNum
+                    + " not equal " + this.hashSlotNum);
+            return false;
+        }
+
+        this.beginTimestamp = this.mappedByteBuffer.getLong(BeginTimestampPostion);
+        this.endTimestamp = this.mappedByteBuffer.getLong(EndTimestampPostion);
+        this.beginPhyOffset = this.mappedByteBuffer.getLong(BeginPhyOffsetPostion);
+        this.endPhyOffset = this.mappedByteBuffer.getLong(EndPhyOffsetPostion);
+        this.indexCount = Math.min(Math.max(count, 0), this.indexNum);
+        return true;
+    }
+
+
+    public boolean isFull() {
+        return this.indexCount >= this.indexNum;
+    }
+
+
+    /**
+     * 写入一条索引，只有分发消息线程调用，所以不需要加锁<br>
+     * 先写索引单元，再更新哈希槽，最后更新条数，查询线程只访问条数以内的索引
+     */
+    public boolean putKey(final int keyHash, final long phyOffset, final long storeTimestamp) {
+        if (this.isFull()) {
+            return false;
+        }
+
+        int index = this.indexCount + 1;
+        if (1 == index) {
+            this.beginTimestamp = storeTimestamp;
+            this.beginPhyOffset = phyOffset;
+            this.mappedByteBuffer.putLong(BeginTimestampPostion, storeTimestamp);
+            this.mappedByteBuffer.putLong(BeginPhyOffsetPostion, phyOffset);
+            this.mappedByteBuffer.putInt(HashSlotNumPostion, this.hashSlotNum);
+        }
+
+        int slotPos = this.slotPosition(keyHash);
+        int prevIndex = this.mappedByteBuffer.getInt(slotPos);
+        if (prevIndex < 0 || prevIndex >= index) {
+            prevIndex = 0;
+        }
+
+        long timeDiff = (storeTimestamp - this.beginTimestamp) / 1000;
+        timeDiff = Math.min(Math.max(timeDiff, 0), Integer.MAX_VALUE);
+
+        int unitPos = this.unitPosition(index);
+        this.mappedByteBuffer.putInt(unitPos, keyHash);
+        this.mappedByteBuffer.putLong(unitPos + 4, phyOffset);
+        this.mappedByteBuffer.putInt(unitPos + 12, (int) timeDiff);
+        this.mappedByteBuffer.putInt(unitPos + 16, prevIndex);
+
+        this.mappedByteBuffer.putInt(slotPos, index);
+
+        this.endTimestamp = Math.max(this.endTimestamp, storeTimestamp);
+        this.endPhyOffset = phyOffset;
+        this.mappedByteBuffer.putLong(EndTimestampPostion, this.endTimestamp);
+        this.mappedByteBuffer.putLong(EndPhyOffsetPostion, phyOffset);
+        this.mappedByteBuffer.putInt(IndexCountPostion, index);
+        this.indexCount = index;
+        return true;
+    }
+
+
+    /**
+     * 沿哈希链查找KeyHash相同且存储时间在[begin, end]之间的物理Offset，从新到旧排列<br>
+     * 不同Key可能哈希相同，调用方需要读出消息再次比较
+     */
+    public void selectPhyOffset(final List<Long> phyOffsets, final int keyHash, final int maxNum,
+            final long begin, final long end) {
+        if (!this.mapedFile.hold()) {
+            return;
+        }
+
+        try {
+            final int count = this.indexCount;
+            int index = this.mappedByteBuffer.getInt(this.slotPosition(keyHash));
+            // 链表只会指向更早写入的索引，最多遍历count次，防止脏数据形成环
+            for (int i = 0; i < count && index > 0 && index <= count && phyOffsets.size() < maxNum; i++) {
+                int unitPos = this.unitPosition(index);
+                int hash = this.mappedByteBuffer.getInt(unitPos);
+                long phyOffset = this.mappedByteBuffer.getLong(unitPos + 4);
+                long timestamp = this.beginTimestamp + this.mappedByteBuffer.getInt(unitPos + 12) * 1000L;
+                int prevIndex = this.mappedByteBuffer.getInt(unitPos + 16);
+
+                // 时间索引精度为秒，结束时间放宽到秒
+                if (hash == keyHash && timestamp >= (begin - begin % 1000) && timestamp <= end) {
+                    phyOffsets.add(phyOffset);
+                }
+
+                // 链表越往后时间越早
+                if (timestamp < (begin - begin % 1000) || prevIndex >= index) {
+                    break;
+                }
+
+                index = prevIndex;
+            }
+        }
+        finally {
+            this.mapedFile.release();
+        }
+    }
+
+
+    /**
+     * 文件中的索引是否可能落在[begin, end]时间区间
+     */
+    public boolean isTimeMatched(final long begin, final long end) {
+        if (this.indexCount <= 0) {
+            return false;
+        }
+
+        return this.beginTimestamp <= end && (this.endTimestamp + 1000) >= begin;
+    }
+
+
+    private int slotPosition(final int keyHash) {
+        int slot = (keyHash & Integer.MAX_VALUE) % this.hashSlotNum;
+        return HeaderSize + slot * HashSlotSize;
+    }
+
+
+    private int unitPosition(final int index) {
+        return HeaderSize + this.hashSlotNum * HashSlotSize + (index - 1) * IndexUnitSize;
+    }
+
+
+    public void flush() {
+        if (this.mapedFile.hold()) {
+            try {
+                this.mappedByteBuffer.force();
+            }
+            finally {
+                this.mapedFile.release();
+            }
+        }
+    }
+
+
+    public boolean destroy(final long intervalForcibly) {
+        return this.mapedFile.destroy(intervalForcibly);
+    }
+
+
+    public String getFileName() {
+        return this.mapedFile.getFileName();
+    }
+
+
+    public long getFileFromOffset() {
+        return this.mapedFile.getFileFromOffset();
+    }
+
+
+    public long getBeginTimestamp() {
+        return beginTimestamp;
+    }
+
+
+    public long getEndTimestamp() {
+        return endTimestamp;
+    }
+
+
+    public long getBeginPhyOffset() {
+        return beginPhyOffset;
+    }
+
+
+    public long getEndPhyOffset() {
+        return endPhyOffset;
+    }
+
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * $Id: MetaIndexService.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.taobao.metaq.commons.MetaUtil;
+
+
+/**
+ * 消息Key哈希索引服务，由分发消息线程写入，按照topic+key查询物理Offset<br>
+ * 索引文件写满后切换新文件，文件中的索引全部指向已删除的物理文件时删除
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class MetaIndexService {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 存储顶层对象
+    private final DefaultMetaStore defaultMetaStore;
+    // 索引文件存储目录
+    private final String storePath;
+    // 每个文件的哈希槽位数
+    private final int hashSlotNum;
+    // 每个文件的索引条数
+    private final int indexNum;
+    // 索引文件集合，按照创建顺序排列
+    private final ArrayList<MetaIndexFile> indexFileList = new ArrayList<MetaIndexFile>();
+    // 读写锁（针对indexFileList）
+    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    // 小于此物理Offset的消息已经建立过索引，异常恢复重新分发消息时跳过
+    private volatile long maxIndexedPhyOffset = 0;
+
+
+    public MetaIndexService(final DefaultMetaStore defaultMetaStore) {
+        this.defaultMetaStore = defaultMetaStore;
+        this.storePath = defaultMetaStore.getMetaStoreConfig().getStorePathIndex();
+        this.hashSlotNum = defaultMetaStore.getMetaStoreConfig().getMaxHashSlotNum();
+        this.indexNum = defaultMetaStore.getMetaStoreConfig().getMaxIndexNum();
+    }
+
+
+    public boolean load() {
+        File dir = new File(this.storePath);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // ascending order
+            Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    MetaIndexFile f = new MetaIndexFile(file.getPath(), this.hashSlotNum, this.indexNum);
+                    if (!f.load()) {
+                        return false;
+                    }
+
+                    if (f.getIndexCount() > 0) {
+                        this.maxIndexedPhyOffset = Math.max(this.maxIndexedPhyOffset, f.getEndPhyOffset() + 1);
+                    }
+                    this.indexFileList.add(f);
+                    log.info("load index file " + file.getPath() + " OK, index count " + f.getIndexCount());
+                }
+                catch (IOException e) {
+                    log.error("load index file " + file.getPath() + " error", e);
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * 物理队列恢复完成后调用，截断的物理队列数据会被重新写入，所以要重新为其建立索引<br>
+     * 已经写入文件的脏索引无法从哈希链中摘除，查询时读出消息比较Key后过滤掉
+     */
+    public void truncateDirty(final long maxPhyOffset) {
+        if (this.maxIndexedPhyOffset > maxPhyOffset) {
+            log.info("truncate message index, max indexed phy offset " + this.maxIndexedPhyOffset + " to "
+                    + maxPhyOffset);
+            this.maxIndexedPhyOffset = maxPhyOffset;
+        }
+    }
+
+
+    /**
+     * 建立一条索引，只有分发消息线程调用
+     */
+    public void buildIndex(final String topic, final String key, final long phyOffset, final long storeTimestamp) {
+        if (null == key || key.length() == 0 || phyOffset < this.maxIndexedPhyOffset) {
+            return;
+        }
+
+        MetaIndexFile indexFile = this.getAndCreateLastIndexFile();
+        if (null == indexFile) {
+            log.error("build index error, create index file failed, " + topic + " " + key + " " + phyOffset);
+            return;
+        }
+
+        // 截断后重新写入的消息，物理Offset不能与文件中已有索引重叠，否则删除过期文件时判断错误
+        if (indexFile.isFull() || (indexFile.getIndexCount() > 0 && phyOffset <= indexFile.getEndPhyOffset())) {
+            // 切换前把写完的文件刷盘，定时刷盘只处理最后一个文件
+            indexFile.flush();
+            indexFile = this.createIndexFile();
+            if (null == indexFile) {
+                log.error("build index error, roll index file failed, " + topic + " " + key + " " + phyOffset);
+                return;
+            }
+        }
+
+        if (indexFile.putKey(buildKeyHash(topic, key), phyOffset, storeTimestamp)) {
+            this.maxIndexedPhyOffset = phyOffset + 1;
+        }
+    }
+
+
+    /**
+     * 查询topic+key对应的物理Offset，从新到旧排列，最多返回maxNum条
+     */
+    public List<Long> queryPhyOffset(final String topic, final String key, final int maxNum, final long begin,
+            final long end) {
+        List<Long> phyOffsets = new ArrayList<Long>(Math.min(maxNum, 64));
+        final int keyHash = buildKeyHash(topic, key);
+
+        this.readWriteLock.readLock().lock();
+        try {
+            for (int i = this.indexFileList.size() - 1; i >= 0 && phyOffsets.size() < maxNum; i--) {
+                MetaIndexFile f = this.indexFileList.get(i);
+                if (f.isTimeMatched(begin, end)) {
+                    f.selectPhyOffset(phyOffsets, keyHash, maxNum, begin, end);
+                }
+            }
+        }
+        finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        return phyOffsets;
+    }
+
+
+    public static int buildKeyHash(final String topic, final String key) {
+        // 等同于(topic + "#" + key).hashCode()，但不创建拼接后的字符串
+        int h = topic.hashCode();
+        h = 31 * h + '#';
+        for (int i = 0; i < key.length(); i++) {
+            h = 31 * h + key.charAt(i);
+        }
+
+        return h;
+    }
+
+
+    private MetaIndexFile getAndCreateLastIndexFile() {
+        this.readWriteLock.readLock().lock();
+        try {
+            if (!this.indexFileList.isEmpty()) {
+                return this.indexFileList.get(this.indexFileList.size() - 1);
+            }
+        }
+        finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        return this.createIndexFile();
+    }
+
+
+    /**
+     * 创建新的索引文件，文件名为创建时间，保证文件名递增
+     */
+    private MetaIndexFile createIndexFile() {
+        long fileName = System.currentTimeMillis();
+        this.readWriteLock.readLock().lock();
+        try {
+            if (!this.indexFileList.isEmpty()) {
+                MetaIndexFile last = this.indexFileList.get(this.indexFileList.size() - 1);
+                fileName = Math.max(fileName, last.getFileFromOffset() + 1);
+            }
+        }
+        finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        String path = this.storePath + File.separator + MetaUtil.Offset2FileName(fileName);
+        try {
+            MetaIndexFile indexFile = new MetaIndexFile(path, this.hashSlotNum, this.indexNum);
+            this.readWriteLock.writeLock().lock();
+            try {
+                this.indexFileList.add(indexFile);
+            }
+            finally {
+                this.readWriteLock.writeLock().unlock();
+            }
+
+            log.info("create index file " + path + " OK");
+            return indexFile;
+        }
+        catch (IOException e) {
+            log.error("create index file " + path + " error", e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 删除索引全部指向已删除物理文件的索引文件，最后一个文件正在写入，不删除
+     */
+    public int deleteExpiredFile(final long minPhyOffset) {
+        List<MetaIndexFile> files = new ArrayList<MetaIndexFile>();
+        this.readWriteLock.readLock().lock();
+        try {
+            for (int i = 0; i < this.indexFileList.size() - 1; i++) {
+                MetaIndexFile f = this.indexFileList.get(i);
+                if (f.getEndPhyOffset() < minPhyOffset) {
+                    files.add(f);
+                }
+                else {
+                    break;
+                }
+            }
+        }
+        finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        int deleteCount = 0;
+        int destroyMapedFileIntervalForcibly =
+                this.defaultMetaStore.getMetaStoreConfig().getDestroyMapedFileIntervalForcibly();
+        for (MetaIndexFile f : files) {
+            if (!f.destroy(destroyMapedFileIntervalForcibly)) {
+                break;
+            }
+
+            this.readWriteLock.writeLock().lock();
+            try {
+                this.indexFileList.remove(f);
+            }
+            finally {
+                this.readWriteLock.writeLock().unlock();
+            }
+            deleteCount++;
+        }
+
+        return deleteCount;
+    }
+
+
+    public void flush() {
+        MetaIndexFile last = null;
+        this.readWriteLock.readLock().lock();
+        try {
+            if (!this.indexFileList.isEmpty()) {
+                last = this.indexFileList.get(this.indexFileList.size() - 1);
+            }
+        }
+        finally {
+            this.readWriteLock.readLock().unlock();
+        }
+
+        if (last != null) {
+            last.flush();
+        }
+    }
+
+
+    public void destroy() {
+        this.readWriteLock.writeLock().lock();
+        try {
+            for (MetaIndexFile f : this.indexFileList) {
+                f.destroy(1000 * 3);
+            }
+            this.indexFileList.clear();
+            this.maxIndexedPhyOffset = 0;
+        }
+        finally {
+            this.readWriteLock.writeLock().unlock();
+        }
+    }
+
+
+    public long getMaxIndexedPhyOffset() {
+        return maxIndexedPhyOffset;
+    }
+}
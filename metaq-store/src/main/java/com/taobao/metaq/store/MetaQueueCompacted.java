@@ -0,0 +1,802 @@
+/**
+ * $Id: MetaQueueCompacted.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.taobao.metaq.commons.MetaMessageDecoder;
+import com.taobao.metaq.commons.MetaUtil;
+
+
+/**
+ * 逻辑队列的压缩段，按照消息Key只保留每个Key最新的消息，删除消息（Body为空）在保留时间内保留<br>
+ * 压缩数据由多个段文件组成，文件名为段的起始逻辑Offset，最后一个段的结束Offset即compactedOffset，消息保留原始的逻辑Offset<br>
+ * 每次压缩只读取新数据写成新段，被新数据覆盖的旧消息在原文件中标记删除，不重写旧段；尾部的小段与新数据合并，删除过半的段单独重写<br>
+ * 文件格式=MagicCode(4) + BeginOffset(8) + EndOffset(8) + MessageCount(4) + N * (LogicOffset(8) + KeyHash(8) + Flag(4) + 消息原始数据)<br>
+ * 标记删除的消息LogicOffset取反存储
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class MetaQueueCompacted {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 文件头对应的MAGIC CODE
+    public final static int MagicCode = 0xCCDDEEAA ^ 1880681586 + 17;
+    // 文件头大小
+    public final static int HeaderSize = 4 + 8 + 8 + 4;
+    // 每条消息前的存储单元头大小
+    public final static int EntryHeaderSize = 8 + 8 + 4;
+    // 存储单元标志位，消息有Key
+    private final static int FlagKey = 1;
+    // 存储单元标志位，删除消息
+    private final static int FlagTombstone = 1 << 1;
+    // 一次压缩最多处理的逻辑队列存储单元个数，也是本次新数据Key表的上限
+    private final static int MaxCompactUnitsOnce = 1024 * 256;
+    // 一次压缩最多处理的消息字节数
+    private final static int MaxCompactBytesOnce = 1024 * 1024 * 64;
+    // 尾部段的有效数据小于这个值时，与新数据合并成一个段
+    private final static int TailMergeSize = 1024 * 1024 * 16;
+    // Key索引中消息序号占用的低位，每个段的消息个数不能超过2^24
+    private final static int KeyIndexBits = 24;
+    private final static long KeyIndexMask = ~((1L << KeyIndexBits) - 1);
+    // 压缩过程中的临时文件后缀
+    private final static String TmpSuffix = ".tmp";
+
+    /**
+     * 压缩段，读取前需要hold，替换或者删除后等待引用释放再关闭文件
+     */
+    public static class Segment extends ReferenceResource {
+        private final File file;
+        private final FileChannel fileChannel;
+        private final long beginOffset;
+        private final long endOffset;
+        private final long[] logicOffsets;
+        // 消息数据的位置，不包含存储单元头
+        private final long[] positions;
+        private final int[] sizes;
+        // Key哈希的高40位与消息序号组成，排序后按照哈希二分查找，每条有Key的消息占8字节
+        private final long[] keyIndex;
+        // 删除消息的序号与存储时间，用于过期清理
+        private final int[] tombstones;
+        private final long[] tombstoneTimestamps;
+        // 标记删除的位图，只有压缩线程写入
+        private final AtomicLongArray removedBits;
+        private volatile int liveCount;
+        // 第一条没有删除的消息序号
+        private volatile int firstLive;
+
+
+        private Segment(final File file, final FileChannel fileChannel, final long beginOffset,
+                final long endOffset, final long[] logicOffsets, final long[] positions, final int[] sizes,
+                final long[] keyIndex, final int[] tombstones, final long[] tombstoneTimestamps,
+                final AtomicLongArray removedBits) {
+            this.file = file;
+            this.fileChannel = fileChannel;
+            this.beginOffset = beginOffset;
+            this.endOffset = endOffset;
+            this.logicOffsets = logicOffsets;
+            this.positions = positions;
+            this.sizes = sizes;
+            this.keyIndex = keyIndex;
+            this.tombstones = tombstones;
+            this.tombstoneTimestamps = tombstoneTimestamps;
+            this.removedBits = removedBits;
+
+            int live = 0;
+            for (int i = 0; i < logicOffsets.length; i++) {
+                if (!this.isRemoved(i)) {
+                    live++;
+                }
+            }
+            this.liveCount = live;
+            this.firstLive = this.nextLive(0);
+        }
+
+
+        /**
+         * 第一条逻辑Offset不小于offset的消息序号，没有时返回size()
+         */
+        public int find(final long offset) {
+            int low = 0;
+            int high = this.logicOffsets.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (this.logicOffsets[mid] < offset) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+
+        public boolean isRemoved(final int index) {
+            return (this.removedBits.get(index >>> 6) & (1L << index)) != 0;
+        }
+
+
+        private int nextLive(final int from) {
+            int i = from;
+            while (i < this.logicOffsets.length && this.isRemoved(i)) {
+                i++;
+            }
+            return i;
+        }
+
+
+        /**
+         * 读取第index条消息，返回结果不占用MapedFile，读取失败返回null
+         */
+        public SelectMapedBufferResult getMessage(final int index) {
+            try {
+                ByteBuffer byteBuffer = readFully(this.fileChannel, this.positions[index], this.sizes[index]);
+                byteBuffer.flip();
+                return new SelectMapedBufferResult(this.positions[index], byteBuffer, this.sizes[index], null);
+            }
+            catch (IOException e) {
+                log.warn("read compacted message failed, position " + this.positions[index], e);
+            }
+
+            return null;
+        }
+
+
+        /**
+         * 查找Key哈希相同的消息序号，可能包含哈希冲突的其他Key
+         */
+        private List<Integer> findByKeyHash(final long keyHash) {
+            final long prefix = keyHash & KeyIndexMask;
+            int low = 0;
+            int high = this.keyIndex.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (this.keyIndex[mid] < prefix) {
+                    low = mid + 1;
+                }
+                else {
+                    high = mid;
+                }
+            }
+
+            List<Integer> result = new ArrayList<Integer>(1);
+            for (int i = low; i < this.keyIndex.length && (this.keyIndex[i] & KeyIndexMask) == prefix; i++) {
+                result.add((int) (this.keyIndex[i] & ~KeyIndexMask));
+            }
+            return result;
+        }
+
+
+        /**
+         * 在内存与文件中标记删除，只有压缩线程调用
+         */
+        private void markRemoved(final int index) throws IOException {
+            if (this.isRemoved(index)) {
+                return;
+            }
+
+            ByteBuffer byteBuffer = ByteBuffer.allocate(8);
+            byteBuffer.putLong(~this.logicOffsets[index]);
+            byteBuffer.flip();
+            final long position = this.positions[index] - EntryHeaderSize;
+            while (byteBuffer.hasRemaining()) {
+                this.fileChannel.write(byteBuffer, position + byteBuffer.position());
+            }
+
+            long value = this.removedBits.get(index >>> 6);
+            while (!this.removedBits.compareAndSet(index >>> 6, value, value | (1L << index))) {
+                value = this.removedBits.get(index >>> 6);
+            }
+            this.liveCount--;
+            if (index == this.firstLive) {
+                this.firstLive = this.nextLive(index);
+            }
+        }
+
+
+        private long getLiveBytes() {
+            long bytes = 0;
+            for (int i = 0; i < this.sizes.length; i++) {
+                if (!this.isRemoved(i)) {
+                    bytes += EntryHeaderSize + this.sizes[i];
+                }
+            }
+            return bytes;
+        }
+
+
+        public int size() {
+            return this.logicOffsets.length;
+        }
+
+
+        public long getLogicOffset(final int index) {
+            return this.logicOffsets[index];
+        }
+
+
+        public int getSize(final int index) {
+            return this.sizes[index];
+        }
+
+
+        public long getBeginOffset() {
+            return beginOffset;
+        }
+
+
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+
+        public int getLiveCount() {
+            return liveCount;
+        }
+
+
+        /**
+         * 段中最小的有效逻辑Offset，没有有效消息时返回-1
+         */
+        public long getMinOffset() {
+            final int index = this.firstLive;
+            return index < this.logicOffsets.length ? this.logicOffsets[index] : -1;
+        }
+
+
+        @Override
+        public boolean cleanup(final long currentRef) {
+            try {
+                this.fileChannel.close();
+                log.info("close compacted segment " + this.file + " OK");
+            }
+            catch (IOException e) {
+                log.warn("close compacted file error", e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * 压缩时的候选消息
+     */
+    private static class Candidate {
+        // 逻辑Offset
+        private long logicOffset;
+        // 消息Key，没有Key时为null
+        private String key;
+        private long keyHash;
+        // 是否是删除消息
+        private boolean tombstone;
+        // 存储时间
+        private long storeTimestamp;
+        // 数据来源，旧的压缩段中的序号，或者物理Offset
+        private Segment segment;
+        private long source;
+        private int size;
+    }
+
+    // 存储顶层对象
+    private final DefaultMetaStore defaultMetaStore;
+    // Topic
+    private final String topic;
+    // queueId
+    private final int queueId;
+    // 存储目录
+    private final File storeDir;
+    // 各个段，按照Offset排序，数组发布后不再修改，替换段时复制出新数组
+    private volatile Segment[] segments = new Segment[0];
+
+
+    public MetaQueueCompacted(DefaultMetaStore defaultMetaStore, String topic, int queueId) {
+        this.defaultMetaStore = defaultMetaStore;
+        this.topic = topic;
+        this.queueId = queueId;
+        this.storeDir = new File(defaultMetaStore.getMetaStoreConfig().getStorePathCompacted()//
+                + File.separator + topic//
+                + File.separator + queueId);//
+    }
+
+
+    public boolean load() {
+        File[] files = this.storeDir.listFiles();
+        if (null == files) {
+            return true;
+        }
+
+        Arrays.sort(files);
+        List<Segment> loaded = new ArrayList<Segment>();
+        try {
+            for (File file : files) {
+                if (file.getName().endsWith(TmpSuffix)) {
+                    file.delete();
+                    continue;
+                }
+
+                Segment segment = openSegment(file);
+                loaded.add(segment);
+                log.info("load compacted segment " + file + " OK, " + segment.getLiveCount() + "/"
+                        + segment.size() + " messages, [" + segment.getBeginOffset() + ", "
+                        + segment.getEndOffset() + ")");
+            }
+            this.segments = loaded.toArray(new Segment[loaded.size()]);
+            return true;
+        }
+        catch (IOException e) {
+            log.error("load compacted segment " + this.topic + "-" + this.queueId + " failed", e);
+            for (Segment segment : loaded) {
+                segment.shutdown(0);
+            }
+        }
+
+        return false;
+    }
+
+
+    private static Segment openSegment(final File file) throws IOException {
+        FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer header = readFully(fileChannel, 0, HeaderSize);
+            header.flip();
+            int magicCode = header.getInt();
+            if (magicCode != MagicCode) {
+                throw new IOException("illegal compacted file " + file + ", magic code 0x"
+                        + Integer.toHexString(magicCode));
+            }
+            long beginOffset = header.getLong();
+            long endOffset = header.getLong();
+            int count = header.getInt();
+            if (count < 0 || count >= (1 << KeyIndexBits)) {
+                throw new IOException("illegal compacted file " + file + ", message count " + count);
+            }
+
+            long[] logicOffsets = new long[count];
+            long[] positions = new long[count];
+            int[] sizes = new int[count];
+            long[] keyIndex = new long[count];
+            int keyCount = 0;
+            List<Integer> tombstones = new ArrayList<Integer>();
+            List<Long> tombstoneTimestamps = new ArrayList<Long>();
+            AtomicLongArray removedBits = new AtomicLongArray((count + 63) >>> 6);
+            long position = HeaderSize;
+            for (int i = 0; i < count; i++) {
+                // 存储单元头 + 消息TOTALSIZE
+                ByteBuffer unit = readFully(fileChannel, position, EntryHeaderSize + 4);
+                unit.flip();
+                long logicOffset = unit.getLong();
+                long keyHash = unit.getLong();
+                int flag = unit.getInt();
+                sizes[i] = unit.getInt();
+                positions[i] = position + EntryHeaderSize;
+                position = positions[i] + sizes[i];
+
+                if (logicOffset < 0) {
+                    logicOffset = ~logicOffset;
+                    removedBits.set(i >>> 6, removedBits.get(i >>> 6) | (1L << i));
+                }
+                logicOffsets[i] = logicOffset;
+                if ((flag & FlagKey) != 0) {
+                    keyIndex[keyCount++] = (keyHash & KeyIndexMask) | i;
+                }
+                if ((flag & FlagTombstone) != 0) {
+                    ByteBuffer timestamp =
+                            readFully(fileChannel, positions[i] + MetaMessageDecoder.MessageStoreTimestampPostion, 8);
+                    timestamp.flip();
+                    tombstones.add(i);
+                    tombstoneTimestamps.add(timestamp.getLong());
+                }
+            }
+
+            keyIndex = Arrays.copyOf(keyIndex, keyCount);
+            Arrays.sort(keyIndex);
+            int[] tombstoneArray = new int[tombstones.size()];
+            long[] tombstoneTimestampArray = new long[tombstones.size()];
+            for (int i = 0; i < tombstoneArray.length; i++) {
+                tombstoneArray[i] = tombstones.get(i);
+                tombstoneTimestampArray[i] = tombstoneTimestamps.get(i);
+            }
+
+            return new Segment(file, fileChannel, beginOffset, endOffset, logicOffsets, positions, sizes, keyIndex,
+                tombstoneArray, tombstoneTimestampArray, removedBits);
+        }
+        catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+
+    private static ByteBuffer readFully(final FileChannel fileChannel, final long position, final int size)
+            throws IOException {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(size);
+        while (byteBuffer.hasRemaining()) {
+            if (fileChannel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+                throw new IOException("read compacted file at " + position + " failed, unexpected end");
+            }
+        }
+        return byteBuffer;
+    }
+
+
+    /**
+     * 压缩逻辑队列中物理Offset小于maxPhyOffset的新数据，写成新段，并标记删除旧段中被覆盖的消息
+     *
+     * @return 新压缩的逻辑队列存储单元个数，没有新数据返回0
+     */
+    public long compact(final MetaQueueLogistic logic, final long maxPhyOffset, final long tombstoneRetentionTime)
+            throws IOException {
+        final Segment[] oldSegments = this.segments;
+        final Segment tail = oldSegments.length > 0 ? oldSegments[oldSegments.length - 1] : null;
+        final long beginOffset = Math.max(tail != null ? tail.getEndOffset() : 0, logic.getMinOffsetInQuque());
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        // 新数据中每个Key最新的消息，个数不超过MaxCompactUnitsOnce
+        final HashMap<String, Candidate> latestTable = new HashMap<String, Candidate>();
+
+        // 逻辑队列中新的已封存数据
+        long endOffset = beginOffset;
+        long candidateBytes = 0;
+        final long maxOffset = Math.min(logic.getMaxOffsetInQuque(), beginOffset + MaxCompactUnitsOnce);
+        boolean reachEnd = false;
+        while (endOffset < maxOffset && !reachEnd) {
+            SelectMapedBufferResult bufferLogic = logic.getIndexBuffer(endOffset);
+            if (null == bufferLogic) {
+                break;
+            }
+
+            try {
+                for (int i = 0; i < bufferLogic.getSize() && endOffset < maxOffset; i +=
+                        MetaQueueLogistic.StoreUnitSize) {
+                    long offsetPy = bufferLogic.getByteBuffer().getLong();
+                    int sizePy = bufferLogic.getByteBuffer().getInt();
+                    bufferLogic.getByteBuffer().getInt();
+                    if (offsetPy + sizePy > maxPhyOffset || candidateBytes >= MaxCompactBytesOnce) {
+                        reachEnd = true;
+                        break;
+                    }
+
+                    SelectMapedBufferResult result =
+                            this.defaultMetaStore.getMetaQueuePhysical().getMessage(offsetPy, sizePy);
+                    if (result != null) {
+                        try {
+                            Candidate candidate = parseCandidate(result.getByteBuffer());
+                            candidate.logicOffset = endOffset;
+                            candidate.source = offsetPy;
+                            candidate.size = sizePy;
+                            candidates.add(candidate);
+                            candidateBytes += sizePy;
+                            if (candidate.key != null) {
+                                latestTable.put(candidate.key, candidate);
+                            }
+                        }
+                        finally {
+                            result.release();
+                        }
+                    }
+                    endOffset++;
+                }
+            }
+            finally {
+                bufferLogic.release();
+            }
+        }
+
+        if (endOffset == beginOffset) {
+            return 0;
+        }
+
+        // 旧段中被新数据覆盖的消息以及过期的删除消息
+        final long now = System.currentTimeMillis();
+        final List<Set<Integer>> removedTable = new ArrayList<Set<Integer>>(oldSegments.length);
+        for (Segment segment : oldSegments) {
+            Set<Integer> removed = new HashSet<Integer>();
+            for (Candidate candidate : latestTable.values()) {
+                for (Integer index : segment.findByKeyHash(candidate.keyHash)) {
+                    if (!segment.isRemoved(index) && candidate.key.equals(readKey(segment, index))) {
+                        removed.add(index);
+                    }
+                }
+            }
+            for (int i = 0; i < segment.tombstones.length; i++) {
+                if (now >= segment.tombstoneTimestamps[i] + tombstoneRetentionTime) {
+                    removed.add(segment.tombstones[i]);
+                }
+            }
+            removedTable.add(removed);
+        }
+
+        // 尾部的小段与新数据合并
+        final List<Candidate> retained = new ArrayList<Candidate>();
+        final boolean mergeTail = tail != null && tail.getLiveBytes() < TailMergeSize;
+        if (mergeTail) {
+            retained.addAll(liveCandidates(tail, removedTable.get(oldSegments.length - 1)));
+        }
+        for (Candidate candidate : candidates) {
+            // 没有Key的消息无法压缩，全部保留
+            if (null == candidate.key) {
+                retained.add(candidate);
+            }
+            else if (latestTable.get(candidate.key) == candidate) {
+                if (!candidate.tombstone || now < candidate.storeTimestamp + tombstoneRetentionTime) {
+                    retained.add(candidate);
+                }
+            }
+        }
+
+        final Segment newSegment =
+                this.writeSegment(mergeTail ? tail.getBeginOffset() : beginOffset, endOffset, retained);
+
+        // 新段落盘后再标记旧段，中途宕机最多保留重复的旧消息
+        final List<Segment> newSegments = new ArrayList<Segment>();
+        final List<Segment> retiredSegments = new ArrayList<Segment>();
+        final List<Segment> deletedSegments = new ArrayList<Segment>();
+        for (int s = 0; s < oldSegments.length; s++) {
+            final Segment segment = oldSegments[s];
+            if (mergeTail && segment == tail) {
+                retiredSegments.add(segment);
+                continue;
+            }
+
+            if (!removedTable.get(s).isEmpty()) {
+                for (Integer index : removedTable.get(s)) {
+                    segment.markRemoved(index);
+                }
+                segment.fileChannel.force(false);
+            }
+
+            if (0 == segment.getLiveCount()) {
+                deletedSegments.add(segment);
+            }
+            else {
+                newSegments.add(segment);
+            }
+        }
+
+        // 每次最多重写一个删除过半的段
+        for (int s = 0; s < newSegments.size(); s++) {
+            final Segment segment = newSegments.get(s);
+            if (segment.getLiveCount() * 2 < segment.size()) {
+                newSegments.set(s, this.writeSegment(segment.getBeginOffset(), segment.getEndOffset(),
+                    liveCandidates(segment, null)));
+                retiredSegments.add(segment);
+                break;
+            }
+        }
+        newSegments.add(newSegment);
+
+        this.segments = newSegments.toArray(new Segment[newSegments.size()]);
+        for (Segment segment : retiredSegments) {
+            segment.shutdown(1000 * 60);
+        }
+        for (Segment segment : deletedSegments) {
+            segment.shutdown(1000 * 60);
+            boolean result = segment.file.delete();
+            log.info("delete compacted segment " + segment.file + (result ? " OK" : " Failed"));
+        }
+
+        log.info("compact " + this.topic + "-" + this.queueId + " OK, [" + beginOffset + ", " + endOffset
+                + "), " + candidates.size() + " -> " + (newSegment.size()) + " messages in segment "
+                + newSegment.file.getName() + ", " + this.segments.length + " segments");
+        return endOffset - beginOffset;
+    }
+
+
+    private static List<Candidate> liveCandidates(final Segment segment, final Set<Integer> removed) {
+        List<Candidate> result = new ArrayList<Candidate>(segment.getLiveCount());
+        for (int i = 0; i < segment.size(); i++) {
+            if (!segment.isRemoved(i) && (null == removed || !removed.contains(i))) {
+                Candidate candidate = new Candidate();
+                candidate.logicOffset = segment.getLogicOffset(i);
+                candidate.segment = segment;
+                candidate.source = i;
+                candidate.size = segment.getSize(i);
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+
+    private static String readKey(final Segment segment, final int index) throws IOException {
+        SelectMapedBufferResult result = segment.getMessage(index);
+        if (null == result) {
+            throw new IOException("read compacted segment " + segment.file + " failed");
+        }
+        return parseCandidate(result.getByteBuffer()).key;
+    }
+
+
+    /**
+     * 写入临时文件后改名，与已有的段同名时替换，旧段的文件在引用释放前仍然可读
+     */
+    private Segment writeSegment(final long beginOffset, final long endOffset, final List<Candidate> retained)
+            throws IOException {
+        if (!this.storeDir.exists() && !this.storeDir.mkdirs()) {
+            throw new IOException("create compacted dir " + this.storeDir + " failed");
+        }
+
+        final File file = new File(this.storeDir, MetaUtil.Offset2FileName(beginOffset));
+        final File tmpFile = new File(this.storeDir, file.getName() + TmpSuffix);
+        final FileOutputStream fileOutputStream = new FileOutputStream(tmpFile);
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 1024 * 64));
+        try {
+            out.writeInt(MagicCode);
+            out.writeLong(beginOffset);
+            out.writeLong(endOffset);
+            out.writeInt(retained.size());
+            for (Candidate candidate : retained) {
+                // 旧段中的消息连同存储单元头一起复制
+                if (candidate.segment != null) {
+                    final int index = (int) candidate.source;
+                    ByteBuffer byteBuffer =
+                            readFully(candidate.segment.fileChannel, candidate.segment.positions[index]
+                                    - EntryHeaderSize, EntryHeaderSize + candidate.size);
+                    out.write(byteBuffer.array());
+                    continue;
+                }
+
+                SelectMapedBufferResult result =
+                        this.defaultMetaStore.getMetaQueuePhysical().getMessage(candidate.source, candidate.size);
+                if (null == result) {
+                    throw new IOException("read message " + candidate.logicOffset + " failed");
+                }
+
+                try {
+                    ByteBuffer byteBuffer = result.getByteBuffer();
+                    byte[] data = new byte[result.getSize()];
+                    byteBuffer.get(data);
+                    out.writeLong(candidate.logicOffset);
+                    out.writeLong(candidate.keyHash);
+                    out.writeInt((candidate.key != null ? FlagKey : 0) | (candidate.tombstone ? FlagTombstone : 0));
+                    out.write(data);
+                }
+                finally {
+                    result.release();
+                }
+            }
+            out.flush();
+            fileOutputStream.getFD().sync();
+        }
+        catch (IOException e) {
+            out.close();
+            tmpFile.delete();
+            throw e;
+        }
+        out.close();
+
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("rename " + tmpFile + " to " + file + " failed");
+        }
+
+        return openSegment(file);
+    }
+
+
+    /**
+     * 64位FNV-1a哈希，直接计算消息属性的字节
+     */
+    private static long keyHash(final ByteBuffer byteBuffer, final int pos, final int len) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < len; i++) {
+            hash ^= byteBuffer.get(pos + i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+
+    /**
+     * 解析消息Key（消息属性）、是否是删除消息以及存储时间
+     */
+    private static Candidate parseCandidate(final ByteBuffer byteBuffer) throws IOException {
+        try {
+            final int base = byteBuffer.position();
+            Candidate candidate = new Candidate();
+            candidate.storeTimestamp = byteBuffer.getLong(base + MetaMessageDecoder.MessageStoreTimestampPostion);
+
+            int pos = base + MetaQueuePhysical.MessageTopicLengthPostion;
+            pos += 1 + byteBuffer.get(pos);
+            pos += 1 + byteBuffer.get(pos);
+            int attributeLen = byteBuffer.getShort(pos);
+            pos += 2;
+            if (attributeLen > 0) {
+                byte[] attribute = new byte[attributeLen];
+                for (int i = 0; i < attributeLen; i++) {
+                    attribute[i] = byteBuffer.get(pos + i);
+                }
+                candidate.key = new String(attribute);
+                candidate.keyHash = keyHash(byteBuffer, pos, attributeLen);
+                pos += attributeLen;
+            }
+            candidate.tombstone = byteBuffer.getInt(pos) <= 0;
+            return candidate;
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IOException("illegal message format, " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * 压缩到的逻辑Offset，没有压缩过时为0
+     */
+    public long getCompactedOffset() {
+        final Segment[] segs = this.segments;
+        return segs.length > 0 ? segs[segs.length - 1].getEndOffset() : 0;
+    }
+
+
+    /**
+     * 压缩段中最小的有效逻辑Offset，没有有效消息时返回-1
+     */
+    public long getMinOffset() {
+        for (Segment segment : this.segments) {
+            long offset = segment.getMinOffset();
+            if (offset >= 0) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * 找到包含offset的段并hold住，调用方读取完成后release，没有时返回null
+     */
+    public Segment holdSegment(final long offset) {
+        // 段被替换时重新查找
+        for (int retry = 0; retry < 3; retry++) {
+            Segment found = null;
+            for (Segment segment : this.segments) {
+                if (segment.getEndOffset() > offset) {
+                    found = segment;
+                    break;
+                }
+            }
+
+            if (null == found) {
+                return null;
+            }
+            if (found.hold()) {
+                return found;
+            }
+        }
+
+        return null;
+    }
+
+
+    public void destroy() {
+        Segment[] segs = this.segments;
+        this.segments = new Segment[0];
+        for (Segment segment : segs) {
+            segment.shutdown(0);
+            segment.file.delete();
+        }
+
+        File[] files = this.storeDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.storeDir.delete();
+    }
+}
@@ -36,6 +36,14 @@ public class MetaQueueLogistic {
     private volatile long minLogicOffset = 0;
     // 写索引时用到的ByteBuffer
     private final ByteBuffer byteBufferIndex;
+    // 按时间查询Offset用到的稀疏时间索引
+    private final MetaQueueTimeIndex timeIndex;
+    // 消息类型位图，未开启时为null
+    private final MetaQueueTagBits tagBits;
+    // 按照消息Key压缩后的压缩段
+    private final MetaQueueCompacted compacted;
+    // 读写统计
+    private final MetaQueueStats queueStats;
 
 
     public MetaQueueLogistic(DefaultMetaStore defaultMetaStore, String topic, int queueId) {
@@ -52,12 +60,23 @@ public class MetaQueueLogistic {
                     defaultMetaStore.getAllocateMapedFileService());
 
         this.byteBufferIndex = ByteBuffer.allocate(StoreUnitSize);
+        this.timeIndex = new MetaQueueTimeIndex(defaultMetaStore, topic, queueId);
+        this.tagBits =
+                defaultMetaStore.getMetaStoreConfig().isTagBitsEnable() ? new MetaQueueTagBits(defaultMetaStore,
+                    topic, queueId) : null;
+        this.compacted = new MetaQueueCompacted(defaultMetaStore, topic, queueId);
+        this.queueStats = new MetaQueueStats(topic, queueId);
     }
 
 
     public boolean load() {
         boolean result = this.mapedFileQueue.load();
         log.info("load logics queue " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        result = result && this.timeIndex.load();
+        if (this.tagBits != null) {
+            result = result && this.tagBits.load();
+        }
+        result = result && this.compacted.load();
         return result;
     }
 
@@ -120,6 +139,66 @@ public class MetaQueueLogistic {
             processOffset += mapedFileOffset;
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
         }
+
+        // 物理队列恢复时也会写时间索引，所以要一起恢复
+        this.timeIndex.recover();
+    }
+
+
+    /**
+     * 正常关闭后，根据快照直接恢复，只校验快照位置前后两个存储单元，不扫描文件<br>
+     * 校验失败返回false，调用方再按照正常流程恢复
+     */
+    public boolean recoverBySnapshot(final long nextOffset, final long snapshotMaxPhysicOffset) {
+        final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+        final long processOffset = nextOffset * StoreUnitSize;
+        if (mapedFiles.isEmpty()) {
+            if (processOffset != 0) {
+                return false;
+            }
+        }
+        else {
+            int mapedFileSizeLogics = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizeLogics();
+            long minOffset = mapedFiles.get(0).getFileFromOffset();
+            long maxOffset = mapedFiles.get(mapedFiles.size() - 1).getFileFromOffset() + mapedFileSizeLogics;
+            if (processOffset < minOffset || processOffset > maxOffset) {
+                return false;
+            }
+
+            // 最后一个存储单元必须与快照一致
+            if (processOffset > minOffset) {
+                MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(processOffset - StoreUnitSize);
+                if (null == mapedFile) {
+                    return false;
+                }
+                ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+                int pos = (int) ((processOffset - StoreUnitSize) % mapedFileSizeLogics);
+                if (byteBuffer.getLong(pos) != snapshotMaxPhysicOffset || byteBuffer.getInt(pos + 8) <= 0) {
+                    return false;
+                }
+            }
+
+            // 之后的存储单元必须为空
+            if (processOffset < maxOffset) {
+                MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(processOffset);
+                if (null == mapedFile) {
+                    return false;
+                }
+                ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+                int pos = (int) (processOffset % mapedFileSizeLogics);
+                if (byteBuffer.getLong(pos) >= 0 && byteBuffer.getInt(pos + 8) > 0) {
+                    return false;
+                }
+            }
+
+            if (processOffset > minOffset) {
+                this.maxPhysicOffset = snapshotMaxPhysicOffset;
+            }
+            this.mapedFileQueue.truncateDirtyFiles(processOffset);
+        }
+
+        this.timeIndex.recover();
+        return true;
     }
 
 
@@ -134,89 +213,122 @@ public class MetaQueueLogistic {
 
 
     /**
-     * 二分查找查找消息发送时间最接近timestamp逻辑队列的offset
+     * 可以读取的最小Offset，有压缩段时从压缩段开始
+     */
+    public long getReadableMinOffset() {
+        final long compactedOffset = this.compacted.getCompactedOffset();
+        if (compactedOffset > 0) {
+            final long minOffset = this.compacted.getMinOffset();
+            return minOffset >= 0 ? minOffset : Math.max(compactedOffset, this.getMinOffsetInQuque());
+        }
+
+        return this.getMinOffsetInQuque();
+    }
+
+
+    /**
+     * 校正时间索引，删除逻辑队列中已经不存在的索引，并补齐缺少的索引<br>
+     * 必须在逻辑队列、物理队列都恢复完成后调用
+     */
+    public void recoverTimeIndex() {
+        this.timeIndex.truncateDirty(this.getMaxOffsetInQuque());
+        // 类型位图同样以逻辑队列为准，缺少的部分不补齐，按照可能匹配处理
+        if (this.tagBits != null) {
+            this.tagBits.truncateDirty(this.getMaxOffsetInQuque());
+        }
+
+        // 补齐索引，只能按照消息条数间隔，每条索引需要读取一次物理队列
+        int interval = Math.max(this.defaultMetaStore.getMetaStoreConfig().getTimeIndexIntervalMessages(), 1);
+        long lastIndexed = this.timeIndex.getLastLogicOffset();
+        long offset = lastIndexed < 0 ? this.getMinOffsetInQuque() : lastIndexed + interval;
+        long maxOffset = this.getMaxOffsetInQuque();
+        int rebuildCount = 0;
+        for (; offset < maxOffset; offset += interval) {
+            long storeTimestamp = this.pickupStoretimestamp(offset);
+            if (storeTimestamp > 0 && this.timeIndex.putIndex(offset, storeTimestamp)) {
+                rebuildCount++;
+            }
+        }
+
+        if (rebuildCount > 0) {
+            log.info("rebuild time index " + this.topic + "-" + this.queueId + ", count: " + rebuildCount);
+        }
+    }
+
+
+    /**
+     * 根据逻辑队列Offset获取消息的存储时间，如果出错，返回-1
+     */
+    private long pickupStoretimestamp(final long logicOffset) {
+        SelectMapedBufferResult sbr = this.getIndexBuffer(logicOffset);
+        if (sbr != null) {
+            long phyOffset;
+            int size;
+            try {
+                phyOffset = sbr.getByteBuffer().getLong();
+                size = sbr.getByteBuffer().getInt();
+            }
+            finally {
+                sbr.release();
+            }
+
+            return this.defaultMetaStore.getMetaQueuePhysical().pickupStoretimestamp(phyOffset, size);
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * 查找消息存储时间最接近timestamp的逻辑队列offset<br>
+     * 先通过时间索引缩小范围，再在两条相邻索引之间二分查找
      */
     public long getOffsetInQueueByTime(final long timestamp) {
-        MapedFile mapedFile = this.mapedFileQueue.getMapedFileByTime(timestamp);
-        if (mapedFile != null) {
-            long offset = 0;
-            // low:第一个索引信息的起始位置
-            // minLogicOffset有设置值则从
-            // minLogicOffset-mapedFile.getFileFromOffset()位置开始才是有效值
-            int low = minLogicOffset>mapedFile.getFileFromOffset() ? 
-            		(int)(minLogicOffset-mapedFile.getFileFromOffset()) : 0 ;
-            		
-            // high:最后一个索引信息的起始位置
-            int high = 0;
-            int midOffset = -1, targetOffset = -1, leftOffset = -1, rightOffset = -1;
-            long leftIndexValue = -1L, rightIndexValue = -1L;
-
-            // 取出该mapedFile里面所有的映射空间(没有映射的空间并不会返回,不会返回文件空洞)
-            SelectMapedBufferResult sbr = mapedFile.selectMapedBuffer(0);
-            if (null != sbr) {
-                ByteBuffer byteBuffer = sbr.getByteBuffer();
-                high = byteBuffer.limit() - StoreUnitSize;
-                try {
-                    while (high >= low) {
-                        midOffset = (low + high) / (2 * StoreUnitSize) * StoreUnitSize;
-                        byteBuffer.position(midOffset);
-                        long phyOffset = byteBuffer.getLong();
-                        int size = byteBuffer.getInt();
-
-                        // 比较时间, 折半
-                        long storeTime =
-                                this.defaultMetaStore.getMetaQueuePhysical().pickupStoretimestamp(phyOffset, size);
-                        if (storeTime < 0) {
-                            // 没有从物理文件找到消息，此时直接返回0
-                            return 0;
-                        }
-                        else if (storeTime == timestamp) {
-                            targetOffset = midOffset;
-                            break;
-                        }
-                        else if (storeTime > timestamp) {
-                            high = midOffset - StoreUnitSize;
-                            rightOffset = midOffset;
-                            rightIndexValue = storeTime;
-                        }
-                        else {
-                            low = midOffset + StoreUnitSize;
-                            leftOffset = midOffset;
-                            leftIndexValue = storeTime;
-                        }
-                    }
+        long minOffset = this.getMinOffsetInQuque();
+        long maxOffset = this.getMaxOffsetInQuque() - 1;
+        if (maxOffset < minOffset) {
+            return 0;
+        }
 
-                    if (targetOffset != -1) {
-                        // 查询的时间正好是消息索引记录写入的时间
-                        offset = targetOffset;
-                    }
-                    else {
-                        if (leftIndexValue == -1) {
-                            // timestamp 时间小于该MapedFile中第一条记录记录的时间
-                            offset = rightOffset;
-                        }
-                        else if (rightIndexValue == -1) {
-                            // timestamp 时间大于该MapedFile中最后一条记录记录的时间
-                            offset = leftOffset;
-                        }
-                        else {
-                            // 取最接近timestamp的offset
-                            offset =
-                                    Math.abs(timestamp - leftIndexValue) > Math.abs(timestamp - rightIndexValue) ? rightOffset
-                                            : leftOffset;
-                        }
-                    }
+        long low = minOffset;
+        long high = maxOffset;
+        long[] range = this.timeIndex.lookup(timestamp);
+        if (range[0] > low) {
+            low = Math.min(range[0], high);
+        }
+        if (range[1] >= 0 && range[1] < high) {
+            high = Math.max(range[1], low);
+        }
 
-                    return (mapedFile.getFileFromOffset() + offset) / StoreUnitSize;
-                }
-                finally {
-                    sbr.release();
-                }
+        // 查找第一条存储时间不小于timestamp的消息
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long storeTime = this.pickupStoretimestamp(mid);
+            if (storeTime < 0) {
+                // 没有从物理文件找到消息，此时直接返回0
+                return 0;
+            }
+            else if (storeTime < timestamp) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
             }
         }
 
-        // 映射文件被标记为不可用时返回0
-        return 0;
+        // 取最接近timestamp的offset
+        long rightIndexValue = this.pickupStoretimestamp(low);
+        if (rightIndexValue < 0) {
+            return 0;
+        }
+        if (low > minOffset && rightIndexValue > timestamp) {
+            long leftIndexValue = this.pickupStoretimestamp(low - 1);
+            if (leftIndexValue >= 0 && Math.abs(timestamp - leftIndexValue) < Math.abs(timestamp - rightIndexValue)) {
+                return low - 1;
+            }
+        }
+
+        return low;
     }
 
 
@@ -329,7 +441,27 @@ public class MetaQueueLogistic {
 
 
     public boolean commit(final int flushLeastPages) {
-        return this.mapedFileQueue.commit(flushLeastPages);
+        boolean result = this.mapedFileQueue.commit(flushLeastPages);
+        if (this.tagBits != null) {
+            result = this.tagBits.commit(flushLeastPages) && result;
+        }
+        return this.timeIndex.commit(flushLeastPages) && result;
+    }
+
+
+    /**
+     * 逻辑队列刷盘刷到哪里
+     */
+    public long getFlushedWhere() {
+        return this.mapedFileQueue.getCommittedWhere();
+    }
+
+
+    /**
+     * 逻辑队列还没有刷盘的字节数
+     */
+    public long getDirtyBytes() {
+        return this.mapedFileQueue.howMuchFallBehind();
     }
 
 
@@ -338,6 +470,10 @@ public class MetaQueueLogistic {
         // 无论是否删除文件，都需要纠正下最小值，因为有可能物理文件删除了，
         // 但是逻辑文件一个也删除不了
         this.correctMinOffset(offset);
+        this.timeIndex.deleteExpiredFile(this.getMinOffsetInQuque());
+        if (this.tagBits != null) {
+            this.tagBits.deleteExpiredFile(this.getMinOffsetInQuque());
+        }
         return cnt;
     }
 
@@ -385,9 +521,12 @@ public class MetaQueueLogistic {
      *            消息在物理分区存储的大小
      * @param msgType
      *            消息类型
+     * @param storeTimestamp
+     *            消息存储时间，用来写时间索引
      * @return 是否成功
      */
-    public boolean putIndex(final long offset, final int size, final int msgType, final long logicOffset) {
+    public boolean putIndex(final long offset, final int size, final int msgType, final long storeTimestamp,
+            final long logicOffset) {
         // 在数据恢复时会走到这个流程
         if (offset <= this.maxPhysicOffset) {
             return true;
@@ -401,6 +540,11 @@ public class MetaQueueLogistic {
 
         final long realLogicOffset = logicOffset * StoreUnitSize;
 
+        // 类型位图先于存储单元写入，读到存储单元时对应的位图一定已经写入
+        if (this.tagBits != null && !this.tagBits.putBits(logicOffset, msgType)) {
+            log.warn("put tag bits failed, " + this.topic + "-" + this.queueId + " " + logicOffset);
+        }
+
         MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile(realLogicOffset);
         if (mapedFile != null) {
             // 纠正MapedFile逻辑队列索引顺序
@@ -418,7 +562,16 @@ public class MetaQueueLogistic {
 
             // 记录物理队列最大offset
             this.maxPhysicOffset = offset;
-            return mapedFile.appendMessage(this.byteBufferIndex.array());
+            boolean result = mapedFile.appendMessage(this.byteBufferIndex.array());
+
+            // 时间索引写失败不影响逻辑队列，只会让按时间查询的范围变大
+            if (result && this.timeIndex.isIndexNeeded(logicOffset, storeTimestamp)) {
+                if (!this.timeIndex.putIndex(logicOffset, storeTimestamp)) {
+                    log.warn("put time index failed, " + this.topic + "-" + this.queueId + " " + logicOffset);
+                }
+            }
+
+            return result;
         }
 
         return false;
@@ -457,6 +610,33 @@ public class MetaQueueLogistic {
     }
 
 
+    /**
+     * 修改已写入的存储单元中的消息类型，定时消息队列用来记录投递状态
+     * 
+     * @return 存储单元不存在时返回false
+     */
+    public boolean updateUnitType(final long index, final int type) {
+        int mapedFileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizeLogics();
+        long offset = index * StoreUnitSize;
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        if (mapedFile != null) {
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (offset % mapedFileSize), StoreUnitSize);
+            if (result != null) {
+                try {
+                    result.getByteBuffer().putInt(8 + 4, type);
+                    return true;
+                }
+                finally {
+                    result.release();
+                }
+            }
+        }
+
+        return false;
+    }
+
+
     public long rollNextFile(final long index) {
         int mapedFileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizeLogics();
         int totalUnitsInFile = mapedFileSize / StoreUnitSize;
@@ -474,11 +654,26 @@ public class MetaQueueLogistic {
     }
 
 
+    public MetaQueueTagBits getTagBits() {
+        return tagBits;
+    }
+
+
+    public MetaQueueCompacted getCompacted() {
+        return compacted;
+    }
+
+
     public long getMaxPhysicOffset() {
         return maxPhysicOffset;
     }
 
 
+    public MetaQueueStats getQueueStats() {
+        return queueStats;
+    }
+
+
     public void setMaxPhysicOffset(long maxPhysicOffset) {
         this.maxPhysicOffset = maxPhysicOffset;
     }
@@ -488,6 +683,11 @@ public class MetaQueueLogistic {
         this.maxPhysicOffset = -1;
         this.minLogicOffset = 0;
         this.mapedFileQueue.destroy();
+        this.timeIndex.destroy();
+        if (this.tagBits != null) {
+            this.tagBits.destroy();
+        }
+        this.compacted.destroy();
     }
 
 
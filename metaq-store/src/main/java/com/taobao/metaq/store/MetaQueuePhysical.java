@@ -3,12 +3,17 @@
  */
 package com.taobao.metaq.store;
 
+import java.net.SocketAddress;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
@@ -30,19 +35,29 @@ import com.taobao.metaq.store.DefaultMetaStore.DispatchMessageService.DispatchRe
 public class MetaQueuePhysical {
     private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
     // 用来保存每个逻辑队列的当前最大Offset信息
-    private HashMap<String/* topic-queueid */, Long/* offset */> topicQueueTable = new HashMap<String, Long>(1024);
+    private TopicQueueOffsetTable topicQueueTable = new TopicQueueOffsetTable();
     // 存储消息的队列
     private final MapedFileQueue mapedFileQueue;
     // 存储顶层对象
     private final DefaultMetaStore defaultMetaStore;
     // 物理队列刷盘服务
     private final FlushPhysicalQueueService flushPhysicalQueueService;
+    // 写缓冲池模式下，提交数据到FileChannel的服务，未开启写缓冲池时为null
+    private final CommitRealTimeService commitRealTimeService;
+    // 异步刷盘时的自适应刷盘控制
+    private final AdaptiveFlushController flushController;
     // 每个消息对应的MAGIC CODE daa320a7
     private final static int MessageMagicCode = 0xAABBCCDD ^ 1880681586 + 8;
     // 文件末尾空洞对应的MAGIC CODE cbd43194
     private final static int BlankMagicCode = 0xBBCCDDEE ^ 1880681586 + 8;
+    // 无锁写失败时，填充预留空间的跳过记录对应的MAGIC CODE
+    private final static int SkipMagicCode = 0xCCDDEEFF ^ 1880681586 + 8;
+    // 消息中Topic长度的位置，之后依次为Topic、类型长度、类型
+    final static int MessageTopicLengthPostion = 80;
     // 存储消息时的回调接口
     private final AppendMessageCallback appendMessageCallback;
+    // 是否采用无锁方式写物理队列，启动后不允许修改
+    private final boolean lockFreeAppendEnable;
 
     abstract class FlushPhysicalQueueService extends ServiceThread {
     }
@@ -66,15 +81,22 @@ public class MetaQueuePhysical {
             MetaQueuePhysical.log.info(this.getServiceName() + " service started");
 
             while (!this.isStoped()) {
-                int interval =
-                        MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig().getFlushIntervalPhysic();
-                int flushPhysicQueueLeastPages =
-                        MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig()
-                            .getFlushPhysicQueueLeastPages();
-
-                int flushPhysicQueueThoroughInterval =
-                        MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig()
-                            .getFlushPhysicQueueThoroughInterval();
+                final MetaStoreConfig metaStoreConfig = MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig();
+                final MapedFileQueue mapedFileQueue = MetaQueuePhysical.this.mapedFileQueue;
+                int interval = metaStoreConfig.getFlushIntervalPhysic();
+                int flushPhysicQueueLeastPages = metaStoreConfig.getFlushPhysicQueueLeastPages();
+
+                int flushPhysicQueueThoroughInterval = metaStoreConfig.getFlushPhysicQueueThoroughInterval();
+
+                // 自适应刷盘，根据写入速度与实测刷盘速度计算等待时间与最少页数
+                final boolean adaptiveFlush = metaStoreConfig.isAdaptiveFlushEnable();
+                if (adaptiveFlush) {
+                    long flushedWhere = mapedFileQueue.getCommittedWhere();
+                    MetaQueuePhysical.this.flushController.update(flushedWhere + mapedFileQueue.howMuchFallBehind(),
+                        flushedWhere, metaStoreConfig.getAdaptiveFlushDirtyBytesPhysic());
+                    interval = MetaQueuePhysical.this.flushController.getWaitInterval();
+                    flushPhysicQueueLeastPages = MetaQueuePhysical.this.flushController.getFlushLeastPages();
+                }
 
                 boolean printFlushProgress = false;
 
@@ -93,8 +115,14 @@ public class MetaQueuePhysical {
                         this.printFlushProgress();
                     }
 
-                    MetaQueuePhysical.this.mapedFileQueue.commit(flushPhysicQueueLeastPages);
-                    long storeTimestamp = MetaQueuePhysical.this.mapedFileQueue.getStoreTimestamp();
+                    long flushedWhere = mapedFileQueue.getCommittedWhere();
+                    long beginTime = System.currentTimeMillis();
+                    MetaQueuePhysical.this.commitAndRecordLatency(flushPhysicQueueLeastPages);
+                    if (adaptiveFlush) {
+                        MetaQueuePhysical.this.flushController.onFlushed(mapedFileQueue.getCommittedWhere()
+                                - flushedWhere, System.currentTimeMillis() - beginTime);
+                    }
+                    long storeTimestamp = mapedFileQueue.getStoreTimestamp();
                     if (storeTimestamp > 0) {
                         MetaQueuePhysical.this.defaultMetaStore.getStoreCheckpoint().setPhysicMsgTimestamp(
                             storeTimestamp);
@@ -133,6 +161,69 @@ public class MetaQueuePhysical {
         }
     }
 
+    /**
+     * 写缓冲池模式下，定时将写缓冲区中的数据批量写入FileChannel，写入后唤醒刷盘线程
+     */
+    class CommitRealTimeService extends ServiceThread {
+        private static final int RetryTimesOver = 10;
+        private long lastCommitTimestamp = 0;
+
+
+        public void run() {
+            MetaQueuePhysical.log.info(this.getServiceName() + " service started");
+
+            while (!this.isStoped()) {
+                int interval =
+                        MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig().getCommitIntervalPhysic();
+                int commitPhysicQueueLeastPages =
+                        MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig()
+                            .getCommitPhysicQueueLeastPages();
+
+                int commitPhysicQueueThoroughInterval =
+                        MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig()
+                            .getCommitPhysicQueueThoroughInterval();
+
+                // 定时彻底提交
+                long currentTimeMillis = System.currentTimeMillis();
+                if (currentTimeMillis >= (this.lastCommitTimestamp + commitPhysicQueueThoroughInterval)) {
+                    this.lastCommitTimestamp = currentTimeMillis;
+                    commitPhysicQueueLeastPages = 0;
+                }
+
+                try {
+                    boolean result =
+                            MetaQueuePhysical.this.mapedFileQueue.commitToChannel(commitPhysicQueueLeastPages);
+                    // 有新数据写入FileChannel，唤醒刷盘线程
+                    if (!result) {
+                        this.lastCommitTimestamp = currentTimeMillis;
+                        MetaQueuePhysical.this.flushPhysicalQueueService.wakeup();
+                    }
+
+                    this.waitForRunning(interval);
+                }
+                catch (Exception e) {
+                    MetaQueuePhysical.log.warn(this.getServiceName() + " service has exception. ", e);
+                }
+            }
+
+            // 正常shutdown时，要保证全部提交才退出
+            boolean result = false;
+            for (int i = 0; i < RetryTimesOver && !result; i++) {
+                result = MetaQueuePhysical.this.mapedFileQueue.commitToChannel(0);
+                MetaQueuePhysical.log.info(this.getServiceName() + " service shutdown, retry " + (i + 1)
+                        + " times " + (result ? "OK" : "Not OK"));
+            }
+
+            MetaQueuePhysical.log.info(this.getServiceName() + " service end");
+        }
+
+
+        @Override
+        public String getServiceName() {
+            return CommitRealTimeService.class.getSimpleName();
+        }
+    }
+
     class GroupCommitRequest {
         // 当前消息对应的下一个Offset
         private final long nextOffset;
@@ -140,10 +231,20 @@ public class MetaQueuePhysical {
         private final CountDownLatch countDownLatch = new CountDownLatch(1);
         // 刷盘是否成功
         private volatile boolean flushOK = false;
+        // 异步写消息的写入结果与回调，同步等待时为null
+        private final PutMessageResult putMessageResult;
+        private final PutMessageCallback callback;
 
 
         public GroupCommitRequest(long nextOffset) {
+            this(nextOffset, null, null);
+        }
+
+
+        public GroupCommitRequest(long nextOffset, PutMessageResult putMessageResult, PutMessageCallback callback) {
             this.nextOffset = nextOffset;
+            this.putMessageResult = putMessageResult;
+            this.callback = callback;
         }
 
 
@@ -155,6 +256,9 @@ public class MetaQueuePhysical {
         public void wakeupCustomer(final boolean flushOK) {
             this.flushOK = flushOK;
             this.countDownLatch.countDown();
+            if (this.callback != null) {
+                MetaQueuePhysical.invokeCallback(this.callback, this.putMessageResult, flushOK);
+            }
         }
 
 
@@ -176,6 +280,8 @@ public class MetaQueuePhysical {
     class GroupCommitService extends FlushPhysicalQueueService {
         private volatile List<GroupCommitRequest> requestsWrite = new ArrayList<GroupCommitRequest>();
         private volatile List<GroupCommitRequest> requestsRead = new ArrayList<GroupCommitRequest>();
+        // 服务退出前已经处理完最后一批请求，之后的请求不再入队
+        private boolean drained = false;
 
 
         private void swapRequests() {
@@ -187,12 +293,21 @@ public class MetaQueuePhysical {
 
         public void putRequest(final GroupCommitRequest request) {
             synchronized (this) {
-                this.requestsWrite.add(request);
-                if (!this.hasNotified) {
-                    this.hasNotified = true;
-                    this.notify();
+                if (!this.drained) {
+                    this.requestsWrite.add(request);
+                    if (!this.hasNotified) {
+                        this.hasNotified = true;
+                        this.notify();
+                    }
+                    return;
                 }
             }
+
+            // 服务已经停止，没有线程再唤醒该请求，立即按照当前刷盘位置返回
+            MetaQueuePhysical.log.warn(this.getServiceName() + " service has stopped, request next offset "
+                    + request.getNextOffset());
+            request.wakeupCustomer(MetaQueuePhysical.this.mapedFileQueue.getCommittedWhere() >= request
+                .getNextOffset());
         }
 
 
@@ -202,10 +317,11 @@ public class MetaQueuePhysical {
                     // 消息有可能在下一个文件，所以最多刷盘2次
                     for (int i = 0; (i < 2)
                             && (MetaQueuePhysical.this.mapedFileQueue.getCommittedWhere() < req.getNextOffset()); i++) {
-                        MetaQueuePhysical.this.mapedFileQueue.commit(0);
+                        MetaQueuePhysical.this.commitAndRecordLatency(0);
                     }
 
-                    req.wakeupCustomer(true);
+                    req.wakeupCustomer(MetaQueuePhysical.this.mapedFileQueue.getCommittedWhere() >= req
+                        .getNextOffset());
                 }
 
                 long storeTimestamp = MetaQueuePhysical.this.mapedFileQueue.getStoreTimestamp();
@@ -242,6 +358,7 @@ public class MetaQueuePhysical {
 
             synchronized (this) {
                 this.swapRequests();
+                this.drained = true;
             }
 
             this.doCommit();
@@ -270,19 +387,25 @@ public class MetaQueuePhysical {
     }
 
     class DefaultAppendMessageCallback implements AppendMessageCallback {
-        // 存储消息ID
-        private final ByteBuffer msgIdMemory;
         // 存储消息内容
         private final ByteBuffer msgStoreItemMemory;
         // 消息的最大长度
         private final int maxMessageSize;
+        // topic、type编码后的字节缓存，无锁写时会被并发访问
+        private final ConcurrentHashMap<String, byte[]> encodedStringTable =
+                new ConcurrentHashMap<String, byte[]>(256);
+        // 最近一次编码的存储主机地址
+        private volatile EncodedHost lastStoreHost;
+        // 最近一次编码的发送主机地址
+        private volatile EncodedHost lastBornHost;
 
         // 文件末尾空洞最小定长
         private static final int END_FILE_MIN_BLANK_LENGTH = 4 + 4;
+        // 字节缓存最多保存多少个字符串，超过后不再缓存
+        private static final int MAX_ENCODED_STRING_CACHED = 4096;
 
 
         DefaultAppendMessageCallback(final int size) {
-            this.msgIdMemory = ByteBuffer.allocate(MetaMessageDecoder.MSG_ID_LENGTH);
             this.msgStoreItemMemory = ByteBuffer.allocate(size + END_FILE_MIN_BLANK_LENGTH);
             this.maxMessageSize = size;
         }
@@ -299,40 +422,75 @@ public class MetaQueuePhysical {
         }
 
 
-        public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
-                final int maxBlank, final Object msg) {
-            /**
-             * 生成消息ID STORETIMESTAMP + STOREHOSTADDRESS + OFFSET <br>
-             */
-            MetaMessageWrapper wrapper = (MetaMessageWrapper) msg;
-            // PHY OFFSET
-            long wroteOffset = fileFromOffset + byteBuffer.position();
-            String msgId =
-                    MetaMessageDecoder.createMessageId(this.msgIdMemory, (int) (wrapper.getMetaMessageAnnotation()
-                        .getStoreTimestamp() / 1000), wrapper.getMetaMessageAnnotation().getStoreHostBytes(),
-                        wroteOffset);
+        /**
+         * 获取topic、type编码后的字节，同一字符串只编码一次
+         */
+        private byte[] encodeString(final String value) {
+            byte[] bytes = this.encodedStringTable.get(value);
+            if (null == bytes) {
+                bytes = value.getBytes();
+                if (this.encodedStringTable.size() < MAX_ENCODED_STRING_CACHED) {
+                    this.encodedStringTable.put(value, bytes);
+                }
+            }
 
-            /**
-             * 记录逻辑队列信息
-             */
-            String key =
-                    wrapper.getMetaMessage().getTopic() + "-" + wrapper.getMetaMessageAnnotation().getQueueId();
-            Long queueOffset = MetaQueuePhysical.this.topicQueueTable.get(key);
-            if (null == queueOffset) {
-                queueOffset = 0L;
-                MetaQueuePhysical.this.topicQueueTable.put(key, queueOffset);
+            return bytes;
+        }
+
+
+        /**
+         * 写入属性字符串，全部是ASCII字符时逐个写入，避免创建字节数组
+         */
+        private void putAttribute(final ByteBuffer target, final String attribute) {
+            final int length = attribute.length();
+            for (int i = 0; i < length; i++) {
+                if (attribute.charAt(i) >= 0x80) {
+                    target.put(attribute.getBytes());
+                    return;
+                }
             }
 
-            /**
-             * 序列化消息
-             */
+            for (int i = 0; i < length; i++) {
+                target.put((byte) attribute.charAt(i));
+            }
+        }
+
+
+        /**
+         * 获取主机地址的8字节形式，连续消息通常来自同一个地址对象，命中时不产生对象
+         */
+        private byte[] encodeHost(final SocketAddress host, final boolean storeHost) {
+            EncodedHost encoded = storeHost ? this.lastStoreHost : this.lastBornHost;
+            if (null == encoded || encoded.host != host) {
+                encoded = new EncodedHost(host, MetaMessageAnnotation.SocketAddress2ByteBuffer(host).array());
+                if (storeHost) {
+                    this.lastStoreHost = encoded;
+                }
+                else {
+                    this.lastBornHost = encoded;
+                }
+            }
+
+            return encoded.bytes;
+        }
+
+
+        public byte[] getStoreHostBytes(final MetaMessageWrapper wrapper) {
+            return this.encodeHost(wrapper.getMetaMessageAnnotation().getStoreHost(), true);
+        }
+
+
+        /**
+         * 计算消息序列化后的长度
+         */
+        public int calMsgLength(final MetaMessageWrapper wrapper) {
             int attributeLength =
                     wrapper.getMetaMessage().getAttribute() == null ? 0 : wrapper.getMetaMessage().getAttribute()
                         .length();
             int bodyLength =
                     wrapper.getMetaMessage().getBody() == null ? 0 : wrapper.getMetaMessage().getBody().length;
 
-            int msgLen = 4 // 1 TOTALSIZE
+            return 4 // 1 TOTALSIZE
                     + 4 // 2 MAGICCODE
                     + 4 // 3 BODYCRC
                     + 4 // 4 QUEUEID
@@ -344,12 +502,92 @@ public class MetaQueuePhysical {
                     + 8 // 10 BORNHOST
                     + 8 // 11 STORETIMESTAMP
                     + 8 // 12 STOREHOSTADDRESS
-                    + 8 // 13 REQUESTID（暂不使用，为同步双写准备）
+                    + 8 // 13 REQUESTID（定时消息使用，也为同步双写准备）
                     + 1 + wrapper.getMetaMessage().getTopic().length() // 14TOPIC
                     + 1 + wrapper.getMetaMessage().getType().length() // 15TYPE
                     + 2 + attributeLength // 16 ATTRIBUTE
                     + 4 + bodyLength // 17 BODY
                     + 0;
+        }
+
+
+        /**
+         * 按照存储格式将消息序列化到target，target至少要有msgLen字节的剩余空间
+         */
+        public void serializeMessage(final ByteBuffer target, final MetaMessageWrapper wrapper, final int msgLen,
+                final long queueOffset, final long physicOffset) {
+            int attributeLength =
+                    wrapper.getMetaMessage().getAttribute() == null ? 0 : wrapper.getMetaMessage().getAttribute()
+                        .length();
+            int bodyLength =
+                    wrapper.getMetaMessage().getBody() == null ? 0 : wrapper.getMetaMessage().getBody().length;
+
+            // 1 TOTALSIZE
+            target.putInt(msgLen);
+            // 2 MAGICCODE
+            target.putInt(MetaQueuePhysical.MessageMagicCode);
+            // 3 BODYCRC
+            target.putInt(wrapper.getMetaMessageAnnotation().getBodyCRC());
+            // 4 QUEUEID
+            target.putInt(wrapper.getMetaMessageAnnotation().getQueueId());
+            // 5 FLAG
+            target.putInt(wrapper.getMetaMessage().getFlag());
+            // 6 QUEUEOFFSET
+            target.putLong(queueOffset);
+            // 7 PHYSICALOFFSET
+            target.putLong(physicOffset);
+            // 8 SYSFLAG
+            target.putInt(wrapper.getMetaMessageAnnotation().getSysFlag());
+            // 9 BORNTIMESTAMP
+            target.putLong(wrapper.getMetaMessageAnnotation().getBornTimestamp());
+            // 10 BORNHOST
+            target.put(this.encodeHost(wrapper.getMetaMessageAnnotation().getBornHost(), false));
+            // 11 STORETIMESTAMP
+            target.putLong(wrapper.getMetaMessageAnnotation().getStoreTimestamp());
+            // 12 STOREHOSTADDRESS
+            target.put(this.getStoreHostBytes(wrapper));
+            // 13 REQUESTID
+            target.putLong(wrapper.getMetaMessageAnnotation().getRequestId());
+            // 14 TOPIC
+            target.put((byte) wrapper.getMetaMessage().getTopic().length());
+            target.put(this.encodeString(wrapper.getMetaMessage().getTopic()));
+            // 15 TYPE
+            target.put((byte) wrapper.getMetaMessage().getType().length());
+            target.put(this.encodeString(wrapper.getMetaMessage().getType()));
+            // 16 ATTRIBUTE
+            target.putShort((short) attributeLength);
+            if (attributeLength > 0)
+                this.putAttribute(target, wrapper.getMetaMessage().getAttribute());
+            // 17 BODY
+            target.putInt(bodyLength);
+            if (bodyLength > 0)
+                target.put(wrapper.getMetaMessage().getBody());
+        }
+
+
+        public AppendMessageResult doAppend(final long fileFromOffset, final ByteBuffer byteBuffer,
+                final int maxBlank, final Object msg) {
+            /**
+             * 消息ID STORETIMESTAMP + STOREHOSTADDRESS + OFFSET，在返回结果中延迟生成 <br>
+             */
+            MetaMessageWrapper wrapper = (MetaMessageWrapper) msg;
+            // PHY OFFSET
+            long wroteOffset = fileFromOffset + byteBuffer.position();
+            byte[] storeHostBytes = this.getStoreHostBytes(wrapper);
+
+            /**
+             * 记录逻辑队列信息
+             */
+            final String topic = wrapper.getMetaMessage().getTopic();
+            final int queueId = wrapper.getMetaMessageAnnotation().getQueueId();
+            long queueOffset = MetaQueuePhysical.this.topicQueueTable.get(topic, queueId);
+
+            /**
+             * 序列化消息
+             */
+            final int msgLen = this.calMsgLength(wrapper);
+            final int bodyLength =
+                    wrapper.getMetaMessage().getBody() == null ? 0 : wrapper.getMetaMessage().getBody().length;
 
             // 消息超过设定的最大值
             if (msgLen > this.maxMessageSize) {
@@ -370,63 +608,23 @@ public class MetaQueuePhysical {
 
                 // 此处长度特意设置为maxBlank
                 byteBuffer.put(this.msgStoreItemMemory.array(), 0, maxBlank);
-                return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank, msgId,
-                    wrapper.getMetaMessageAnnotation().getStoreTimestamp(), queueOffset);
+                return new AppendMessageResult(AppendMessageStatus.END_OF_FILE, wroteOffset, maxBlank,
+                    storeHostBytes, wrapper.getMetaMessageAnnotation().getStoreTimestamp(), queueOffset);
             }
 
             // 初始化存储空间
             this.resetMsgStoreItemMemory(msgLen);
-            // 1 TOTALSIZE
-            this.msgStoreItemMemory.putInt(msgLen);
-            // 2 MAGICCODE
-            this.msgStoreItemMemory.putInt(MetaQueuePhysical.MessageMagicCode);
-            // 3 BODYCRC
-            this.msgStoreItemMemory.putInt(wrapper.getMetaMessageAnnotation().getBodyCRC());
-            // 4 QUEUEID
-            this.msgStoreItemMemory.putInt(wrapper.getMetaMessageAnnotation().getQueueId());
-            // 5 FLAG
-            this.msgStoreItemMemory.putInt(wrapper.getMetaMessage().getFlag());
-            // 6 QUEUEOFFSET
-            this.msgStoreItemMemory.putLong(queueOffset);
-            // 7 PHYSICALOFFSET
-            this.msgStoreItemMemory.putLong(fileFromOffset + byteBuffer.position());
-            // 8 SYSFLAG
-            this.msgStoreItemMemory.putInt(wrapper.getMetaMessageAnnotation().getSysFlag());
-            // 9 BORNTIMESTAMP
-            this.msgStoreItemMemory.putLong(wrapper.getMetaMessageAnnotation().getBornTimestamp());
-            // 10 BORNHOST
-            this.msgStoreItemMemory.put(wrapper.getMetaMessageAnnotation().getBornHostBytes());
-            // 11 STORETIMESTAMP
-            this.msgStoreItemMemory.putLong(wrapper.getMetaMessageAnnotation().getStoreTimestamp());
-            // 12 STOREHOSTADDRESS
-            this.msgStoreItemMemory.put(wrapper.getMetaMessageAnnotation().getStoreHostBytes());
-            // 13 REQUESTID
-            this.msgStoreItemMemory.putLong(0L);
-            // 14 TOPIC
-            this.msgStoreItemMemory.put((byte) wrapper.getMetaMessage().getTopic().length());
-            this.msgStoreItemMemory.put(wrapper.getMetaMessage().getTopic().getBytes());
-            // 15 TYPE
-            this.msgStoreItemMemory.put((byte) wrapper.getMetaMessage().getType().length());
-            this.msgStoreItemMemory.put(wrapper.getMetaMessage().getType().getBytes());
-            // 16 ATTRIBUTE
-            this.msgStoreItemMemory.putShort((short) attributeLength);
-            if (attributeLength > 0)
-                this.msgStoreItemMemory.put(wrapper.getMetaMessage().getAttribute().getBytes());
-            // 17 BODY
-            this.msgStoreItemMemory.putInt(bodyLength);
-            if (bodyLength > 0)
-                this.msgStoreItemMemory.put(wrapper.getMetaMessage().getBody());
+            this.serializeMessage(this.msgStoreItemMemory, wrapper, msgLen, queueOffset, wroteOffset);
 
             // 向队列缓冲区写入消息
             byteBuffer.put(this.msgStoreItemMemory.array(), 0, msgLen);
 
             AppendMessageResult result =
-                    new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, msgId, wrapper
-                        .getMetaMessageAnnotation().getStoreTimestamp(), queueOffset);
+                    new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen, storeHostBytes,
+                        wrapper.getMetaMessageAnnotation().getStoreTimestamp(), queueOffset);
 
             // 更新下一次的逻辑队列信息
-            queueOffset++;
-            MetaQueuePhysical.this.topicQueueTable.put(key, queueOffset);
+            MetaQueuePhysical.this.topicQueueTable.put(topic, queueId, queueOffset + 1);
 
             // 返回结果
             return result;
@@ -434,13 +632,30 @@ public class MetaQueuePhysical {
     }
 
 
+    /**
+     * 主机地址及其8字节编码，不可变，用来在多线程间安全发布
+     */
+    static final class EncodedHost {
+        final SocketAddress host;
+        final byte[] bytes;
+
+
+        EncodedHost(final SocketAddress host, final byte[] bytes) {
+            this.host = host;
+            this.bytes = bytes;
+        }
+    }
+
+
     /**
      * 构造函数
      */
     public MetaQueuePhysical(final DefaultMetaStore defaultMetaStore) {
         this.mapedFileQueue =
-                new MapedFileQueue(defaultMetaStore.getMetaStoreConfig().getStorePathPhysic(), defaultMetaStore
-                    .getMetaStoreConfig().getMapedFileSizePhysic(), defaultMetaStore.getAllocateMapedFileService());
+                new MapedFileQueue(defaultMetaStore.getMetaStoreConfig().getStorePathPhysicList(), defaultMetaStore
+                    .getMetaStoreConfig().getMapedFileSizePhysic(), defaultMetaStore.getAllocateMapedFileService(),
+                    defaultMetaStore.getTransientStorePool());
+        this.mapedFileQueue.setReclaimMapedFileService(defaultMetaStore.getReclaimMapedFileService());
         this.defaultMetaStore = defaultMetaStore;
 
         if (defaultMetaStore.getMetaStoreConfig().isGroupCommitEnable()) {
@@ -450,8 +665,17 @@ public class MetaQueuePhysical {
             this.flushPhysicalQueueService = new FlushRealTimeService();
         }
 
+        if (defaultMetaStore.getTransientStorePool() != null) {
+            this.commitRealTimeService = new CommitRealTimeService();
+        }
+        else {
+            this.commitRealTimeService = null;
+        }
+
         this.appendMessageCallback =
                 new DefaultAppendMessageCallback(defaultMetaStore.getMetaStoreConfig().getMaxMessageSize());
+        this.lockFreeAppendEnable = defaultMetaStore.getMetaStoreConfig().isLockFreeAppendEnable();
+        this.flushController = new AdaptiveFlushController("physic", defaultMetaStore.getMetaStoreConfig());
     }
 
 
@@ -464,15 +688,48 @@ public class MetaQueuePhysical {
 
     public void start() {
         this.flushPhysicalQueueService.start();
+        if (this.commitRealTimeService != null) {
+            this.commitRealTimeService.start();
+        }
     }
 
 
     public void shutdown() {
+        // 先把写缓冲区的数据全部提交到FileChannel，再停止刷盘
+        if (this.commitRealTimeService != null) {
+            this.commitRealTimeService.shutdown();
+        }
         this.flushPhysicalQueueService.shutdown();
     }
 
 
+    /**
+     * 最小可读的物理Offset，包含本地压缩文件以及冷存储中的文件
+     */
     public long getMinOffset() {
+        long minOffset = this.getLocalMinOffset();
+        minOffset = minOffset(minOffset, this.defaultMetaStore.getCompressedPhysicQueue());
+        minOffset = minOffset(minOffset, this.defaultMetaStore.getColdPhysicQueue());
+        return minOffset;
+    }
+
+
+    private static long minOffset(final long minOffset, final ColdPhysicQueue queue) {
+        if (queue != null) {
+            long queueMinOffset = queue.getMinOffset();
+            if (queueMinOffset >= 0 && (minOffset < 0 || queueMinOffset < minOffset)) {
+                return queueMinOffset;
+            }
+        }
+
+        return minOffset;
+    }
+
+
+    /**
+     * 本地文件的最小物理Offset
+     */
+    public long getLocalMinOffset() {
         MapedFile mapedFile = this.mapedFileQueue.getFirstMapedFileOnLock();
         if (mapedFile != null) {
             if (mapedFile.isAvailable()) {
@@ -492,8 +749,60 @@ public class MetaQueuePhysical {
     }
 
 
+    public MapedFile findMapedFileByOffset(final long offset) {
+        return this.mapedFileQueue.findMapedFileByOffset(offset);
+    }
+
+
+    /**
+     * 已经刷盘的物理Offset
+     */
+    public long getFlushedWhere() {
+        return this.mapedFileQueue.getCommittedWhere();
+    }
+
+
+    public AdaptiveFlushController getFlushController() {
+        return flushController;
+    }
+
+
+    /**
+     * 刷盘并记录刷盘耗时，没有数据刷盘时不记录
+     */
+    private boolean commitAndRecordLatency(final int flushLeastPages) {
+        final long flushedWhere = this.mapedFileQueue.getCommittedWhere();
+        final long beginNanos = System.nanoTime();
+        boolean result = this.mapedFileQueue.commit(flushLeastPages);
+        if (this.mapedFileQueue.getCommittedWhere() > flushedWhere) {
+            this.defaultMetaStore.getMetaStatsService().getFlushLatencyRecorder().recordSince(beginNanos);
+        }
+        return result;
+    }
+
+
     public int deleteExpiredFile(final long expiredTime, final int deleteFilesInterval, final long intervalForcibly) {
-        return this.mapedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly);
+        // 开启冷存储时，只删除已经上传的文件
+        ColdPhysicQueue coldPhysicQueue = this.defaultMetaStore.getColdPhysicQueue();
+        long maxDeleteOffset = coldPhysicQueue != null ? coldPhysicQueue.getMaxOffset() : Long.MAX_VALUE;
+        return this.mapedFileQueue.deleteExpiredFileByTime(expiredTime, deleteFilesInterval, intervalForcibly,
+            maxDeleteOffset);
+    }
+
+
+    /**
+     * 删除已经压缩的原始文件，只从头部删除，且文件尾部不大于maxDeleteOffset
+     */
+    public int deleteCompressedFile(final long maxDeleteOffset, final long intervalForcibly) {
+        return this.mapedFileQueue.deleteExpiredFileByTime(0, 0, intervalForcibly, maxDeleteOffset);
+    }
+
+
+    /**
+     * 已经写满的文件，最后一个文件处于写状态，不包含在内
+     */
+    public List<MapedFile> getSealedMapedFiles() {
+        return this.mapedFileQueue.getSealedMapedFiles();
     }
 
 
@@ -501,11 +810,26 @@ public class MetaQueuePhysical {
      * 读取消息
      */
     public SelectMapedBufferResult getMessage(final long offset, final int size) {
+        // 原始文件已经删除的消息，从本地压缩文件或者冷存储读取
+        ColdPhysicQueue compressedPhysicQueue = this.defaultMetaStore.getCompressedPhysicQueue();
+        ColdPhysicQueue coldPhysicQueue = this.defaultMetaStore.getColdPhysicQueue();
+        boolean hasBlockQueue = compressedPhysicQueue != null || coldPhysicQueue != null;
+        if (hasBlockQueue) {
+            long localMinOffset = this.getLocalMinOffset();
+            if (localMinOffset < 0 || offset < localMinOffset) {
+                return this.getMessageFromBlockQueue(offset, size);
+            }
+        }
+
         int mapedFileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizePhysic();
         MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset, (0 == offset ? true : false));
         if (mapedFile != null) {
             int pos = (int) (offset % mapedFileSize);
             SelectMapedBufferResult result = mapedFile.selectMapedBuffer(pos, size);
+            // 本地文件正在删除
+            if (null == result && hasBlockQueue) {
+                result = this.getMessageFromBlockQueue(offset, size);
+            }
             return result;
         }
 
@@ -513,6 +837,25 @@ public class MetaQueuePhysical {
     }
 
 
+    /**
+     * 先从本地压缩文件读取，再从冷存储读取
+     */
+    private SelectMapedBufferResult getMessageFromBlockQueue(final long offset, final int size) {
+        SelectMapedBufferResult result = null;
+        ColdPhysicQueue compressedPhysicQueue = this.defaultMetaStore.getCompressedPhysicQueue();
+        if (compressedPhysicQueue != null) {
+            result = compressedPhysicQueue.getMessage(offset, size);
+        }
+
+        ColdPhysicQueue coldPhysicQueue = this.defaultMetaStore.getColdPhysicQueue();
+        if (null == result && coldPhysicQueue != null) {
+            result = coldPhysicQueue.getMessage(offset, size);
+        }
+
+        return result;
+    }
+
+
     public long rollNextFile(final long offset) {
         int mapedFileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizePhysic();
         return (offset + mapedFileSize - offset % mapedFileSize);
@@ -543,15 +886,22 @@ public class MetaQueuePhysical {
     /**
      * 服务端使用 检查消息并返回消息大小
      * 
-     * @return 0 表示走到文件末尾 >0 正常消息 -1 消息校验失败
+     * @return 0 表示走到文件末尾 >0 正常消息或者跳过记录（isSkip为true，不分发） -1 消息校验失败
      */
     public DispatchRequest checkMessageAndReturnSize(java.nio.ByteBuffer byteBuffer, final boolean checkCRC,
             final boolean readBody) {
-        try {
-            java.nio.ByteBuffer byteBufferMessage =
-                    ((DefaultAppendMessageCallback) this.appendMessageCallback).getMsgStoreItemMemory();
-            byte[] bytesContent = byteBufferMessage.array();
+        java.nio.ByteBuffer byteBufferMessage =
+                ((DefaultAppendMessageCallback) this.appendMessageCallback).getMsgStoreItemMemory();
+        return this.checkMessageAndReturnSize(byteBuffer, checkCRC, readBody, byteBufferMessage.array());
+    }
 
+
+    /**
+     * 使用调用方提供的缓冲区解析消息，多个线程并行校验时各自使用独立的缓冲区
+     */
+    private DispatchRequest checkMessageAndReturnSize(java.nio.ByteBuffer byteBuffer, final boolean checkCRC,
+            final boolean readBody, final byte[] bytesContent) {
+        try {
             // 1 TOTALSIZE
             int totalSize = byteBuffer.getInt();
 
@@ -562,6 +912,13 @@ public class MetaQueuePhysical {
                 break;
             case BlankMagicCode:
                 return this.defaultMetaStore.getDispatchMessageService().new DispatchRequest(0);
+            case SkipMagicCode:
+                if (totalSize < 8 || totalSize - 8 > byteBuffer.remaining()) {
+                    log.warn("found a illegal skip record, size " + totalSize);
+                    return this.defaultMetaStore.getDispatchMessageService().new DispatchRequest(-1);
+                }
+                byteBuffer.position(byteBuffer.position() + totalSize - 8);
+                return this.defaultMetaStore.getDispatchMessageService().new DispatchRequest(totalSize, true);
             default:
                 log.warn("found a illegal magic code 0x" + Integer.toHexString(magicCode));
                 return this.defaultMetaStore.getDispatchMessageService().new DispatchRequest(-1);
@@ -616,8 +973,13 @@ public class MetaQueuePhysical {
 
             // 16 ATTRIBUTE
             short attributeLen = byteBuffer.getShort();
+            String key = null;
             if (attributeLen > 0) {
                 byteBuffer.get(bytesContent, 0, attributeLen);
+                // 消息属性作为消息Key建立索引
+                if (this.defaultMetaStore.getMetaStoreConfig().isMessageIndexEnable()) {
+                    key = new String(bytesContent, 0, attributeLen);
+                }
             }
 
             // 17 BODY
@@ -641,7 +1003,7 @@ public class MetaQueuePhysical {
             }
 
             return this.defaultMetaStore.getDispatchMessageService().new DispatchRequest(topic, queueId,
-                physicOffset, totalSize, type.hashCode(), storeTimestamp, queueOffset);
+                physicOffset, totalSize, type.hashCode(), storeTimestamp, queueOffset, key);
         }
         catch (BufferUnderflowException e) {
             byteBuffer.position(byteBuffer.limit());
@@ -703,6 +1065,7 @@ public class MetaQueuePhysical {
 
             processOffset += mapedFileOffset;
             this.mapedFileQueue.setCommittedWhere(processOffset);
+            this.mapedFileQueue.setChannelWhere(processOffset);
             this.mapedFileQueue.truncateDirtyFiles(processOffset);
         }
     }
@@ -729,18 +1092,51 @@ public class MetaQueuePhysical {
                 mapedFile = mapedFiles.get(index);
             }
 
+            // 快照记录的物理Offset之前的消息都已经刷盘并写入逻辑队列，可以从这里开始恢复
+            int mapedFileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizePhysic();
+            int startPos = 0;
+            StoreCheckpoint storeCheckpoint = this.defaultMetaStore.getStoreCheckpoint();
+            if (this.defaultMetaStore.getMetaStoreConfig().isQueueSnapshotEnable()
+                    && storeCheckpoint.isSnapshotValid()) {
+                long snapshotPhyOffset = storeCheckpoint.getSnapshotPhyOffset();
+                long maxFileOffset = mapedFiles.get(mapedFiles.size() - 1).getFileFromOffset() + mapedFileSize;
+                if (snapshotPhyOffset > mapedFile.getFileFromOffset() && snapshotPhyOffset < maxFileOffset) {
+                    index = (int) ((snapshotPhyOffset - mapedFiles.get(0).getFileFromOffset()) / mapedFileSize);
+                    mapedFile = mapedFiles.get(index);
+                    startPos = (int) (snapshotPhyOffset - mapedFile.getFileFromOffset());
+                    log.info("recover from queue offset snapshot, phy offset " + snapshotPhyOffset + ", "
+                            + mapedFile.getFileName());
+                }
+            }
+
+            int recoverThreadNums = this.defaultMetaStore.getMetaStoreConfig().getRecoverThreadNums();
+            if (recoverThreadNums > 1 && (mapedFiles.size() - index) > 1) {
+                this.recoverAbnormallyConcurrently(mapedFiles, index, startPos, recoverThreadNums,
+                    checkCRCOnRecover);
+                return;
+            }
+
+            MetaStatsService metaStatsService = this.defaultMetaStore.getMetaStatsService();
+            metaStatsService.getRecoverPhysicTotalSize().set(
+                (long) (mapedFiles.size() - index) * mapedFileSize - startPos);
+
             ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+            byteBuffer.position(startPos);
             long processOffset = mapedFile.getFileFromOffset();
-            long mapedFileOffset = 0;
+            long mapedFileOffset = startPos;
             while (true) {
                 DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, checkCRCOnRecover);
                 int size = dispatchRequest.getSize();
                 // 正常数据
                 if (size > 0) {
                     mapedFileOffset += size;
+                    if (dispatchRequest.isSkip()) {
+                        continue;
+                    }
                     this.defaultMetaStore.putIndex(dispatchRequest.getTopic(), dispatchRequest.getQueueId(),
                         dispatchRequest.getOffset(), dispatchRequest.getSize(), dispatchRequest.getType(),
-                        dispatchRequest.getStoreTimestamp(), dispatchRequest.getLogicOffset());
+                        dispatchRequest.getStoreTimestamp(), dispatchRequest.getLogicOffset(),
+                        dispatchRequest.getKey());
                 }
                 // 文件中间读到错误
                 else if (size == -1) {
@@ -757,6 +1153,7 @@ public class MetaQueuePhysical {
                         break;
                     }
                     else {
+                        metaStatsService.getRecoverPhysicCheckedSize().addAndGet(mapedFile.getFileSize());
                         mapedFile = mapedFiles.get(index);
                         byteBuffer = mapedFile.sliceByteBuffer();
                         processOffset = mapedFile.getFileFromOffset();
@@ -766,35 +1163,247 @@ public class MetaQueuePhysical {
                 }
             }
 
-            processOffset += mapedFileOffset;
-            this.mapedFileQueue.setCommittedWhere(processOffset);
-            this.mapedFileQueue.truncateDirtyFiles(processOffset);
+            // 之后的文件不再校验，直接截断
+            metaStatsService.getRecoverPhysicCheckedSize().set(metaStatsService.getRecoverPhysicTotalSize().get());
 
-            // 清除逻辑队列的多余数据
-            this.defaultMetaStore.truncateDirtyLogicFiles(processOffset);
+            processOffset += mapedFileOffset;
+            this.truncateDirtyOnRecoverAbnormally(processOffset);
         }
         // 物理文件都被删除情况下
         else {
             this.mapedFileQueue.setCommittedWhere(0);
+            this.mapedFileQueue.setChannelWhere(0);
             this.defaultMetaStore.destroyLogics();
         }
     }
 
 
-    private boolean isMapedFileMatchedRecover(final MapedFile mapedFile) {
-        ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
-
-        int magicCode = byteBuffer.getInt(MetaMessageDecoder.MessageMagicCodePostion);
-        if (magicCode != MessageMagicCode) {
-            return false;
+    /**
+     * 正常关闭后，根据快照直接恢复，只校验快照位置前后的数据，不扫描文件<br>
+     * 校验失败返回false，调用方再按照正常流程恢复
+     * 
+     * @param phyOffset
+     *            快照记录的物理队列最大Offset
+     * @param lastMsgPhyOffset
+     *            最后一条消息的物理Offset，没有消息时为-1
+     */
+    public boolean recoverNormallyBySnapshot(final long phyOffset, final long lastMsgPhyOffset) {
+        final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+        if (mapedFiles.isEmpty()) {
+            return 0 == phyOffset;
         }
 
-        long storeTimestamp = byteBuffer.getLong(MetaMessageDecoder.MessageStoreTimestampPostion);
-        if (0 == storeTimestamp) {
+        int mapedFileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizePhysic();
+        long minOffset = mapedFiles.get(0).getFileFromOffset();
+        long maxOffset = mapedFiles.get(mapedFiles.size() - 1).getFileFromOffset() + mapedFileSize;
+        if (phyOffset < minOffset || phyOffset > maxOffset) {
             return false;
         }
 
-        if (storeTimestamp <= this.defaultMetaStore.getStoreCheckpoint().getMinTimestamp()) {
+        // 最后一条消息必须正好在快照位置结束
+        if (lastMsgPhyOffset >= minOffset) {
+            MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(lastMsgPhyOffset);
+            if (null == mapedFile) {
+                return false;
+            }
+
+            ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+            int pos = (int) (lastMsgPhyOffset % mapedFileSize);
+            if (pos + 8 > mapedFileSize || byteBuffer.getInt(pos + 4) != MessageMagicCode
+                    || lastMsgPhyOffset + byteBuffer.getInt(pos) != phyOffset) {
+                return false;
+            }
+        }
+
+        // 快照位置之后不能再有消息
+        if (phyOffset < maxOffset) {
+            MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(phyOffset);
+            if (null == mapedFile) {
+                return false;
+            }
+
+            ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+            int pos = (int) (phyOffset % mapedFileSize);
+            if (pos + 8 <= mapedFileSize && byteBuffer.getInt(pos + 4) == MessageMagicCode) {
+                return false;
+            }
+        }
+
+        this.mapedFileQueue.setCommittedWhere(phyOffset);
+        this.mapedFileQueue.setChannelWhere(phyOffset);
+        this.mapedFileQueue.truncateDirtyFiles(phyOffset);
+        return true;
+    }
+
+
+    private void truncateDirtyOnRecoverAbnormally(final long processOffset) {
+        this.mapedFileQueue.setCommittedWhere(processOffset);
+        this.mapedFileQueue.setChannelWhere(processOffset);
+        this.mapedFileQueue.truncateDirtyFiles(processOffset);
+
+        // 清除逻辑队列的多余数据
+        this.defaultMetaStore.truncateDirtyLogicFiles(processOffset);
+    }
+
+
+    /**
+     * 单个物理文件的校验结果
+     */
+    static class MapedFileCheckResult {
+        // 从文件头开始，连续正确的消息总长度
+        private final int validSize;
+        // 是否正常走到文件末尾，否则说明文件中间有错误数据或者文件没有写满
+        private final boolean reachEnd;
+
+
+        public MapedFileCheckResult(int validSize, boolean reachEnd) {
+            this.validSize = validSize;
+            this.reachEnd = reachEnd;
+        }
+
+
+        public int getValidSize() {
+            return validSize;
+        }
+
+
+        public boolean isReachEnd() {
+            return reachEnd;
+        }
+    }
+
+
+    /**
+     * 从startPos开始校验一个物理文件，每个文件都从消息边界开始，所以各文件可以独立并行校验
+     */
+    private MapedFileCheckResult checkMapedFile(final MapedFile mapedFile, final int startPos,
+            final boolean checkCRC, final byte[] bytesContent) {
+        ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+        byteBuffer.position(startPos);
+        int validSize = startPos;
+        while (true) {
+            DispatchRequest dispatchRequest =
+                    this.checkMessageAndReturnSize(byteBuffer, checkCRC, true, bytesContent);
+            int size = dispatchRequest.getSize();
+            if (size > 0) {
+                validSize += size;
+            }
+            else {
+                return new MapedFileCheckResult(validSize, size == 0);
+            }
+        }
+    }
+
+
+    /**
+     * 异常恢复分两步：<br>
+     * 1、多个线程并行校验物理文件（含CRC），得到每个文件连续正确的长度<br>
+     * 2、单线程按顺序重新分发正确的消息，不再校验CRC，保证逻辑队列与索引按物理Offset顺序写入
+     */
+    private void recoverAbnormallyConcurrently(final List<MapedFile> mapedFiles, final int fromIndex,
+            final int startPos, final int recoverThreadNums, final boolean checkCRC) {
+        final MetaStatsService metaStatsService = this.defaultMetaStore.getMetaStatsService();
+        final int fileNums = mapedFiles.size() - fromIndex;
+        final int mapedFileSize = this.defaultMetaStore.getMetaStoreConfig().getMapedFileSizePhysic();
+        final long totalSize = (long) fileNums * mapedFileSize - startPos;
+        metaStatsService.getRecoverPhysicTotalSize().set(totalSize);
+        metaStatsService.getRecoverPhysicCheckedSize().set(0);
+
+        long beginTime = System.currentTimeMillis();
+        List<MapedFileCheckResult> checkResults = new ArrayList<MapedFileCheckResult>(fileNums);
+        ExecutorService executor =
+                this.defaultMetaStore.createRecoverExecutor("RecoverPhysicsThread",
+                    Math.min(recoverThreadNums, fileNums));
+        try {
+            List<Future<MapedFileCheckResult>> futures = new ArrayList<Future<MapedFileCheckResult>>(fileNums);
+            for (int i = fromIndex; i < mapedFiles.size(); i++) {
+                final MapedFile mapedFile = mapedFiles.get(i);
+                final int fileStartPos = (i == fromIndex) ? startPos : 0;
+                futures.add(executor.submit(new Callable<MapedFileCheckResult>() {
+                    public MapedFileCheckResult call() {
+                        byte[] bytesContent = new byte[MetaQueuePhysical.this.defaultMetaStore.getMetaStoreConfig()
+                            .getMaxMessageSize()];
+                        MapedFileCheckResult result =
+                                MetaQueuePhysical.this.checkMapedFile(mapedFile, fileStartPos, checkCRC,
+                                    bytesContent);
+                        long checked =
+                                metaStatsService.getRecoverPhysicCheckedSize().addAndGet(
+                                    mapedFile.getFileSize() - fileStartPos);
+                        log.info("check physics file " + mapedFile.getFileName() + " OK, valid size "
+                                + result.getValidSize() + ", reach end " + result.isReachEnd() + ", progress "
+                                + checked + "/" + totalSize);
+                        return result;
+                    }
+                }));
+            }
+
+            for (Future<MapedFileCheckResult> future : futures) {
+                checkResults.add(future.get());
+            }
+        }
+        catch (InterruptedException e) {
+            throw new RuntimeException("check physics file interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new RuntimeException("check physics file failed", e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        long spent = Math.max(System.currentTimeMillis() - beginTime, 1);
+        log.info("check physics files over, " + fileNums + " files, " + totalSize + " bytes, " + spent + "ms, "
+                + (totalSize * 1000 / 1024 / 1024 / spent) + "MB/s");
+
+        // 按顺序重新分发，遇到没有走到末尾的文件即停止，后面的文件全部截断
+        long processOffset = mapedFiles.get(fromIndex).getFileFromOffset();
+        for (int i = 0; i < fileNums; i++) {
+            MapedFile mapedFile = mapedFiles.get(fromIndex + i);
+            MapedFileCheckResult checkResult = checkResults.get(i);
+            ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+            int mapedFileOffset = (0 == i) ? startPos : 0;
+            byteBuffer.position(mapedFileOffset);
+            while (mapedFileOffset < checkResult.getValidSize()) {
+                DispatchRequest dispatchRequest = this.checkMessageAndReturnSize(byteBuffer, false, false);
+                int size = dispatchRequest.getSize();
+                if (size <= 0) {
+                    break;
+                }
+
+                mapedFileOffset += size;
+                if (dispatchRequest.isSkip()) {
+                    continue;
+                }
+                this.defaultMetaStore.putIndex(dispatchRequest.getTopic(), dispatchRequest.getQueueId(),
+                    dispatchRequest.getOffset(), dispatchRequest.getSize(), dispatchRequest.getType(),
+                    dispatchRequest.getStoreTimestamp(), dispatchRequest.getLogicOffset(), dispatchRequest.getKey());
+            }
+
+            processOffset = mapedFile.getFileFromOffset() + mapedFileOffset;
+            if (!checkResult.isReachEnd() || mapedFileOffset < checkResult.getValidSize()) {
+                log.info("recover physics file end, " + mapedFile.getFileName());
+                break;
+            }
+        }
+
+        this.truncateDirtyOnRecoverAbnormally(processOffset);
+    }
+
+
+    private boolean isMapedFileMatchedRecover(final MapedFile mapedFile) {
+        ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+
+        int magicCode = byteBuffer.getInt(MetaMessageDecoder.MessageMagicCodePostion);
+        if (magicCode != MessageMagicCode) {
+            return false;
+        }
+
+        long storeTimestamp = byteBuffer.getLong(MetaMessageDecoder.MessageStoreTimestampPostion);
+        if (0 == storeTimestamp) {
+            return false;
+        }
+
+        if (storeTimestamp <= this.defaultMetaStore.getStoreCheckpoint().getMinTimestamp()) {
             return true;
         }
 
@@ -803,6 +1412,66 @@ public class MetaQueuePhysical {
 
 
     public AppendMessageResult putMessage(final MetaMessage msg, final MetaMessageAnnotation msgant) {
+        AppendMessageResult result = this.appendMessage(msg, msgant);
+        if (null == result || result.getStatus() != AppendMessageStatus.PUT_OK) {
+            return result;
+        }
+
+        // 刷盘
+        boolean flushOK = this.flushAfterPut(result.getWroteOffset() + result.getWroteBytes());
+        if (!flushOK) {
+            log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic() + " type: "
+                    + msg.getType() + " client address: " + msgant.getBornHostString());
+        }
+
+        // 向发送方返回结果
+        return result;
+    }
+
+
+    /**
+     * 异步写消息，写入后立即返回，callback只调用一次<br>
+     * 同步刷盘时由刷盘线程在刷盘完成后回调，调用线程不等待刷盘；其他情况在返回前回调
+     * 
+     * @return 写入结果，与回调中的结果相同
+     */
+    public AppendMessageResult putMessageAsync(final MetaMessage msg, final MetaMessageAnnotation msgant,
+            final PutMessageCallback callback) {
+        AppendMessageResult result = this.appendMessage(msg, msgant);
+        if (null == result || result.getStatus() != AppendMessageStatus.PUT_OK) {
+            invokeCallback(callback, new PutMessageResult(result), false);
+            return result;
+        }
+
+        final long nextOffset = result.getWroteOffset() + result.getWroteBytes();
+        if (this.defaultMetaStore.getMetaStoreConfig().isGroupCommitEnable()) {
+            GroupCommitService service = (GroupCommitService) this.flushPhysicalQueueService;
+            service.putRequest(new GroupCommitRequest(nextOffset, new PutMessageResult(result), callback));
+        }
+        else {
+            this.flushAfterPut(nextOffset);
+            invokeCallback(callback, new PutMessageResult(result), true);
+        }
+
+        return result;
+    }
+
+
+    private static void invokeCallback(final PutMessageCallback callback, final PutMessageResult result,
+            final boolean flushOK) {
+        try {
+            callback.putMessageComplete(result, flushOK);
+        }
+        catch (Throwable e) {
+            log.warn("putMessageComplete callback has exception", e);
+        }
+    }
+
+
+    /**
+     * 写入消息，不刷盘
+     */
+    private AppendMessageResult appendMessage(final MetaMessage msg, final MetaMessageAnnotation msgant) {
         MetaMessageWrapper metaMessageWrapper = new MetaMessageWrapper(msg, msgant);
         // 设置存储时间
         msgant.setStoreTimestamp(System.currentTimeMillis());
@@ -813,79 +1482,324 @@ public class MetaQueuePhysical {
 
         MetaStatsService metaStatsService = this.defaultMetaStore.getMetaStatsService();
 
-        // 写文件要加锁
-        synchronized (this) {
-            long beginLockTimestamp = this.defaultMetaStore.getSystemClock().now();
+        // 无锁写，多线程并行序列化消息
+        if (this.lockFreeAppendEnable) {
+            result = this.putMessageLockFree(metaMessageWrapper);
+            if (null == result || result.getStatus() != AppendMessageStatus.PUT_OK) {
+                return result;
+            }
+        }
+        else {
+            // 写文件要加锁
+            synchronized (this) {
+                long beginLockTimestamp = this.defaultMetaStore.getSystemClock().now();
 
-            // 这里设置存储时间戳，才能保证全局有序
-            msgant.setStoreTimestamp(beginLockTimestamp);
+                // 这里设置存储时间戳，才能保证全局有序
+                msgant.setStoreTimestamp(beginLockTimestamp);
 
-            // 尝试写入
-            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile();
-            if (null == mapedFile) {
-                log.fatal("create maped file1 error, topic: " + msg.getTopic() + " clientAddr: "
-                        + msgant.getBornHostString());
-                return null;
+                result = this.putMessageInLock(metaMessageWrapper);
+                if (null == result || result.getStatus() != AppendMessageStatus.PUT_OK) {
+                    return result;
+                }
+
+                long eclipseTime = this.defaultMetaStore.getSystemClock().now() - beginLockTimestamp;
+                if (eclipseTime > 1000) {
+                    log.warn("putMessage in lock eclipse time(ms) " + eclipseTime);
+                }
             }
-            result = mapedFile.appendMessage(metaMessageWrapper, this.appendMessageCallback);
-            switch (result.getStatus()) {
-            // 成功追加消息
-            case PUT_OK:
-                break;
-            // 走到文件末尾
-            case END_OF_FILE:
-                // 创建新文件，重新写消息
-                mapedFile = this.mapedFileQueue.getLastMapedFile();
-                if (null == mapedFile) {
-                    log.fatal("create maped file2 error, topic: " + msg.getTopic() + " clientAddr: "
-                            + msgant.getBornHostString());
-                    return null;
+        }
+
+        // 统计消息SIZE
+        metaStatsService.getPutMessageSizeTotal().addAndGet(result.getWroteBytes());
+
+        // 刚写入的数据在PageCache中
+        PageCacheResidency pageCacheResidency = this.defaultMetaStore.getPageCacheResidency();
+        if (pageCacheResidency != null) {
+            pageCacheResidency.touch(result.getWroteOffset());
+        }
+
+        return result;
+    }
+
+
+    /**
+     * 批量写消息，整批消息在一次加锁中连续写入，同步刷盘时整批只等待一次<br>
+     * 返回结果与消息一一对应，单条消息失败不影响其他消息<br>
+     * 如果创建文件失败，已经写入的消息照常返回结果并派发，剩余的消息返回UNKNOWN_ERROR，调用方只重试失败的消息
+     */
+    public List<AppendMessageResult> putMessages(final List<MetaMessageWrapper> wrappers) {
+        List<AppendMessageResult> results = new ArrayList<AppendMessageResult>(wrappers.size());
+        for (MetaMessageWrapper wrapper : wrappers) {
+            // 设置存储时间
+            wrapper.getMetaMessageAnnotation().setStoreTimestamp(System.currentTimeMillis());
+            // 设置消息体BODY CRC
+            wrapper.getMetaMessageAnnotation().setBodyCRC(MetaUtil.crc32(wrapper.getMetaMessage().getBody()));
+        }
+
+        MetaStatsService metaStatsService = this.defaultMetaStore.getMetaStatsService();
+
+        // 无锁写，不需要加锁，逐条预留空间
+        if (this.lockFreeAppendEnable) {
+            for (MetaMessageWrapper wrapper : wrappers) {
+                AppendMessageResult result = this.putMessageLockFree(wrapper);
+                if (null == result) {
+                    break;
                 }
-                result = mapedFile.appendMessage(metaMessageWrapper, this.appendMessageCallback);
-                break;
-            // 消息大小超限
-            case MESSAGE_SIZE_EXCEEDED:
-                return result;
-                // 未知错误
-            case UNKNOWN_ERROR:
-                return result;
-            default:
-                return result;
+                results.add(result);
             }
+        }
+        else {
+            // 写文件要加锁
+            synchronized (this) {
+                long beginLockTimestamp = this.defaultMetaStore.getSystemClock().now();
+
+                for (MetaMessageWrapper wrapper : wrappers) {
+                    // 这里设置存储时间戳，才能保证全局有序
+                    wrapper.getMetaMessageAnnotation().setStoreTimestamp(beginLockTimestamp);
 
-            // 派发消息位置信息到逻辑队列
-            this.defaultMetaStore.putDispatchRequest(msg.getTopic(), msgant.getQueueId(), result.getWroteOffset(),
-                result.getWroteBytes(), msg.getType().hashCode(), msgant.getStoreTimestamp(),
-                result.getLogicsOffset());
+                    AppendMessageResult result = this.putMessageInLock(wrapper);
+                    if (null == result) {
+                        break;
+                    }
+                    results.add(result);
+                }
 
-            long eclipseTime = this.defaultMetaStore.getSystemClock().now() - beginLockTimestamp;
-            if (eclipseTime > 1000) {
-                log.warn("putMessage in lock eclipse time(ms) " + eclipseTime);
+                long eclipseTime = this.defaultMetaStore.getSystemClock().now() - beginLockTimestamp;
+                if (eclipseTime > 1000) {
+                    log.warn("putMessages in lock eclipse time(ms) " + eclipseTime + " batch size: "
+                            + wrappers.size());
+                }
             }
         }
 
-        // 统计消息SIZE
-        metaStatsService.getPutMessageSizeTotal().addAndGet(result.getWroteBytes());
+        // 创建文件失败，剩余的消息没有写入
+        if (results.size() < wrappers.size()) {
+            log.error("putMessages create maped file failed, wrote " + results.size() + " of " + wrappers.size());
+            while (results.size() < wrappers.size()) {
+                results.add(new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
+            }
+        }
+
+        // 统计消息SIZE，找到本批最后写入的位置
+        PageCacheResidency pageCacheResidency = this.defaultMetaStore.getPageCacheResidency();
+        long nextOffset = -1;
+        for (AppendMessageResult result : results) {
+            if (result.isOk()) {
+                metaStatsService.getPutMessageSizeTotal().addAndGet(result.getWroteBytes());
+                nextOffset = Math.max(nextOffset, result.getWroteOffset() + result.getWroteBytes());
+                // 刚写入的数据在PageCache中
+                if (pageCacheResidency != null) {
+                    pageCacheResidency.touch(result.getWroteOffset());
+                }
+            }
+        }
+
+        // 整批刷盘一次
+        if (nextOffset > 0) {
+            boolean flushOK = this.flushAfterPut(nextOffset);
+            if (!flushOK) {
+                log.error("do groupcommit, wait for flush failed, batch size: " + wrappers.size()
+                        + " next offset: " + nextOffset);
+            }
+        }
+
+        return results;
+    }
 
+
+    /**
+     * 在锁内向最后一个文件追加消息，文件写满则切换到新文件，并派发到逻辑队列<br>
+     * 调用方必须持有this锁，如果创建文件失败，返回null
+     */
+    private AppendMessageResult putMessageInLock(final MetaMessageWrapper wrapper) {
+        final MetaMessage msg = wrapper.getMetaMessage();
+        final MetaMessageAnnotation msgant = wrapper.getMetaMessageAnnotation();
+
+        // 尝试写入
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile();
+        if (null == mapedFile) {
+            log.fatal("create maped file1 error, topic: " + msg.getTopic() + " clientAddr: "
+                    + msgant.getBornHostString());
+            return null;
+        }
+        AppendMessageResult result = mapedFile.appendMessage(wrapper, this.appendMessageCallback);
+        switch (result.getStatus()) {
+        // 成功追加消息
+        case PUT_OK:
+            break;
+        // 走到文件末尾
+        case END_OF_FILE:
+            // 创建新文件，重新写消息
+            mapedFile = this.mapedFileQueue.getLastMapedFile();
+            if (null == mapedFile) {
+                log.fatal("create maped file2 error, topic: " + msg.getTopic() + " clientAddr: "
+                        + msgant.getBornHostString());
+                return null;
+            }
+            result = mapedFile.appendMessage(wrapper, this.appendMessageCallback);
+            break;
+        // 消息大小超限
+        case MESSAGE_SIZE_EXCEEDED:
+            return result;
+            // 未知错误
+        case UNKNOWN_ERROR:
+            return result;
+        default:
+            return result;
+        }
+
+        // 派发消息位置信息到逻辑队列
+        this.defaultMetaStore.putDispatchRequest(msg.getTopic(), msgant.getQueueId(), result.getWroteOffset(),
+            result.getWroteBytes(), msg.getType().hashCode(), msgant.getStoreTimestamp(), result.getLogicsOffset(),
+            msg.getAttribute());
+
+        return result;
+    }
+
+
+    /**
+     * 写入消息后刷盘，同步刷盘等待刷到nextOffset，异步刷盘唤醒刷盘线程
+     * 
+     * @return 同步刷盘超时返回false
+     */
+    private boolean flushAfterPut(final long nextOffset) {
         // 同步刷盘
         if (this.defaultMetaStore.getMetaStoreConfig().isGroupCommitEnable()) {
-            GroupCommitRequest request = new GroupCommitRequest(result.getWroteOffset() + result.getWroteBytes());
+            GroupCommitRequest request = new GroupCommitRequest(nextOffset);
             GroupCommitService service = (GroupCommitService) this.flushPhysicalQueueService;
             service.putRequest(request);
-            boolean flushOK =
-                    request.waitForFlush(this.defaultMetaStore.getMetaStoreConfig().getGroupCommitTimeout());
-            if (!flushOK) {
-                log.error("do groupcommit, wait for flush failed, topic: " + msg.getTopic() + " type: "
-                        + msg.getType() + " client address: " + msgant.getBornHostString());
-            }
+            return request.waitForFlush(this.defaultMetaStore.getMetaStoreConfig().getGroupCommitTimeout());
+        }
+        // 异步刷盘，写缓冲池模式下由提交线程提交后再唤醒刷盘线程
+        else if (this.commitRealTimeService != null) {
+            this.commitRealTimeService.wakeup();
         }
-        // 异步刷盘
         else {
             this.flushPhysicalQueueService.wakeup();
         }
 
-        // 向发送方返回结果
-        return result;
+        return true;
+    }
+
+
+    /**
+     * 无锁写物理队列<br>
+     * 1、CAS预留空间，在锁外将消息直接序列化到映射内存<br>
+     * 2、按照预留顺序依次发布，发布时分配存储时间戳、逻辑队列Offset，并派发到逻辑队列，保证全局有序
+     */
+    private AppendMessageResult putMessageLockFree(final MetaMessageWrapper wrapper) {
+        final DefaultAppendMessageCallback callback = (DefaultAppendMessageCallback) this.appendMessageCallback;
+        final MetaMessage msg = wrapper.getMetaMessage();
+        final MetaMessageAnnotation msgant = wrapper.getMetaMessageAnnotation();
+
+        final int msgLen = callback.calMsgLength(wrapper);
+        // 消息超过设定的最大值
+        if (msgLen > callback.maxMessageSize) {
+            log.warn("message size exceeded, msg total size: " + msgLen + ", maxMessageSize: "
+                    + callback.maxMessageSize);
+            return new AppendMessageResult(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED);
+        }
+
+        while (true) {
+            MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile2();
+            if (null == mapedFile || mapedFile.isFull()) {
+                // 创建新文件只能串行
+                synchronized (this) {
+                    mapedFile = this.mapedFileQueue.getLastMapedFile();
+                }
+                if (null == mapedFile) {
+                    log.fatal("create maped file error, topic: " + msg.getTopic() + " clientAddr: "
+                            + msgant.getBornHostString());
+                    return null;
+                }
+            }
+
+            int pos = mapedFile.reserveSpace(msgLen, DefaultAppendMessageCallback.END_FILE_MIN_BLANK_LENGTH);
+            if (pos >= 0) {
+                final long wroteOffset = mapedFile.getFileFromOffset() + pos;
+                // 预留的空间必须发布，否则后续写入都会一直等待
+                boolean done = false;
+                try {
+                    final ByteBuffer byteBuffer = mapedFile.sliceReservedSpace(pos, msgLen);
+                    // 存储时间戳、逻辑队列Offset在发布时回填
+                    callback.serializeMessage(byteBuffer, wrapper, msgLen, 0L, wroteOffset);
+
+                    if (!mapedFile.waitForPublishTurn(pos)) {
+                        // 前面预留的空间没有发布，当前空间也不能发布
+                        done = true;
+                        return null;
+                    }
+
+                    // 以下代码按照预留顺序串行执行
+                    long storeTimestamp = this.defaultMetaStore.getSystemClock().now();
+                    msgant.setStoreTimestamp(storeTimestamp);
+                    byteBuffer.putLong(MetaMessageDecoder.MessageStoreTimestampPostion, storeTimestamp);
+
+                    long queueOffset = this.topicQueueTable.get(msg.getTopic(), msgant.getQueueId());
+                    byteBuffer.putLong(MetaMessageDecoder.MessageQueueOffsetPostion, queueOffset);
+
+                    // 派发消息位置信息到逻辑队列
+                    this.defaultMetaStore.putDispatchRequest(msg.getTopic(), msgant.getQueueId(), wroteOffset,
+                        msgLen, msg.getType().hashCode(), storeTimestamp, queueOffset, msg.getAttribute());
+                    this.topicQueueTable.put(msg.getTopic(), msgant.getQueueId(), queueOffset + 1);
+
+                    mapedFile.publishReservedSpace(pos, msgLen, storeTimestamp);
+                    done = true;
+
+                    return new AppendMessageResult(AppendMessageStatus.PUT_OK, wroteOffset, msgLen,
+                        callback.getStoreHostBytes(wrapper), storeTimestamp, queueOffset);
+                }
+                catch (Exception e) {
+                    log.error("put message lock free exception, topic: " + msg.getTopic() + " queueId: "
+                            + msgant.getQueueId(), e);
+                    return new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
+                }
+                finally {
+                    // 写入失败，用跳过记录填充预留的空间，不派发
+                    if (!done) {
+                        this.publishPadding(mapedFile, pos, msgLen, SkipMagicCode);
+                    }
+                }
+            }
+
+            // 剩余空间不足，由一个线程负责写文件末尾空洞
+            int blankPos = mapedFile.reserveRemainingSpace();
+            if (blankPos >= 0) {
+                if (!this.publishPadding(mapedFile, blankPos, mapedFile.getFileSize() - blankPos, BlankMagicCode)) {
+                    return null;
+                }
+            }
+            // 其他线程等待文件写满后再创建新文件
+            else if (!mapedFile.waitForPublishTurn(mapedFile.getFileSize())) {
+                return null;
+            }
+        }
+    }
+
+
+    /**
+     * 无锁写，用文件末尾空洞或者跳过记录填充预留的空间并发布，不派发
+     * 
+     * @return 等待发布超时返回false
+     */
+    private boolean publishPadding(final MapedFile mapedFile, final int pos, final int size, final int magicCode) {
+        try {
+            final ByteBuffer byteBuffer = mapedFile.sliceReservedSpace(pos, size);
+            // 1 TOTALSIZE
+            byteBuffer.putInt(size);
+            // 2 MAGICCODE
+            byteBuffer.putInt(magicCode);
+        }
+        catch (Exception e) {
+            log.error("write padding exception, " + mapedFile.getFileName() + " position: " + pos, e);
+        }
+
+        if (!mapedFile.waitForPublishTurn(pos)) {
+            return false;
+        }
+
+        mapedFile.publishReservedSpace(pos, size, 0);
+        return true;
     }
 
 
@@ -907,12 +1821,49 @@ public class MetaQueuePhysical {
     }
 
 
-    public HashMap<String, Long> getTopicQueueTable() {
+    /**
+     * 从byteBuffer的base位置开始的一条完整消息中查找消息类型长度字段的位置，不读取类型内容，格式不正确返回-1
+     */
+    public int pickupMessageTypePosition(final ByteBuffer byteBuffer, final int base) {
+        final int limit = byteBuffer.limit();
+        if (limit <= base + MessageTopicLengthPostion) {
+            return -1;
+        }
+
+        int topicLen = byteBuffer.get(base + MessageTopicLengthPostion);
+        int typeLenPos = base + MessageTopicLengthPostion + 1 + topicLen;
+        if (topicLen < 0 || typeLenPos >= limit) {
+            return -1;
+        }
+
+        int typeLen = byteBuffer.get(typeLenPos);
+        if (typeLen < 0 || typeLenPos + 1 + typeLen > limit) {
+            return -1;
+        }
+
+        return typeLenPos;
+    }
+
+
+    /**
+     * 直接按照字节计算消息类型的哈希值，消息类型为ASCII字符，结果与String.hashCode()相同
+     */
+    public static int hashMessageType(final ByteBuffer byteBuffer, final int typeLenPos) {
+        final int typeLen = byteBuffer.get(typeLenPos);
+        int hash = 0;
+        for (int i = 0; i < typeLen; i++) {
+            hash = 31 * hash + byteBuffer.get(typeLenPos + 1 + i);
+        }
+        return hash;
+    }
+
+
+    public TopicQueueOffsetTable getTopicQueueTable() {
         return topicQueueTable;
     }
 
 
-    public void setTopicQueueTable(HashMap<String, Long> topicQueueTable) {
+    public void setTopicQueueTable(TopicQueueOffsetTable topicQueueTable) {
         this.topicQueueTable = topicQueueTable;
     }
 
@@ -0,0 +1,219 @@
+/**
+ * $Id: MetaQueueStats.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 单个逻辑队列的读写统计，计数器随逻辑队列创建，写消息与读消息时只做原子累加，不分配对象<br>
+ * 速率由统计线程定时采样计算，Topic维度的统计由该Topic下各队列汇总
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class MetaQueueStats {
+    // 按写入消息条数速率倒序
+    public static final Comparator<MetaQueueStats> ByPutMessagesRate = new Comparator<MetaQueueStats>() {
+        public int compare(MetaQueueStats o1, MetaQueueStats o2) {
+            return Double.compare(o2.putMessagesRate, o1.putMessagesRate);
+        }
+    };
+    // 按写入字节速率倒序
+    public static final Comparator<MetaQueueStats> ByPutBytesRate = new Comparator<MetaQueueStats>() {
+        public int compare(MetaQueueStats o1, MetaQueueStats o2) {
+            return Double.compare(o2.putBytesRate, o1.putBytesRate);
+        }
+    };
+    // 按读取消息条数速率倒序
+    public static final Comparator<MetaQueueStats> ByGetMessagesRate = new Comparator<MetaQueueStats>() {
+        public int compare(MetaQueueStats o1, MetaQueueStats o2) {
+            return Double.compare(o2.getMessagesRate, o1.getMessagesRate);
+        }
+    };
+    // 按读取字节速率倒序
+    public static final Comparator<MetaQueueStats> ByGetBytesRate = new Comparator<MetaQueueStats>() {
+        public int compare(MetaQueueStats o1, MetaQueueStats o2) {
+            return Double.compare(o2.getBytesRate, o1.getBytesRate);
+        }
+    };
+    // 按索引落后字节数倒序
+    public static final Comparator<MetaQueueStats> ByDispatchLag = new Comparator<MetaQueueStats>() {
+        public int compare(MetaQueueStats o1, MetaQueueStats o2) {
+            return o2.dispatchLag < o1.dispatchLag ? -1 : (o2.dispatchLag == o1.dispatchLag ? 0 : 1);
+        }
+    };
+
+    private final String topic;
+    // 汇总Topic时为-1
+    private final int queueId;
+    // 写入消息条数与字节数
+    private final AtomicLong putMessages = new AtomicLong(0);
+    private final AtomicLong putBytes = new AtomicLong(0);
+    // 读取消息条数与字节数
+    private final AtomicLong getMessages = new AtomicLong(0);
+    private final AtomicLong getBytes = new AtomicLong(0);
+    // 最后写入的消息物理Offset，没有写入时为-1
+    private final AtomicLong putPhyOffset = new AtomicLong(-1);
+
+    // 以下由统计线程写入
+    private volatile double putMessagesRate = 0;
+    private volatile double putBytesRate = 0;
+    private volatile double getMessagesRate = 0;
+    private volatile double getBytesRate = 0;
+    // 已写入但还没有构建逻辑队列索引的字节数
+    private volatile long dispatchLag = 0;
+    // 上次采样的计数与时间，首次采样计算从创建开始的速率
+    private long lastPutMessages = 0;
+    private long lastPutBytes = 0;
+    private long lastGetMessages = 0;
+    private long lastGetBytes = 0;
+    private long lastSampleTimestamp = System.currentTimeMillis();
+
+
+    public MetaQueueStats(final String topic, final int queueId) {
+        this.topic = topic;
+        this.queueId = queueId;
+    }
+
+
+    /**
+     * 写消息成功后调用
+     */
+    public void onPut(final long wroteOffset, final int wroteBytes) {
+        this.putMessages.incrementAndGet();
+        this.putBytes.addAndGet(wroteBytes);
+        // 多个写线程可能乱序到达，只保留最大值
+        long current = this.putPhyOffset.get();
+        while (wroteOffset > current && !this.putPhyOffset.compareAndSet(current, wroteOffset)) {
+            current = this.putPhyOffset.get();
+        }
+    }
+
+
+    /**
+     * 读到消息后调用
+     */
+    public void onGet(final int messages, final int bytes) {
+        this.getMessages.addAndGet(messages);
+        this.getBytes.addAndGet(bytes);
+    }
+
+
+    /**
+     * 由统计线程定时调用，计算上次采样以来的速率
+     *
+     * @param dispatchedPhyOffset
+     *            逻辑队列已经构建索引的最后一条消息物理Offset
+     */
+    public void sample(final long now, final long dispatchedPhyOffset) {
+        final long putMessages = this.putMessages.get();
+        final long putBytes = this.putBytes.get();
+        final long getMessages = this.getMessages.get();
+        final long getBytes = this.getBytes.get();
+
+        if (now > this.lastSampleTimestamp) {
+            final double seconds = (now - this.lastSampleTimestamp) / 1000.0;
+            this.putMessagesRate = (putMessages - this.lastPutMessages) / seconds;
+            this.putBytesRate = (putBytes - this.lastPutBytes) / seconds;
+            this.getMessagesRate = (getMessages - this.lastGetMessages) / seconds;
+            this.getBytesRate = (getBytes - this.lastGetBytes) / seconds;
+        }
+
+        this.lastPutMessages = putMessages;
+        this.lastPutBytes = putBytes;
+        this.lastGetMessages = getMessages;
+        this.lastGetBytes = getBytes;
+        this.lastSampleTimestamp = now;
+
+        final long lag = this.putPhyOffset.get() - dispatchedPhyOffset;
+        this.dispatchLag = lag > 0 ? lag : 0;
+    }
+
+
+    /**
+     * 汇总同一个Topic下的队列
+     */
+    public void add(final MetaQueueStats other) {
+        this.putMessages.addAndGet(other.putMessages.get());
+        this.putBytes.addAndGet(other.putBytes.get());
+        this.getMessages.addAndGet(other.getMessages.get());
+        this.getBytes.addAndGet(other.getBytes.get());
+        this.putMessagesRate += other.putMessagesRate;
+        this.putBytesRate += other.putBytesRate;
+        this.getMessagesRate += other.getMessagesRate;
+        this.getBytesRate += other.getBytesRate;
+        this.dispatchLag += other.dispatchLag;
+    }
+
+
+    public String getTopic() {
+        return topic;
+    }
+
+
+    public int getQueueId() {
+        return queueId;
+    }
+
+
+    public long getPutMessages() {
+        return putMessages.get();
+    }
+
+
+    public long getPutBytes() {
+        return putBytes.get();
+    }
+
+
+    public long getGetMessages() {
+        return getMessages.get();
+    }
+
+
+    public long getGetBytes() {
+        return getBytes.get();
+    }
+
+
+    public long getPutPhyOffset() {
+        return putPhyOffset.get();
+    }
+
+
+    public double getPutMessagesRate() {
+        return putMessagesRate;
+    }
+
+
+    public double getPutBytesRate() {
+        return putBytesRate;
+    }
+
+
+    public double getGetMessagesRate() {
+        return getMessagesRate;
+    }
+
+
+    public double getGetBytesRate() {
+        return getBytesRate;
+    }
+
+
+    public long getDispatchLag() {
+        return dispatchLag;
+    }
+
+
+    /**
+     * 格式：topic-queueId 写入条数/秒 写入字节/秒 读取条数/秒 读取字节/秒 索引落后字节数
+     */
+    @Override
+    public String toString() {
+        return this.topic + "-" + this.queueId + " " + String.format("%.1f %.1f %.1f %.1f", this.putMessagesRate,
+            this.putBytesRate, this.getMessagesRate, this.getBytesRate) + " " + this.dispatchLag;
+    }
+}
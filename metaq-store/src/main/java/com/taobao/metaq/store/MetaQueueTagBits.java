@@ -0,0 +1,283 @@
+/**
+ * $Id: MetaQueueTagBits.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * 逻辑队列的消息类型位图，与逻辑队列存储单元一一对应，拉消息时用来按页跳过不可能匹配的消息<br>
+ * 存储单元=Version(1Byte)+Bloom(7Byte)，由分发消息线程串行写入，且先于逻辑队列存储单元写入<br>
+ * Version为0表示没有位图（老数据或者未写入），按照可能匹配处理，逻辑队列格式不变
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class MetaQueueTagBits {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 存储单元大小
+    public static final int StoreUnitSize = 8;
+    // 存储单元格式版本
+    public static final long Version = 1;
+    // 每页对应的逻辑队列存储单元个数，一页为逻辑队列的一个OS Page
+    public static final int PageUnits = MapedFile.OS_PAGE_SIZE / MetaQueueLogistic.StoreUnitSize;
+    // Bloom占用的位数
+    private static final int BloomBits = 56;
+    // 版本号在存储单元中的位置
+    private static final int VersionShift = 56;
+    // 每页汇总位图的缓存个数，必须为2的幂
+    private static final int SummarySlotNums = 256;
+    // 页汇总位图中有无效存储单元时，认为任意类型都可能匹配
+    private static final long UnknownSummary = -1L;
+
+    // 存储顶层对象
+    private final DefaultMetaStore defaultMetaStore;
+    // 存储位图的队列
+    private final MapedFileQueue mapedFileQueue;
+    // Topic
+    private final String topic;
+    // queueId
+    private final int queueId;
+    // 写位图时用到的ByteBuffer
+    private final ByteBuffer byteBufferIndex;
+    // 页汇总位图缓存，槽位对应的页序号
+    private final AtomicLongArray summaryPages = new AtomicLongArray(SummarySlotNums);
+    // 页汇总位图缓存，槽位对应的汇总位图
+    private final AtomicLongArray summaryBits = new AtomicLongArray(SummarySlotNums);
+
+
+    public MetaQueueTagBits(DefaultMetaStore defaultMetaStore, String topic, int queueId) {
+        this.defaultMetaStore = defaultMetaStore;
+        this.topic = topic;
+        this.queueId = queueId;
+
+        String queueDir = defaultMetaStore.getMetaStoreConfig().getStorePathTagBits()//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        // 文件与逻辑队列文件一一对应
+        int mapedFileSize =
+                defaultMetaStore.getMetaStoreConfig().getMapedFileSizeLogics() / MetaQueueLogistic.StoreUnitSize
+                        * StoreUnitSize;
+        this.mapedFileQueue =
+                new MapedFileQueue(queueDir, mapedFileSize, defaultMetaStore.getAllocateMapedFileService());
+
+        this.byteBufferIndex = ByteBuffer.allocate(StoreUnitSize);
+        this.clearSummary();
+    }
+
+
+    /**
+     * 消息类型的Bloom位，由类型的hashCode计算，与逻辑队列中的类型保持一致
+     */
+    public static long tagBits(final int typeHash) {
+        long h = typeHash * 0x9E3779B97F4A7C15L;
+        h ^= (h >>> 29);
+        long bits = 0;
+        bits |= 1L << ((h & 0xFFFF) % BloomBits);
+        bits |= 1L << (((h >>> 16) & 0xFFFF) % BloomBits);
+        bits |= 1L << (((h >>> 32) & 0xFFFF) % BloomBits);
+        return bits;
+    }
+
+
+    /**
+     * 根据订阅的类型计算每个类型的Bloom位，不需要过滤时返回null
+     */
+    public static long[] buildMasks(final Set<Integer> types) {
+        if (null == types || types.isEmpty() || types.contains(DefaultMessageFilter.defaultHashCode)) {
+            return null;
+        }
+
+        long[] masks = new long[types.size()];
+        int i = 0;
+        for (Integer type : types) {
+            masks[i++] = tagBits(type);
+        }
+        return masks;
+    }
+
+
+    private static boolean isMatched(final long bits, final long[] masks) {
+        for (long mask : masks) {
+            if ((bits & mask) == mask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load tag bits " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 删除逻辑Offset大于等于maxLogicOffset的位图，逻辑队列恢复后调用
+     */
+    public void truncateDirty(final long maxLogicOffset) {
+        this.mapedFileQueue.truncateDirtyFiles(maxLogicOffset * StoreUnitSize);
+        this.clearSummary();
+    }
+
+
+    /**
+     * 存储一条消息的类型位图，只有分发消息线程调用，所以不需要加锁
+     */
+    public boolean putBits(final long logicOffset, final int msgType) {
+        final long realOffset = logicOffset * StoreUnitSize;
+        final int mapedFileSize = this.mapedFileQueue.getMapedFileSize();
+
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile2();
+        if (mapedFile != null) {
+            long wroteWhere = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+            // 恢复时重新分发消息，位图可能比逻辑队列多，以逻辑队列为准
+            if (realOffset < wroteWhere) {
+                log.info("tag bits ahead of logics queue, truncate it, " + this.topic + "-" + this.queueId + " "
+                        + realOffset + " " + wroteWhere);
+                this.truncateDirty(logicOffset);
+                mapedFile = this.mapedFileQueue.getLastMapedFile2();
+            }
+
+            // 与逻辑队列相差一个文件以上，之前的位图不再保留
+            if (mapedFile != null && realOffset >= mapedFile.getFileFromOffset() + 2L * mapedFileSize) {
+                log.warn("tag bits fall behind too much, rebuild it, " + this.topic + "-" + this.queueId + " "
+                        + realOffset + " " + wroteWhere);
+                this.mapedFileQueue.destroy();
+                this.clearSummary();
+            }
+        }
+
+        mapedFile = this.mapedFileQueue.getLastMapedFile(realOffset);
+        if (null == mapedFile) {
+            return false;
+        }
+
+        // 缺少的位图补0，按照可能匹配处理
+        long wroteWhere = mapedFile.getFileFromOffset() + mapedFile.getWrotePostion();
+        if (realOffset > wroteWhere) {
+            this.fillBlank(mapedFile, realOffset);
+            if (mapedFile.isFull()) {
+                mapedFile = this.mapedFileQueue.getLastMapedFile(realOffset);
+                if (null == mapedFile) {
+                    return false;
+                }
+                this.fillBlank(mapedFile, realOffset);
+            }
+        }
+
+        this.byteBufferIndex.flip();
+        this.byteBufferIndex.limit(StoreUnitSize);
+        this.byteBufferIndex.putLong((Version << VersionShift) | tagBits(msgType));
+        return mapedFile.appendMessage(this.byteBufferIndex.array());
+    }
+
+
+    private void fillBlank(final MapedFile mapedFile, final long untilWhere) {
+        byte[] blank = new byte[StoreUnitSize];
+        while (!mapedFile.isFull()
+                && (mapedFile.getFileFromOffset() + mapedFile.getWrotePostion()) < untilWhere) {
+            mapedFile.appendMessage(blank);
+        }
+    }
+
+
+    /**
+     * 从logicOffset所在页开始，跳过汇总位图不可能匹配的完整页
+     *
+     * @param endLogicOffset
+     *            只检查结束位置不大于此值的页
+     * @return 第一条可能匹配的消息的逻辑Offset，不小于logicOffset
+     */
+    public long skipUnmatchedPages(final long logicOffset, final long endLogicOffset, final long[] masks) {
+        long page = logicOffset / PageUnits;
+        while ((page + 1) * PageUnits <= endLogicOffset && !isMatched(this.getPageSummary(page), masks)) {
+            page++;
+        }
+
+        return Math.max(logicOffset, page * PageUnits);
+    }
+
+
+    /**
+     * 获取完整页的汇总位图，页内任意存储单元没有位图时返回UnknownSummary
+     */
+    private long getPageSummary(final long page) {
+        final int slot = (int) (page & (SummarySlotNums - 1));
+        if (this.summaryPages.get(slot) == page) {
+            long summary = this.summaryBits.get(slot);
+            if (this.summaryPages.get(slot) == page) {
+                return summary;
+            }
+        }
+
+        long summary = UnknownSummary;
+        final long offset = page * PageUnits * StoreUnitSize;
+        final int size = PageUnits * StoreUnitSize;
+        MapedFile mapedFile = null;
+        if (offset >= this.mapedFileQueue.getMinOffset() && (offset + size) <= this.mapedFileQueue.getMaxOffset()) {
+            mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        }
+        if (mapedFile != null) {
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (offset % this.mapedFileQueue.getMapedFileSize()), size);
+            if (result != null) {
+                try {
+                    summary = 0;
+                    for (int i = 0; i < size; i += StoreUnitSize) {
+                        long bits = result.getByteBuffer().getLong();
+                        if ((bits >>> VersionShift) != Version) {
+                            summary = UnknownSummary;
+                            break;
+                        }
+                        summary |= bits;
+                    }
+                }
+                finally {
+                    result.release();
+                }
+            }
+        }
+
+        // 完整页的位图不会再变化，没有位图的页同样缓存，避免重复读取
+        this.summaryPages.set(slot, -1);
+        this.summaryBits.set(slot, summary);
+        this.summaryPages.set(slot, page);
+
+        return summary;
+    }
+
+
+    private void clearSummary() {
+        for (int i = 0; i < SummarySlotNums; i++) {
+            this.summaryPages.set(i, -1);
+        }
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mapedFileQueue.commit(flushLeastPages);
+    }
+
+
+    /**
+     * 删除位图全部小于minLogicOffset的文件
+     */
+    public int deleteExpiredFile(final long minLogicOffset) {
+        return this.mapedFileQueue.deleteExpiredFileByFileOffset(minLogicOffset * StoreUnitSize);
+    }
+
+
+    public void destroy() {
+        this.mapedFileQueue.destroy();
+        this.clearSummary();
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * $Id: MetaQueueTimeIndex.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * 逻辑队列的稀疏时间索引，每隔若干条消息或者若干毫秒记录一条，按时间查询Offset时使用<br>
+ * 时间索引由分发消息线程串行写入，存储单元=LogicOffset(8Byte)+StoreTimestamp(8Byte)
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class MetaQueueTimeIndex {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 存储单元大小，与逻辑队列一致，删除过期文件时复用逻辑队列的判断方式
+    public static final int StoreUnitSize = 16;
+    // 存储顶层对象
+    private final DefaultMetaStore defaultMetaStore;
+    // 存储时间索引的队列
+    private final MapedFileQueue mapedFileQueue;
+    // Topic
+    private final String topic;
+    // queueId
+    private final int queueId;
+    // 最后一条索引对应的逻辑队列Offset
+    private long lastLogicOffset = -1;
+    // 最后一条索引对应的消息存储时间
+    private long lastStoreTimestamp = -1;
+    // 写索引时用到的ByteBuffer
+    private final ByteBuffer byteBufferIndex;
+
+
+    public MetaQueueTimeIndex(DefaultMetaStore defaultMetaStore, String topic, int queueId) {
+        this.defaultMetaStore = defaultMetaStore;
+        this.topic = topic;
+        this.queueId = queueId;
+
+        String queueDir = defaultMetaStore.getMetaStoreConfig().getStorePathTimeIndex()//
+                + File.separator + topic//
+                + File.separator + queueId;//
+
+        this.mapedFileQueue =
+                new MapedFileQueue(queueDir, defaultMetaStore.getMetaStoreConfig().getMapedFileSizeTimeIndex(),
+                    defaultMetaStore.getAllocateMapedFileService());
+
+        this.byteBufferIndex = ByteBuffer.allocate(StoreUnitSize);
+    }
+
+
+    public boolean load() {
+        boolean result = this.mapedFileQueue.load();
+        log.info("load time index " + this.topic + "-" + this.queueId + " " + (result ? "OK" : "Failed"));
+        return result;
+    }
+
+
+    /**
+     * 找到最后一条有效索引，截断后面的数据
+     */
+    public void recover() {
+        final List<MapedFile> mapedFiles = this.mapedFileQueue.getMapedFiles();
+        if (!mapedFiles.isEmpty()) {
+            // 从倒数第三个文件开始恢复
+            int index = mapedFiles.size() - 3;
+            if (index < 0)
+                index = 0;
+
+            int mapedFileSize = this.mapedFileQueue.getMapedFileSize();
+            MapedFile mapedFile = mapedFiles.get(index);
+            ByteBuffer byteBuffer = mapedFile.sliceByteBuffer();
+            long processOffset = mapedFile.getFileFromOffset();
+            long mapedFileOffset = 0;
+            while (true) {
+                for (int i = 0; i < mapedFileSize; i += StoreUnitSize) {
+                    long logicOffset = byteBuffer.getLong();
+                    long storeTimestamp = byteBuffer.getLong();
+
+                    // 说明当前存储单元有效
+                    if (logicOffset >= 0 && storeTimestamp > 0) {
+                        mapedFileOffset = i + StoreUnitSize;
+                        this.lastLogicOffset = logicOffset;
+                        this.lastStoreTimestamp = storeTimestamp;
+                    }
+                    else {
+                        break;
+                    }
+                }
+
+                // 走到文件末尾，切换至下一个文件
+                if (mapedFileOffset == mapedFileSize && (index + 1) < mapedFiles.size()) {
+                    index++;
+                    mapedFile = mapedFiles.get(index);
+                    byteBuffer = mapedFile.sliceByteBuffer();
+                    processOffset = mapedFile.getFileFromOffset();
+                    mapedFileOffset = 0;
+                }
+                else {
+                    log.info("recover time index " + this.topic + "-" + this.queueId + " over, "
+                            + (processOffset + mapedFileOffset));
+                    break;
+                }
+            }
+
+            processOffset += mapedFileOffset;
+            this.mapedFileQueue.truncateDirtyFiles(processOffset);
+        }
+    }
+
+
+    /**
+     * 删除逻辑Offset大于等于maxLogicOffset的索引，逻辑队列恢复后调用
+     */
+    public void truncateDirty(final long maxLogicOffset) {
+        if (this.lastLogicOffset < maxLogicOffset) {
+            return;
+        }
+
+        long index = this.findFirstIndex(maxLogicOffset, true);
+        this.mapedFileQueue.truncateDirtyFiles(index * StoreUnitSize);
+
+        this.lastLogicOffset = -1;
+        this.lastStoreTimestamp = -1;
+        long[] last = this.readIndex(this.mapedFileQueue.getMaxOffset() / StoreUnitSize - 1);
+        if (last != null) {
+            this.lastLogicOffset = last[0];
+            this.lastStoreTimestamp = last[1];
+        }
+
+        log.info("truncate time index " + this.topic + "-" + this.queueId + " to logic offset "
+                + this.lastLogicOffset);
+    }
+
+
+    /**
+     * 是否需要为这条消息记录时间索引
+     */
+    public boolean isIndexNeeded(final long logicOffset, final long storeTimestamp) {
+        if (logicOffset <= this.lastLogicOffset) {
+            return false;
+        }
+
+        if (this.lastLogicOffset < 0) {
+            return true;
+        }
+
+        MetaStoreConfig config = this.defaultMetaStore.getMetaStoreConfig();
+        return (logicOffset - this.lastLogicOffset) >= config.getTimeIndexIntervalMessages()
+                || (storeTimestamp - this.lastStoreTimestamp) >= config.getTimeIndexIntervalMillis();
+    }
+
+
+    /**
+     * 存储一条时间索引，只有分发消息线程调用，所以不需要加锁
+     */
+    public boolean putIndex(final long logicOffset, final long storeTimestamp) {
+        this.byteBufferIndex.flip();
+        this.byteBufferIndex.limit(StoreUnitSize);
+        this.byteBufferIndex.putLong(logicOffset);
+        this.byteBufferIndex.putLong(storeTimestamp);
+
+        MapedFile mapedFile = this.mapedFileQueue.getLastMapedFile();
+        if (mapedFile != null && mapedFile.appendMessage(this.byteBufferIndex.array())) {
+            this.lastLogicOffset = logicOffset;
+            this.lastStoreTimestamp = storeTimestamp;
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 查找timestamp所在的逻辑Offset区间
+     *
+     * @return [最后一条存储时间小于timestamp的逻辑Offset, 第一条存储时间不小于timestamp的逻辑Offset]，不存在的位置为-1
+     */
+    public long[] lookup(final long timestamp) {
+        long[] range = new long[] { -1, -1 };
+        long index = this.findFirstIndex(timestamp, false);
+
+        long[] left = this.readIndex(index - 1);
+        if (left != null) {
+            range[0] = left[0];
+        }
+
+        long[] right = this.readIndex(index);
+        if (right != null) {
+            range[1] = right[0];
+        }
+
+        return range;
+    }
+
+
+    /**
+     * 二分查找第一条不小于value的索引位置
+     *
+     * @param byLogicOffset
+     *            true按照逻辑Offset比较，false按照存储时间比较
+     */
+    private long findFirstIndex(final long value, final boolean byLogicOffset) {
+        long low = Math.max(this.mapedFileQueue.getMinOffset(), 0) / StoreUnitSize;
+        long high = this.mapedFileQueue.getMaxOffset() / StoreUnitSize;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            long[] entry = this.readIndex(mid);
+            if (null == entry) {
+                break;
+            }
+
+            long current = byLogicOffset ? entry[0] : entry[1];
+            if (current < value) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * 读取第index条索引
+     *
+     * @return [逻辑Offset, 存储时间]，不存在返回null
+     */
+    private long[] readIndex(final long index) {
+        long offset = index * StoreUnitSize;
+        if (index < 0 || offset < this.mapedFileQueue.getMinOffset()
+                || (offset + StoreUnitSize) > this.mapedFileQueue.getMaxOffset()) {
+            return null;
+        }
+
+        MapedFile mapedFile = this.mapedFileQueue.findMapedFileByOffset(offset);
+        if (mapedFile != null) {
+            SelectMapedBufferResult result =
+                    mapedFile.selectMapedBuffer((int) (offset % this.mapedFileQueue.getMapedFileSize()),
+                        StoreUnitSize);
+            if (result != null) {
+                try {
+                    return new long[] { result.getByteBuffer().getLong(), result.getByteBuffer().getLong() };
+                }
+                finally {
+                    result.release();
+                }
+            }
+        }
+
+        return null;
+    }
+
+
+    public boolean commit(final int flushLeastPages) {
+        return this.mapedFileQueue.commit(flushLeastPages);
+    }
+
+
+    /**
+     * 删除索引全部小于minLogicOffset的文件
+     */
+    public int deleteExpiredFile(final long minLogicOffset) {
+        return this.mapedFileQueue.deleteExpiredFileByOffset(minLogicOffset);
+    }
+
+
+    public long getLastLogicOffset() {
+        return lastLogicOffset;
+    }
+
+
+    public void destroy() {
+        this.lastLogicOffset = -1;
+        this.lastStoreTimestamp = -1;
+        this.mapedFileQueue.destroy();
+    }
+}
@@ -4,9 +4,13 @@
 package com.taobao.metaq.store;
 
 import java.text.MessageFormat;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.log4j.Logger;
 
@@ -17,7 +21,7 @@ import com.taobao.metaq.commons.ServiceThread;
  * 
  * @author vintage.wang@gmail.com shijia.wxr@taobao.com
  */
-public class MetaStatsService extends ServiceThread {
+public class MetaStatsService extends ServiceThread implements MetaStatsServiceMBean {
     static class CallSnapshot {
         public final long timestamp;
         public final long callTimesTotal;
@@ -39,18 +43,54 @@ public class MetaStatsService extends ServiceThread {
         }
     }
 
+    /**
+     * 采样环形数组，只有采样线程写入，读取不加锁
+     */
+    static class CallSnapshotRing {
+        // 比最多读取的采样个数多一个，读取最早的采样时不会被采样线程覆盖
+        private final AtomicReferenceArray<CallSnapshot> snapshots = new AtomicReferenceArray<CallSnapshot>(
+            MaxRecordsOfSampling + 2);
+        private volatile long sampleTimes = 0;
+
+
+        public void add(final CallSnapshot snapshot) {
+            final long times = this.sampleTimes;
+            this.snapshots.set((int) (times % this.snapshots.length()), snapshot);
+            this.sampleTimes = times + 1;
+        }
+
+
+        /**
+         * 最近time秒的TPS，采样不足时返回null
+         */
+        public Double getTPS(final int time) {
+            final long times = this.sampleTimes;
+            if (times <= time) {
+                return null;
+            }
+
+            CallSnapshot last = this.snapshots.get((int) ((times - 1) % this.snapshots.length()));
+            CallSnapshot lastBefore = this.snapshots.get((int) ((times - 1 - time) % this.snapshots.length()));
+            return CallSnapshot.getTPS(lastBefore, last);
+        }
+    }
+
     private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
     // 启动时间
     private long metaStoreBootTimestamp = System.currentTimeMillis();
-    // putMessage，写入整个消息耗时，含加锁竟争时间（单位毫秒）
-    private volatile long putMessageEntireTimeMax = 0;
-    // getMessage，读取一批消息耗时，含加锁竟争时间（单位毫秒）
-    private volatile long getMessageEntireTimeMax = 0;
-
-    // for putMessageEntireTimeMax
-    private ReentrantLock lockPut = new ReentrantLock();
-    // for getMessageEntireTimeMax
-    private ReentrantLock lockGet = new ReentrantLock();
+    // putMessage，写入整个消息耗时，含加锁竟争时间（单位微秒）
+    private final LatencyRecorder putLatencyRecorder = new LatencyRecorder("put");
+    // getMessage，读取一批消息耗时（单位微秒）
+    private final LatencyRecorder getLatencyRecorder = new LatencyRecorder("get");
+    // 物理队列刷盘耗时，只记录有数据刷盘的调用（单位微秒）
+    private final LatencyRecorder flushLatencyRecorder = new LatencyRecorder("flush");
+    // 消息写入物理队列到逻辑队列可见的延迟（单位微秒，精度毫秒）
+    private final LatencyRecorder dispatchLatencyRecorder = new LatencyRecorder("dispatch");
+    // 写入线程等待创建下一个文件的耗时（单位微秒）
+    private final LatencyRecorder allocateLatencyRecorder = new LatencyRecorder("allocate");
+    private final LatencyRecorder[] latencyRecorders = { this.putLatencyRecorder, this.getLatencyRecorder,
+                                                        this.flushLatencyRecorder, this.dispatchLatencyRecorder,
+                                                        this.allocateLatencyRecorder };
 
     // putMessage，失败次数
     private final AtomicLong putMessageFailedTimes = new AtomicLong(0);
@@ -62,93 +102,140 @@ public class MetaStatsService extends ServiceThread {
     private final AtomicLong getMessageTimesTotalMiss = new AtomicLong(0);
     // putMessage，Message Size Total
     private final AtomicLong putMessageSizeTotal = new AtomicLong(0);
-    // putMessage，耗时分布
-    private final AtomicLong[] putMessageDistributeTime = new AtomicLong[7];
     // DispatchMessageService，缓冲区最大值
     private volatile long dispatchMaxBuffer = 0;
+    // DispatchMessageService，缓冲区满导致写消息线程等待的次数
+    private final AtomicLong dispatchBufferFullTimes = new AtomicLong(0);
+    // 启动恢复，需要校验的物理队列字节数
+    private final AtomicLong recoverPhysicTotalSize = new AtomicLong(0);
+    // 启动恢复，已经校验的物理队列字节数
+    private final AtomicLong recoverPhysicCheckedSize = new AtomicLong(0);
+    // 启动恢复，逻辑队列总数
+    private final AtomicLong recoverLogicsTotal = new AtomicLong(0);
+    // 启动恢复，已经恢复的逻辑队列数
+    private final AtomicLong recoverLogicsRecovered = new AtomicLong(0);
+    // 启动恢复，开始与结束时间
+    private volatile long recoverBeginTimestamp = 0;
+    private volatile long recoverEndTimestamp = 0;
+    // 启动恢复，是否根据正常关闭时的快照直接恢复
+    private volatile boolean recoverBySnapshot = false;
+    // getMessage，第一条消息在内存的次数
+    private final AtomicLong getMessageHotTimes = new AtomicLong(0);
+    // getMessage，第一条消息在磁盘的次数
+    private final AtomicLong getMessageColdTimes = new AtomicLong(0);
+    // getMessage，根据类型位图按页跳过的逻辑队列存储单元个数
+    private final AtomicLong getMessageSkippedUnits = new AtomicLong(0);
+    // getMessage，hashCode匹配但是类型名称不匹配被过滤的消息条数
+    private final AtomicLong getMessageTypeMismatchCount = new AtomicLong(0);
+    // getMessage，与上一条消息物理连续，合并到同一个区间的消息条数
+    private final AtomicLong getMessageCoalescedCount = new AtomicLong(0);
+    // PageCache估算，未开启时为null
+    private volatile PageCacheResidency pageCacheResidency = null;
+    // 物理队列冷存储，未开启时为null
+    private volatile ColdPhysicQueue coldPhysicQueue = null;
+    // 物理队列本地压缩文件，未开启时为null
+    private volatile ColdPhysicQueue compressedPhysicQueue = null;
+    // 物理队列自适应刷盘控制
+    private volatile AdaptiveFlushController physicFlushController = null;
+    // 逻辑队列自适应刷盘控制
+    private volatile AdaptiveFlushController logicsFlushController = null;
+    // 后台回收过期物理文件服务，未开启时为null
+    private volatile ReclaimMapedFileService reclaimMapedFileService = null;
+    // 物理队列写缓冲池，未开启时为null
+    private volatile TransientStorePool transientStorePool = null;
+    // 逻辑队列，用于采样每个队列的读写速率
+    private volatile ConcurrentHashMap<String/* topic */, ConcurrentHashMap<Integer/* queueId */, MetaQueueLogistic>> metaQueueLogisticTable =
+            null;
+    // 队列速率采样间隔
+    private static final int QueueStatsSampleInterval = 1000 * 10;
+    private long lastQueueStatsSampleTimestamp = 0;
+    // 运行数据中打印的最热队列个数
+    private static final int PrintHotQueueNums = 5;
 
     // 采样频率，1秒钟采样一次
     private static final int FrequencyOfSampling = 1000;
-    // 采样最大记录数，超过则将之前的删除掉
+    // 采样最大记录数，超过则将之前的覆盖掉
     private static final int MaxRecordsOfSampling = 60 * 10;
-    // 针对采样线程加锁
-    private ReentrantLock lockSampling = new ReentrantLock();
 
     // put最近10分钟采样
-    private final LinkedList<CallSnapshot> putTimesList = new LinkedList<CallSnapshot>();
+    private final CallSnapshotRing putTimesList = new CallSnapshotRing();
     // get最近10分钟采样
-    private final LinkedList<CallSnapshot> getTimesFoundList = new LinkedList<CallSnapshot>();
-    private final LinkedList<CallSnapshot> getTimesMissList = new LinkedList<CallSnapshot>();
-    private final LinkedList<CallSnapshot> transferedMsgCountList = new LinkedList<CallSnapshot>();
+    private final CallSnapshotRing getTimesFoundList = new CallSnapshotRing();
+    private final CallSnapshotRing getTimesMissList = new CallSnapshotRing();
+    private final CallSnapshotRing transferedMsgCountList = new CallSnapshotRing();
 
     // 打印TPS数据间隔时间，单位秒，1分钟
     private static int PrintTPSInterval = 60 * 1;
     private long lastPrintTimestamp = System.currentTimeMillis();
 
 
-    public MetaStatsService() {
-        for (int i = 0; i < this.putMessageDistributeTime.length; i++) {
-            putMessageDistributeTime[i] = new AtomicLong(0);
-        }
+    public LatencyRecorder getPutLatencyRecorder() {
+        return putLatencyRecorder;
     }
 
 
-    public long getPutMessageEntireTimeMax() {
-        return putMessageEntireTimeMax;
+    public LatencyRecorder getGetLatencyRecorder() {
+        return getLatencyRecorder;
     }
 
 
-    public void setPutMessageEntireTimeMax(long value) {
-        // 微秒
-        if (value <= 0) {
-            this.putMessageDistributeTime[0].incrementAndGet();
-        }
-        // 几毫秒
-        else if (value < 10) {
-            this.putMessageDistributeTime[1].incrementAndGet();
-        }
-        // 几十毫秒
-        else if (value < 100) {
-            this.putMessageDistributeTime[2].incrementAndGet();
-        }
-        // 几百毫秒（500毫秒以内）
-        else if (value < 500) {
-            this.putMessageDistributeTime[3].incrementAndGet();
-        }
-        // 几百毫秒（500毫秒以上）
-        else if (value < 1000) {
-            this.putMessageDistributeTime[4].incrementAndGet();
-        }
-        // 几秒
-        else if (value < 10000) {
-            this.putMessageDistributeTime[5].incrementAndGet();
-        }
-        // 大等于10秒
-        else {
-            this.putMessageDistributeTime[6].incrementAndGet();
-        }
+    public LatencyRecorder getFlushLatencyRecorder() {
+        return flushLatencyRecorder;
+    }
 
-        if (value > this.putMessageEntireTimeMax) {
-            this.lockPut.lock();
-            this.putMessageEntireTimeMax =
-                    value > this.putMessageEntireTimeMax ? value : this.putMessageEntireTimeMax;
-            this.lockPut.unlock();
-        }
+
+    public LatencyRecorder getDispatchLatencyRecorder() {
+        return dispatchLatencyRecorder;
     }
 
 
-    public long getGetMessageEntireTimeMax() {
-        return getMessageEntireTimeMax;
+    public LatencyRecorder getAllocateLatencyRecorder() {
+        return allocateLatencyRecorder;
     }
 
 
-    public void setGetMessageEntireTimeMax(long value) {
-        if (value > this.getMessageEntireTimeMax) {
-            this.lockGet.lock();
-            this.getMessageEntireTimeMax =
-                    value > this.getMessageEntireTimeMax ? value : this.getMessageEntireTimeMax;
-            this.lockGet.unlock();
+    /**
+     * 格式：10秒、1分钟、10分钟窗口的p50 p99 p999 max，窗口之间用逗号分隔
+     */
+    private static String getLatencyInfo(final LatencyRecorder recorder) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LatencyRecorder.WindowNames.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(LatencyRecorder.WindowNames[i]).append(": ").append(recorder.getPercentilesString(i));
         }
+        return sb.toString();
+    }
+
+
+    public String getPutLatency() {
+        return getLatencyInfo(this.putLatencyRecorder);
+    }
+
+
+    public String getGetLatency() {
+        return getLatencyInfo(this.getLatencyRecorder);
+    }
+
+
+    public String getFlushLatency() {
+        return getLatencyInfo(this.flushLatencyRecorder);
+    }
+
+
+    public String getDispatchLatency() {
+        return getLatencyInfo(this.dispatchLatencyRecorder);
+    }
+
+
+    public String getAllocateLatency() {
+        return getLatencyInfo(this.allocateLatencyRecorder);
+    }
+
+
+    public String getRunningDataInfo() {
+        return this.toString();
     }
 
 
@@ -172,17 +259,69 @@ public class MetaStatsService extends ServiceThread {
     }
 
 
-    private String getPutMessageDistributeTimeStringInfo(Long total) {
-        final StringBuilder sb = new StringBuilder(512);
+    public AtomicLong getDispatchBufferFullTimes() {
+        return dispatchBufferFullTimes;
+    }
 
-        for (AtomicLong i : this.putMessageDistributeTime) {
-            long value = i.get();
-            double ratio = value / total.doubleValue();
-            sb.append("\r\n\t\t");
-            sb.append(value + "(" + (ratio * 100) + "%)");
-        }
 
-        return sb.toString();
+    public AtomicLong getRecoverPhysicTotalSize() {
+        return recoverPhysicTotalSize;
+    }
+
+
+    public AtomicLong getRecoverPhysicCheckedSize() {
+        return recoverPhysicCheckedSize;
+    }
+
+
+    public AtomicLong getRecoverLogicsTotal() {
+        return recoverLogicsTotal;
+    }
+
+
+    public AtomicLong getRecoverLogicsRecovered() {
+        return recoverLogicsRecovered;
+    }
+
+
+    public long getRecoverBeginTimestamp() {
+        return recoverBeginTimestamp;
+    }
+
+
+    public void setRecoverBeginTimestamp(long recoverBeginTimestamp) {
+        this.recoverBeginTimestamp = recoverBeginTimestamp;
+    }
+
+
+    public long getRecoverEndTimestamp() {
+        return recoverEndTimestamp;
+    }
+
+
+    public void setRecoverEndTimestamp(long recoverEndTimestamp) {
+        this.recoverEndTimestamp = recoverEndTimestamp;
+    }
+
+
+    public boolean isRecoverBySnapshot() {
+        return recoverBySnapshot;
+    }
+
+
+    public void setRecoverBySnapshot(boolean recoverBySnapshot) {
+        this.recoverBySnapshot = recoverBySnapshot;
+    }
+
+
+    /**
+     * 启动恢复进度，格式：物理队列已校验/总字节数 逻辑队列已恢复/总数 耗时毫秒
+     */
+    public String getRecoverProgress() {
+        long end = this.recoverEndTimestamp > 0 ? this.recoverEndTimestamp : System.currentTimeMillis();
+        long spent = this.recoverBeginTimestamp > 0 ? end - this.recoverBeginTimestamp : 0;
+        return this.recoverPhysicCheckedSize.get() + "/" + this.recoverPhysicTotalSize.get() + " "
+                + this.recoverLogicsRecovered.get() + "/" + this.recoverLogicsTotal.get() + " " + spent + "ms";
     }
 
 
@@ -219,210 +358,158 @@ public class MetaStatsService extends ServiceThread {
         }
 
         sb.append("\truntime: " + this.getFormatRuntime() + "\r\n");
-        sb.append("\tputMessageEntireTimeMax: " + this.putMessageEntireTimeMax + "\r\n");
         sb.append("\tputMessageTimesTotal: " + totalTimes + "\r\n");
         sb.append("\tputMessageSizeTotal: " + this.putMessageSizeTotal.get() + "\r\n");
-        sb.append("\tputMessageDistributeTime: " + this.getPutMessageDistributeTimeStringInfo(totalTimes) + "\r\n");
         sb.append("\tputMessageAverageSize: " + (this.putMessageSizeTotal.get() / totalTimes.doubleValue())
                 + "\r\n");
         sb.append("\tdispatchMaxBuffer: " + this.dispatchMaxBuffer + "\r\n");
-        sb.append("\tgetMessageEntireTimeMax: " + this.getMessageEntireTimeMax + "\r\n");
-        sb.append("\tputTps: " + this.getPutTps() + "\r\n");
-        sb.append("\tgetFoundTps: " + this.getGetFoundTps() + "\r\n");
-        sb.append("\tgetMissTps: " + this.getGetMissTps() + "\r\n");
+        sb.append("\tdispatchBufferFullTimes: " + this.dispatchBufferFullTimes.get() + "\r\n");
+        sb.append("\trecoverProgress: " + this.getRecoverProgress() + "\r\n");
+        sb.append("\trecoverBySnapshot: " + this.recoverBySnapshot + "\r\n");
+        sb.append("\ttransientStorePoolEnable: " + this.isTransientStorePoolEnable() + "\r\n");
+        if (this.transientStorePool != null) {
+            sb.append("\ttransientStorePoolAvailable: " + this.transientStorePool.availableBufferNums() + "/"
+                    + this.transientStorePool.getPoolSize() + "\r\n");
+            sb.append("\ttransientStorePoolBorrowFailedTimes: " + this.transientStorePool.getBorrowFailedTimes()
+                    + "\r\n");
+        }
+        sb.append("\tgetMessageHotColdTimes: " + this.getMessageHotTimes.get() + " "
+                + this.getMessageColdTimes.get() + " " + this.getGetMessageHotRatio() + "\r\n");
+        sb.append("\tgetMessageSkippedUnits: " + this.getMessageSkippedUnits.get() + "\r\n");
+        sb.append("\tgetMessageTypeMismatchCount: " + this.getMessageTypeMismatchCount.get() + "\r\n");
+        sb.append("\tgetMessageCoalescedCount: " + this.getMessageCoalescedCount.get() + "\r\n");
+        if (this.pageCacheResidency != null) {
+            sb.append("\tpageCacheEstimatedResidentBytes: " + this.pageCacheResidency.getEstimatedResidentBytes()
+                    + "\r\n");
+        }
+        appendBlockQueueInfo(sb, "cold", this.coldPhysicQueue);
+        appendBlockQueueInfo(sb, "compressed", this.compressedPhysicQueue);
+        appendFlushControllerInfo(sb, this.physicFlushController);
+        appendFlushControllerInfo(sb, this.logicsFlushController);
+        if (this.reclaimMapedFileService != null) {
+            sb.append("\treclaimPendingFiles: " + this.reclaimMapedFileService.getPendingFiles() + "\r\n");
+            sb.append("\treclaimFileTimes: " + this.reclaimMapedFileService.getReclaimFileTimes() + " "
+                    + this.reclaimMapedFileService.getReclaimForciblyTimes() + "\r\n");
+            sb.append("\treclaimTruncatedBytes: " + this.reclaimMapedFileService.getReclaimTruncatedBytes()
+                    + "\r\n");
+            sb.append("\treclaimTimeLastMax: " + this.reclaimMapedFileService.getReclaimTimeLast() + " "
+                    + this.reclaimMapedFileService.getReclaimTimeMax() + "\r\n");
+        }
+        for (LatencyRecorder recorder : this.latencyRecorders) {
+            sb.append("\t" + recorder.getName() + "Latency: " + getLatencyInfo(recorder) + "\r\n");
+        }
+        for (MetaQueueStats stats : this.getTopQueuesByRate(MetaQueueStats.ByPutBytesRate, PrintHotQueueNums)) {
+            if (stats.getPutBytesRate() > 0) {
+                sb.append("\thotPutQueue: " + stats + "\r\n");
+            }
+        }
+        for (MetaQueueStats stats : this.getTopQueuesByRate(MetaQueueStats.ByGetBytesRate, PrintHotQueueNums)) {
+            if (stats.getGetBytesRate() > 0) {
+                sb.append("\thotGetQueue: " + stats + "\r\n");
+            }
+        }
+        sb.append("\tputTps: " + getTps(this.putTimesList) + "\r\n");
+        sb.append("\tgetFoundTps: " + getTps(this.getTimesFoundList) + "\r\n");
+        sb.append("\tgetMissTps: " + getTps(this.getTimesMissList) + "\r\n");
         sb.append("\tgetTotalTps: " + this.getGetTotalTps() + "\r\n");
-        sb.append("\tgetTransferedTps: " + this.getGetTransferedTps() + "\r\n");
+        sb.append("\tgetTransferedTps: " + getTps(this.transferedMsgCountList) + "\r\n");
         return sb.toString();
     }
 
 
     private void sampling() {
-        this.lockSampling.lock();
-
-        this.putTimesList.add(new CallSnapshot(System.currentTimeMillis(), this.putMessageTimesTotal.get()));
-        if (this.putTimesList.size() > (MaxRecordsOfSampling + 1)) {
-            this.putTimesList.removeFirst();
-        }
-
-        this.getTimesFoundList.add(new CallSnapshot(System.currentTimeMillis(), this.getMessageTimesTotalFound
-            .get()));
-        if (this.getTimesFoundList.size() > (MaxRecordsOfSampling + 1)) {
-            this.getTimesFoundList.removeFirst();
-        }
-
-        this.getTimesMissList
-            .add(new CallSnapshot(System.currentTimeMillis(), this.getMessageTimesTotalMiss.get()));
-        if (this.getTimesMissList.size() > (MaxRecordsOfSampling + 1)) {
-            this.getTimesMissList.removeFirst();
+        final long now = System.currentTimeMillis();
+        this.putTimesList.add(new CallSnapshot(now, this.putMessageTimesTotal.get()));
+        this.getTimesFoundList.add(new CallSnapshot(now, this.getMessageTimesTotalFound.get()));
+        this.getTimesMissList.add(new CallSnapshot(now, this.getMessageTimesTotalMiss.get()));
+        this.transferedMsgCountList.add(new CallSnapshot(now, this.getMessageTransferedMsgCount.get()));
+
+        for (LatencyRecorder recorder : this.latencyRecorders) {
+            recorder.tick(now);
         }
 
-        this.transferedMsgCountList.add(new CallSnapshot(System.currentTimeMillis(),
-            this.getMessageTransferedMsgCount.get()));
-        if (this.transferedMsgCountList.size() > (MaxRecordsOfSampling + 1)) {
-            this.transferedMsgCountList.removeFirst();
+        if (now - this.lastQueueStatsSampleTimestamp >= QueueStatsSampleInterval) {
+            this.lastQueueStatsSampleTimestamp = now;
+            this.sampleQueueStats(now);
         }
-
-        this.lockSampling.unlock();
     }
 
 
-    private String getPutTps(int time) {
-        String result = "";
-        this.lockSampling.lock();
-        CallSnapshot last = this.putTimesList.getLast();
-
-        if (this.putTimesList.size() > time) {
-            CallSnapshot lastBefore = this.putTimesList.get(this.putTimesList.size() - (time + 1));
-            result += CallSnapshot.getTPS(lastBefore, last);
+    /**
+     * 采样全部逻辑队列的读写速率与索引落后字节数
+     */
+    synchronized void sampleQueueStats(final long now) {
+        if (null == this.metaQueueLogisticTable) {
+            return;
         }
 
-        this.lockSampling.unlock();
-
-        return result;
-    }
-
-
-    private String getPutTps() {
-        StringBuilder sb = new StringBuilder();
-        // 10秒钟
-        sb.append(this.getPutTps(10));
-        sb.append(" ");
-
-        // 1分钟
-        sb.append(this.getPutTps(60));
-        sb.append(" ");
-
-        // 10分钟
-        sb.append(this.getPutTps(600));
-
-        return sb.toString();
-    }
-
-
-    private String getGetFoundTps(int time) {
-        String result = "";
-        this.lockSampling.lock();
-        CallSnapshot last = this.getTimesFoundList.getLast();
-
-        if (this.getTimesFoundList.size() > time) {
-            CallSnapshot lastBefore = this.getTimesFoundList.get(this.getTimesFoundList.size() - (time + 1));
-            result += CallSnapshot.getTPS(lastBefore, last);
+        for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : this.metaQueueLogisticTable.values()) {
+            for (MetaQueueLogistic logic : maps.values()) {
+                logic.getQueueStats().sample(now, logic.getMaxPhysicOffset());
+            }
         }
-
-        this.lockSampling.unlock();
-
-        return result;
     }
 
 
-    private String getGetFoundTps() {
-        StringBuilder sb = new StringBuilder();
-        // 10秒钟
-        sb.append(this.getGetFoundTps(10));
-        sb.append(" ");
-
-        // 1分钟
-        sb.append(this.getGetFoundTps(60));
-        sb.append(" ");
+    public List<MetaQueueStats> getTopQueuesByRate(final Comparator<MetaQueueStats> comparator, final int topN) {
+        List<MetaQueueStats> result = new ArrayList<MetaQueueStats>();
+        if (null == this.metaQueueLogisticTable) {
+            return result;
+        }
 
-        // 10分钟
-        sb.append(this.getGetFoundTps(600));
+        for (ConcurrentHashMap<Integer, MetaQueueLogistic> maps : this.metaQueueLogisticTable.values()) {
+            for (MetaQueueLogistic logic : maps.values()) {
+                result.add(logic.getQueueStats());
+            }
+        }
 
-        return sb.toString();
+        Collections.sort(result, comparator);
+        return result.size() > topN ? new ArrayList<MetaQueueStats>(result.subList(0, topN)) : result;
     }
 
 
-    private String getGetMissTps(int time) {
-        String result = "";
-        this.lockSampling.lock();
-        CallSnapshot last = this.getTimesMissList.getLast();
-
-        if (this.getTimesMissList.size() > time) {
-            CallSnapshot lastBefore = this.getTimesMissList.get(this.getTimesMissList.size() - (time + 1));
-            result += CallSnapshot.getTPS(lastBefore, last);
+    public MetaQueueStats getTopicStats(final String topic) {
+        ConcurrentHashMap<Integer, MetaQueueLogistic> maps =
+                null == this.metaQueueLogisticTable ? null : this.metaQueueLogisticTable.get(topic);
+        if (null == maps) {
+            return null;
         }
 
-        this.lockSampling.unlock();
-
+        MetaQueueStats result = new MetaQueueStats(topic, -1);
+        for (MetaQueueLogistic logic : maps.values()) {
+            result.add(logic.getQueueStats());
+        }
         return result;
     }
 
 
-    private String getGetMissTps() {
-        StringBuilder sb = new StringBuilder();
-        // 10秒钟
-        sb.append(this.getGetMissTps(10));
-        sb.append(" ");
-
-        // 1分钟
-        sb.append(this.getGetMissTps(60));
-        sb.append(" ");
-
-        // 10分钟
-        sb.append(this.getGetMissTps(600));
-
-        return sb.toString();
-    }
-
-
-    private String getGetTransferedTps(int time) {
-        String result = "";
-        this.lockSampling.lock();
-        CallSnapshot last = this.transferedMsgCountList.getLast();
-
-        if (this.transferedMsgCountList.size() > time) {
-            CallSnapshot lastBefore =
-                    this.transferedMsgCountList.get(this.transferedMsgCountList.size() - (time + 1));
-            result += CallSnapshot.getTPS(lastBefore, last);
-        }
-
-        this.lockSampling.unlock();
-
-        return result;
+    private static String getTps(final CallSnapshotRing ring, final int time) {
+        Double tps = ring.getTPS(time);
+        return null == tps ? "" : tps.toString();
     }
 
 
-    private String getGetTransferedTps() {
+    private static String getTps(final CallSnapshotRing ring) {
         StringBuilder sb = new StringBuilder();
         // 10秒钟
-        sb.append(this.getGetTransferedTps(10));
+        sb.append(getTps(ring, 10));
         sb.append(" ");
 
         // 1分钟
-        sb.append(this.getGetTransferedTps(60));
+        sb.append(getTps(ring, 60));
         sb.append(" ");
 
         // 10分钟
-        sb.append(this.getGetTransferedTps(600));
+        sb.append(getTps(ring, 600));
 
         return sb.toString();
     }
 
 
     private String getGetTotalTps(int time) {
-        this.lockSampling.lock();
-        double found = 0;
-        double miss = 0;
-        {
-            CallSnapshot last = this.getTimesFoundList.getLast();
-
-            if (this.getTimesFoundList.size() > time) {
-                CallSnapshot lastBefore = this.getTimesFoundList.get(this.getTimesFoundList.size() - (time + 1));
-                found = CallSnapshot.getTPS(lastBefore, last);
-            }
-        }
-        {
-            CallSnapshot last = this.getTimesMissList.getLast();
-
-            if (this.getTimesMissList.size() > time) {
-                CallSnapshot lastBefore = this.getTimesMissList.get(this.getTimesMissList.size() - (time + 1));
-                miss = CallSnapshot.getTPS(lastBefore, last);
-            }
-        }
-
-        this.lockSampling.unlock();
-
-        return Double.toString(found + miss);
+        Double found = this.getTimesFoundList.getTPS(time);
+        Double miss = this.getTimesMissList.getTPS(time);
+        return Double.toString((null == found ? 0 : found) + (null == miss ? 0 : miss));
     }
 
 
@@ -450,13 +537,17 @@ public class MetaStatsService extends ServiceThread {
         if (System.currentTimeMillis() > (this.lastPrintTimestamp + PrintTPSInterval * 1000)) {
             this.lastPrintTimestamp = System.currentTimeMillis();
 
-            log.info("put_tps " + this.getPutTps(PrintTPSInterval));
+            log.info("put_tps " + getTps(this.putTimesList, PrintTPSInterval));
+
+            log.info("get_found_tps " + getTps(this.getTimesFoundList, PrintTPSInterval));
 
-            log.info("get_found_tps " + this.getGetFoundTps(PrintTPSInterval));
+            log.info("get_miss_tps " + getTps(this.getTimesMissList, PrintTPSInterval));
 
-            log.info("get_miss_tps " + this.getGetMissTps(PrintTPSInterval));
+            log.info("get_transfered_tps " + getTps(this.transferedMsgCountList, PrintTPSInterval));
 
-            log.info("get_transfered_tps " + this.getGetTransferedTps(PrintTPSInterval));
+            for (LatencyRecorder recorder : this.latencyRecorders) {
+                log.info(recorder.getName() + "_latency " + recorder.getPercentilesString(1));
+            }
         }
     }
 
@@ -505,4 +596,151 @@ public class MetaStatsService extends ServiceThread {
     public AtomicLong getPutMessageFailedTimes() {
         return putMessageFailedTimes;
     }
+
+
+    public AtomicLong getGetMessageHotTimes() {
+        return getMessageHotTimes;
+    }
+
+
+    public AtomicLong getGetMessageColdTimes() {
+        return getMessageColdTimes;
+    }
+
+
+    public AtomicLong getGetMessageSkippedUnits() {
+        return getMessageSkippedUnits;
+    }
+
+
+    public AtomicLong getGetMessageTypeMismatchCount() {
+        return getMessageTypeMismatchCount;
+    }
+
+
+    public AtomicLong getGetMessageCoalescedCount() {
+        return getMessageCoalescedCount;
+    }
+
+
+    /**
+     * 拉到消息的请求中，第一条消息在内存的比例
+     */
+    public double getGetMessageHotRatio() {
+        long hot = this.getMessageHotTimes.get();
+        long total = hot + this.getMessageColdTimes.get();
+        return 0 == total ? 1.0 : hot / (double) total;
+    }
+
+
+    private static void appendBlockQueueInfo(final StringBuilder sb, final String name,
+            final ColdPhysicQueue queue) {
+        if (queue != null) {
+            sb.append("\t" + name + "FileNums: " + queue.getFileNums() + "\r\n");
+            sb.append("\t" + name + "OffloadBytes: " + queue.getOffloadRawBytes() + " "
+                    + queue.getOffloadCompressedBytes() + "\r\n");
+            sb.append("\t" + name + "ReadTimes: " + queue.getReadTimes() + " " + queue.getReadFailedTimes()
+                    + "\r\n");
+            sb.append("\t" + name + "BlockCacheHitMiss: " + queue.getBlockCache().getHitTimes() + " "
+                    + queue.getBlockCache().getMissTimes() + "\r\n");
+        }
+    }
+
+
+    private static void appendFlushControllerInfo(final StringBuilder sb, final AdaptiveFlushController controller) {
+        if (controller != null && controller.getFlushTimes() > 0) {
+            final String name = controller.getName();
+            sb.append("\t" + name + "FlushDirtyBytes: " + controller.getDirtyBytes() + " "
+                    + controller.getFlushBytesLimit() + "\r\n");
+            sb.append("\t" + name + "FlushWriteFlushRate: " + controller.getWriteBytesPerMs() + " "
+                    + controller.getFlushBytesPerMs() + "\r\n");
+            sb.append("\t" + name + "FlushDecision: " + controller.getWaitInterval() + " "
+                    + controller.getFlushLeastPages() + "\r\n");
+            sb.append("\t" + name + "FlushTimesBytes: " + controller.getFlushTimes() + " "
+                    + controller.getFlushBytesTotal() + "\r\n");
+            sb.append("\t" + name + "FlushTimeLastMax: " + controller.getFlushTimeLast() + " "
+                    + controller.getFlushTimeMax() + "\r\n");
+        }
+    }
+
+
+    public ReclaimMapedFileService getReclaimMapedFileService() {
+        return reclaimMapedFileService;
+    }
+
+
+    public void setReclaimMapedFileService(ReclaimMapedFileService reclaimMapedFileService) {
+        this.reclaimMapedFileService = reclaimMapedFileService;
+    }
+
+
+    public PageCacheResidency getPageCacheResidency() {
+        return pageCacheResidency;
+    }
+
+
+    public ColdPhysicQueue getColdPhysicQueue() {
+        return coldPhysicQueue;
+    }
+
+
+    public void setColdPhysicQueue(ColdPhysicQueue coldPhysicQueue) {
+        this.coldPhysicQueue = coldPhysicQueue;
+    }
+
+
+    public ColdPhysicQueue getCompressedPhysicQueue() {
+        return compressedPhysicQueue;
+    }
+
+
+    public void setCompressedPhysicQueue(ColdPhysicQueue compressedPhysicQueue) {
+        this.compressedPhysicQueue = compressedPhysicQueue;
+    }
+
+
+    public AdaptiveFlushController getPhysicFlushController() {
+        return physicFlushController;
+    }
+
+
+    public void setPhysicFlushController(AdaptiveFlushController physicFlushController) {
+        this.physicFlushController = physicFlushController;
+    }
+
+
+    public AdaptiveFlushController getLogicsFlushController() {
+        return logicsFlushController;
+    }
+
+
+    public void setLogicsFlushController(AdaptiveFlushController logicsFlushController) {
+        this.logicsFlushController = logicsFlushController;
+    }
+
+
+    public void setPageCacheResidency(PageCacheResidency pageCacheResidency) {
+        this.pageCacheResidency = pageCacheResidency;
+    }
+
+
+    public boolean isTransientStorePoolEnable() {
+        return this.transientStorePool != null;
+    }
+
+
+    public TransientStorePool getTransientStorePool() {
+        return transientStorePool;
+    }
+
+
+    public void setTransientStorePool(TransientStorePool transientStorePool) {
+        this.transientStorePool = transientStorePool;
+    }
+
+
+    public void setMetaQueueLogisticTable(
+            ConcurrentHashMap<String, ConcurrentHashMap<Integer, MetaQueueLogistic>> metaQueueLogisticTable) {
+        this.metaQueueLogisticTable = metaQueueLogisticTable;
+    }
 }
@@ -0,0 +1,33 @@
+/**
+ * $Id: MetaStatsServiceMBean.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+/**
+ * 存储层统计数据，通过JMX查看<br>
+ * 延迟格式：10秒、1分钟、10分钟窗口的p50 p99 p999 max，单位微秒
+ * 
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public interface MetaStatsServiceMBean {
+
+    public String getPutLatency();
+
+
+    public String getGetLatency();
+
+
+    public String getFlushLatency();
+
+
+    public String getDispatchLatency();
+
+
+    public String getAllocateLatency();
+
+
+    /**
+     * 与MetaStore.getRunningDataInfo相同
+     */
+    public String getRunningDataInfo();
+}
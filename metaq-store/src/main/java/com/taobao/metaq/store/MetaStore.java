@@ -3,6 +3,8 @@
  */
 package com.taobao.metaq.store;
 
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 
 import com.taobao.metaq.commons.MetaMessage;
@@ -49,6 +51,21 @@ public interface MetaStore {
     public PutMessageResult putMessage(final MetaMessage msg, final MetaMessageAnnotation msgant);
 
 
+    /**
+     * 异步存储消息，写入后立即返回，同步刷盘时不阻塞调用线程，刷盘完成后由刷盘线程回调<br>
+     * callback只调用一次，存储不可写或者消息不合法时在调用线程中以null结果回调
+     */
+    public void putMessageAsync(final MetaMessage msg, final MetaMessageAnnotation msgant,
+            final PutMessageCallback callback);
+
+
+    /**
+     * 批量存储消息，一次加锁连续写入，同步刷盘时整批只等待一次<br>
+     * 返回结果与消息一一对应，如果存储不可写，返回null
+     */
+    public List<PutMessageResult> putMessages(final List<MetaMessageWrapper> msgs);
+
+
     /**
      * 读取消息，如果types为null，则不做过滤
      */
@@ -56,6 +73,14 @@ public interface MetaStore {
             final int maxSize, final Set<Integer> types);
 
 
+    /**
+     * 读取消息，先按照types过滤，再读取物理队列中的消息类型与typeNames精确匹配<br>
+     * types与typeNames必须对应，为null时不做过滤
+     */
+    public GetMessageResult getMessage(final String topic, final int queueId, final long offset,
+            final int maxSize, final Set<Integer> types, final Set<String> typeNames);
+
+
     /**
      * 获取指定队列最大Offset 如果队列不存在，返回-1
      */
@@ -81,12 +106,42 @@ public interface MetaStore {
     public MetaMessageWrapper lookMessageByOffset(final long phyOffset);
 
 
+    /**
+     * 按照消息Key（消息属性）查询存储时间在[begin, end]之间的消息，从新到旧排列，最多返回maxNum条
+     */
+    public List<MetaMessageWrapper> queryMessage(final String topic, final String key, final int maxNum,
+            final long begin, final long end);
+
+
+    /**
+     * 通过消息ID查询消息，消息不存在返回null
+     */
+    public MetaMessageWrapper lookMessageByMsgId(final String msgId);
+
+
     /**
      * 获取运行时统计数据
      */
     public String getRunningDataInfo();
 
 
+    /**
+     * 按照速率取最热的队列，速率为最近一个采样周期（10秒）的平均值
+     * 
+     * @param comparator
+     *            排序方式，见MetaQueueStats.ByPutMessagesRate等
+     * @param topN
+     *            返回的队列个数
+     */
+    public List<MetaQueueStats> getTopQueuesByRate(final Comparator<MetaQueueStats> comparator, final int topN);
+
+
+    /**
+     * 汇总一个Topic下全部队列的统计，Topic不存在时返回null
+     */
+    public MetaQueueStats getTopicStats(final String topic);
+
+
     /**
      * 获取物理队列最大offset
      */
@@ -5,7 +5,11 @@ package com.taobao.metaq.store;
 
 import java.io.File;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,12 +27,30 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     static final Log log = LogFactory.getLog(MetaStoreConfig.class);
     // 是否是Master角色，如果是Slave，请设置成false
     private boolean master = true;
-    // 物理队列存储目录
+    // 物理队列存储目录，多个目录（一般每块磁盘一个）用分号分隔，新文件轮流分配到各目录
     private String storePathPhysic = System.getProperty("user.home") + File.separator + "metastore"
             + File.separator + "physic";
     // 逻辑队列存储目录
     private String storePathLogics = System.getProperty("user.home") + File.separator + "metastore"
             + File.separator + "logics";
+    // 逻辑队列时间索引存储目录
+    private String storePathTimeIndex = System.getProperty("user.home") + File.separator + "metastore"
+            + File.separator + "timeindex";
+    // 逻辑队列消息类型位图存储目录
+    private String storePathTagBits = System.getProperty("user.home") + File.separator + "metastore"
+            + File.separator + "tagbits";
+    // 本地冷存储目录，coldStorageClass为LocalColdStorage时使用
+    private String storePathCold = System.getProperty("user.home") + File.separator + "metastore"
+            + File.separator + "cold";
+    // 本地压缩的物理文件存储目录
+    private String storePathCompressed = System.getProperty("user.home") + File.separator + "metastore"
+            + File.separator + "compressed";
+    // 逻辑队列压缩段存储目录
+    private String storePathCompacted = System.getProperty("user.home") + File.separator + "metastore"
+            + File.separator + "compacted";
+    // 消息Key哈希索引存储目录
+    private String storePathIndex = System.getProperty("user.home") + File.separator + "metastore"
+            + File.separator + "index";
     // 异常退出产生的文件
     private String storeCheckpoint = System.getProperty("user.home") + File.separator + "metastore"
             + File.separator + "metaStoreCheckpoint";
@@ -39,6 +61,8 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     private int mapedFileSizePhysic = 1024 * 1024 * 1024;
     // 逻辑队列每个文件大小 2M
     private int mapedFileSizeLogics = 1024 * 1024 * 2;
+    // 时间索引每个文件大小 1M
+    private int mapedFileSizeTimeIndex = 1024 * 1024;
     // 物理队列刷盘间隔时间（单位毫秒）
     private int flushIntervalPhysic = 1000;
     // 逻辑队列刷盘间隔时间（单位毫秒）
@@ -63,12 +87,18 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     private boolean groupCommitEnable = false;
     // GrouCommit 等待超时时间（单位毫秒）
     private int groupCommitTimeout = 1000 * 5;
-    // 写消息索引到逻辑队列，缓冲区高水位，超过则开始流控
+    // 写消息索引到逻辑队列，缓冲区高水位（全部分发线程合计），写满后写消息线程等待
     private int putMsgIndexHightWater = 400000;
+    // 写消息索引到逻辑队列的分发线程数，按照topic+queueId哈希分配
+    private int dispatchMessageThreadNums = 1;
     // 最大消息大小，默认512K
     private int maxMessageSize = 1024 * 512;
     // 重启时，是否校验CRC
     private boolean checkCRCOnRecover = true;
+    // 异常恢复时，并行校验物理文件、恢复逻辑队列的线程数，1表示串行恢复
+    private int recoverThreadNums = 1;
+    // 是否定时及关闭时记录逻辑队列Offset快照，用来加快重启恢复
+    private boolean queueSnapshotEnable = false;
     // 刷物理队列，至少刷几个PAGE
     private int flushPhysicQueueLeastPages = 4;
     // 刷逻辑队列，至少刷几个PAGE
@@ -85,8 +115,99 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     private int maxTransferBytesOnMessageInDisk = 1024 * 64;
     // 最大被拉取的消息个数，消息在磁盘
     private int maxTransferCountOnMessageInDisk = 8;
-    // 当前进程可用物理内存大小，单位G
+    // 当前进程可用物理内存大小，单位G，关闭PageCache估算时用来判断消息是否在内存，开启时作为估算值的上限
     private int totalPhysicMemory = 5;
+    // 是否根据物理队列最近的读写记录，估算消息是否在PageCache
+    private boolean pageCacheResidencyEnable = false;
+    // PageCache估算，物理队列分块大小
+    private int pageCacheResidencyChunkSize = 1024 * 1024 * 4;
+    // PageCache估算，最近多长时间内读写过的块认为在PageCache，单位毫秒
+    private int pageCacheResidentWindow = 1000 * 60 * 10;
+    // PageCache探测接口实现类，例如通过mincore探测，为空时按照读写记录估算
+    private String pageCacheProbeHookClass = "";
+    // PageCache探测，同一块的探测结果缓存时间，单位毫秒
+    private int pageCacheProbeInterval = 1000;
+    // 是否开启无锁写物理队列（CAS预留空间，多线程并行序列化消息）
+    private boolean lockFreeAppendEnable = false;
+    // 是否记录逻辑队列消息类型位图，拉消息过滤时按页跳过不匹配的消息
+    private boolean tagBitsEnable = false;
+    // 是否将封存的物理文件压缩后上传到冷存储，本地文件上传后才允许删除
+    private boolean coldStorageEnable = false;
+    // 冷存储实现类
+    private String coldStorageClass = LocalColdStorage.class.getName();
+    // 冷存储文件压缩块大小
+    private int coldBlockSize = 1024 * 64;
+    // 冷存储解压后数据块的缓存大小
+    private int coldBlockCacheSize = 1024 * 1024 * 64;
+    // 冷存储文件保留时间，单位小时
+    private int coldFileReservedTime = 24 * 30;
+    // Topic的删除策略，格式为topic=compact,删除消息保留小时数;topic=compact,删除消息保留小时数
+    // compact表示按照消息Key只保留最新的消息，未配置的Topic按照时间删除
+    private String topicDeletePolicy = "";
+    // 按照消息Key压缩逻辑队列的间隔时间，单位毫秒
+    private int compactLogicsInterval = 1000 * 60;
+    // 是否将较早的物理文件在本地按块压缩，压缩后删除原始文件
+    private boolean compressPhysicFileEnable = false;
+    // 物理文件最后修改超过多少小时后压缩
+    private int compressPhysicFileAfterTime = 24;
+    // 本地压缩文件的压缩块大小
+    private int compressBlockSize = 1024 * 64;
+    // 本地压缩文件解压后数据块的缓存大小
+    private int compressBlockCacheSize = 1024 * 1024 * 64;
+    // 时间索引间隔，每隔多少条消息记录一条
+    private int timeIndexIntervalMessages = 128;
+    // 时间索引间隔，每隔多少毫秒记录一条
+    private int timeIndexIntervalMillis = 1000;
+    // 是否按照消息Key（消息属性）建立哈希索引，默认关闭，开启后每个索引文件按照槽位数与条数预先分配
+    private boolean messageIndexEnable = false;
+    // 每个哈希索引文件的槽位数
+    private int maxHashSlotNum = 1000000;
+    // 每个哈希索引文件最多存储的索引条数
+    private int maxIndexNum = 1000000 * 4;
+    // 是否开启物理队列写缓冲池（消息先写堆外内存，再批量写入FileChannel），只对异步刷盘的Master生效
+    private boolean transientStorePoolEnable = false;
+    // 写缓冲池缓冲区个数，每个缓冲区与物理文件等大
+    private int transientStorePoolSize = 5;
+    // 写缓冲池模式下，提交数据到FileChannel的间隔时间
+    private int commitIntervalPhysic = 200;
+    // 写缓冲池模式下，至少积累多少个page才提交到FileChannel
+    private int commitPhysicQueueLeastPages = 4;
+    // 写缓冲池模式下，彻底提交间隔时间
+    private int commitPhysicQueueThoroughInterval = 200;
+    // 是否预热新创建的物理队列文件，每个page写入一个字节，避免写消息时触发缺页中断
+    private boolean warmMapedFileEnable = false;
+    // 预热文件时，每写入多少个page刷一次盘
+    private int flushLeastPagesWhenWarmMapedFile = 1024 / 4 * 16;
+    // 预热文件时调用的本地方法扩展类名（madvise、mlock等），实现MapedFileWarmHook接口
+    private String mapedFileWarmHookClass = "";
+    // 是否开启自适应刷盘，开启后刷盘间隔与最少页数根据写入速度与实测刷盘速度动态计算，只对异步刷盘生效
+    private boolean adaptiveFlushEnable = false;
+    // 自适应刷盘，物理队列脏数据目标上限
+    private int adaptiveFlushDirtyBytesPhysic = 1024 * 1024 * 32;
+    // 自适应刷盘，逻辑队列脏数据目标上限（所有逻辑队列合计）
+    private int adaptiveFlushDirtyBytesLogics = 1024 * 1024 * 4;
+    // 自适应刷盘，单次刷盘耗时目标上限（毫秒）
+    private int adaptiveFlushTimeTarget = 100;
+    // 自适应刷盘，最小等待间隔（毫秒）
+    private int adaptiveFlushIntervalMin = 10;
+    // 自适应刷盘，最大等待间隔（毫秒），空闲时按照此间隔唤醒
+    private int adaptiveFlushIntervalMax = 1000 * 5;
+    // 是否由后台线程回收过期的物理队列文件，开启后删除文件时只从队列摘除，截断、unmap与删除由回收线程限速完成
+    private boolean reclaimMapedFileEnable = false;
+    // 回收文件时，每秒最多截断多少字节
+    private int reclaimBytesPerSecond = 1024 * 1024 * 64;
+    // 回收文件时，每次截断多少字节
+    private int reclaimTruncateChunkSize = 1024 * 1024 * 8;
+    // 是否开启定时消息，关闭时带有延时级别或者投递时间的消息立即投递，只对Master生效
+    private boolean scheduleMessageEnable = false;
+    // 定时消息延时级别，级别1对应第一个值，支持s、m、h、d单位
+    private String scheduleDelayLevels = "1s 5s 10s 30s 1m 2m 3m 4m 5m 6m 7m 8m 9m 10m 20m 30m 1h 2h";
+    // 定时消息时间轮每格的时间（毫秒），即投递时间精度
+    private int scheduleTickMillis = 100;
+    // 定时消息时间轮每层的格数
+    private int scheduleWheelSize = 64;
+    // 指定投递时间的定时消息提前加载到时间轮的时间范围（毫秒），更晚的消息不常驻内存，临近时重新读取
+    private int scheduleLoadAheadMillis = 1000 * 60 * 10;
 
 
     public int getMapedFileSizePhysic() {
@@ -111,6 +232,18 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    public int getMapedFileSizeTimeIndex() {
+        // 此处需要向上取整
+        int factor = (int) Math.ceil(this.mapedFileSizeTimeIndex / (MetaQueueTimeIndex.StoreUnitSize * 1.0));
+        return factor * MetaQueueTimeIndex.StoreUnitSize;
+    }
+
+
+    public void setMapedFileSizeTimeIndex(int mapedFileSizeTimeIndex) {
+        this.mapedFileSizeTimeIndex = mapedFileSizeTimeIndex;
+    }
+
+
     public int getFlushIntervalPhysic() {
         return flushIntervalPhysic;
     }
@@ -166,6 +299,16 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    public int getDispatchMessageThreadNums() {
+        return dispatchMessageThreadNums;
+    }
+
+
+    public void setDispatchMessageThreadNums(int dispatchMessageThreadNums) {
+        this.dispatchMessageThreadNums = dispatchMessageThreadNums;
+    }
+
+
     public int getCleanResourceInterval() {
         return cleanResourceInterval;
     }
@@ -201,6 +344,239 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    public int getRecoverThreadNums() {
+        return recoverThreadNums;
+    }
+
+
+    public void setRecoverThreadNums(int recoverThreadNums) {
+        this.recoverThreadNums = recoverThreadNums;
+    }
+
+
+    public String getStorePathTagBits() {
+        return storePathTagBits;
+    }
+
+
+    public void setStorePathTagBits(String storePathTagBits) {
+        this.storePathTagBits = storePathTagBits;
+    }
+
+
+    public String getStorePathCold() {
+        return storePathCold;
+    }
+
+
+    public void setStorePathCold(String storePathCold) {
+        this.storePathCold = storePathCold;
+    }
+
+
+    public boolean isColdStorageEnable() {
+        return coldStorageEnable;
+    }
+
+
+    public boolean getColdStorageEnable() {
+        return coldStorageEnable;
+    }
+
+
+    public void setColdStorageEnable(boolean coldStorageEnable) {
+        this.coldStorageEnable = coldStorageEnable;
+    }
+
+
+    public String getColdStorageClass() {
+        return coldStorageClass;
+    }
+
+
+    public void setColdStorageClass(String coldStorageClass) {
+        this.coldStorageClass = coldStorageClass;
+    }
+
+
+    public int getColdBlockSize() {
+        return coldBlockSize;
+    }
+
+
+    public void setColdBlockSize(int coldBlockSize) {
+        this.coldBlockSize = coldBlockSize;
+    }
+
+
+    public int getColdBlockCacheSize() {
+        return coldBlockCacheSize;
+    }
+
+
+    public void setColdBlockCacheSize(int coldBlockCacheSize) {
+        this.coldBlockCacheSize = coldBlockCacheSize;
+    }
+
+
+    public int getColdFileReservedTime() {
+        return coldFileReservedTime;
+    }
+
+
+    public void setColdFileReservedTime(int coldFileReservedTime) {
+        this.coldFileReservedTime = coldFileReservedTime;
+    }
+
+
+    public String getStorePathCompacted() {
+        return storePathCompacted;
+    }
+
+
+    public void setStorePathCompacted(String storePathCompacted) {
+        this.storePathCompacted = storePathCompacted;
+    }
+
+
+    public String getTopicDeletePolicy() {
+        return topicDeletePolicy;
+    }
+
+
+    public void setTopicDeletePolicy(String topicDeletePolicy) {
+        this.topicDeletePolicy = topicDeletePolicy;
+    }
+
+
+    /**
+     * 解析topicDeletePolicy，返回按照消息Key压缩的Topic以及删除消息保留小时数
+     */
+    public Map<String, Integer> getCompactTopicTable() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        if (null == this.topicDeletePolicy) {
+            return result;
+        }
+
+        for (String item : this.topicDeletePolicy.split(";")) {
+            String[] pair = item.split("=");
+            if (pair.length != 2) {
+                continue;
+            }
+
+            String[] values = pair[1].trim().split(",");
+            if (!"compact".equals(values[0].trim())) {
+                continue;
+            }
+
+            try {
+                int tombstoneReservedTime = values.length >= 2 ? Integer.parseInt(values[1].trim()) : 24;
+                result.put(pair[0].trim(), tombstoneReservedTime);
+            }
+            catch (NumberFormatException e) {
+                log.warn("illegal topic delete policy " + item);
+            }
+        }
+
+        return result;
+    }
+
+
+    public int getCompactLogicsInterval() {
+        return compactLogicsInterval;
+    }
+
+
+    public void setCompactLogicsInterval(int compactLogicsInterval) {
+        this.compactLogicsInterval = compactLogicsInterval;
+    }
+
+
+    public String getStorePathCompressed() {
+        return storePathCompressed;
+    }
+
+
+    public void setStorePathCompressed(String storePathCompressed) {
+        this.storePathCompressed = storePathCompressed;
+    }
+
+
+    public boolean isCompressPhysicFileEnable() {
+        return compressPhysicFileEnable;
+    }
+
+
+    public boolean getCompressPhysicFileEnable() {
+        return compressPhysicFileEnable;
+    }
+
+
+    public void setCompressPhysicFileEnable(boolean compressPhysicFileEnable) {
+        this.compressPhysicFileEnable = compressPhysicFileEnable;
+    }
+
+
+    public int getCompressPhysicFileAfterTime() {
+        return compressPhysicFileAfterTime;
+    }
+
+
+    public void setCompressPhysicFileAfterTime(int compressPhysicFileAfterTime) {
+        this.compressPhysicFileAfterTime = compressPhysicFileAfterTime;
+    }
+
+
+    public int getCompressBlockSize() {
+        return compressBlockSize;
+    }
+
+
+    public void setCompressBlockSize(int compressBlockSize) {
+        this.compressBlockSize = compressBlockSize;
+    }
+
+
+    public int getCompressBlockCacheSize() {
+        return compressBlockCacheSize;
+    }
+
+
+    public void setCompressBlockCacheSize(int compressBlockCacheSize) {
+        this.compressBlockCacheSize = compressBlockCacheSize;
+    }
+
+
+    public boolean isTagBitsEnable() {
+        return tagBitsEnable;
+    }
+
+
+    public boolean getTagBitsEnable() {
+        return tagBitsEnable;
+    }
+
+
+    public void setTagBitsEnable(boolean tagBitsEnable) {
+        this.tagBitsEnable = tagBitsEnable;
+    }
+
+
+    public boolean isQueueSnapshotEnable() {
+        return queueSnapshotEnable;
+    }
+
+
+    public boolean getQueueSnapshotEnable() {
+        return queueSnapshotEnable;
+    }
+
+
+    public void setQueueSnapshotEnable(boolean queueSnapshotEnable) {
+        this.queueSnapshotEnable = queueSnapshotEnable;
+    }
+
+
     public String getStorePathPhysic() {
         return storePathPhysic;
     }
@@ -211,6 +587,27 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    /**
+     * 物理队列各存储目录，至少有一个
+     */
+    public String[] getStorePathPhysicList() {
+        List<String> paths = new ArrayList<String>();
+        if (this.storePathPhysic != null) {
+            for (String path : this.storePathPhysic.split(";")) {
+                if (path.trim().length() > 0) {
+                    paths.add(path.trim());
+                }
+            }
+        }
+
+        if (paths.isEmpty()) {
+            paths.add(this.storePathPhysic);
+        }
+
+        return paths.toArray(new String[paths.size()]);
+    }
+
+
     public String getStorePathLogics() {
         return storePathLogics;
     }
@@ -221,6 +618,16 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    public String getStorePathTimeIndex() {
+        return storePathTimeIndex;
+    }
+
+
+    public void setStorePathTimeIndex(String storePathTimeIndex) {
+        this.storePathTimeIndex = storePathTimeIndex;
+    }
+
+
     public String getAbortFile() {
         return abortFile;
     }
@@ -317,6 +724,61 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    public boolean isPageCacheResidencyEnable() {
+        return pageCacheResidencyEnable;
+    }
+
+
+    public boolean getPageCacheResidencyEnable() {
+        return pageCacheResidencyEnable;
+    }
+
+
+    public void setPageCacheResidencyEnable(boolean pageCacheResidencyEnable) {
+        this.pageCacheResidencyEnable = pageCacheResidencyEnable;
+    }
+
+
+    public int getPageCacheResidencyChunkSize() {
+        return pageCacheResidencyChunkSize;
+    }
+
+
+    public void setPageCacheResidencyChunkSize(int pageCacheResidencyChunkSize) {
+        this.pageCacheResidencyChunkSize = pageCacheResidencyChunkSize;
+    }
+
+
+    public int getPageCacheResidentWindow() {
+        return pageCacheResidentWindow;
+    }
+
+
+    public void setPageCacheResidentWindow(int pageCacheResidentWindow) {
+        this.pageCacheResidentWindow = pageCacheResidentWindow;
+    }
+
+
+    public String getPageCacheProbeHookClass() {
+        return pageCacheProbeHookClass;
+    }
+
+
+    public void setPageCacheProbeHookClass(String pageCacheProbeHookClass) {
+        this.pageCacheProbeHookClass = pageCacheProbeHookClass;
+    }
+
+
+    public int getPageCacheProbeInterval() {
+        return pageCacheProbeInterval;
+    }
+
+
+    public void setPageCacheProbeInterval(int pageCacheProbeInterval) {
+        this.pageCacheProbeInterval = pageCacheProbeInterval;
+    }
+
+
     public int getTotalPhysicMemory() {
         return totalPhysicMemory;
     }
@@ -327,6 +789,176 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    public boolean isLockFreeAppendEnable() {
+        return lockFreeAppendEnable;
+    }
+
+
+    public boolean getLockFreeAppendEnable() {
+        return lockFreeAppendEnable;
+    }
+
+
+    public void setLockFreeAppendEnable(boolean lockFreeAppendEnable) {
+        this.lockFreeAppendEnable = lockFreeAppendEnable;
+    }
+
+
+    public int getTimeIndexIntervalMessages() {
+        return timeIndexIntervalMessages;
+    }
+
+
+    public void setTimeIndexIntervalMessages(int timeIndexIntervalMessages) {
+        this.timeIndexIntervalMessages = timeIndexIntervalMessages;
+    }
+
+
+    public int getTimeIndexIntervalMillis() {
+        return timeIndexIntervalMillis;
+    }
+
+
+    public void setTimeIndexIntervalMillis(int timeIndexIntervalMillis) {
+        this.timeIndexIntervalMillis = timeIndexIntervalMillis;
+    }
+
+
+    public String getStorePathIndex() {
+        return storePathIndex;
+    }
+
+
+    public void setStorePathIndex(String storePathIndex) {
+        this.storePathIndex = storePathIndex;
+    }
+
+
+    public boolean isMessageIndexEnable() {
+        return messageIndexEnable;
+    }
+
+
+    public boolean getMessageIndexEnable() {
+        return messageIndexEnable;
+    }
+
+
+    public void setMessageIndexEnable(boolean messageIndexEnable) {
+        this.messageIndexEnable = messageIndexEnable;
+    }
+
+
+    public int getMaxHashSlotNum() {
+        return maxHashSlotNum;
+    }
+
+
+    public void setMaxHashSlotNum(int maxHashSlotNum) {
+        this.maxHashSlotNum = maxHashSlotNum;
+    }
+
+
+    public int getMaxIndexNum() {
+        return maxIndexNum;
+    }
+
+
+    public void setMaxIndexNum(int maxIndexNum) {
+        this.maxIndexNum = maxIndexNum;
+    }
+
+
+    public boolean isTransientStorePoolEnable() {
+        return transientStorePoolEnable;
+    }
+
+
+    public boolean getTransientStorePoolEnable() {
+        return transientStorePoolEnable;
+    }
+
+
+    public void setTransientStorePoolEnable(boolean transientStorePoolEnable) {
+        this.transientStorePoolEnable = transientStorePoolEnable;
+    }
+
+
+    public int getTransientStorePoolSize() {
+        return transientStorePoolSize;
+    }
+
+
+    public void setTransientStorePoolSize(int transientStorePoolSize) {
+        this.transientStorePoolSize = transientStorePoolSize;
+    }
+
+
+    public int getCommitIntervalPhysic() {
+        return commitIntervalPhysic;
+    }
+
+
+    public void setCommitIntervalPhysic(int commitIntervalPhysic) {
+        this.commitIntervalPhysic = commitIntervalPhysic;
+    }
+
+
+    public int getCommitPhysicQueueLeastPages() {
+        return commitPhysicQueueLeastPages;
+    }
+
+
+    public void setCommitPhysicQueueLeastPages(int commitPhysicQueueLeastPages) {
+        this.commitPhysicQueueLeastPages = commitPhysicQueueLeastPages;
+    }
+
+
+    public int getCommitPhysicQueueThoroughInterval() {
+        return commitPhysicQueueThoroughInterval;
+    }
+
+
+    public void setCommitPhysicQueueThoroughInterval(int commitPhysicQueueThoroughInterval) {
+        this.commitPhysicQueueThoroughInterval = commitPhysicQueueThoroughInterval;
+    }
+
+
+    public boolean isWarmMapedFileEnable() {
+        return warmMapedFileEnable;
+    }
+
+
+    public boolean getWarmMapedFileEnable() {
+        return warmMapedFileEnable;
+    }
+
+
+    public void setWarmMapedFileEnable(boolean warmMapedFileEnable) {
+        this.warmMapedFileEnable = warmMapedFileEnable;
+    }
+
+
+    public int getFlushLeastPagesWhenWarmMapedFile() {
+        return flushLeastPagesWhenWarmMapedFile;
+    }
+
+
+    public void setFlushLeastPagesWhenWarmMapedFile(int flushLeastPagesWhenWarmMapedFile) {
+        this.flushLeastPagesWhenWarmMapedFile = flushLeastPagesWhenWarmMapedFile;
+    }
+
+
+    public String getMapedFileWarmHookClass() {
+        return mapedFileWarmHookClass;
+    }
+
+
+    public void setMapedFileWarmHookClass(String mapedFileWarmHookClass) {
+        this.mapedFileWarmHookClass = mapedFileWarmHookClass;
+    }
+
+
     public int getFlushPhysicQueueLeastPages() {
         return flushPhysicQueueLeastPages;
     }
@@ -422,6 +1054,161 @@ public class MetaStoreConfig implements MetaStoreConfigMBean {
     }
 
 
+    public boolean isAdaptiveFlushEnable() {
+        return adaptiveFlushEnable;
+    }
+
+
+    public boolean getAdaptiveFlushEnable() {
+        return adaptiveFlushEnable;
+    }
+
+
+    public void setAdaptiveFlushEnable(boolean adaptiveFlushEnable) {
+        this.adaptiveFlushEnable = adaptiveFlushEnable;
+    }
+
+
+    public int getAdaptiveFlushDirtyBytesPhysic() {
+        return adaptiveFlushDirtyBytesPhysic;
+    }
+
+
+    public void setAdaptiveFlushDirtyBytesPhysic(int adaptiveFlushDirtyBytesPhysic) {
+        this.adaptiveFlushDirtyBytesPhysic = adaptiveFlushDirtyBytesPhysic;
+    }
+
+
+    public int getAdaptiveFlushDirtyBytesLogics() {
+        return adaptiveFlushDirtyBytesLogics;
+    }
+
+
+    public void setAdaptiveFlushDirtyBytesLogics(int adaptiveFlushDirtyBytesLogics) {
+        this.adaptiveFlushDirtyBytesLogics = adaptiveFlushDirtyBytesLogics;
+    }
+
+
+    public int getAdaptiveFlushTimeTarget() {
+        return adaptiveFlushTimeTarget;
+    }
+
+
+    public void setAdaptiveFlushTimeTarget(int adaptiveFlushTimeTarget) {
+        this.adaptiveFlushTimeTarget = adaptiveFlushTimeTarget;
+    }
+
+
+    public int getAdaptiveFlushIntervalMin() {
+        return adaptiveFlushIntervalMin;
+    }
+
+
+    public void setAdaptiveFlushIntervalMin(int adaptiveFlushIntervalMin) {
+        this.adaptiveFlushIntervalMin = adaptiveFlushIntervalMin;
+    }
+
+
+    public int getAdaptiveFlushIntervalMax() {
+        return adaptiveFlushIntervalMax;
+    }
+
+
+    public void setAdaptiveFlushIntervalMax(int adaptiveFlushIntervalMax) {
+        this.adaptiveFlushIntervalMax = adaptiveFlushIntervalMax;
+    }
+
+
+    public boolean isReclaimMapedFileEnable() {
+        return reclaimMapedFileEnable;
+    }
+
+
+    public boolean getReclaimMapedFileEnable() {
+        return reclaimMapedFileEnable;
+    }
+
+
+    public void setReclaimMapedFileEnable(boolean reclaimMapedFileEnable) {
+        this.reclaimMapedFileEnable = reclaimMapedFileEnable;
+    }
+
+
+    public int getReclaimBytesPerSecond() {
+        return reclaimBytesPerSecond;
+    }
+
+
+    public void setReclaimBytesPerSecond(int reclaimBytesPerSecond) {
+        this.reclaimBytesPerSecond = reclaimBytesPerSecond;
+    }
+
+
+    public int getReclaimTruncateChunkSize() {
+        return reclaimTruncateChunkSize;
+    }
+
+
+    public void setReclaimTruncateChunkSize(int reclaimTruncateChunkSize) {
+        this.reclaimTruncateChunkSize = reclaimTruncateChunkSize;
+    }
+
+
+    public boolean isScheduleMessageEnable() {
+        return scheduleMessageEnable;
+    }
+
+
+    public boolean getScheduleMessageEnable() {
+        return scheduleMessageEnable;
+    }
+
+
+    public void setScheduleMessageEnable(boolean scheduleMessageEnable) {
+        this.scheduleMessageEnable = scheduleMessageEnable;
+    }
+
+
+    public String getScheduleDelayLevels() {
+        return scheduleDelayLevels;
+    }
+
+
+    public void setScheduleDelayLevels(String scheduleDelayLevels) {
+        this.scheduleDelayLevels = scheduleDelayLevels;
+    }
+
+
+    public int getScheduleTickMillis() {
+        return scheduleTickMillis;
+    }
+
+
+    public void setScheduleTickMillis(int scheduleTickMillis) {
+        this.scheduleTickMillis = scheduleTickMillis;
+    }
+
+
+    public int getScheduleWheelSize() {
+        return scheduleWheelSize;
+    }
+
+
+    public void setScheduleWheelSize(int scheduleWheelSize) {
+        this.scheduleWheelSize = scheduleWheelSize;
+    }
+
+
+    public int getScheduleLoadAheadMillis() {
+        return scheduleLoadAheadMillis;
+    }
+
+
+    public void setScheduleLoadAheadMillis(int scheduleLoadAheadMillis) {
+        this.scheduleLoadAheadMillis = scheduleLoadAheadMillis;
+    }
+
+
     @Override
     public void reload(String configPath) {
         MetaStoreConfig msc = MetaStoreConfig.createMetaStoreConfig(configPath, false);
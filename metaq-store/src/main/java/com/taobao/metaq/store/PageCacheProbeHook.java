@@ -0,0 +1,20 @@
+/**
+ * $Id: PageCacheProbeHook.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.nio.MappedByteBuffer;
+
+
+/**
+ * 探测物理队列数据是否在PageCache中的扩展接口，用来调用mincore等本地方法<br>
+ * 实现类通过MetaStoreConfig.pageCacheProbeHookClass配置，必须有无参构造函数
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public interface PageCacheProbeHook {
+    /**
+     * 映射内存中[position, position + length)区间的页是否都在PageCache中
+     */
+    public boolean isResident(final MappedByteBuffer mappedByteBuffer, final int position, final int length);
+}
@@ -0,0 +1,164 @@
+/**
+ * $Id: PageCacheResidency.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * 估算物理队列数据是否在PageCache中，拉消息时据此选择内存或者磁盘的传输限制<br>
+ * 物理队列按照固定大小分块，记录每块最近一次读写时间，窗口时间内读写过的块认为在PageCache中<br>
+ * 配置了探测接口时，按块采样调用探测接口，探测结果缓存一段时间
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class PageCacheResidency {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 记录的分块个数，按照块序号取模存放，必须为2的幂
+    private static final int SlotNums = 1024 * 64;
+    // 同一块的访问时间至少间隔多久更新一次，避免每条消息都写一次
+    private static final long TouchInterval = 1000;
+    // 每次探测的最大字节数
+    private static final int ProbeLength = 1024 * 256;
+
+    private final DefaultMetaStore defaultMetaStore;
+    // 分块大小
+    private final int chunkSize;
+    // 最近多长时间内读写过的块认为在PageCache中
+    private final long residentWindow;
+    // 同一块的探测结果缓存时间
+    private final long probeInterval;
+    // PageCache最多容纳的数据量，即可用物理内存大小
+    private final long maxResidentBytes;
+    // 探测接口，未配置时为null
+    private final PageCacheProbeHook probeHook;
+    // 每个槽位对应的块序号
+    private final AtomicLongArray slotChunks = new AtomicLongArray(SlotNums);
+    // 每个槽位最近一次读写时间
+    private final AtomicLongArray slotTimestamps = new AtomicLongArray(SlotNums);
+    // 每个槽位最近一次探测的块序号
+    private final AtomicLongArray probeChunks = new AtomicLongArray(SlotNums);
+    // 每个槽位最近一次探测时间，最低位记录探测结果
+    private final AtomicLongArray probeTimestamps = new AtomicLongArray(SlotNums);
+
+
+    public PageCacheResidency(final DefaultMetaStore defaultMetaStore) {
+        this.defaultMetaStore = defaultMetaStore;
+        MetaStoreConfig metaStoreConfig = defaultMetaStore.getMetaStoreConfig();
+        this.chunkSize = Math.max(metaStoreConfig.getPageCacheResidencyChunkSize(), MapedFile.OS_PAGE_SIZE);
+        this.residentWindow = metaStoreConfig.getPageCacheResidentWindow();
+        this.probeInterval = metaStoreConfig.getPageCacheProbeInterval();
+        this.maxResidentBytes = metaStoreConfig.getTotalPhysicMemory() * 1024L * 1024L * 1024L;
+        this.probeHook = createProbeHook(metaStoreConfig);
+
+        for (int i = 0; i < SlotNums; i++) {
+            this.slotChunks.set(i, -1);
+            this.probeChunks.set(i, -1);
+        }
+    }
+
+
+    private static PageCacheProbeHook createProbeHook(final MetaStoreConfig metaStoreConfig) {
+        String className = metaStoreConfig.getPageCacheProbeHookClass();
+        if (null == className || className.trim().length() == 0) {
+            return null;
+        }
+
+        try {
+            PageCacheProbeHook hook = (PageCacheProbeHook) Class.forName(className.trim()).newInstance();
+            log.info("create page cache probe hook " + className + " OK");
+            return hook;
+        }
+        catch (Throwable e) {
+            log.warn("create page cache probe hook " + className + " failed, ignore it", e);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * 写入或者读取物理队列后调用
+     */
+    public void touch(final long phyOffset) {
+        final long chunk = phyOffset / this.chunkSize;
+        final int slot = (int) (chunk & (SlotNums - 1));
+        final long now = this.defaultMetaStore.getSystemClock().now();
+        if (this.slotChunks.get(slot) != chunk) {
+            // 先更新时间再更新块序号，读线程看到新的块序号时，时间一定是新的
+            this.slotTimestamps.set(slot, now);
+            this.slotChunks.set(slot, chunk);
+        }
+        else if (now - this.slotTimestamps.get(slot) >= TouchInterval) {
+            this.slotTimestamps.set(slot, now);
+        }
+    }
+
+
+    /**
+     * 物理Offset处的数据是否在PageCache中
+     */
+    public boolean isResident(final long phyOffset) {
+        final long chunk = phyOffset / this.chunkSize;
+        final int slot = (int) (chunk & (SlotNums - 1));
+        final long now = this.defaultMetaStore.getSystemClock().now();
+        if (this.probeHook != null) {
+            return this.probe(phyOffset, chunk, slot, now);
+        }
+
+        return this.slotChunks.get(slot) == chunk && (now - this.slotTimestamps.get(slot)) <= this.residentWindow;
+    }
+
+
+    private boolean probe(final long phyOffset, final long chunk, final int slot, final long now) {
+        long probeTimestamp = this.probeTimestamps.get(slot);
+        if (this.probeChunks.get(slot) == chunk && (now - (probeTimestamp >>> 1)) < this.probeInterval) {
+            return (probeTimestamp & 1) == 1;
+        }
+
+        boolean resident = false;
+        MapedFile mapedFile = this.defaultMetaStore.getMetaQueuePhysical().findMapedFileByOffset(phyOffset);
+        if (mapedFile != null && mapedFile.hold()) {
+            try {
+                int pos = (int) (phyOffset % mapedFile.getFileSize());
+                int length = Math.min(ProbeLength, mapedFile.getFileSize() - pos);
+                resident = this.probeHook.isResident(mapedFile.getMappedByteBuffer(), pos, length);
+            }
+            catch (Throwable e) {
+                log.warn("probe page cache error, offset " + phyOffset, e);
+            }
+            finally {
+                mapedFile.release();
+            }
+        }
+
+        this.probeChunks.set(slot, -1);
+        this.probeTimestamps.set(slot, (now << 1) | (resident ? 1 : 0));
+        this.probeChunks.set(slot, chunk);
+        return resident;
+    }
+
+
+    /**
+     * 窗口时间内读写过的数据量，即估算的PageCache中物理队列数据量，不超过可用物理内存大小
+     */
+    public long getEstimatedResidentBytes() {
+        final long now = this.defaultMetaStore.getSystemClock().now();
+        long chunks = 0;
+        for (int i = 0; i < SlotNums; i++) {
+            if (this.slotChunks.get(i) >= 0 && (now - this.slotTimestamps.get(i)) <= this.residentWindow) {
+                chunks++;
+            }
+        }
+
+        return Math.min(chunks * this.chunkSize, this.maxResidentBytes);
+    }
+
+
+    public boolean isProbeHookEnable() {
+        return this.probeHook != null;
+    }
+}
@@ -0,0 +1,22 @@
+/**
+ * $Id: PutMessageCallback.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+/**
+ * 异步写消息的回调接口<br>
+ * 同步刷盘时在刷盘线程中回调，实现不能阻塞，否则影响所有等待刷盘的请求
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public interface PutMessageCallback {
+    /**
+     * 消息写入完成，同步刷盘时在刷盘完成后调用
+     *
+     * @param result
+     *            写入结果，存储不可写或者消息不合法时为null
+     * @param flushOK
+     *            同步刷盘是否成功，异步刷盘时总是true
+     */
+    public void putMessageComplete(final PutMessageResult result, final boolean flushOK);
+}
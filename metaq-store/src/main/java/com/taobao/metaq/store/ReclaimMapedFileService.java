@@ -0,0 +1,186 @@
+/**
+ * $Id: ReclaimMapedFileService.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.taobao.metaq.commons.ServiceThread;
+
+
+/**
+ * 后台回收过期的MapedFile，避免删除文件的线程被unmap与unlink阻塞<br>
+ * 回收过程：禁止访问并改名 -> 等待引用释放 -> 按速率分段截断 -> unmap并删除<br>
+ * 截断后PageCache逐步释放，unmap与unlink不再需要处理大量页面
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class ReclaimMapedFileService extends ServiceThread {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 等待回收的文件后缀，重启时直接删除
+    public static final String ReclaimFileSuffix = ".reclaim";
+    // 等待引用释放时的检查间隔
+    private static final int WaitReleaseInterval = 10;
+    private final MetaStoreConfig metaStoreConfig;
+    // 等待回收的文件
+    private final ConcurrentLinkedQueue<MapedFile> reclaimQueue = new ConcurrentLinkedQueue<MapedFile>();
+    // 等待回收的文件个数，包括正在回收的文件
+    private final AtomicLong pendingFiles = new AtomicLong(0);
+    // 回收完成的文件个数
+    private final AtomicLong reclaimFileTimes = new AtomicLong(0);
+    // 截断的字节总数
+    private final AtomicLong reclaimTruncatedBytes = new AtomicLong(0);
+    // 引用未能在规定时间内释放，强制回收的次数
+    private final AtomicLong reclaimForciblyTimes = new AtomicLong(0);
+    // 最近一次回收耗时，从提交回收到删除完成
+    private volatile long reclaimTimeLast = 0;
+    // 最大回收耗时
+    private volatile long reclaimTimeMax = 0;
+
+
+    public ReclaimMapedFileService(final MetaStoreConfig metaStoreConfig) {
+        this.metaStoreConfig = metaStoreConfig;
+        this.thread.setPriority(Thread.MIN_PRIORITY);
+    }
+
+
+    /**
+     * 提交回收，调用前文件已经从队列中摘除，调用后文件不能再被HOLD
+     */
+    public void reclaim(final MapedFile mapedFile) {
+        mapedFile.markUnavailable();
+        if (!mapedFile.renameTo(mapedFile.getFileName() + ReclaimFileSuffix)) {
+            log.warn("rename reclaim file " + mapedFile.getFileName() + " Failed");
+        }
+
+        this.pendingFiles.incrementAndGet();
+        this.reclaimQueue.add(mapedFile);
+        this.wakeup();
+    }
+
+
+    /**
+     * 等待到指定时间，shutdown时立即返回
+     */
+    private void waitUntil(final long deadline) {
+        long now = System.currentTimeMillis();
+        while (now < deadline && !this.isStoped()) {
+            this.waitForRunning(deadline - now);
+            now = System.currentTimeMillis();
+        }
+    }
+
+
+    private void reclaimMapedFile(final MapedFile mapedFile) {
+        final long intervalForcibly = this.metaStoreConfig.getDestroyMapedFileIntervalForcibly();
+        // 等待已经HOLD住的引用释放，只剩下初始引用
+        while (mapedFile.getRefCount() > 1 && !this.isStoped()
+                && System.currentTimeMillis() - mapedFile.getFirstShutdownTimestamp() < intervalForcibly) {
+            this.waitUntil(System.currentTimeMillis() + WaitReleaseInterval);
+        }
+
+        // 没有其他引用时才能截断，否则访问被截断的映射内存会导致进程崩溃
+        if (mapedFile.getRefCount() <= 1) {
+            long size = mapedFile.getFileSize();
+            while (size > 0) {
+                final long beginTime = System.currentTimeMillis();
+                final int chunkSize =
+                        Math.max(this.metaStoreConfig.getReclaimTruncateChunkSize(), MapedFile.OS_PAGE_SIZE);
+                final long chunk = Math.min(size, chunkSize);
+                if (!mapedFile.truncate(size - chunk)) {
+                    break;
+                }
+                size -= chunk;
+                this.reclaimTruncatedBytes.addAndGet(chunk);
+
+                // 限速
+                final int bytesPerSecond = Math.max(this.metaStoreConfig.getReclaimBytesPerSecond(), 1);
+                this.waitUntil(beginTime + chunk * 1000 / bytesPerSecond);
+            }
+        }
+        else {
+            this.reclaimForciblyTimes.incrementAndGet();
+            log.warn("reclaim file " + mapedFile.getFileName() + " forcibly, REF: " + mapedFile.getRefCount());
+        }
+
+        // 第一次释放初始引用，仍有引用时第二次强制释放
+        if (!mapedFile.destroy(0) && !mapedFile.destroy(0)) {
+            log.error("reclaim file " + mapedFile.getFileName() + " Failed");
+        }
+
+        long reclaimTime = System.currentTimeMillis() - mapedFile.getFirstShutdownTimestamp();
+        this.reclaimTimeLast = reclaimTime;
+        if (reclaimTime > this.reclaimTimeMax) {
+            this.reclaimTimeMax = reclaimTime;
+        }
+        this.reclaimFileTimes.incrementAndGet();
+        this.pendingFiles.decrementAndGet();
+    }
+
+
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        while (!this.isStoped()) {
+            try {
+                MapedFile mapedFile = this.reclaimQueue.poll();
+                if (null == mapedFile) {
+                    this.waitForRunning(1000);
+                    continue;
+                }
+
+                this.reclaimMapedFile(mapedFile);
+            }
+            catch (Exception e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        // 停止后不再限速，回收剩余的文件
+        MapedFile mapedFile = null;
+        while ((mapedFile = this.reclaimQueue.poll()) != null) {
+            this.reclaimMapedFile(mapedFile);
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return ReclaimMapedFileService.class.getSimpleName();
+    }
+
+
+    public long getPendingFiles() {
+        return pendingFiles.get();
+    }
+
+
+    public long getReclaimFileTimes() {
+        return reclaimFileTimes.get();
+    }
+
+
+    public long getReclaimTruncatedBytes() {
+        return reclaimTruncatedBytes.get();
+    }
+
+
+    public long getReclaimForciblyTimes() {
+        return reclaimForciblyTimes.get();
+    }
+
+
+    public long getReclaimTimeLast() {
+        return reclaimTimeLast;
+    }
+
+
+    public long getReclaimTimeMax() {
+        return reclaimTimeMax;
+    }
+}
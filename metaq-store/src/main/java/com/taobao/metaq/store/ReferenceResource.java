@@ -3,10 +3,12 @@
  */
 package com.taobao.metaq.store;
 
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * 引用计数基类
+ * 引用计数基类<br>
+ * hold与release通过CAS完成，不使用对象锁，读消息线程之间没有竞争
  * 
  * @author vintage.wang@gmail.com shijia.wxr@taobao.com
  */
@@ -14,19 +16,32 @@ public abstract class ReferenceResource {
     protected final AtomicLong refCount = new AtomicLong(1);
     protected volatile boolean available = true;
     protected volatile boolean cleanupOver = false;
+    // 是否已经有线程在执行cleanup，保证cleanup不会被并发调用
+    private final AtomicBoolean cleanupClaimed = new AtomicBoolean(false);
     private volatile long firstShutdownTimestamp = 0;
+    // shutdown是否已经释放初始引用
+    private volatile boolean firstReleased = false;
 
 
     /**
      * 资源是否能HOLD住
      */
-    public synchronized boolean hold() {
-        if (this.isAvailable()) {
-            if (this.refCount.getAndIncrement() > 0) {
-                return true;
+    public boolean hold() {
+        while (this.isAvailable()) {
+            long value = this.refCount.get();
+            // 引用计数降到0后资源已经开始清理，不能再增加
+            if (value <= 0) {
+                break;
             }
-            else {
-                this.refCount.getAndDecrement();
+
+            if (this.refCount.compareAndSet(value, value + 1)) {
+                // 检查可用与增加引用之间，管理线程可能已经禁止访问，并看到没有其他引用后开始截断或者unmap
+                // 增加引用后再检查一次，不可用时撤销，保证返回true时管理线程一定能看到这个引用
+                if (!this.isAvailable()) {
+                    this.release();
+                    return false;
+                }
+                return true;
             }
         }
 
@@ -42,9 +57,13 @@ public abstract class ReferenceResource {
         if (value > 0)
             return;
 
-        synchronized (this) {
+        // 只允许一个线程执行cleanup，cleanup失败后允许再次尝试
+        if (this.cleanupClaimed.compareAndSet(false, true)) {
             // cleanup内部要对是否clean做处理
             this.cleanupOver = this.cleanup(value);
+            if (!this.cleanupOver) {
+                this.cleanupClaimed.set(false);
+            }
         }
     }
 
@@ -53,9 +72,9 @@ public abstract class ReferenceResource {
      * 禁止资源被访问 shutdown不允许调用多次，最好是由管理线程调用
      */
     public void shutdown(final long intervalForcibly) {
-        if (this.available) {
-            this.available = false;
-            this.firstShutdownTimestamp = System.currentTimeMillis();
+        if (!this.firstReleased) {
+            this.markUnavailable();
+            this.firstReleased = true;
             this.release();
         }
         // 强制shutdown
@@ -68,6 +87,17 @@ public abstract class ReferenceResource {
     }
 
 
+    /**
+     * 只禁止资源被访问，不释放初始引用，已经HOLD住的引用释放完后再调用shutdown
+     */
+    public void markUnavailable() {
+        if (this.available) {
+            this.available = false;
+            this.firstShutdownTimestamp = System.currentTimeMillis();
+        }
+    }
+
+
     /**
      * 资源是否可用，即是否可被HOLD
      */
@@ -89,5 +119,10 @@ public abstract class ReferenceResource {
     }
 
 
+    public long getFirstShutdownTimestamp() {
+        return firstShutdownTimestamp;
+    }
+
+
     public abstract boolean cleanup(final long currentRef);
 }
@@ -0,0 +1,894 @@
+/**
+ * $Id: ScheduleMessageService.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.taobao.metaq.commons.MetaMessage;
+import com.taobao.metaq.commons.MetaMessageAnnotation;
+import com.taobao.metaq.commons.MetaMessageDecoder;
+import com.taobao.metaq.commons.MetaMessageWrapper;
+import com.taobao.metaq.commons.ServiceThread;
+import com.taobao.metaq.store.DefaultMetaStore.DispatchMessageService.DispatchRequest;
+
+
+/**
+ * 定时消息服务，只在Master运行<br>
+ * 带有延时级别或者投递时间的消息写入时改写到内部Topic，每个延时级别一个定时队列，指定投递时间的消息使用最后一个队列，
+ * 真实Topic、队列ID与原消息属性保存在消息属性中，指定的投递时间保存在REQUESTID字段<br>
+ * 延时级别队列按照到期时间有序，只读取到第一条未到期的消息为止；指定投递时间的队列无序，只把投递时间在加载范围内的消息
+ * 放入分层时间轮，更晚的消息临近时重新扫描队列加载，内存中只保留有限的消息；服务线程等待到最早的消息到期，
+ * 新消息写入定时队列时被唤醒，不轮询队列；到期后读取原消息，只复制一次消息体写入真实队列<br>
+ * 投递后在定时队列存储单元的类型字段标记已投递，各队列连续投递完成的Offset在消息刷盘后写入StoreCheckpoint；
+ * 正常关闭后重启跳过已标记的消息，异常关闭后标记可能先于投递的消息落盘，先清除未确认部分的标记，
+ * 再从物理队列中找出已经投递的消息重新标记，重启后不丢失也不重复投递<br>
+ * 定时队列与普通消息一样按照物理文件过期删除，投递时间超过保留时间的消息会丢失
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class ScheduleMessageService extends ServiceThread {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 定时消息写入的内部Topic
+    public static final String ScheduleTopic = "SCHEDULE_TOPIC_METAQ";
+    // 定时队列存储单元的类型字段：未投递、已投递
+    public static final int UnitTypePending = 0;
+    public static final int UnitTypeDelivered = 1;
+    // 消息属性中真实Topic、队列ID与原属性之间的分隔符
+    private static final char AttributeSeparator = '\u0001';
+    // 最多支持的延时级别，投递后的消息在延时级别位记录定时队列ID + 1
+    private static final int MaxDelayLevel =
+            Math.min(MetaMessageDecoder.DelayLevelMask >>> MetaMessageDecoder.DelayLevelShift,
+                StoreCheckpoint.MaxScheduleQueueNums) - 1;
+    // 最长等待时间，到期检查刷盘进度并写入Checkpoint
+    private static final int MaxWaitInterval = 1000;
+    // 投递失败后重试间隔
+    private static final int RetryInterval = 1000;
+    // 每批投递的最大消息条数
+    private static final int MaxDeliverBatch = 32;
+    // 每轮每个定时队列最多读取的存储单元个数，未读完时不等待，继续下一轮
+    private static final int MaxLoadUnitsOnce = 1024 * 8;
+
+    /**
+     * 定时队列中的一条消息
+     */
+    static class ScheduleEntry implements TimingWheel.Task {
+        private final int queueId;
+        // 定时队列Offset
+        private final long offset;
+        private final long phyOffset;
+        private final int size;
+        private long deadline;
+
+
+        ScheduleEntry(int queueId, long offset, long phyOffset, int size, long deadline) {
+            this.queueId = queueId;
+            this.offset = offset;
+            this.phyOffset = phyOffset;
+            this.size = size;
+            this.deadline = deadline;
+        }
+
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    private final DefaultMetaStore defaultMetaStore;
+    // 各延时级别的延时时间（毫秒）
+    private final long[] delayLevelMillis;
+    // 定时队列个数，延时级别个数 + 1
+    private final int queueNums;
+    // 指定投递时间的消息与投递失败等待重试的消息
+    private final TimingWheel<ScheduleEntry> timingWheel;
+    // 各定时队列已经读取的Offset
+    private final long[] loadedOffsets;
+    // 各定时队列中小于此Offset的消息都已经投递，之后已经投递的消息在存储单元中标记
+    private final long[] deliveredOffsets;
+    // 各延时级别队列已经读取、还未到期的第一条消息
+    private final ScheduleEntry[] levelHeads;
+    // 指定投递时间的队列中，已经读取并且投递时间不大于此值的消息都已经加载到时间轮
+    private long loadAheadDeadline;
+    // 已经读取、超出加载范围的消息中最早的投递时间
+    private long minAheadDeadline = Long.MAX_VALUE;
+    // 加载范围扩大后重新扫描的进度，-1表示没有在扫描，依次为当前Offset、结束Offset、扫描前的加载范围
+    private long rescanOffset = -1;
+    private long rescanEndOffset;
+    private long rescanAheadDeadline;
+    // 本轮读取达到上限，还有消息没有读取
+    private boolean loadPending = false;
+    // 等待投递的消息刷盘后写入Checkpoint的进度，依次为队列ID、连续投递完成的Offset、投递消息的物理结束Offset
+    private final LinkedList<long[]> pendingCheckpoints = new LinkedList<long[]>();
+    // 统计：投递成功、投递失败、读取原消息失败的次数
+    private final AtomicLong deliveredTimes = new AtomicLong(0);
+    private final AtomicLong deliverFailedTimes = new AtomicLong(0);
+    private final AtomicLong lostTimes = new AtomicLong(0);
+    // 已经加载、等待投递的消息条数
+    private volatile int pendingMessages = 0;
+
+
+    public ScheduleMessageService(final DefaultMetaStore defaultMetaStore) {
+        this.defaultMetaStore = defaultMetaStore;
+        MetaStoreConfig metaStoreConfig = defaultMetaStore.getMetaStoreConfig();
+        this.delayLevelMillis = parseDelayLevels(metaStoreConfig.getScheduleDelayLevels());
+        this.queueNums = this.delayLevelMillis.length + 1;
+        this.timingWheel =
+                new TimingWheel<ScheduleEntry>(Math.max(metaStoreConfig.getScheduleTickMillis(), 1), Math.max(
+                    metaStoreConfig.getScheduleWheelSize(), 2), System.currentTimeMillis());
+        this.loadedOffsets = new long[this.queueNums];
+        this.deliveredOffsets = new long[this.queueNums];
+        this.levelHeads = new ScheduleEntry[this.delayLevelMillis.length];
+    }
+
+
+    /**
+     * 解析延时级别配置，例如"1s 5s 1m 2h"，非法的值忽略
+     */
+    static long[] parseDelayLevels(final String levels) {
+        List<Long> millis = new ArrayList<Long>();
+        if (levels != null && levels.trim().length() > 0) {
+            for (String level : levels.trim().split("\\s+")) {
+                long factor = 0;
+                switch (level.charAt(level.length() - 1)) {
+                case 's':
+                    factor = 1000L;
+                    break;
+                case 'm':
+                    factor = 1000L * 60;
+                    break;
+                case 'h':
+                    factor = 1000L * 60 * 60;
+                    break;
+                case 'd':
+                    factor = 1000L * 60 * 60 * 24;
+                    break;
+                default:
+                    break;
+                }
+
+                try {
+                    long value = Long.parseLong(level.substring(0, level.length() - 1));
+                    if (factor > 0 && value >= 0 && millis.size() < MaxDelayLevel) {
+                        millis.add(value * factor);
+                        continue;
+                    }
+                }
+                catch (NumberFormatException e) {
+                }
+
+                log.warn("ignore schedule delay level " + level);
+            }
+        }
+
+        long[] result = new long[millis.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = millis.get(i);
+        }
+        return result;
+    }
+
+
+    /**
+     * 消息需要改写到的定时队列，不需要改写返回-1
+     */
+    private int scheduleQueueIdOf(final MetaMessageAnnotation msgant) {
+        final int sysFlag = msgant.getSysFlag();
+        if ((sysFlag & MetaMessageDecoder.ScheduleDeliveredFlag) != 0) {
+            return -1;
+        }
+
+        if ((sysFlag & MetaMessageDecoder.DeliverAtFlag) != 0) {
+            return this.queueNums - 1;
+        }
+
+        if (msgant.getDelayLevel() > 0 && this.delayLevelMillis.length > 0) {
+            return Math.min(msgant.getDelayLevel(), this.delayLevelMillis.length) - 1;
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * 改写后消息属性的长度，用于改写前校验，不需要改写返回原属性长度
+     */
+    public int getTransformedAttributeLength(final MetaMessage msg, final MetaMessageAnnotation msgant) {
+        final int length = msg.getAttribute() != null ? msg.getAttribute().length() : 0;
+        if (this.scheduleQueueIdOf(msgant) < 0) {
+            return length;
+        }
+
+        return msg.getTopic().length() + String.valueOf(msgant.getQueueId()).length() + 2 + length;
+    }
+
+
+    /**
+     * 写消息前调用，带有延时级别或者投递时间的消息改写到定时队列，已经投递过的消息不处理<br>
+     * 延时级别超过配置的级别个数时按照最大级别处理
+     */
+    public void transformDelayedMessage(final MetaMessage msg, final MetaMessageAnnotation msgant) {
+        final int scheduleQueueId = this.scheduleQueueIdOf(msgant);
+        if (scheduleQueueId < 0) {
+            return;
+        }
+
+        StringBuilder attribute = new StringBuilder();
+        attribute.append(msg.getTopic()).append(AttributeSeparator).append(msgant.getQueueId())
+            .append(AttributeSeparator);
+        if (msg.getAttribute() != null) {
+            attribute.append(msg.getAttribute());
+        }
+
+        msg.setAttribute(attribute.toString());
+        msg.setTopic(ScheduleTopic);
+        msgant.setQueueId(scheduleQueueId);
+    }
+
+
+    /**
+     * 存储恢复完成后调用，从Checkpoint加载各定时队列的投递进度
+     *
+     * @param lastExitOK
+     *            上次是否正常关闭，异常关闭时从物理队列中找出已经投递的消息
+     */
+    public void load(final boolean lastExitOK) {
+        StoreCheckpoint storeCheckpoint = this.defaultMetaStore.getStoreCheckpoint();
+        for (int i = 0; i < this.queueNums; i++) {
+            this.deliveredOffsets[i] = storeCheckpoint.getScheduleOffset(i);
+            this.loadedOffsets[i] = this.deliveredOffsets[i];
+        }
+
+        if (!lastExitOK) {
+            this.recoverDeliveredOffsets();
+        }
+
+        this.loadAheadDeadline = this.defaultMetaStore.getSystemClock().now() + this.getLoadAheadMillis();
+
+        log.info("load schedule offsets OK, " + (lastExitOK ? "normally" : "abnormally") + ", levels "
+                + this.delayLevelMillis.length);
+    }
+
+
+    private MetaQueueLogistic findScheduleQueue(final int queueId) {
+        ConcurrentHashMap<Integer, MetaQueueLogistic> map =
+                this.defaultMetaStore.getMetaQueueLogisticTable().get(ScheduleTopic);
+        return map != null ? map.get(queueId) : null;
+    }
+
+
+    /**
+     * 读取定时队列中一条消息的物理Offset
+     */
+    private long pickupPhyOffset(final MetaQueueLogistic logic, final long offset) {
+        SelectMapedBufferResult bufferLogic = logic.getIndexBuffer(offset);
+        if (bufferLogic != null) {
+            try {
+                return bufferLogic.getByteBuffer().getLong(0);
+            }
+            finally {
+                bufferLogic.release();
+            }
+        }
+
+        return -1;
+    }
+
+
+    private int getLoadAheadMillis() {
+        return Math.max(this.defaultMetaStore.getMetaStoreConfig().getScheduleLoadAheadMillis(), 1);
+    }
+
+
+    /**
+     * 清除定时队列中从offset开始的已投递标记
+     */
+    private void clearDeliveredMarks(final MetaQueueLogistic logic, final long beginOffset) {
+        long offset = beginOffset;
+        final long maxOffset = logic.getMaxOffsetInQuque();
+        while (offset < maxOffset) {
+            SelectMapedBufferResult bufferLogic = logic.getIndexBuffer(offset);
+            if (null == bufferLogic) {
+                offset = logic.rollNextFile(offset);
+                continue;
+            }
+
+            try {
+                ByteBuffer byteBuffer = bufferLogic.getByteBuffer();
+                for (int i = 0; i < bufferLogic.getSize() && offset < maxOffset; i +=
+                        MetaQueueLogistic.StoreUnitSize, offset++) {
+                    if (UnitTypeDelivered == byteBuffer.getInt(i + 12)) {
+                        byteBuffer.putInt(i + 12, UnitTypePending);
+                    }
+                }
+            }
+            finally {
+                bufferLogic.release();
+            }
+        }
+    }
+
+
+    /**
+     * 异常关闭后，清除未确认投递部分的标记，再从第一条未确认投递的定时消息开始扫描物理队列，找出已经写入真实队列的消息
+     */
+    private void recoverDeliveredOffsets() {
+        long beginPhyOffset = Long.MAX_VALUE;
+        for (int i = 0; i < this.queueNums; i++) {
+            MetaQueueLogistic logic = this.findScheduleQueue(i);
+            if (logic != null) {
+                long offset = Math.max(this.deliveredOffsets[i], logic.getMinOffsetInQuque());
+                this.clearDeliveredMarks(logic, offset);
+                if (offset < logic.getMaxOffsetInQuque()) {
+                    long phyOffset = this.pickupPhyOffset(logic, offset);
+                    if (phyOffset >= 0) {
+                        beginPhyOffset = Math.min(beginPhyOffset, phyOffset);
+                    }
+                }
+            }
+        }
+
+        if (Long.MAX_VALUE == beginPhyOffset) {
+            return;
+        }
+
+        final MetaQueuePhysical metaQueuePhysical = this.defaultMetaStore.getMetaQueuePhysical();
+        final long maxPhyOffset = metaQueuePhysical.getMaxOffset();
+        long phyOffset = Math.max(beginPhyOffset, metaQueuePhysical.getMinOffset());
+        int recovered = 0;
+        while (phyOffset < maxPhyOffset) {
+            SelectMapedBufferResult result = metaQueuePhysical.getData(phyOffset);
+            if (null == result) {
+                phyOffset = metaQueuePhysical.rollNextFile(phyOffset);
+                continue;
+            }
+
+            try {
+                ByteBuffer byteBuffer = result.getByteBuffer();
+                boolean nextFile = false;
+                while (byteBuffer.hasRemaining()) {
+                    final int pos = byteBuffer.position();
+                    DispatchRequest dispatchRequest =
+                            metaQueuePhysical.checkMessageAndReturnSize(byteBuffer, false, false);
+                    int size = dispatchRequest.getSize();
+                    if (size > 0) {
+                        int sysFlag = byteBuffer.getInt(pos + MetaMessageDecoder.MessageSysFlagPostion);
+                        if (!dispatchRequest.isSkip() && (sysFlag & MetaMessageDecoder.ScheduleDeliveredFlag) != 0) {
+                            int queueId =
+                                    ((sysFlag & MetaMessageDecoder.DelayLevelMask) >>> MetaMessageDecoder.DelayLevelShift) - 1;
+                            long offset = byteBuffer.getLong(pos + MetaMessageDecoder.MessageRequestIdPostion);
+                            if (queueId >= 0 && queueId < this.queueNums) {
+                                this.onDelivered(queueId, offset, 0, true);
+                                recovered++;
+                            }
+                        }
+                        phyOffset += size;
+                    }
+                    // 文件末尾，或者消息校验失败
+                    else {
+                        nextFile = 0 == size;
+                        break;
+                    }
+                }
+
+                if (nextFile) {
+                    phyOffset = metaQueuePhysical.rollNextFile(phyOffset);
+                }
+                // 消息校验失败
+                else if (byteBuffer.hasRemaining()) {
+                    break;
+                }
+            }
+            finally {
+                result.release();
+            }
+        }
+
+        log.info("recover schedule delivered offsets from physic offset " + beginPhyOffset + ", found "
+                + recovered + " delivered messages");
+    }
+
+
+    /**
+     * 读取定时消息的投递时间，延时级别为存储时间加上延时，否则为消息中指定的时间
+     *
+     * @return 消息已经删除时返回-1
+     */
+    private long pickupDeadline(final int queueId, final long phyOffset, final int size) {
+        SelectMapedBufferResult result =
+                this.defaultMetaStore.getMetaQueuePhysical().getMessage(phyOffset,
+                    MetaMessageDecoder.MessageTopicPostion);
+        if (null == result) {
+            return -1;
+        }
+
+        try {
+            if (queueId < this.delayLevelMillis.length) {
+                return result.getByteBuffer().getLong(MetaMessageDecoder.MessageStoreTimestampPostion)
+                        + this.delayLevelMillis[queueId];
+            }
+            return result.getByteBuffer().getLong(MetaMessageDecoder.MessageRequestIdPostion);
+        }
+        finally {
+            result.release();
+        }
+    }
+
+
+    /**
+     * 加载定时队列中的消息，已经到期的消息放入expired
+     */
+    private void loadNewEntries(final List<ScheduleEntry> expired) {
+        this.loadPending = false;
+        for (int i = 0; i < this.queueNums; i++) {
+            MetaQueueLogistic logic = this.findScheduleQueue(i);
+            if (logic != null) {
+                this.loadQueue(logic, i, expired);
+            }
+        }
+    }
+
+
+    private void loadQueue(final MetaQueueLogistic logic, final int queueId, final List<ScheduleEntry> expired) {
+        final long minOffset = logic.getMinOffsetInQuque();
+        // 过期删除的消息不再投递，同时跳过之后已经标记投递的消息
+        this.advanceDeliveredOffset(queueId, Math.max(this.deliveredOffsets[queueId], minOffset), 0);
+
+        if (queueId < this.delayLevelMillis.length) {
+            this.loadLevelQueue(logic, queueId, minOffset, expired);
+        }
+        else {
+            this.loadDeliverAtQueue(logic, queueId, minOffset, expired);
+        }
+    }
+
+
+    /**
+     * 延时级别队列按照到期时间有序，读取到第一条未到期的消息为止
+     */
+    private void loadLevelQueue(final MetaQueueLogistic logic, final int queueId, final long minOffset,
+            final List<ScheduleEntry> expired) {
+        final long now = this.defaultMetaStore.getSystemClock().now();
+        ScheduleEntry head = this.levelHeads[queueId];
+        if (head != null) {
+            if (head.offset >= minOffset && head.deadline > now) {
+                return;
+            }
+
+            this.levelHeads[queueId] = null;
+            if (head.offset >= minOffset) {
+                expired.add(head);
+            }
+        }
+
+        long offset = Math.max(this.loadedOffsets[queueId], minOffset);
+        final long maxOffset = logic.getMaxOffsetInQuque();
+        final long endOffset = Math.min(maxOffset, offset + MaxLoadUnitsOnce);
+        while (offset < endOffset && null == this.levelHeads[queueId]) {
+            SelectMapedBufferResult bufferLogic = logic.getIndexBuffer(offset);
+            if (null == bufferLogic) {
+                offset = logic.rollNextFile(offset);
+                continue;
+            }
+
+            try {
+                ByteBuffer byteBuffer = bufferLogic.getByteBuffer();
+                for (int i = 0; i < bufferLogic.getSize() && offset < endOffset; i +=
+                        MetaQueueLogistic.StoreUnitSize) {
+                    ScheduleEntry entry = this.readEntry(byteBuffer, i, queueId, offset++);
+                    if (entry != null) {
+                        if (entry.deadline > now) {
+                            this.levelHeads[queueId] = entry;
+                            break;
+                        }
+                        expired.add(entry);
+                    }
+                }
+            }
+            finally {
+                bufferLogic.release();
+            }
+        }
+
+        this.loadedOffsets[queueId] = offset;
+        if (null == this.levelHeads[queueId] && offset < maxOffset) {
+            this.loadPending = true;
+        }
+    }
+
+
+    /**
+     * 指定投递时间的队列无序，投递时间在加载范围内的消息放入时间轮，超出范围的消息只记录最早的投递时间；
+     * 最早的投递时间临近时扩大加载范围，重新扫描已经读取的部分
+     */
+    private void loadDeliverAtQueue(final MetaQueueLogistic logic, final int queueId, final long minOffset,
+            final List<ScheduleEntry> expired) {
+        final long now = this.defaultMetaStore.getSystemClock().now();
+        final int loadAheadMillis = this.getLoadAheadMillis();
+        // 没有超出加载范围的消息，直接扩大范围
+        if (this.rescanOffset < 0 && Long.MAX_VALUE == this.minAheadDeadline) {
+            this.loadAheadDeadline = Math.max(this.loadAheadDeadline, now + loadAheadMillis);
+        }
+        else if (this.rescanOffset < 0 && this.minAheadDeadline <= now + loadAheadMillis / 2) {
+            this.rescanOffset = this.deliveredOffsets[queueId];
+            this.rescanEndOffset = this.loadedOffsets[queueId];
+            this.rescanAheadDeadline = this.loadAheadDeadline;
+            this.loadAheadDeadline = now + loadAheadMillis;
+            this.minAheadDeadline = Long.MAX_VALUE;
+        }
+
+        if (this.rescanOffset >= 0) {
+            this.rescanOffset =
+                    this.scanDeliverAtQueue(logic, queueId, Math.max(this.rescanOffset, minOffset),
+                        this.rescanEndOffset, this.rescanAheadDeadline, expired);
+            if (this.rescanOffset >= this.rescanEndOffset) {
+                this.rescanOffset = -1;
+            }
+            else {
+                this.loadPending = true;
+            }
+        }
+
+        final long maxOffset = logic.getMaxOffsetInQuque();
+        this.loadedOffsets[queueId] =
+                this.scanDeliverAtQueue(logic, queueId, Math.max(this.loadedOffsets[queueId], minOffset), maxOffset,
+                    Long.MIN_VALUE, expired);
+        if (this.loadedOffsets[queueId] < maxOffset) {
+            this.loadPending = true;
+        }
+    }
+
+
+    /**
+     * 扫描指定投递时间的队列，投递时间大于loadedDeadline并且在加载范围内的消息放入时间轮
+     *
+     * @return 扫描结束的Offset，每次最多扫描MaxLoadUnitsOnce个存储单元
+     */
+    private long scanDeliverAtQueue(final MetaQueueLogistic logic, final int queueId, final long beginOffset,
+            final long maxOffset, final long loadedDeadline, final List<ScheduleEntry> expired) {
+        long offset = beginOffset;
+        final long endOffset = Math.min(maxOffset, offset + MaxLoadUnitsOnce);
+        while (offset < endOffset) {
+            SelectMapedBufferResult bufferLogic = logic.getIndexBuffer(offset);
+            if (null == bufferLogic) {
+                offset = logic.rollNextFile(offset);
+                continue;
+            }
+
+            try {
+                ByteBuffer byteBuffer = bufferLogic.getByteBuffer();
+                for (int i = 0; i < bufferLogic.getSize() && offset < endOffset; i +=
+                        MetaQueueLogistic.StoreUnitSize) {
+                    ScheduleEntry entry = this.readEntry(byteBuffer, i, queueId, offset++);
+                    if (null == entry || entry.deadline <= loadedDeadline) {
+                        continue;
+                    }
+
+                    if (entry.deadline > this.loadAheadDeadline) {
+                        this.minAheadDeadline = Math.min(this.minAheadDeadline, entry.deadline);
+                    }
+                    else if (!this.timingWheel.add(entry)) {
+                        expired.add(entry);
+                    }
+                }
+            }
+            finally {
+                bufferLogic.release();
+            }
+        }
+
+        return offset;
+    }
+
+
+    /**
+     * 读取定时队列的一个存储单元
+     *
+     * @return 已经投递或者原消息已经删除时返回null
+     */
+    private ScheduleEntry readEntry(final ByteBuffer byteBuffer, final int pos, final int queueId,
+            final long offset) {
+        long offsetPy = byteBuffer.getLong(pos);
+        int sizePy = byteBuffer.getInt(pos + 8);
+        int type = byteBuffer.getInt(pos + 12);
+        if (offset < this.deliveredOffsets[queueId] || UnitTypeDelivered == type) {
+            return null;
+        }
+
+        long deadline = this.pickupDeadline(queueId, offsetPy, sizePy);
+        if (deadline < 0) {
+            log.warn("schedule message " + queueId + ":" + offset + " not found in physic queue " + offsetPy
+                    + ", skip it");
+            this.lostTimes.incrementAndGet();
+            this.onDelivered(queueId, offset, 0, true);
+            return null;
+        }
+
+        return new ScheduleEntry(queueId, offset, offsetPy, sizePy, deadline);
+    }
+
+
+    /**
+     * 读取原消息，还原真实Topic、队列ID与属性，消息体原样复制，压缩的消息不解压
+     *
+     * @return 原消息已经删除或者格式错误时返回null，此时直接标记为已投递
+     */
+    private MetaMessageWrapper buildDeliverMessage(final ScheduleEntry entry) {
+        SelectMapedBufferResult result =
+                this.defaultMetaStore.getMetaQueuePhysical().getMessage(entry.phyOffset, entry.size);
+        if (null == result) {
+            log.warn("schedule message " + entry.queueId + ":" + entry.offset + " not found in physic queue "
+                    + entry.phyOffset + ", skip it");
+            this.lostTimes.incrementAndGet();
+            this.onDelivered(entry.queueId, entry.offset, 0, true);
+            return null;
+        }
+
+        try {
+            ByteBuffer byteBuffer = result.getByteBuffer();
+            MetaMessageWrapper wrapper = MetaMessageDecoder.decode(byteBuffer.duplicate(), false);
+            String attribute = null != wrapper ? wrapper.getMetaMessage().getAttribute() : null;
+            int first = null != attribute ? attribute.indexOf(AttributeSeparator) : -1;
+            int second = first >= 0 ? attribute.indexOf(AttributeSeparator, first + 1) : -1;
+            if (second >= 0) {
+                // 14 TOPIC 15 TYPE 16 ATTRIBUTE 之后是 17 BODY
+                final int topicLen = byteBuffer.get(MetaMessageDecoder.MessageTopicPostion);
+                final int typeLen = byteBuffer.get(MetaMessageDecoder.MessageTopicPostion + 1 + topicLen);
+                final int attributeLen =
+                        byteBuffer.getShort(MetaMessageDecoder.MessageTopicPostion + 2 + topicLen + typeLen);
+                final int bodyPos = MetaMessageDecoder.MessageTopicPostion + 4 + topicLen + typeLen + attributeLen;
+                byte[] body = new byte[byteBuffer.getInt(bodyPos)];
+                byteBuffer.position(bodyPos + 4);
+                byteBuffer.get(body);
+
+                MetaMessage scheduleMsg = wrapper.getMetaMessage();
+                MetaMessageAnnotation scheduleMsgant = wrapper.getMetaMessageAnnotation();
+                String realAttribute = attribute.substring(second + 1);
+                MetaMessage msg =
+                        new MetaMessage(attribute.substring(0, first), scheduleMsg.getType(),
+                            realAttribute.length() > 0 ? realAttribute : null, scheduleMsg.getFlag(), body);
+                MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+                msgant.setQueueId(Integer.parseInt(attribute.substring(first + 1, second)));
+                msgant.setBornTimestamp(scheduleMsgant.getBornTimestamp());
+                msgant.setBornHost(scheduleMsgant.getBornHost());
+                msgant.setStoreHost(scheduleMsgant.getStoreHost());
+                msgant.setSysFlag((scheduleMsgant.getSysFlag() & ~MetaMessageDecoder.DeliverAtFlag)
+                        | MetaMessageDecoder.ScheduleDeliveredFlag);
+                msgant.setDelayLevel(entry.queueId + 1);
+                msgant.setRequestId(entry.offset);
+                return new MetaMessageWrapper(msg, msgant);
+            }
+        }
+        catch (NumberFormatException e) {
+        }
+        finally {
+            result.release();
+        }
+
+        log.warn("schedule message " + entry.queueId + ":" + entry.offset + " is illegal, skip it");
+        this.lostTimes.incrementAndGet();
+        this.onDelivered(entry.queueId, entry.offset, 0, true);
+        return null;
+    }
+
+
+    /**
+     * 到期消息分批写入真实队列，同步刷盘时每批只等待一次，写入失败的消息稍后重试
+     */
+    private void deliverExpired(final List<ScheduleEntry> expired) {
+        final List<ScheduleEntry> batchEntries = new ArrayList<ScheduleEntry>(MaxDeliverBatch);
+        final List<MetaMessageWrapper> batchMessages = new ArrayList<MetaMessageWrapper>(MaxDeliverBatch);
+        final List<ScheduleEntry> failedEntries = new ArrayList<ScheduleEntry>();
+        for (int i = 0; i < expired.size(); i++) {
+            ScheduleEntry entry = expired.get(i);
+            if (!failedEntries.isEmpty() || this.isStoped()) {
+                failedEntries.add(entry);
+                continue;
+            }
+
+            MetaMessageWrapper wrapper = this.buildDeliverMessage(entry);
+            if (wrapper != null) {
+                batchEntries.add(entry);
+                batchMessages.add(wrapper);
+            }
+
+            if (!batchEntries.isEmpty() && (batchEntries.size() >= MaxDeliverBatch || i == expired.size() - 1)) {
+                List<PutMessageResult> results = this.defaultMetaStore.putMessages(batchMessages);
+                for (int k = 0; k < batchEntries.size(); k++) {
+                    PutMessageResult result = (null == results) ? null : results.get(k);
+                    if (result != null && result.isOk()) {
+                        AppendMessageResult appendResult = result.getAppendMessageResult();
+                        this.deliveredTimes.incrementAndGet();
+                        this.onDelivered(batchEntries.get(k).queueId, batchEntries.get(k).offset,
+                            appendResult.getWroteOffset() + appendResult.getWroteBytes(), true);
+                    }
+                    else {
+                        this.deliverFailedTimes.incrementAndGet();
+                        failedEntries.add(batchEntries.get(k));
+                    }
+                }
+                batchEntries.clear();
+                batchMessages.clear();
+            }
+        }
+
+        if (!failedEntries.isEmpty()) {
+            log.warn("deliver " + failedEntries.size() + " schedule messages failed, retry after " + RetryInterval
+                    + "ms");
+            final long retryDeadline = this.defaultMetaStore.getSystemClock().now() + RetryInterval;
+            for (ScheduleEntry entry : failedEntries) {
+                entry.deadline = retryDeadline;
+                this.timingWheel.add(entry);
+            }
+        }
+
+        expired.clear();
+    }
+
+
+    /**
+     * 一条定时消息投递完成
+     *
+     * @param deliveredPhyOffset
+     *            投递消息的物理结束Offset，刷盘后才能写入Checkpoint，0表示不需要等待
+     * @param mark
+     *            是否在定时队列中标记已投递
+     */
+    private void onDelivered(final int queueId, final long offset, final long deliveredPhyOffset,
+            final boolean mark) {
+        if (offset < this.deliveredOffsets[queueId]) {
+            return;
+        }
+
+        if (mark) {
+            MetaQueueLogistic logic = this.findScheduleQueue(queueId);
+            if (logic != null) {
+                logic.updateUnitType(offset, UnitTypeDelivered);
+            }
+        }
+
+        if (offset == this.deliveredOffsets[queueId]) {
+            this.advanceDeliveredOffset(queueId, offset + 1, deliveredPhyOffset);
+        }
+    }
+
+
+    /**
+     * 从offset开始跳过定时队列中已经标记投递的消息，更新连续投递完成的Offset
+     */
+    private void advanceDeliveredOffset(final int queueId, final long offset, final long deliveredPhyOffset) {
+        long delivered = offset;
+        MetaQueueLogistic logic = this.findScheduleQueue(queueId);
+        if (logic != null) {
+            final long maxOffset = logic.getMaxOffsetInQuque();
+            boolean marked = true;
+            while (marked && delivered < maxOffset) {
+                SelectMapedBufferResult bufferLogic = logic.getIndexBuffer(delivered);
+                if (null == bufferLogic) {
+                    break;
+                }
+
+                try {
+                    ByteBuffer byteBuffer = bufferLogic.getByteBuffer();
+                    for (int i = 0; i < bufferLogic.getSize() && delivered < maxOffset; i +=
+                            MetaQueueLogistic.StoreUnitSize) {
+                        marked = UnitTypeDelivered == byteBuffer.getInt(i + 12);
+                        if (!marked) {
+                            break;
+                        }
+                        delivered++;
+                    }
+                }
+                finally {
+                    bufferLogic.release();
+                }
+            }
+        }
+
+        if (delivered == this.deliveredOffsets[queueId]) {
+            return;
+        }
+
+        // 跳过的消息可能刚刚投递，等待当前写入的消息全部刷盘
+        long phyOffset = deliveredPhyOffset;
+        if (delivered > offset) {
+            phyOffset = Math.max(phyOffset, this.defaultMetaStore.getMetaQueuePhysical().getMaxOffset());
+        }
+
+        this.deliveredOffsets[queueId] = delivered;
+        this.pendingCheckpoints.add(new long[] { queueId, delivered, phyOffset });
+    }
+
+
+    /**
+     * 投递的消息已经刷盘后，将投递进度写入Checkpoint，由Checkpoint刷盘时持久化
+     */
+    void updateCheckpoint() {
+        final long flushedWhere = this.defaultMetaStore.getMetaQueuePhysical().getFlushedWhere();
+        StoreCheckpoint storeCheckpoint = this.defaultMetaStore.getStoreCheckpoint();
+        while (!this.pendingCheckpoints.isEmpty() && this.pendingCheckpoints.getFirst()[2] <= flushedWhere) {
+            long[] progress = this.pendingCheckpoints.removeFirst();
+            storeCheckpoint.setScheduleOffset((int) progress[0], progress[1]);
+        }
+    }
+
+
+    public void run() {
+        log.info(this.getServiceName() + " service started");
+
+        final List<ScheduleEntry> expired = new ArrayList<ScheduleEntry>();
+        while (!this.isStoped()) {
+            try {
+                this.loadNewEntries(expired);
+                this.timingWheel.advance(this.defaultMetaStore.getSystemClock().now(), expired);
+                this.deliverExpired(expired);
+                this.updateCheckpoint();
+                int pending = this.timingWheel.size();
+                long nextExpiration = this.timingWheel.nextExpiration();
+                for (ScheduleEntry head : this.levelHeads) {
+                    if (head != null) {
+                        pending++;
+                        nextExpiration =
+                                nextExpiration >= 0 ? Math.min(nextExpiration, head.deadline) : head.deadline;
+                    }
+                }
+                this.pendingMessages = pending;
+
+                // 还有消息没有读取，继续下一轮
+                if (this.loadPending) {
+                    continue;
+                }
+
+                long interval = MaxWaitInterval;
+                if (nextExpiration >= 0) {
+                    long now = this.defaultMetaStore.getSystemClock().now();
+                    interval = Math.max(Math.min(interval, nextExpiration - now), 1);
+                }
+                this.waitForRunning(interval);
+            }
+            catch (Exception e) {
+                log.warn(this.getServiceName() + " service has exception. ", e);
+            }
+        }
+
+        log.info(this.getServiceName() + " service end");
+    }
+
+
+    @Override
+    public String getServiceName() {
+        return ScheduleMessageService.class.getSimpleName();
+    }
+
+
+    public int getQueueNums() {
+        return queueNums;
+    }
+
+
+    public AtomicLong getDeliveredTimes() {
+        return deliveredTimes;
+    }
+
+
+    public AtomicLong getDeliverFailedTimes() {
+        return deliverFailedTimes;
+    }
+
+
+    public AtomicLong getLostTimes() {
+        return lostTimes;
+    }
+
+
+    public int getPendingMessages() {
+        return pendingMessages;
+    }
+}
@@ -45,6 +45,35 @@ public class SelectMapedBufferResult {
     }
 
 
+    /**
+     * 物理连续的下一条消息合并到当前区间，共用一次hold，只对MapedFile中的区间有效
+     */
+    public synchronized boolean appendContiguous(final long offset, final int appendSize) {
+        if (null == this.mapedFile || offset != this.startOffset + this.size) {
+            return false;
+        }
+
+        int pos = (int) (this.startOffset - this.mapedFile.getFileFromOffset());
+        int newSize = this.size + appendSize;
+        if (pos + newSize > this.mapedFile.getReadPosition() || newSize > this.byteBuffer.capacity()) {
+            return false;
+        }
+
+        this.size = newSize;
+        this.byteBuffer.limit(newSize);
+        return true;
+    }
+
+
+    /**
+     * 缩小区间，撤销合并时使用
+     */
+    public synchronized void truncate(final int newSize) {
+        this.size = newSize;
+        this.byteBuffer.limit(newSize);
+    }
+
+
     /**
      * 此方法只能被调用一次，重复调用无效
      */
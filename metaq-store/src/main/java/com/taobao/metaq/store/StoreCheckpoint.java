@@ -3,36 +3,106 @@
  */
 package com.taobao.metaq.store;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.log4j.Logger;
 
 import com.taobao.metaq.commons.MetaUtil;
 
 /**
- * 存储恢复时，从什么时间点开始恢复
+ * 存储恢复时，从什么时间点开始恢复<br>
+ * 另外在单独的快照文件中记录各逻辑队列的Offset，正常关闭后重启直接恢复，异常关闭后从快照的物理Offset开始恢复
  * 
  * @author vintage.wang@gmail.com shijia.wxr@taobao.com
  */
 public class StoreCheckpoint {
+    /**
+     * 快照中一个逻辑队列的位置
+     */
+    public static class QueueOffset {
+        private final String topic;
+        private final int queueId;
+        // 逻辑队列下一条消息的Offset，即topicQueueTable中的值
+        private final long nextOffset;
+        // 逻辑队列最后一条消息的物理Offset
+        private final long maxPhysicOffset;
+
+
+        public QueueOffset(String topic, int queueId, long nextOffset, long maxPhysicOffset) {
+            this.topic = topic;
+            this.queueId = queueId;
+            this.nextOffset = nextOffset;
+            this.maxPhysicOffset = maxPhysicOffset;
+        }
+
+
+        public String getTopic() {
+            return topic;
+        }
+
+
+        public int getQueueId() {
+            return queueId;
+        }
+
+
+        public long getNextOffset() {
+            return nextOffset;
+        }
+
+
+        public long getMaxPhysicOffset() {
+            return maxPhysicOffset;
+        }
+    }
+
     private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 快照文件魔数
+    private final static int SnapshotMagicCode = 0xCCDDEEFF ^ 1880681586 + 8;
     private volatile long physicMsgTimestamp = 0;
     private volatile long logicsMsgTimestamp = 0;
+    // 定时消息队列进度的起始位置，每个队列8个字节
+    private static final int ScheduleOffsetPostion = 16;
+    // 最多记录多少个定时消息队列的进度
+    public static final int MaxScheduleQueueNums = (MapedFile.OS_PAGE_SIZE - ScheduleOffsetPostion) / 8;
+    // 各定时消息队列中，小于此Offset的消息都已经投递
+    private final AtomicLongArray scheduleOffsets = new AtomicLongArray(MaxScheduleQueueNums);
 
     private final RandomAccessFile randomAccessFile;
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
 
+    // 逻辑队列Offset快照文件
+    private final String snapshotPath;
+    // 快照文件存在且校验通过
+    private boolean snapshotValid = false;
+    // 快照是否在正常关闭时写入，此时物理队列、逻辑队列已经全部刷盘
+    private boolean snapshotNormal = false;
+    // 小于此物理Offset的消息都已经刷盘，并且写入了逻辑队列
+    private long snapshotPhyOffset = 0;
+    // 快照中的逻辑队列位置
+    private final HashMap<String/* topic-queueId */, QueueOffset> snapshotQueueOffsets =
+            new HashMap<String, QueueOffset>();
+
 
     public StoreCheckpoint(final String scpPath) throws IOException {
         File file = new File(scpPath);
         MapedFile.ensureDirOK(file.getParent());
         boolean fileExists = file.exists();
+        this.snapshotPath = scpPath + ".snapshot";
+        this.loadSnapshot();
 
         this.randomAccessFile = new RandomAccessFile(file, "rw");
         this.fileChannel = this.randomAccessFile.getChannel();
@@ -42,6 +112,9 @@ public class StoreCheckpoint {
             log.info("store checkpoint file exists, " + scpPath);
             this.physicMsgTimestamp = this.mappedByteBuffer.getLong(0);
             this.logicsMsgTimestamp = this.mappedByteBuffer.getLong(8);
+            for (int i = 0; i < MaxScheduleQueueNums; i++) {
+                this.scheduleOffsets.set(i, this.mappedByteBuffer.getLong(ScheduleOffsetPostion + i * 8));
+            }
 
             log.info("store checkpoint file physicMsgTimestamp " + this.physicMsgTimestamp + ", "
                     + MetaUtil.timeMillisToHumanString(this.physicMsgTimestamp));
@@ -57,6 +130,9 @@ public class StoreCheckpoint {
     public void flush(final long flushLogicsMsgTimestamp) {
         this.mappedByteBuffer.putLong(0, this.physicMsgTimestamp);
         this.mappedByteBuffer.putLong(8, flushLogicsMsgTimestamp);
+        for (int i = 0; i < MaxScheduleQueueNums; i++) {
+            this.mappedByteBuffer.putLong(ScheduleOffsetPostion + i * 8, this.scheduleOffsets.get(i));
+        }
         this.mappedByteBuffer.force();
     }
 
@@ -101,7 +177,175 @@ public class StoreCheckpoint {
     }
 
 
+    public long getScheduleOffset(final int queueId) {
+        return this.scheduleOffsets.get(queueId);
+    }
+
+
+    public void setScheduleOffset(final int queueId, final long offset) {
+        this.scheduleOffsets.set(queueId, offset);
+    }
+
+
     public long getMinTimestamp() {
         return Math.min(this.physicMsgTimestamp, this.logicsMsgTimestamp);
     }
+
+
+    /**
+     * 加载逻辑队列Offset快照，文件不存在或者校验失败时快照无效
+     */
+    private void loadSnapshot() {
+        File file = new File(this.snapshotPath);
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            byte[] data = null;
+            try {
+                data = new byte[(int) raf.length()];
+                raf.readFully(data);
+            }
+            finally {
+                raf.close();
+            }
+
+            if (data.length < 4 + 1 + 8 + 8 + 4 + 4) {
+                log.warn("queue offset snapshot " + this.snapshotPath + " too short, ignore it");
+                return;
+            }
+
+            ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+            int crc = byteBuffer.getInt(data.length - 4);
+            if (crc != MetaUtil.crc32(data, 0, data.length - 4) || byteBuffer.getInt() != SnapshotMagicCode) {
+                log.warn("queue offset snapshot " + this.snapshotPath + " checksum failed, ignore it");
+                return;
+            }
+
+            boolean normal = byteBuffer.get() == 1;
+            long phyOffset = byteBuffer.getLong();
+            long timestamp = byteBuffer.getLong();
+            int queueNums = byteBuffer.getInt();
+            for (int i = 0; i < queueNums; i++) {
+                short topicLen = byteBuffer.getShort();
+                byte[] topicData = new byte[topicLen];
+                byteBuffer.get(topicData);
+                String topic = new String(topicData);
+                int queueId = byteBuffer.getInt();
+                long nextOffset = byteBuffer.getLong();
+                long maxPhysicOffset = byteBuffer.getLong();
+                this.snapshotQueueOffsets.put(topic + "-" + queueId, new QueueOffset(topic, queueId, nextOffset,
+                    maxPhysicOffset));
+            }
+
+            this.snapshotNormal = normal;
+            this.snapshotPhyOffset = phyOffset;
+            this.snapshotValid = true;
+            log.info("load queue offset snapshot OK, normal " + normal + ", phy offset " + phyOffset
+                    + ", queue nums " + queueNums + ", " + MetaUtil.timeMillisToHumanString(timestamp));
+        }
+        catch (Exception e) {
+            this.snapshotQueueOffsets.clear();
+            log.warn("load queue offset snapshot " + this.snapshotPath + " error, ignore it", e);
+        }
+    }
+
+
+    /**
+     * 写入逻辑队列Offset快照，先写临时文件再改名，避免写到一半时宕机破坏原有快照
+     * 
+     * @param phyOffset
+     *            小于此物理Offset的消息都已经刷盘，并且写入了逻辑队列
+     * @param normal
+     *            是否为正常关闭时写入
+     */
+    public boolean flushSnapshot(final long phyOffset, final boolean normal, final List<QueueOffset> queueOffsets) {
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(64 + queueOffsets.size() * 48);
+            DataOutputStream dos = new DataOutputStream(bos);
+            dos.writeInt(SnapshotMagicCode);
+            dos.writeByte(normal ? 1 : 0);
+            dos.writeLong(phyOffset);
+            dos.writeLong(System.currentTimeMillis());
+            dos.writeInt(queueOffsets.size());
+            for (QueueOffset queueOffset : queueOffsets) {
+                byte[] topicData = queueOffset.getTopic().getBytes();
+                dos.writeShort(topicData.length);
+                dos.write(topicData);
+                dos.writeInt(queueOffset.getQueueId());
+                dos.writeLong(queueOffset.getNextOffset());
+                dos.writeLong(queueOffset.getMaxPhysicOffset());
+            }
+            dos.flush();
+
+            byte[] data = bos.toByteArray();
+            dos.writeInt(MetaUtil.crc32(data));
+            dos.flush();
+            data = bos.toByteArray();
+
+            File tmpFile = new File(this.snapshotPath + ".tmp");
+            FileOutputStream fos = new FileOutputStream(tmpFile);
+            try {
+                fos.write(data);
+                fos.getFD().sync();
+            }
+            finally {
+                fos.close();
+            }
+
+            File file = new File(this.snapshotPath);
+            if (!tmpFile.renameTo(file)) {
+                file.delete();
+                if (!tmpFile.renameTo(file)) {
+                    log.warn("rename queue offset snapshot " + tmpFile + " failed");
+                    return false;
+                }
+            }
+
+            return true;
+        }
+        catch (IOException e) {
+            log.warn("flush queue offset snapshot " + this.snapshotPath + " error", e);
+        }
+
+        return false;
+    }
+
+
+    /**
+     * 启动恢复完成后删除快照，快照只能用于紧接着的一次重启
+     */
+    public void deleteSnapshot() {
+        File file = new File(this.snapshotPath);
+        if (file.exists() && !file.delete()) {
+            log.warn("delete queue offset snapshot " + this.snapshotPath + " failed");
+        }
+    }
+
+
+    public boolean isSnapshotValid() {
+        return snapshotValid;
+    }
+
+
+    public boolean isSnapshotNormal() {
+        return snapshotNormal;
+    }
+
+
+    public long getSnapshotPhyOffset() {
+        return snapshotPhyOffset;
+    }
+
+
+    public QueueOffset getSnapshotQueueOffset(final String topic, final int queueId) {
+        return this.snapshotQueueOffsets.get(topic + "-" + queueId);
+    }
+
+
+    public int getSnapshotQueueNums() {
+        return this.snapshotQueueOffsets.size();
+    }
 }
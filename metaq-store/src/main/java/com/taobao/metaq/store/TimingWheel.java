@@ -0,0 +1,178 @@
+/**
+ * $Id: TimingWheel.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ * 分层时间轮，每层wheelSize格，每格tickMs毫秒，超出本层范围的任务放入上一层，上一层每格的时间为本层转一圈的时间<br>
+ * 有任务的格子按照到期时间放入优先队列，调用方只需要等待到最早的格子到期，不需要按照固定间隔推进<br>
+ * 格子到期后其中的任务重新加入时间轮，逐层下降到更精确的格子，直到剩余时间不足一格时到期<br>
+ * 非线程安全，只由一个线程访问
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class TimingWheel<T extends TimingWheel.Task> {
+    /**
+     * 时间轮中的任务
+     */
+    public interface Task {
+        /**
+         * 到期时间，毫秒
+         */
+        long getDeadline();
+    }
+
+    /**
+     * 时间轮的一格，一格内的任务同时到期
+     */
+    static class Bucket<T> {
+        // 到期时间，没有任务时为-1
+        private long expiration = -1;
+        private final List<T> tasks = new ArrayList<T>();
+
+
+        /**
+         * @return 到期时间是否变化，变化后需要重新放入优先队列
+         */
+        private boolean setExpiration(final long expiration) {
+            if (this.expiration != expiration) {
+                this.expiration = expiration;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final long tickMs;
+    private final int wheelSize;
+    // 本层转一圈的时间
+    private final long interval;
+    private final List<Bucket<T>> buckets;
+    // 本层当前时间，tickMs的整数倍
+    private long currentTime;
+    // 各层共享的优先队列，按照格子到期时间排序
+    private final PriorityQueue<Bucket<T>> queue;
+    // 上一层时间轮，需要时再创建
+    private TimingWheel<T> overflowWheel;
+    // 最底层记录全部任务个数
+    private int size = 0;
+
+
+    public TimingWheel(final long tickMs, final int wheelSize, final long startMs) {
+        this(tickMs, wheelSize, startMs, new PriorityQueue<Bucket<T>>(64, new Comparator<Bucket<T>>() {
+            public int compare(Bucket<T> o1, Bucket<T> o2) {
+                return o1.expiration < o2.expiration ? -1 : (o1.expiration == o2.expiration ? 0 : 1);
+            }
+        }));
+    }
+
+
+    private TimingWheel(final long tickMs, final int wheelSize, final long startMs,
+            final PriorityQueue<Bucket<T>> queue) {
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.interval = tickMs * wheelSize;
+        this.buckets = new ArrayList<Bucket<T>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            this.buckets.add(new Bucket<T>());
+        }
+        this.currentTime = startMs - (startMs % tickMs);
+        this.queue = queue;
+    }
+
+
+    /**
+     * 加入任务
+     *
+     * @return false表示任务已经到期，由调用方立即处理
+     */
+    public boolean add(final T task) {
+        if (this.addTask(task)) {
+            this.size++;
+            return true;
+        }
+        return false;
+    }
+
+
+    private boolean addTask(final T task) {
+        final long deadline = task.getDeadline();
+        if (deadline < this.currentTime + this.tickMs) {
+            return false;
+        }
+        else if (deadline < this.currentTime + this.interval) {
+            final long virtualId = deadline / this.tickMs;
+            Bucket<T> bucket = this.buckets.get((int) (virtualId % this.wheelSize));
+            bucket.tasks.add(task);
+            if (bucket.setExpiration(virtualId * this.tickMs)) {
+                this.queue.offer(bucket);
+            }
+            return true;
+        }
+        else {
+            if (null == this.overflowWheel) {
+                this.overflowWheel =
+                        new TimingWheel<T>(this.interval, this.wheelSize, this.currentTime, this.queue);
+            }
+            return this.overflowWheel.addTask(task);
+        }
+    }
+
+
+    private void advanceClock(final long timeMs) {
+        if (timeMs >= this.currentTime + this.tickMs) {
+            this.currentTime = timeMs - (timeMs % this.tickMs);
+            if (this.overflowWheel != null) {
+                this.overflowWheel.advanceClock(this.currentTime);
+            }
+        }
+    }
+
+
+    /**
+     * 推进到now，到期的任务放入expired，未到期的任务降到下一层<br>
+     * 当前时间只在这里推进，不会超过now，剩余时间不足一格的任务视为到期，误差不超过一格
+     */
+    public void advance(final long now, final List<T> expired) {
+        Bucket<T> bucket = this.queue.peek();
+        while (bucket != null && bucket.expiration <= now) {
+            this.queue.poll();
+            this.advanceClock(bucket.expiration);
+
+            List<T> tasks = new ArrayList<T>(bucket.tasks);
+            bucket.tasks.clear();
+            bucket.setExpiration(-1);
+            this.size -= tasks.size();
+            for (T task : tasks) {
+                if (!this.add(task)) {
+                    expired.add(task);
+                }
+            }
+
+            bucket = this.queue.peek();
+        }
+
+        // 没有格子到期时也推进当前时间，之后加入的任务放到尽量精确的格子
+        this.advanceClock(now);
+    }
+
+
+    /**
+     * 最早的格子到期时间，没有任务时返回-1
+     */
+    public long nextExpiration() {
+        Bucket<T> bucket = this.queue.peek();
+        return bucket != null ? bucket.expiration : -1;
+    }
+
+
+    public int size() {
+        return size;
+    }
+}
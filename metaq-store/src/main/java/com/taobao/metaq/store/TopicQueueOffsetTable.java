@@ -0,0 +1,68 @@
+/**
+ * $Id: TopicQueueOffsetTable.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.util.HashMap;
+
+
+/**
+ * 记录每个逻辑队列下一条消息的Offset<br>
+ * 按照topic、queueId两级索引，写消息时不产生任何对象，非线程安全，由物理队列写锁保护
+ * 
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class TopicQueueOffsetTable {
+    // 数组下标上限，超出范围的queueId不进数组，避免负数越界或者分配超大数组
+    public static final int MaxArrayQueueId = 1024;
+    // 每个topic对应一个数组，数组下标为queueId
+    private final HashMap<String/* topic */, long[]/* offset */> table = new HashMap<String, long[]>(128);
+    // queueId超出数组范围时使用
+    private final HashMap<String/* topic-queueid */, Long/* offset */> outOfRangeTable =
+            new HashMap<String, Long>();
+
+
+    /**
+     * 获取队列下一条消息的Offset，如果队列不存在，返回0
+     */
+    public long get(final String topic, final int queueId) {
+        if (!isArrayQueueId(queueId)) {
+            Long offset = this.outOfRangeTable.get(topic + "-" + queueId);
+            return null == offset ? 0 : offset;
+        }
+
+        long[] offsets = this.table.get(topic);
+        if (null == offsets || queueId >= offsets.length) {
+            return 0;
+        }
+
+        return offsets[queueId];
+    }
+
+
+    public void put(final String topic, final int queueId, final long offset) {
+        if (!isArrayQueueId(queueId)) {
+            this.outOfRangeTable.put(topic + "-" + queueId, offset);
+            return;
+        }
+
+        long[] offsets = this.table.get(topic);
+        if (null == offsets || queueId >= offsets.length) {
+            // 按照2倍扩容，避免queueId递增时频繁复制
+            int length = Math.min(null == offsets ? 8 : offsets.length * 2, MaxArrayQueueId);
+            long[] newOffsets = new long[Math.max(length, queueId + 1)];
+            if (offsets != null) {
+                System.arraycopy(offsets, 0, newOffsets, 0, offsets.length);
+            }
+            offsets = newOffsets;
+            this.table.put(topic, offsets);
+        }
+
+        offsets[queueId] = offset;
+    }
+
+
+    private static boolean isArrayQueueId(final int queueId) {
+        return queueId >= 0 && queueId < MaxArrayQueueId;
+    }
+}
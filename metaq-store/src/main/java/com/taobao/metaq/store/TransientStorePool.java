@@ -0,0 +1,122 @@
+/**
+ * $Id: TransientStorePool.java 3 2013-01-05 08:20:46Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * 物理队列写缓冲池，每个缓冲区与物理文件等大<br>
+ * 开启后消息先写入堆外缓冲区，再由提交线程批量写入FileChannel，避免写消息时与内核回写脏页竞争同一个文件
+ *
+ * @author vintage.wang@gmail.com shijia.wxr@taobao.com
+ */
+public class TransientStorePool {
+    private static final Logger log = Logger.getLogger(MetaStore.MetaStoreLogName);
+    // 缓冲区个数
+    private final int poolSize;
+    // 每个缓冲区大小，与物理文件大小一致
+    private final int fileSize;
+    // 空闲的缓冲区
+    private final LinkedList<ByteBuffer> availableBuffers = new LinkedList<ByteBuffer>();
+    // 缓冲区不足，退化成直接写映射内存的次数
+    private final AtomicLong borrowFailedTimes = new AtomicLong(0);
+    // 是否已经销毁
+    private boolean destroyed = false;
+
+
+    public TransientStorePool(final int poolSize, final int fileSize) {
+        this.poolSize = poolSize;
+        this.fileSize = fileSize;
+    }
+
+
+    /**
+     * 预先分配全部缓冲区，并逐页写入，保证启动后缓冲区的物理内存已经分配
+     */
+    public void init() {
+        long beginTime = System.currentTimeMillis();
+        for (int i = 0; i < this.poolSize; i++) {
+            ByteBuffer byteBuffer = ByteBuffer.allocateDirect(this.fileSize);
+            for (int pos = 0; pos < this.fileSize; pos += MapedFile.OS_PAGE_SIZE) {
+                byteBuffer.put(pos, (byte) 0);
+            }
+
+            synchronized (this) {
+                this.availableBuffers.addLast(byteBuffer);
+            }
+        }
+
+        log.info("init transient store pool OK, pool size " + this.poolSize + " buffer size " + this.fileSize
+                + ", " + (System.currentTimeMillis() - beginTime) + "ms");
+    }
+
+
+    /**
+     * 销毁时释放全部缓冲区，借出的缓冲区在归还时不再放回
+     */
+    public void destroy() {
+        synchronized (this) {
+            this.destroyed = true;
+            for (ByteBuffer byteBuffer : this.availableBuffers) {
+                MapedFile.clean(byteBuffer);
+            }
+            this.availableBuffers.clear();
+        }
+    }
+
+
+    /**
+     * 借出一个缓冲区，没有空闲缓冲区时返回null
+     */
+    public ByteBuffer borrowBuffer() {
+        ByteBuffer byteBuffer = null;
+        synchronized (this) {
+            byteBuffer = this.availableBuffers.pollFirst();
+        }
+
+        if (null == byteBuffer) {
+            this.borrowFailedTimes.incrementAndGet();
+            log.warn("transient store pool has no available buffer, pool size " + this.poolSize);
+        }
+
+        return byteBuffer;
+    }
+
+
+    public void returnBuffer(final ByteBuffer byteBuffer) {
+        byteBuffer.position(0);
+        byteBuffer.limit(this.fileSize);
+        synchronized (this) {
+            if (this.destroyed) {
+                MapedFile.clean(byteBuffer);
+                return;
+            }
+
+            // 刚归还的缓冲区优先借出，物理内存更可能还在
+            this.availableBuffers.addFirst(byteBuffer);
+        }
+    }
+
+
+    public int availableBufferNums() {
+        synchronized (this) {
+            return this.availableBuffers.size();
+        }
+    }
+
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+
+    public long getBorrowFailedTimes() {
+        return borrowFailedTimes.get();
+    }
+}
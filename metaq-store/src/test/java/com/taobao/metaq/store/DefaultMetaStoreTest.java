@@ -3,15 +3,28 @@
  */
 package com.taobao.metaq.store;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.log4j.PropertyConfigurator;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -19,6 +32,7 @@ import org.junit.Test;
 
 import com.taobao.metaq.commons.MetaMessage;
 import com.taobao.metaq.commons.MetaMessageAnnotation;
+import com.taobao.metaq.commons.MetaMessageDecoder;
 import com.taobao.metaq.commons.MetaMessageWrapper;
 
 
@@ -178,4 +192,1715 @@ public class DefaultMetaStoreTest {
         metaStoreMaster.destroy();
         System.out.println("================================================================");
     }
+
+
+    @Test
+    public void test_put_message_async() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 10000;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        // 开启GroupCommit功能
+        metaStoreConfig.setGroupCommitEnable(true);
+
+        final DefaultMetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        // 单个线程连续发送，不等待刷盘，刷盘完成后回调
+        final CountDownLatch countDownLatch = new CountDownLatch(totalMsgs);
+        final AtomicInteger failed = new AtomicInteger(0);
+        final String mainThreadName = Thread.currentThread().getName();
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            metaStoreMaster.putMessageAsync(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation(),
+                new PutMessageCallback() {
+                    public void putMessageComplete(PutMessageResult result, boolean flushOK) {
+                        AppendMessageResult append = result.getAppendMessageResult();
+                        // 回调时消息已经刷盘，并且在刷盘线程中执行
+                        if (!flushOK
+                                || !result.isOk()
+                                || metaStoreMaster.getMetaQueuePhysical().getFlushedWhere() < append
+                                    .getWroteOffset() + append.getWroteBytes()
+                                || mainThreadName.equals(Thread.currentThread().getName())) {
+                            failed.incrementAndGet();
+                        }
+                        countDownLatch.countDown();
+                    }
+                });
+        }
+
+        assertTrue(countDownLatch.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failed.get());
+        assertEquals(totalMsgs, metaStoreMaster.getMetaStatsService().getPutMessageTimesTotal().get());
+
+        // 不合法的消息立即以null结果回调
+        MetaMessageWrapper wrapper = buildMessage();
+        wrapper.getMetaMessage().setAttribute(new String(new char[Short.MAX_VALUE + 1]));
+        final AtomicInteger invalid = new AtomicInteger(0);
+        metaStoreMaster.putMessageAsync(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation(),
+            new PutMessageCallback() {
+                public void putMessageComplete(PutMessageResult result, boolean flushOK) {
+                    if (null == result && !flushOK) {
+                        invalid.incrementAndGet();
+                    }
+                }
+            });
+        assertEquals(1, invalid.get());
+
+        // 刷盘服务已经停止，之后的请求也要回调
+        metaStoreMaster.getMetaQueuePhysical().shutdown();
+        wrapper = buildMessage();
+        final AtomicInteger afterStop = new AtomicInteger(0);
+        metaStoreMaster.putMessageAsync(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation(),
+            new PutMessageCallback() {
+                public void putMessageComplete(PutMessageResult result, boolean flushOK) {
+                    if (result.isOk() && !flushOK) {
+                        afterStop.incrementAndGet();
+                    }
+                }
+            });
+        assertEquals(1, afterStop.get());
+
+        metaStoreMaster.shutdown();
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_write_read_lock_free() throws Exception {
+        System.out.println("================================================================");
+        final int threadTotal = 8;
+        final int msgsPerThread = 2000;
+        final long totalMsgs = threadTotal * msgsPerThread;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 8K，保证多线程写时频繁切换文件
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 8);
+
+        // 开启无锁写
+        metaStoreConfig.setLockFreeAppendEnable(true);
+
+        final MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        // 第一步，load已有数据
+        boolean load = metaStoreMaster.load();
+        assertTrue(load);
+
+        // 第二步，启动服务
+        metaStoreMaster.start();
+
+        // 多线程并发写
+        final CountDownLatch countDownLatch = new CountDownLatch(threadTotal);
+        final AtomicInteger putOKTotal = new AtomicInteger(0);
+        for (int i = 0; i < threadTotal; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int k = 0; k < msgsPerThread; k++) {
+                            MetaMessageWrapper wrapper = buildMessage();
+                            PutMessageResult result =
+                                    metaStoreMaster.putMessage(wrapper.getMetaMessage(),
+                                        wrapper.getMetaMessageAnnotation());
+                            if (result.isOk()) {
+                                putOKTotal.incrementAndGet();
+                            }
+                        }
+                    }
+                    finally {
+                        countDownLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+        countDownLatch.await();
+        assertEquals(totalMsgs, putOKTotal.get());
+
+        // 等待逻辑队列构建完成
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs, metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0));
+
+        // 开始读文件，校验逻辑队列Offset连续
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("MSG_TYPE_A".hashCode());
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = metaStoreMaster.getMessage("TOPIC_A", 0, i, 1024 * 1024, types);
+            assertTrue(result != null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            long queueOffset =
+                    result.getMessageBufferList().get(0).getLong(MetaMessageDecoder.MessageQueueOffsetPostion);
+            result.release();
+            assertEquals(i, queueOffset);
+        }
+
+        // 关闭存储服务
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_write_lock_free_serialize_failed() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 100;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 8K，保证跳过记录之后继续写时会切换文件
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 8);
+        metaStoreConfig.setLockFreeAppendEnable(true);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            // 没有BornHost，预留空间之后序列化失败
+            if (i % 10 == 5) {
+                wrapper.getMetaMessageAnnotation().setBornHost(null);
+                PutMessageResult result =
+                        metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+                assertTrue(!result.isOk());
+            }
+
+            // 失败的消息不影响后续写入
+            wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+        }
+
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs, metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0));
+
+        // 跳过记录不派发，逻辑队列Offset连续
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = metaStoreMaster.getMessage("TOPIC_A", 0, i, 1024 * 1024, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            long queueOffset =
+                    result.getMessageBufferList().get(0).getLong(MetaMessageDecoder.MessageQueueOffsetPostion);
+            result.release();
+            assertEquals(i, queueOffset);
+        }
+        metaStoreMaster.shutdown();
+
+        // 重启后恢复时越过跳过记录
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        assertEquals(totalMsgs, metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0));
+        MetaMessageWrapper wrapper = buildMessage();
+        PutMessageResult result =
+                metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+        assertTrue(result.isOk());
+        assertEquals(totalMsgs, result.getAppendMessageResult().getLogicsOffset());
+
+        metaStoreMaster.shutdown();
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_put_messages_batch() throws Exception {
+        System.out.println("================================================================");
+        final int batchSize = 32;
+        final int batchTotal = 300;
+        final long totalMsgs = batchSize * batchTotal;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 8K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 8);
+
+        // 开启GroupCommit功能，每批只等待一次刷盘
+        metaStoreConfig.setGroupCommitEnable(true);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        // 第一步，load已有数据
+        boolean load = metaStoreMaster.load();
+        assertTrue(load);
+
+        // 第二步，启动服务
+        metaStoreMaster.start();
+        long expectedLogicsOffset = 0;
+        for (int i = 0; i < batchTotal; i++) {
+            List<MetaMessageWrapper> batch = new ArrayList<MetaMessageWrapper>(batchSize);
+            for (int k = 0; k < batchSize; k++) {
+                batch.add(buildMessage());
+            }
+
+            List<PutMessageResult> results = metaStoreMaster.putMessages(batch);
+            assertTrue(results != null);
+            assertEquals(batchSize, results.size());
+            for (PutMessageResult result : results) {
+                assertTrue(result.isOk());
+                assertEquals(expectedLogicsOffset++, result.getAppendMessageResult().getLogicsOffset());
+            }
+        }
+
+        // 等待逻辑队列构建完成
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs, metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0));
+
+        // 开始读文件
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("MSG_TYPE_A".hashCode());
+        for (long i = 0; i < totalMsgs; i++) {
+            GetMessageResult result = metaStoreMaster.getMessage("TOPIC_A", 0, i, 1024 * 1024, types);
+            assertTrue(result != null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            result.release();
+        }
+
+        // 关闭存储服务
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    private static void deleteDir(final File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteDir(f);
+            }
+        }
+        file.delete();
+    }
+
+
+    /**
+     * 校验按时间查询的结果：存储时间不小于timestamp的第一条消息，或者时间上更接近的前一条消息
+     */
+    private static void checkOffsetByTime(final MetaStore metaStore, final long[] storeTimestamps) {
+        final int total = storeTimestamps.length;
+        assertEquals(0, metaStore.getOffsetInQueueByTime("TOPIC_A", 0, storeTimestamps[0] - 1000));
+        assertEquals(total - 1,
+            metaStore.getOffsetInQueueByTime("TOPIC_A", 0, storeTimestamps[total - 1] + 1000));
+
+        for (int i = 0; i < total; i += 37) {
+            long timestamp = storeTimestamps[i];
+            int expected = i;
+            while (expected > 0 && storeTimestamps[expected - 1] == timestamp) {
+                expected--;
+            }
+            assertEquals(expected, metaStore.getOffsetInQueueByTime("TOPIC_A", 0, timestamp));
+        }
+    }
+
+
+    @Test
+    public void test_offset_by_time_index() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 2000;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 8K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 8);
+        // 每个时间索引文件 1K，保证时间索引有多个文件
+        metaStoreConfig.setMapedFileSizeTimeIndex(1024);
+        metaStoreConfig.setTimeIndexIntervalMessages(16);
+        metaStoreConfig.setTimeIndexIntervalMillis(1000 * 60);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        // 写消息，中间停顿，让存储时间分散
+        long[] storeTimestamps = new long[totalMsgs];
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+            storeTimestamps[i] = result.getAppendMessageResult().getStoreTimestamp();
+            if (i % 50 == 0) {
+                Thread.sleep(3);
+            }
+        }
+
+        // 等待逻辑队列构建完成
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        checkOffsetByTime(metaStoreMaster, storeTimestamps);
+
+        // 正常重启，时间索引从文件恢复
+        metaStoreMaster.shutdown();
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        checkOffsetByTime(metaStoreMaster, storeTimestamps);
+
+        // 删除时间索引后重启，时间索引在恢复时重建
+        metaStoreMaster.shutdown();
+        deleteDir(new File(metaStoreConfig.getStorePathTimeIndex()));
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        checkOffsetByTime(metaStoreMaster, storeTimestamps);
+
+        // 关闭存储服务
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    private static void checkQueryMessage(final MetaStore metaStore, final List<String> msgIds,
+            final long beginTimestamp, final long endTimestamp) {
+        for (int k = 0; k < 10; k++) {
+            List<MetaMessageWrapper> msgs =
+                    metaStore.queryMessage("TOPIC_A", "KEY_" + k, 1000, beginTimestamp, endTimestamp);
+            assertEquals(msgIds.size() / 10, msgs.size());
+            for (MetaMessageWrapper wrapper : msgs) {
+                assertEquals("KEY_" + k, wrapper.getMetaMessage().getAttribute());
+            }
+
+            // 最多返回maxNum条
+            assertEquals(3, metaStore.queryMessage("TOPIC_A", "KEY_" + k, 3, beginTimestamp, endTimestamp)
+                .size());
+        }
+
+        // topic不同，或者时间不在范围内，查不到消息
+        assertEquals(0, metaStore.queryMessage("TOPIC_B", "KEY_0", 1000, beginTimestamp, endTimestamp).size());
+        assertEquals(0,
+            metaStore.queryMessage("TOPIC_A", "KEY_0", 1000, endTimestamp + 1000 * 60, endTimestamp + 1000 * 120)
+                .size());
+
+        for (String msgId : msgIds) {
+            MetaMessageWrapper wrapper = metaStore.lookMessageByMsgId(msgId);
+            assertTrue(wrapper != null);
+            assertEquals(msgId, wrapper.getMetaMessageAnnotation().getMsgId());
+        }
+    }
+
+
+    @Test
+    public void test_query_message_by_key() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 500;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 8K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 8);
+        metaStoreConfig.setMessageIndexEnable(true);
+        // 每个索引文件存储100条，保证索引有多个文件，槽位数少于Key数，保证有哈希冲突
+        metaStoreConfig.setMaxHashSlotNum(8);
+        metaStoreConfig.setMaxIndexNum(100);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        long beginTimestamp = Long.MAX_VALUE;
+        long endTimestamp = 0;
+        List<String> msgIds = new ArrayList<String>();
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            wrapper.getMetaMessage().setAttribute("KEY_" + (i % 10));
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+            msgIds.add(result.getAppendMessageResult().getMsgId());
+            beginTimestamp = Math.min(beginTimestamp, result.getAppendMessageResult().getStoreTimestamp());
+            endTimestamp = Math.max(endTimestamp, result.getAppendMessageResult().getStoreTimestamp());
+        }
+
+        // 等待索引构建完成
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        Thread.sleep(100);
+        checkQueryMessage(metaStoreMaster, msgIds, beginTimestamp, endTimestamp);
+
+        // 正常重启，索引从文件加载
+        metaStoreMaster.shutdown();
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        checkQueryMessage(metaStoreMaster, msgIds, beginTimestamp, endTimestamp);
+
+        // 关闭存储服务
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_write_read_transient_store_pool() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 5000;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 64K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        metaStoreConfig.setTransientStorePoolEnable(true);
+        metaStoreConfig.setTransientStorePoolSize(5);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+        }
+        assertTrue(((DefaultMetaStore) metaStoreMaster).getMetaStatsService().isTransientStorePoolEnable());
+
+        // 等待提交线程把数据写入FileChannel
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        checkReadAll(metaStoreMaster, totalMsgs);
+
+        // 正常重启，数据全部落盘
+        metaStoreMaster.shutdown();
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        checkReadAll(metaStoreMaster, totalMsgs);
+
+        // 关闭存储服务
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    /**
+     * 测试用探测接口，认为数据都不在PageCache
+     */
+    public static class ColdPageCacheProbeHook implements PageCacheProbeHook {
+        private static final AtomicInteger ProbeTimes = new AtomicInteger(0);
+
+
+        public boolean isResident(MappedByteBuffer mappedByteBuffer, int position, int length) {
+            ProbeTimes.incrementAndGet();
+            return false;
+        }
+    }
+
+
+    @Test
+    public void test_page_cache_residency() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 200;
+        QUEUE_TOTAL = 1;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 64K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        metaStoreConfig.setPageCacheResidencyEnable(true);
+        // 按照页大小统计，单条写入与批量写入的消息不在同一个块
+        metaStoreConfig.setPageCacheResidencyChunkSize(MapedFile.OS_PAGE_SIZE);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        // 前一半单条写入，后一半批量写入
+        for (int i = 0; i < totalMsgs / 2; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+        }
+        List<MetaMessageWrapper> batch = new ArrayList<MetaMessageWrapper>(totalMsgs / 2);
+        for (int i = 0; i < totalMsgs / 2; i++) {
+            batch.add(buildMessage());
+        }
+        for (PutMessageResult result : metaStoreMaster.putMessages(batch)) {
+            assertTrue(result.isOk());
+        }
+
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+
+        // 刚写入的消息在PageCache，按照内存限制传输
+        MetaStatsService metaStatsService = ((DefaultMetaStore) metaStoreMaster).getMetaStatsService();
+        GetMessageResult result = metaStoreMaster.getMessage("TOPIC_A", 0, 0, 1024 * 1024, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        assertEquals(metaStoreConfig.getMaxTransferCountOnMessageInMemory(), result.getMessageCount());
+        assertEquals(1, metaStatsService.getGetMessageHotTimes().get());
+        assertEquals(0, metaStatsService.getGetMessageColdTimes().get());
+        assertTrue(((DefaultMetaStore) metaStoreMaster).getPageCacheResidency().getEstimatedResidentBytes() > 0);
+        result.release();
+
+        // 批量写入的消息同样在PageCache
+        result = metaStoreMaster.getMessage("TOPIC_A", 0, totalMsgs - 1, 1024 * 1024, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        assertEquals(2, metaStatsService.getGetMessageHotTimes().get());
+        assertEquals(0, metaStatsService.getGetMessageColdTimes().get());
+        result.release();
+        metaStoreMaster.shutdown();
+
+        // 探测接口认为消息不在PageCache，按照磁盘限制传输
+        metaStoreConfig.setPageCacheProbeHookClass(ColdPageCacheProbeHook.class.getName());
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        metaStatsService = ((DefaultMetaStore) metaStoreMaster).getMetaStatsService();
+        result = metaStoreMaster.getMessage("TOPIC_A", 0, 0, 1024 * 1024, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        assertEquals(metaStoreConfig.getMaxTransferCountOnMessageInDisk(), result.getMessageCount());
+        assertEquals(0, metaStatsService.getGetMessageHotTimes().get());
+        assertEquals(1, metaStatsService.getGetMessageColdTimes().get());
+        assertTrue(ColdPageCacheProbeHook.ProbeTimes.get() > 0);
+        result.release();
+
+        // 关闭存储服务
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_cold_storage() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 2000;
+        QUEUE_TOTAL = 1;
+        QueueId.set(0);
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 64K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        metaStoreConfig.setColdStorageEnable(true);
+        metaStoreConfig.setColdBlockSize(1024 * 4);
+        metaStoreConfig.setColdBlockCacheSize(1024 * 16);
+        metaStoreConfig.setCleanResourceInterval(100);
+        metaStoreConfig.setFileReservedTime(0);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+        }
+
+        // 等待封存的文件全部上传
+        ColdPhysicQueue coldPhysicQueue = ((DefaultMetaStore) metaStoreMaster).getColdPhysicQueue();
+        long sealedOffset =
+                metaStoreMaster.getMaxPhyOffset() - metaStoreMaster.getMaxPhyOffset()
+                        % metaStoreConfig.getMapedFileSizePhysic();
+        for (int i = 0; i < 100 && coldPhysicQueue.getMaxOffset() < sealedOffset; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(sealedOffset, coldPhysicQueue.getMaxOffset());
+        assertEquals(0, coldPhysicQueue.getMinOffset());
+        assertTrue(coldPhysicQueue.getOffloadCompressedBytes() < coldPhysicQueue.getOffloadRawBytes());
+
+        // 删除已经上传的本地文件，消息从冷存储读取
+        metaStoreMaster.excuteDeleteFilesManualy();
+        MetaQueuePhysical metaQueuePhysical = ((DefaultMetaStore) metaStoreMaster).getMetaQueuePhysical();
+        for (int i = 0; i < 100 && metaQueuePhysical.getLocalMinOffset() < sealedOffset; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(sealedOffset, metaQueuePhysical.getLocalMinOffset());
+        assertEquals(0, metaQueuePhysical.getMinOffset());
+
+        checkReadAll(metaStoreMaster, totalMsgs);
+        assertTrue(coldPhysicQueue.getReadTimes() > 0);
+        assertEquals(0, coldPhysicQueue.getReadFailedTimes());
+        assertTrue(coldPhysicQueue.getBlockCache().getCachedBytes() <= metaStoreConfig.getColdBlockCacheSize());
+        metaStoreMaster.shutdown();
+
+        // 重启后仍然可以从冷存储读取
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        checkReadAll(metaStoreMaster, totalMsgs);
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_compress_physic_file() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 2000;
+        QUEUE_TOTAL = 1;
+        QueueId.set(0);
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 64K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        metaStoreConfig.setCompressPhysicFileEnable(true);
+        metaStoreConfig.setCompressPhysicFileAfterTime(0);
+        metaStoreConfig.setCompressBlockSize(1024 * 4);
+        metaStoreConfig.setCompressBlockCacheSize(1024 * 16);
+        metaStoreConfig.setCleanResourceInterval(100);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+        }
+
+        // 等待封存的文件全部压缩，并删除原始文件
+        ColdPhysicQueue compressedPhysicQueue = ((DefaultMetaStore) metaStoreMaster).getCompressedPhysicQueue();
+        MetaQueuePhysical metaQueuePhysical = ((DefaultMetaStore) metaStoreMaster).getMetaQueuePhysical();
+        long sealedOffset =
+                metaStoreMaster.getMaxPhyOffset() - metaStoreMaster.getMaxPhyOffset()
+                        % metaStoreConfig.getMapedFileSizePhysic();
+        for (int i = 0; i < 100 && metaQueuePhysical.getLocalMinOffset() < sealedOffset; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(sealedOffset, compressedPhysicQueue.getMaxOffset());
+        assertEquals(sealedOffset, metaQueuePhysical.getLocalMinOffset());
+        assertEquals(0, metaQueuePhysical.getMinOffset());
+        assertTrue(compressedPhysicQueue.getOffloadCompressedBytes() < compressedPhysicQueue.getOffloadRawBytes());
+
+        // 压缩文件中的消息按块解压读取
+        checkReadAll(metaStoreMaster, totalMsgs);
+        assertTrue(compressedPhysicQueue.getReadTimes() > 0);
+        assertEquals(0, compressedPhysicQueue.getReadFailedTimes());
+        assertTrue(compressedPhysicQueue.getBlockCache().getCachedBytes() <= metaStoreConfig
+            .getCompressBlockCacheSize());
+        metaStoreMaster.shutdown();
+
+        // 重启后仍然可以从压缩文件读取
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        checkReadAll(metaStoreMaster, totalMsgs);
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    /**
+     * 写totalMsgs条按照Key循环的消息，最后写一条KEY0的删除消息
+     */
+    private static void putCompactMessages(final MetaStore metaStore, final int totalMsgs, final int totalKeys) {
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            wrapper.getMetaMessage().setTopic("TOPIC_COMPACT");
+            wrapper.getMetaMessage().setAttribute("KEY" + (i % totalKeys));
+            assertTrue(metaStore.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation()).isOk());
+        }
+
+        // KEY0的删除消息
+        MetaMessageWrapper tombstone = buildMessage();
+        tombstone.getMetaMessage().setTopic("TOPIC_COMPACT");
+        tombstone.getMetaMessage().setAttribute("KEY0");
+        tombstone.getMetaMessage().setBody(new byte[0]);
+        assertTrue(metaStore.putMessage(tombstone.getMetaMessage(), tombstone.getMetaMessageAnnotation()).isOk());
+
+        // 写其他Topic的消息，封存压缩Topic所在的物理文件
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            assertTrue(metaStore.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation()).isOk());
+        }
+    }
+
+
+    @Test
+    public void test_compact_logics_queue() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 1000;
+        final int totalKeys = 10;
+        QUEUE_TOTAL = 1;
+        QueueId.set(0);
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 64K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        metaStoreConfig.setCompactLogicsInterval(100);
+        metaStoreConfig.setTopicDeletePolicy("TOPIC_COMPACT=compact,24;TOPIC_A=delete,48");
+        assertEquals(1, metaStoreConfig.getCompactTopicTable().size());
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        putCompactMessages(metaStoreMaster, totalMsgs, totalKeys);
+
+        MetaQueueCompacted compacted =
+                ((DefaultMetaStore) metaStoreMaster).getMetaQueueLogisticTable().get("TOPIC_COMPACT").get(0)
+                    .getCompacted();
+        for (int i = 0; i < 100 && compacted.getCompactedOffset() < totalMsgs + 1; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs + 1, compacted.getCompactedOffset());
+
+        checkCompactedMessages(metaStoreMaster, totalMsgs, totalKeys);
+        metaStoreMaster.shutdown();
+
+        // 重启后从压缩段读取
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        checkCompactedMessages(metaStoreMaster, totalMsgs, totalKeys);
+
+        // 再写一轮相同的Key，旧段中的消息全部被新段覆盖
+        putCompactMessages(metaStoreMaster, totalMsgs, totalKeys);
+        compacted =
+                ((DefaultMetaStore) metaStoreMaster).getMetaQueueLogisticTable().get("TOPIC_COMPACT").get(0)
+                    .getCompacted();
+        for (int i = 0; i < 100 && compacted.getCompactedOffset() < 2 * (totalMsgs + 1); i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(2 * (totalMsgs + 1), compacted.getCompactedOffset());
+        checkCompactedMessages(metaStoreMaster, 2 * totalMsgs + 1, totalKeys);
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    /**
+     * 每个Key只剩下最后一条消息，KEY0为删除消息
+     */
+    private static void checkCompactedMessages(final MetaStore metaStore, final int totalMsgs, final int totalKeys)
+            throws Exception {
+        assertEquals(totalMsgs - totalKeys + 1, metaStore.getMinOffsetInQuque("TOPIC_COMPACT", 0));
+        List<MetaMessageWrapper> messages = new ArrayList<MetaMessageWrapper>();
+        long offset = metaStore.getMinOffsetInQuque("TOPIC_COMPACT", 0);
+        for (int i = 0; i < 100 && offset < totalMsgs + 1; i++) {
+            GetMessageResult result = metaStore.getMessage("TOPIC_COMPACT", 0, offset, 1024 * 1024, null);
+            assertTrue(result != null);
+            try {
+                if (GetMessageStatus.FOUND == result.getStatus()) {
+                    for (ByteBuffer bb : result.getMessageBufferList()) {
+                        messages.add(MetaMessageDecoder.decode(bb));
+                    }
+                }
+                offset = result.getNextBeginOffset();
+            }
+            finally {
+                result.release();
+            }
+        }
+
+        assertEquals(totalKeys, messages.size());
+        for (int i = 1; i < totalKeys; i++) {
+            MetaMessageWrapper wrapper = messages.get(i - 1);
+            assertEquals("KEY" + i, wrapper.getMetaMessage().getAttribute());
+            assertEquals(totalMsgs - totalKeys + i, wrapper.getMetaMessageAnnotation().getQueueOffset());
+            assertEquals(StoreMessage, new String(wrapper.getMetaMessage().getBody()));
+        }
+        MetaMessageWrapper last = messages.get(totalKeys - 1);
+        assertEquals("KEY0", last.getMetaMessage().getAttribute());
+        assertEquals(totalMsgs, last.getMetaMessageAnnotation().getQueueOffset());
+    }
+
+
+    private static int pullTagMessages(final MetaStore metaStore, final long maxOffset, final Set<Integer> types,
+            final Set<String> typeNames, final String expectType) throws Exception {
+        int found = 0;
+        long offset = 0;
+        for (int i = 0; offset < maxOffset && i < 1000; i++) {
+            GetMessageResult result = metaStore.getMessage("TOPIC_TAG", 0, offset, 1024 * 1024, types, typeNames);
+            assertTrue(result != null);
+            try {
+                if (GetMessageStatus.FOUND == result.getStatus()) {
+                    for (ByteBuffer bb : result.getMessageBufferList()) {
+                        MetaMessageWrapper wrapper = MetaMessageDecoder.decode(bb);
+                        if (expectType != null) {
+                            assertEquals(expectType, wrapper.getMetaMessage().getType());
+                        }
+                        found++;
+                    }
+                }
+                offset = result.getNextBeginOffset();
+            }
+            finally {
+                result.release();
+            }
+        }
+
+        return found;
+    }
+
+
+    @Test
+    public void test_tag_bits_filter() throws Exception {
+        System.out.println("================================================================");
+        final int skipMsgs = 1024;
+        final int tagMsgs = 200;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 64K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        metaStoreConfig.setTagBitsEnable(true);
+
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        // 前面是不订阅的类型，后面是hashCode相同的两种类型交替写入
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        for (int i = 0; i < skipMsgs + tagMsgs; i++) {
+            String type = i < skipMsgs ? "MSG_TYPE_X" : (i % 2 == 0 ? "Aa" : "BB");
+            MetaMessage msg = new MetaMessage("TOPIC_TAG", type, MessageBody);
+            msg.setAttribute("");
+
+            MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+            msgant.setQueueId(0);
+            msgant.setBornTimestamp(System.currentTimeMillis());
+            msgant.setStoreHost(StoreHost);
+            msgant.setBornHost(BornHost);
+            assertTrue(metaStoreMaster.putMessage(msg, msgant).isOk());
+        }
+
+        final long maxOffset = skipMsgs + tagMsgs;
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_TAG", 0) < maxOffset; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(maxOffset, metaStoreMaster.getMaxOffsetInQuque("TOPIC_TAG", 0));
+
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("Aa".hashCode());
+        Set<String> typeNames = new HashSet<String>();
+        typeNames.add("Aa");
+
+        // 只按照hashCode过滤，冲突的类型也会返回
+        MetaStatsService metaStatsService = ((DefaultMetaStore) metaStoreMaster).getMetaStatsService();
+        assertEquals(tagMsgs, pullTagMessages(metaStoreMaster, maxOffset, types, null, null));
+        // 不匹配的整页被跳过
+        assertTrue(metaStatsService.getGetMessageSkippedUnits().get() >= skipMsgs);
+
+        // 按照类型名称精确过滤
+        assertEquals(tagMsgs / 2, pullTagMessages(metaStoreMaster, maxOffset, types, typeNames, "Aa"));
+        assertEquals(tagMsgs / 2, metaStatsService.getGetMessageTypeMismatchCount().get());
+
+        // 关闭位图后结果不变
+        metaStoreMaster.shutdown();
+        metaStoreConfig.setTagBitsEnable(false);
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        assertEquals(tagMsgs / 2, pullTagMessages(metaStoreMaster, maxOffset, types, typeNames, "Aa"));
+        assertEquals(0, ((DefaultMetaStore) metaStoreMaster).getMetaStatsService().getGetMessageSkippedUnits()
+            .get());
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreConfig.setTagBitsEnable(true);
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_get_message_coalesce() throws Exception {
+        System.out.println("================================================================");
+        // 不超过内存中单次拉取的消息条数上限
+        final int totalMsgs = 32;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        MetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessage msg = new MetaMessage("TOPIC_COALESCE", "MSG_TYPE_A", MessageBody);
+            msg.setAttribute("");
+
+            MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+            msgant.setQueueId(0);
+            msgant.setBornTimestamp(System.currentTimeMillis());
+            msgant.setStoreHost(StoreHost);
+            msgant.setBornHost(BornHost);
+            assertTrue(metaStoreMaster.putMessage(msg, msgant).isOk());
+        }
+
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_COALESCE", 0) < totalMsgs; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(totalMsgs, metaStoreMaster.getMaxOffsetInQuque("TOPIC_COALESCE", 0));
+
+        // 同一个队列连续写入的消息物理连续，合并成一个区间
+        GetMessageResult result = metaStoreMaster.getMessage("TOPIC_COALESCE", 0, 0, 1024 * 1024, null);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        assertEquals(totalMsgs, result.getMessageCount());
+        assertTrue(result.getMessageMapedList().size() < result.getMessageCount());
+        assertEquals(result.getMessageMapedList().size(), result.getTransferBufferList().size());
+
+        // 按条切分后每条消息都能正确解码
+        long offset = 0;
+        for (ByteBuffer bb : result.getMessageBufferList()) {
+            MetaMessageWrapper wrapper = MetaMessageDecoder.decode(bb);
+            assertEquals(offset, wrapper.getMetaMessageAnnotation().getQueueOffset());
+            assertEquals(StoreMessage, new String(wrapper.getMetaMessage().getBody()));
+            offset++;
+        }
+        assertEquals(totalMsgs, offset);
+
+        int totalSize = 0;
+        for (ByteBuffer bb : result.getTransferBufferList()) {
+            totalSize += bb.remaining();
+        }
+        assertEquals(result.getBufferTotalSize(), totalSize);
+        assertTrue(((DefaultMetaStore) metaStoreMaster).getMetaStatsService().getGetMessageCoalescedCount().get() > 0);
+
+        // 放回对象池后再次获取的是同一个对象，状态已经清空
+        result.recycle();
+        GetMessageResult reused = metaStoreMaster.getMessage("TOPIC_COALESCE", 0, totalMsgs / 2, 1024 * 1024, null);
+        assertTrue(reused == result);
+        assertEquals(totalMsgs / 2, reused.getMessageCount());
+        reused.recycle();
+
+        // 重复recycle不生效，对象池中只有一份
+        reused.recycle();
+        List<GetMessageResult> obtained = new ArrayList<GetMessageResult>();
+        int reusedTimes = 0;
+        for (int i = 0; i < 2048; i++) {
+            GetMessageResult r = GetMessageResult.obtain();
+            reusedTimes += r == reused ? 1 : 0;
+            obtained.add(r);
+        }
+        assertEquals(1, reusedTimes);
+        for (GetMessageResult r : obtained) {
+            r.recycle();
+        }
+
+        // 发送超时只释放资源，不放回对象池，之后的recycle也不生效
+        GetMessageResult discarded = metaStoreMaster.getMessage("TOPIC_COALESCE", 0, 0, 1024 * 1024, null);
+        discarded.discard();
+        discarded.recycle();
+        for (int i = 0; i < 2048; i++) {
+            assertTrue(GetMessageResult.obtain() != discarded);
+        }
+
+        metaStoreMaster.shutdown();
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_adaptive_flush() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 10000;
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        metaStoreConfig.setAdaptiveFlushEnable(true);
+        metaStoreConfig.setAdaptiveFlushDirtyBytesPhysic(1024 * 64);
+        metaStoreConfig.setAdaptiveFlushIntervalMax(200);
+
+        DefaultMetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessage msg = new MetaMessage("TOPIC_A", "MSG_TYPE_A", MessageBody);
+            msg.setAttribute("");
+
+            MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+            msgant.setQueueId(QueueId.getAndIncrement() % QUEUE_TOTAL);
+            msgant.setBornTimestamp(System.currentTimeMillis());
+            msgant.setStoreHost(StoreHost);
+            msgant.setBornHost(BornHost);
+            assertTrue(metaStoreMaster.putMessage(msg, msgant).isOk());
+        }
+
+        // 脏数据超过上限才刷盘，最终落后的数据不超过上限
+        AdaptiveFlushController controller = metaStoreMaster.getMetaStatsService().getPhysicFlushController();
+        final long maxPhyOffset = metaStoreMaster.getMaxPhyOffset();
+        for (int i = 0; i < 100
+                && maxPhyOffset - metaStoreMaster.getMetaQueuePhysical().getFlushedWhere() >= 1024 * 64; i++) {
+            Thread.sleep(100);
+        }
+        assertTrue(maxPhyOffset - metaStoreMaster.getMetaQueuePhysical().getFlushedWhere() < 1024 * 64);
+        assertTrue(controller.getFlushTimes() > 0);
+        assertTrue(controller.getFlushBytesPerMs() > 0);
+        assertTrue(controller.getFlushBytesLimit() <= 1024 * 64);
+        assertEquals(controller.getFlushBytesLimit() / MapedFile.OS_PAGE_SIZE, controller.getFlushLeastPages());
+        assertTrue(controller.getWaitInterval() >= metaStoreConfig.getAdaptiveFlushIntervalMin());
+        assertTrue(controller.getWaitInterval() <= metaStoreConfig.getAdaptiveFlushIntervalMax());
+
+        metaStoreMaster.shutdown();
+        // shutdown时全部刷盘
+        assertEquals(maxPhyOffset, metaStoreMaster.getMetaQueuePhysical().getFlushedWhere());
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_topic_queue_offset_table() throws Exception {
+        System.out.println("================================================================");
+        TopicQueueOffsetTable table = new TopicQueueOffsetTable();
+        table.put("TOPIC_A", 3, 100);
+        table.put("TOPIC_A", 20, 200);
+        assertEquals(100, table.get("TOPIC_A", 3));
+        assertEquals(200, table.get("TOPIC_A", 20));
+        assertEquals(0, table.get("TOPIC_A", 4));
+        assertEquals(0, table.get("TOPIC_B", 3));
+
+        // 超出数组范围的queueId不扩容数组，单独记录
+        table.put("TOPIC_A", -1, 300);
+        table.put("TOPIC_A", Integer.MAX_VALUE, 400);
+        assertEquals(300, table.get("TOPIC_A", -1));
+        assertEquals(400, table.get("TOPIC_A", Integer.MAX_VALUE));
+        assertEquals(0, table.get("TOPIC_A", TopicQueueOffsetTable.MaxArrayQueueId));
+        assertEquals(100, table.get("TOPIC_A", 3));
+    }
+
+
+    @Test
+    public void test_latency_recorder() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 100;
+
+        // 每个2的幂区间分32个桶，分位数按照桶的上界返回，误差不超过1/32
+        LatencyRecorder recorder = new LatencyRecorder("test");
+        for (int i = 1; i <= 1000; i++) {
+            recorder.record(i);
+        }
+        final long now = System.currentTimeMillis();
+        recorder.tick(now + LatencyRecorder.SnapshotInterval);
+        long[] p = recorder.getPercentiles(0);
+        assertTrue(p[0] >= 500 && p[0] <= 500 + 500 / 32);
+        assertTrue(p[1] >= 990 && p[1] <= 990 + 990 / 32);
+        assertTrue(p[3] >= 1000 && p[3] <= 1000 + 1000 / 32);
+        assertEquals(1000, recorder.getCount(0));
+
+        // 10秒窗口只包含最近一次快照以后的记录，1分钟窗口包含全部
+        for (int i = 0; i < 100; i++) {
+            recorder.record(1000 * 1000);
+        }
+        recorder.tick(now + LatencyRecorder.SnapshotInterval * 2);
+        assertEquals(100, recorder.getCount(0));
+        assertTrue(recorder.getPercentiles(0)[0] >= 1000 * 1000);
+        assertEquals(1100, recorder.getCount(1));
+        assertEquals(1100, recorder.getCount(2));
+        assertTrue(recorder.getPercentiles(1)[0] < 1000);
+        assertEquals(recorder.getPercentiles(1)[3], recorder.getMaxTotal());
+
+        // 超过10分钟的快照不计入10分钟窗口
+        for (int i = 3; i <= 70; i++) {
+            recorder.tick(now + LatencyRecorder.SnapshotInterval * i);
+        }
+        assertEquals(0, recorder.getCount(0));
+        assertEquals(0, recorder.getCount(1));
+        assertEquals(0, recorder.getCount(2));
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        DefaultMetaStore metaStoreMaster = new DefaultMetaStore(new MetaStoreConfig());
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            assertTrue(metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation())
+                .isOk());
+        }
+        for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", 0) < 1; i++) {
+            Thread.sleep(100);
+        }
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("MSG_TYPE_A".hashCode());
+        GetMessageResult result = metaStoreMaster.getMessage("TOPIC_A", 0, 0, 1024 * 1024, types);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        result.release();
+
+        MetaStatsService metaStatsService = metaStoreMaster.getMetaStatsService();
+        metaStatsService.getPutLatencyRecorder().tick(System.currentTimeMillis() + LatencyRecorder.SnapshotInterval);
+        metaStatsService.getGetLatencyRecorder().tick(System.currentTimeMillis() + LatencyRecorder.SnapshotInterval);
+        assertEquals(totalMsgs, metaStatsService.getPutLatencyRecorder().getCount(0));
+        assertEquals(1, metaStatsService.getGetLatencyRecorder().getCount(0));
+        assertTrue(metaStoreMaster.getRunningDataInfo().contains("putLatency: 10s: "));
+
+        // 通过JMX读取，关闭后取消注册
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName =
+                new ObjectName("com.taobao.metaq.store:type=MetaStatsService,id=" + metaStatsService.hashCode());
+        assertEquals(metaStatsService.getPutLatency(), mbs.getAttribute(objectName, "PutLatency"));
+
+        metaStoreMaster.shutdown();
+        assertTrue(!mbs.isRegistered(objectName));
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_queue_stats() throws Exception {
+        System.out.println("================================================================");
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        DefaultMetaStore metaStoreMaster = new DefaultMetaStore(new MetaStoreConfig());
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        // 队列0写入最多，队列1写入其次
+        final int[] msgsPerQueue = { 300, 100, 50 };
+        for (int queueId = 0; queueId < msgsPerQueue.length; queueId++) {
+            for (int i = 0; i < msgsPerQueue[queueId]; i++) {
+                MetaMessage msg = new MetaMessage("TOPIC_STATS", "MSG_TYPE_A", MessageBody);
+                msg.setAttribute("");
+
+                MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+                msgant.setQueueId(queueId);
+                msgant.setBornTimestamp(System.currentTimeMillis());
+                msgant.setStoreHost(StoreHost);
+                msgant.setBornHost(BornHost);
+                assertTrue(metaStoreMaster.putMessage(msg, msgant).isOk());
+            }
+        }
+        for (int queueId = 0; queueId < msgsPerQueue.length; queueId++) {
+            for (int i = 0; i < 100
+                    && metaStoreMaster.getMaxOffsetInQuque("TOPIC_STATS", queueId) < msgsPerQueue[queueId]; i++) {
+                Thread.sleep(100);
+            }
+        }
+
+        // 只读取队列2
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("MSG_TYPE_A".hashCode());
+        GetMessageResult result = metaStoreMaster.getMessage("TOPIC_STATS", 2, 0, 1024 * 1024, types);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        final int gotMessages = result.getMessageCount();
+        result.release();
+
+        metaStoreMaster.getMetaStatsService().sampleQueueStats(System.currentTimeMillis() + 1000);
+        List<MetaQueueStats> top = metaStoreMaster.getTopQueuesByRate(MetaQueueStats.ByPutMessagesRate, 2);
+        assertEquals(2, top.size());
+        assertEquals(0, top.get(0).getQueueId());
+        assertEquals(1, top.get(1).getQueueId());
+        assertEquals(300, top.get(0).getPutMessages());
+        assertTrue(top.get(0).getPutBytesRate() > top.get(1).getPutBytesRate());
+
+        top = metaStoreMaster.getTopQueuesByRate(MetaQueueStats.ByGetMessagesRate, 1);
+        assertEquals(2, top.get(0).getQueueId());
+        assertTrue(top.get(0).getGetMessagesRate() > 0);
+
+        // 全部分发完成，索引没有落后，其他用例留下的队列不参与判断
+        int statsQueues = 0;
+        for (MetaQueueStats stats : metaStoreMaster.getTopQueuesByRate(MetaQueueStats.ByDispatchLag, 1000)) {
+            if ("TOPIC_STATS".equals(stats.getTopic())) {
+                assertEquals(0, stats.getDispatchLag());
+                statsQueues++;
+            }
+        }
+        assertEquals(3, statsQueues);
+
+        MetaQueueStats topicStats = metaStoreMaster.getTopicStats("TOPIC_STATS");
+        assertEquals(450, topicStats.getPutMessages());
+        assertEquals(gotMessages, topicStats.getGetMessages());
+        assertTrue(topicStats.getGetBytes() > 0);
+        assertTrue(null == metaStoreMaster.getTopicStats("TOPIC_NONE"));
+
+        metaStoreMaster.shutdown();
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    private static void putScheduleMessage(final DefaultMetaStore metaStore, final int queueId, final int index,
+            final int delayLevel, final long deliverTimestamp) {
+        MetaMessage msg = new MetaMessage("TOPIC_SCHEDULE", "MSG_TYPE_A", MessageBody);
+        msg.setAttribute("KEY_" + queueId + "_" + index);
+
+        MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+        msgant.setQueueId(queueId);
+        msgant.setBornTimestamp(System.currentTimeMillis());
+        msgant.setStoreHost(StoreHost);
+        msgant.setBornHost(BornHost);
+        if (deliverTimestamp > 0) {
+            msgant.setDeliverTimestamp(deliverTimestamp);
+        }
+        else {
+            msgant.setDelayLevel(delayLevel);
+        }
+        assertTrue(metaStore.putMessage(msg, msgant).isOk());
+    }
+
+
+    private static void waitScheduleMessages(final DefaultMetaStore metaStore, final int queueId, final long count)
+            throws InterruptedException {
+        for (int i = 0; i < 100 && metaStore.getMaxOffsetInQuque("TOPIC_SCHEDULE", queueId) < count; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(count, metaStore.getMaxOffsetInQuque("TOPIC_SCHEDULE", queueId));
+    }
+
+
+    private static List<MetaMessageWrapper> getScheduleMessages(final DefaultMetaStore metaStore, final int queueId) {
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("MSG_TYPE_A".hashCode());
+        GetMessageResult result = metaStore.getMessage("TOPIC_SCHEDULE", queueId, 0, 1024 * 1024, types);
+        assertEquals(GetMessageStatus.FOUND, result.getStatus());
+        List<MetaMessageWrapper> messages = new ArrayList<MetaMessageWrapper>();
+        for (ByteBuffer bb : result.getMessageBufferList()) {
+            messages.add(MetaMessageDecoder.decode(bb));
+        }
+        result.release();
+        return messages;
+    }
+
+
+    @Test
+    public void test_schedule_message() throws Exception {
+        System.out.println("================================================================");
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        assertEquals(3, ScheduleMessageService.parseDelayLevels("1s 2m 3h").length);
+        assertEquals(1000L * 60 * 2, ScheduleMessageService.parseDelayLevels(" 2m  x 1 ")[0]);
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        metaStoreConfig.setScheduleMessageEnable(true);
+        metaStoreConfig.setScheduleDelayLevels("1s 2s");
+        // 指定投递时间的消息超出加载范围，临近时重新扫描加载
+        metaStoreConfig.setScheduleLoadAheadMillis(1000);
+
+        DefaultMetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        // 队列0按照延时级别，队列1按照指定时间
+        final long deliverTimestamp = System.currentTimeMillis() + 1500;
+        for (int i = 0; i < 10; i++) {
+            putScheduleMessage(metaStoreMaster, 0, i, 1, 0);
+        }
+        for (int i = 0; i < 5; i++) {
+            putScheduleMessage(metaStoreMaster, 1, i, 0, deliverTimestamp);
+        }
+
+        // 批量写入有非法消息时整批拒绝，其中的定时消息不被改写
+        MetaMessage delayed = new MetaMessage("TOPIC_SCHEDULE", "MSG_TYPE_A", MessageBody);
+        delayed.setAttribute("KEY_REJECTED");
+        MetaMessageAnnotation delayedAnt = new MetaMessageAnnotation();
+        delayedAnt.setQueueId(3);
+        delayedAnt.setDelayLevel(1);
+        StringBuilder longTopic = new StringBuilder();
+        for (int i = 0; i <= Byte.MAX_VALUE; i++) {
+            longTopic.append('T');
+        }
+        List<MetaMessageWrapper> batch = new ArrayList<MetaMessageWrapper>();
+        batch.add(new MetaMessageWrapper(delayed, delayedAnt));
+        batch.add(new MetaMessageWrapper(new MetaMessage(longTopic.toString(), "MSG_TYPE_A", MessageBody),
+            new MetaMessageAnnotation()));
+        assertNull(metaStoreMaster.putMessages(batch));
+        assertEquals("TOPIC_SCHEDULE", delayed.getTopic());
+        assertEquals("KEY_REJECTED", delayed.getAttribute());
+        assertEquals(3, delayedAnt.getQueueId());
+
+        // 到期之前不可见，延时级别队列只读取第一条消息，指定投递时间的消息还不在加载范围内
+        Thread.sleep(300);
+        assertEquals(0, metaStoreMaster.getMaxOffsetInQuque("TOPIC_SCHEDULE", 0));
+        assertEquals(0, metaStoreMaster.getMaxOffsetInQuque("TOPIC_SCHEDULE", 1));
+        assertEquals(1, metaStoreMaster.getScheduleMessageService().getPendingMessages());
+
+        waitScheduleMessages(metaStoreMaster, 0, 10);
+        waitScheduleMessages(metaStoreMaster, 1, 5);
+
+        List<MetaMessageWrapper> messages = getScheduleMessages(metaStoreMaster, 0);
+        assertEquals(10, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            MetaMessageWrapper wrapper = messages.get(i);
+            assertEquals("TOPIC_SCHEDULE", wrapper.getMetaMessage().getTopic());
+            assertEquals("KEY_0_" + i, wrapper.getMetaMessage().getAttribute());
+            assertEquals(StoreMessage, new String(wrapper.getMetaMessage().getBody()));
+            assertTrue((wrapper.getMetaMessageAnnotation().getSysFlag() & MetaMessageDecoder.ScheduleDeliveredFlag) != 0);
+            assertEquals(1, wrapper.getMetaMessageAnnotation().getDelayLevel());
+            assertEquals(i, wrapper.getMetaMessageAnnotation().getRequestId());
+            // 误差不超过时间轮一格
+            assertTrue(wrapper.getMetaMessageAnnotation().getStoreTimestamp()
+                    - wrapper.getMetaMessageAnnotation().getBornTimestamp() >= 1000 - 100);
+        }
+
+        messages = getScheduleMessages(metaStoreMaster, 1);
+        assertEquals(5, messages.size());
+        for (MetaMessageWrapper wrapper : messages) {
+            assertTrue(wrapper.getMetaMessageAnnotation().getStoreTimestamp() >= deliverTimestamp - 100);
+        }
+        assertEquals(15, metaStoreMaster.getScheduleMessageService().getDeliveredTimes().get());
+
+        // 关闭时还未到期，重启后投递
+        for (int i = 0; i < 3; i++) {
+            putScheduleMessage(metaStoreMaster, 2, i, 2, 0);
+        }
+        metaStoreMaster.shutdown();
+
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        waitScheduleMessages(metaStoreMaster, 2, 3);
+        Thread.sleep(1000);
+        assertEquals(10, metaStoreMaster.getMaxOffsetInQuque("TOPIC_SCHEDULE", 0));
+        assertEquals(5, metaStoreMaster.getMaxOffsetInQuque("TOPIC_SCHEDULE", 1));
+        assertEquals(3, metaStoreMaster.getScheduleMessageService().getDeliveredTimes().get());
+        metaStoreMaster.shutdown();
+
+        // 异常关闭后重启，不重复投递
+        new File(metaStoreConfig.getAbortFile()).createNewFile();
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        Thread.sleep(2500);
+        assertEquals(10, metaStoreMaster.getMaxOffsetInQuque("TOPIC_SCHEDULE", 0));
+        assertEquals(5, metaStoreMaster.getMaxOffsetInQuque("TOPIC_SCHEDULE", 1));
+        assertEquals(3, metaStoreMaster.getMaxOffsetInQuque("TOPIC_SCHEDULE", 2));
+        assertEquals(0, metaStoreMaster.getScheduleMessageService().getDeliveredTimes().get());
+
+        metaStoreMaster.shutdown();
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    private static void checkStripeMessages(final MetaStore metaStore, final int totalMsgs) {
+        long offset = 0;
+        for (int i = 0; i < 1000 && offset < totalMsgs; i++) {
+            GetMessageResult result = metaStore.getMessage("TOPIC_STRIPE", 0, offset, 1024 * 1024, null);
+            assertEquals(GetMessageStatus.FOUND, result.getStatus());
+            try {
+                for (ByteBuffer bb : result.getMessageBufferList()) {
+                    MetaMessageWrapper wrapper = MetaMessageDecoder.decode(bb);
+                    assertEquals(offset++, wrapper.getMetaMessageAnnotation().getQueueOffset());
+                    assertEquals(StoreMessage, new String(wrapper.getMetaMessage().getBody()));
+                }
+            }
+            finally {
+                result.release();
+            }
+        }
+        assertEquals(totalMsgs, offset);
+    }
+
+
+    @Test
+    public void test_store_path_physic_stripe() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 2000;
+        QUEUE_TOTAL = 1;
+        QueueId.set(0);
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        // 物理队列分布在两个目录，每个物理映射文件 64K
+        final String storePathRootDir = System.getProperty("user.home") + File.separator + "metastore";
+        final String[] storePaths =
+                { storePathRootDir + File.separator + "physic0", storePathRootDir + File.separator + "physic1" };
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        metaStoreConfig.setStorePathPhysic(storePaths[0] + ";" + storePaths[1] + ";");
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        assertEquals(2, metaStoreConfig.getStorePathPhysicList().length);
+
+        DefaultMetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            wrapper.getMetaMessage().setTopic("TOPIC_STRIPE");
+            assertTrue(metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation())
+                .isOk());
+        }
+
+        // 相邻文件在不同目录，两个目录的文件个数相差不超过1
+        final int mapedFileSize = metaStoreConfig.getMapedFileSizePhysic();
+        final int totalFiles = (int) (metaStoreMaster.getMaxPhyOffset() / mapedFileSize) + 1;
+        assertTrue(totalFiles > 4);
+        int[] fileNums = new int[storePaths.length];
+        String lastParent = null;
+        for (int i = 0; i < totalFiles; i++) {
+            MapedFile mapedFile =
+                    metaStoreMaster.getMetaQueuePhysical().findMapedFileByOffset((long) i * mapedFileSize);
+            assertEquals((long) i * mapedFileSize, mapedFile.getFileFromOffset());
+            String parent = new File(mapedFile.getFileName()).getParent();
+            fileNums[parent.equals(new File(storePaths[0]).getPath()) ? 0 : 1]++;
+            assertTrue(!parent.equals(lastParent));
+            lastParent = parent;
+        }
+        assertTrue(Math.abs(fileNums[0] - fileNums[1]) <= 1);
+        for (String storePath : storePaths) {
+            assertTrue(new File(storePath).list().length > 1);
+        }
+
+        Thread.sleep(1000 * 2);
+        checkStripeMessages(metaStoreMaster, totalMsgs);
+        final long maxPhyOffset = metaStoreMaster.getMaxPhyOffset();
+        metaStoreMaster.shutdown();
+
+        // 重启后合并加载各目录的文件
+        metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+        assertEquals(maxPhyOffset, metaStoreMaster.getMaxPhyOffset());
+        checkStripeMessages(metaStoreMaster, totalMsgs);
+
+        metaStoreMaster.shutdown();
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    @Test
+    public void test_reclaim_maped_file() throws Exception {
+        System.out.println("================================================================");
+        final int totalMsgs = 2000;
+        QUEUE_TOTAL = 1;
+        QueueId.set(0);
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 64K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 64);
+        metaStoreConfig.setReclaimMapedFileEnable(true);
+        metaStoreConfig.setReclaimTruncateChunkSize(1024 * 16);
+        metaStoreConfig.setReclaimBytesPerSecond(1024 * 1024);
+        metaStoreConfig.setCleanResourceInterval(100);
+        metaStoreConfig.setFileReservedTime(0);
+
+        DefaultMetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        assertTrue(metaStoreMaster.load());
+        metaStoreMaster.start();
+
+        for (int i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+        }
+
+        final int mapedFileSize = metaStoreConfig.getMapedFileSizePhysic();
+        final long sealedOffset =
+                metaStoreMaster.getMaxPhyOffset() - metaStoreMaster.getMaxPhyOffset() % mapedFileSize;
+        final int sealedFiles = (int) (sealedOffset / mapedFileSize);
+        assertTrue(sealedFiles > 1);
+
+        // 第一个文件被引用，回收线程等待引用释放
+        MetaQueuePhysical metaQueuePhysical = metaStoreMaster.getMetaQueuePhysical();
+        SelectMapedBufferResult holdResult = metaQueuePhysical.getMessage(0, 4);
+        assertTrue(holdResult != null);
+
+        // 删除文件的线程只从队列中摘除文件，不等待回收
+        metaStoreMaster.excuteDeleteFilesManualy();
+        for (int i = 0; i < 100 && metaQueuePhysical.getMinOffset() < sealedOffset; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(sealedOffset, metaQueuePhysical.getMinOffset());
+
+        ReclaimMapedFileService reclaimMapedFileService = metaStoreMaster.getReclaimMapedFileService();
+        Thread.sleep(500);
+        assertEquals(sealedFiles, reclaimMapedFileService.getPendingFiles());
+        assertEquals(0, reclaimMapedFileService.getReclaimTruncatedBytes());
+        File firstFile = new File(metaStoreConfig.getStorePathPhysic(), new File(holdResult.getMapedFile()
+            .getFileName()).getName() + ReclaimMapedFileService.ReclaimFileSuffix);
+        assertTrue(firstFile.exists());
+        assertEquals(mapedFileSize, firstFile.length());
+
+        // 释放引用后，全部文件被截断并删除
+        holdResult.release();
+        for (int i = 0; i < 100 && reclaimMapedFileService.getPendingFiles() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, reclaimMapedFileService.getPendingFiles());
+        assertEquals(sealedFiles, reclaimMapedFileService.getReclaimFileTimes());
+        assertEquals(sealedOffset, reclaimMapedFileService.getReclaimTruncatedBytes());
+        assertEquals(0, reclaimMapedFileService.getReclaimForciblyTimes());
+        assertTrue(!firstFile.exists());
+        // 剩下正在写的文件与预分配的文件
+        for (String fileName : new File(metaStoreConfig.getStorePathPhysic()).list()) {
+            assertTrue(Long.parseLong(fileName) >= sealedOffset);
+        }
+
+        metaStoreMaster.shutdown();
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
+
+
+    private static void checkReadAll(final MetaStore metaStore, final int totalMsgs) throws Exception {
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("MSG_TYPE_A".hashCode());
+        long offset = 0;
+        for (int retry = 0; offset < totalMsgs && retry < 100;) {
+            GetMessageResult result = metaStore.getMessage("TOPIC_A", 0, offset, 1024 * 1024, types);
+            assertTrue(result != null);
+            try {
+                if (GetMessageStatus.FOUND == result.getStatus()) {
+                    for (ByteBuffer bb : result.getMessageBufferList()) {
+                        MetaMessageWrapper wrapper = MetaMessageDecoder.decode(bb);
+                        assertEquals(offset, wrapper.getMetaMessageAnnotation().getQueueOffset());
+                        offset++;
+                    }
+                }
+                else {
+                    // 消息还没有提交到FileChannel，稍后重试
+                    retry++;
+                    Thread.sleep(100);
+                }
+            }
+            finally {
+                result.release();
+            }
+        }
+
+        assertEquals(totalMsgs, offset);
+    }
+
+
+    @Test
+    public void test_dispatch_multi_threads() throws Exception {
+        System.out.println("================================================================");
+        final long totalMsgs = 20000;
+        QUEUE_TOTAL = 16;
+        QueueId.set(0);
+
+        // 构造消息体
+        MessageBody = StoreMessage.getBytes();
+
+        MetaStoreConfig metaStoreConfig = new MetaStoreConfig();
+        // 每个物理映射文件 8K
+        metaStoreConfig.setMapedFileSizePhysic(1024 * 8);
+        // 3个分发线程，缓冲区取最小值，让写消息线程可能等待分发线程
+        metaStoreConfig.setDispatchMessageThreadNums(3);
+        metaStoreConfig.setPutMsgIndexHightWater(1);
+
+        DefaultMetaStore metaStoreMaster = new DefaultMetaStore(metaStoreConfig);
+        // 第一步，load已有数据
+        boolean load = metaStoreMaster.load();
+        assertTrue(load);
+
+        // 第二步，启动服务
+        metaStoreMaster.start();
+        long beginTimestamp = System.currentTimeMillis();
+        for (long i = 0; i < totalMsgs; i++) {
+            MetaMessageWrapper wrapper = buildMessage();
+            PutMessageResult result =
+                    metaStoreMaster.putMessage(wrapper.getMetaMessage(), wrapper.getMetaMessageAnnotation());
+            assertTrue(result.isOk());
+        }
+
+        // 等待全部逻辑队列构建完成
+        final long msgsPerQueue = totalMsgs / QUEUE_TOTAL;
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            for (int i = 0; i < 100 && metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", queueId) < msgsPerQueue; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(msgsPerQueue, metaStoreMaster.getMaxOffsetInQuque("TOPIC_A", queueId));
+        }
+        assertEquals(0, metaStoreMaster.getDispatchMessageService().getPendingRequests());
+        assertTrue(metaStoreMaster.getStoreCheckpoint().getLogicsMsgTimestamp() >= beginTimestamp);
+
+        // 多线程分发时，每个队列的索引仍然按照写入顺序排列
+        Set<Integer> types = new HashSet<Integer>();
+        types.add("MSG_TYPE_A".hashCode());
+        for (int queueId = 0; queueId < QUEUE_TOTAL; queueId++) {
+            for (long i = 0; i < msgsPerQueue; i++) {
+                GetMessageResult result = metaStoreMaster.getMessage("TOPIC_A", queueId, i, 1024 * 1024, types);
+                assertEquals(GetMessageStatus.FOUND, result.getStatus());
+                assertEquals(i,
+                    result.getMessageBufferList().get(0).getLong(MetaMessageDecoder.MessageQueueOffsetPostion));
+                result.release();
+            }
+        }
+
+        // 关闭存储服务
+        metaStoreMaster.shutdown();
+
+        // 删除文件
+        metaStoreMaster.destroy();
+        System.out.println("================================================================");
+    }
 }
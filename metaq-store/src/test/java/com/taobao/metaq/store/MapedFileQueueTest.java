@@ -5,12 +5,18 @@ package com.taobao.metaq.store;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.taobao.metaq.commons.MetaUtil;
+
 
 public class MapedFileQueueTest {
 
@@ -121,6 +127,66 @@ public class MapedFileQueueTest {
     }
 
 
+    @Test
+    public void test_findMapedFileByOffset_concurrent() throws Exception {
+        final String fixedMsg = "0123456789abcdef";
+        System.out.println("================================================================");
+        AllocateMapedFileService allocateMapedFileService = new AllocateMapedFileService();
+        allocateMapedFileService.start();
+        final MapedFileQueue mapedFileQueue =
+                new MapedFileQueue("./unit_test_store/e/", 1024, allocateMapedFileService);
+        assertTrue(mapedFileQueue.getLastMapedFile() != null);
+
+        // 读线程查找文件并hold/release，同时写线程不断追加新文件
+        final AtomicInteger errors = new AtomicInteger(0);
+        final CountDownLatch countDownLatch = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        for (int k = 0; k < 100000; k++) {
+                            long maxOffset = mapedFileQueue.getMaxOffset();
+                            long offset = maxOffset > 0 ? k % maxOffset : 0;
+                            MapedFile mapedFile = mapedFileQueue.findMapedFileByOffset(offset);
+                            if (null == mapedFile || mapedFile.getFileFromOffset() != offset - offset % 1024
+                                    || !mapedFile.hold()) {
+                                errors.incrementAndGet();
+                                continue;
+                            }
+                            mapedFile.release();
+                        }
+                    }
+                    finally {
+                        countDownLatch.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        for (int i = 0; i < 1024 * 16; i++) {
+            MapedFile mapedFile = mapedFileQueue.getLastMapedFile();
+            assertTrue(mapedFile != null);
+            assertTrue(mapedFile.appendMessage(fixedMsg.getBytes()));
+        }
+        countDownLatch.await();
+
+        assertEquals(0, errors.get());
+        assertEquals(256, mapedFileQueue.getMapedFiles().size());
+        for (MapedFile mapedFile : mapedFileQueue.getMapedFiles()) {
+            assertEquals(1, mapedFile.getRefCount());
+        }
+
+        // shutdown之后不能再hold
+        MapedFile first = mapedFileQueue.findMapedFileByOffset(0);
+        mapedFileQueue.shutdown(1000);
+        assertFalse(first.hold());
+        mapedFileQueue.destroy();
+        assertEquals(0, mapedFileQueue.getMapedFiles().size());
+        allocateMapedFileService.shutdown();
+        System.out.println("MapedFileQueue.findMapedFileByOffset() concurrent OK");
+    }
+
+
     @Test
     public void test_commit() {
         final String fixedMsg = "0123456789abcdef";
@@ -197,4 +263,51 @@ public class MapedFileQueueTest {
         System.out.println("MapedFileQueue.getMapedMemorySize() OK");
     }
 
+
+    @Test
+    public void test_load_check() throws Exception {
+        final String fixedMsg = "0123456789abcdef";
+        System.out.println("================================================================");
+        AllocateMapedFileService allocateMapedFileService = new AllocateMapedFileService();
+        allocateMapedFileService.start();
+        MapedFileQueue mapedFileQueue = new MapedFileQueue("./unit_test_store/f/", 1024, allocateMapedFileService);
+
+        // 写满4个文件
+        for (int i = 0; i < 256; i++) {
+            MapedFile mapedFile = mapedFileQueue.getLastMapedFile();
+            assertTrue(mapedFile != null);
+            assertTrue(mapedFile.appendMessage(fixedMsg.getBytes()));
+        }
+        mapedFileQueue.shutdown(1000);
+
+        mapedFileQueue = new MapedFileQueue("./unit_test_store/f/", 1024, allocateMapedFileService);
+        assertTrue(mapedFileQueue.load());
+        mapedFileQueue.shutdown(1000);
+
+        // 中间缺少文件，加载失败
+        assertTrue(new File("./unit_test_store/f/" + MetaUtil.Offset2FileName(1024)).delete());
+        mapedFileQueue = new MapedFileQueue("./unit_test_store/f/", 1024, allocateMapedFileService);
+        assertFalse(mapedFileQueue.load());
+        mapedFileQueue.shutdown(1000);
+        for (File file : new File("./unit_test_store/f/").listFiles()) {
+            file.delete();
+        }
+        new File("./unit_test_store/f/").delete();
+
+        // 目录无法列出文件，加载失败
+        File notDir = new File("./unit_test_store/g");
+        notDir.getParentFile().mkdirs();
+        assertTrue(notDir.createNewFile());
+        mapedFileQueue = new MapedFileQueue("./unit_test_store/g", 1024, allocateMapedFileService);
+        assertFalse(mapedFileQueue.load());
+        notDir.delete();
+
+        // 目录不存在，加载为空队列
+        mapedFileQueue = new MapedFileQueue("./unit_test_store/h", 1024, allocateMapedFileService);
+        assertTrue(mapedFileQueue.load());
+
+        allocateMapedFileService.shutdown();
+        System.out.println("MapedFileQueue.load() OK");
+    }
+
 }
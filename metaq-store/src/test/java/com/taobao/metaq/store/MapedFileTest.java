@@ -3,9 +3,14 @@
  */
 package com.taobao.metaq.store;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -66,6 +71,91 @@ public class MapedFileTest {
     }
 
 
+    @Test
+    public void test_write_buffer_commit() throws IOException {
+        final int fileSize = 1024 * 64;
+        TransientStorePool transientStorePool = new TransientStorePool(1, fileSize);
+        transientStorePool.init();
+
+        MapedFile mapedFile =
+                new MapedFile("./unit_test_store/MapedFileTest/001", fileSize, transientStorePool);
+        assertEquals(0, transientStorePool.availableBufferNums());
+
+        boolean result = mapedFile.appendMessage(StoreMessage.getBytes());
+        assertTrue(result);
+
+        // 数据还在写缓冲区，不可读
+        assertNull(mapedFile.selectMapedBuffer(0));
+        assertEquals(0, mapedFile.getReadPosition());
+
+        // 提交到FileChannel后，可以从映射内存读到
+        assertEquals(StoreMessage.length(), mapedFile.commitToChannel(0));
+        SelectMapedBufferResult selectMapedBufferResult = mapedFile.selectMapedBuffer(0);
+        byte[] data = new byte[StoreMessage.length()];
+        selectMapedBufferResult.getByteBuffer().get(data);
+        selectMapedBufferResult.release();
+        assertEquals(StoreMessage, new String(data));
+
+        // 写满并全部提交后，缓冲区归还
+        while (mapedFile.appendMessage(StoreMessage.getBytes())) {
+        }
+        mapedFile.appendMessage(new byte[fileSize - mapedFile.getWrotePostion()]);
+        assertTrue(mapedFile.isFull());
+        assertEquals(fileSize, mapedFile.commitToChannel(4));
+        assertEquals(1, transientStorePool.availableBufferNums());
+        assertEquals(fileSize, mapedFile.commit(0));
+
+        assertTrue(mapedFile.destroy(1000));
+        transientStorePool.destroy();
+    }
+
+
+    @Test
+    public void test_warm_maped_file() throws IOException {
+        final int fileSize = 1024 * 64;
+        final int[] hookCalled = new int[2];
+        MapedFile mapedFile = new MapedFile("./unit_test_store/MapedFileTest/002", fileSize);
+        mapedFile.warmMapedFile(4, new MapedFileWarmHook() {
+            public void beforeWarm(MappedByteBuffer mappedByteBuffer, int size) {
+                assertEquals(fileSize, size);
+                hookCalled[0]++;
+            }
+
+
+            public void afterWarm(MappedByteBuffer mappedByteBuffer, int size) {
+                hookCalled[1]++;
+            }
+        });
+        assertEquals(1, hookCalled[0]);
+        assertEquals(1, hookCalled[1]);
+
+        // 预热不改变写位置，预热后的文件可以正常写入
+        assertEquals(0, mapedFile.getWrotePostion());
+        assertTrue(mapedFile.appendMessage(StoreMessage.getBytes()));
+        SelectMapedBufferResult selectMapedBufferResult = mapedFile.selectMapedBuffer(0);
+        byte[] data = new byte[StoreMessage.length()];
+        selectMapedBufferResult.getByteBuffer().get(data);
+        selectMapedBufferResult.release();
+        assertEquals(StoreMessage, new String(data));
+
+        assertTrue(mapedFile.destroy(1000));
+
+        // 写消息线程已经在等待时停止预热，不调用afterWarm
+        mapedFile = new MapedFile("./unit_test_store/MapedFileTest/003", fileSize);
+        assertFalse(mapedFile.warmMapedFile(4, new MapedFileWarmHook() {
+            public void beforeWarm(MappedByteBuffer mappedByteBuffer, int size) {
+            }
+
+
+            public void afterWarm(MappedByteBuffer mappedByteBuffer, int size) {
+                hookCalled[1]++;
+            }
+        }, new AtomicBoolean(true)));
+        assertEquals(1, hookCalled[1]);
+        assertTrue(mapedFile.destroy(1000));
+    }
+
+
     /**
      * 当前测试用例由于对mmap操作错误，会导致JVM CRASHED
      */
@@ -0,0 +1,126 @@
+/**
+ * $Id: MetaQueuePhysicalTest.java 2 2013-01-05 08:09:27Z shijia $
+ */
+package com.taobao.metaq.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.taobao.metaq.commons.MetaMessage;
+import com.taobao.metaq.commons.MetaMessageAnnotation;
+import com.taobao.metaq.commons.MetaMessageDecoder;
+import com.taobao.metaq.commons.MetaMessageWrapper;
+import com.taobao.metaq.store.MetaQueuePhysical.DefaultAppendMessageCallback;
+
+
+public class MetaQueuePhysicalTest {
+    // 发送主机地址
+    private static SocketAddress BornHost;
+    // 存储主机地址
+    private static SocketAddress StoreHost;
+
+    private static final String StoreMessage = "Once, there was a chance for me!";
+
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        StoreHost = new InetSocketAddress(InetAddress.getLocalHost(), 8123);
+        BornHost = new InetSocketAddress(InetAddress.getByName("10.232.102.184"), 0);
+    }
+
+
+    private static MetaMessageWrapper buildMessage(final int queueId) {
+        MetaMessage msg = new MetaMessage("TOPIC_A", "MSG_TYPE_A", StoreMessage.getBytes());
+        msg.setAttribute("attr");
+
+        MetaMessageAnnotation msgant = new MetaMessageAnnotation();
+        msgant.setQueueId(queueId);
+        msgant.setSysFlag(4);
+        msgant.setBornTimestamp(System.currentTimeMillis());
+        msgant.setStoreTimestamp(System.currentTimeMillis());
+        msgant.setStoreHost(StoreHost);
+        msgant.setBornHost(BornHost);
+
+        return new MetaMessageWrapper(msg, msgant);
+    }
+
+
+    @Test
+    public void test_append_encode() throws Exception {
+        MetaQueuePhysical metaQueuePhysical = new MetaQueuePhysical(new DefaultMetaStore(new MetaStoreConfig()));
+        DefaultAppendMessageCallback callback = metaQueuePhysical.new DefaultAppendMessageCallback(1024);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(1024 * 64);
+
+        for (int i = 0; i < 10; i++) {
+            MetaMessageWrapper wrapper = buildMessage(i % 2);
+            int position = byteBuffer.position();
+            AppendMessageResult result =
+                    callback.doAppend(1000, byteBuffer, byteBuffer.remaining(), wrapper);
+            assertTrue(result.isOk());
+            assertEquals(i / 2, result.getLogicsOffset());
+
+            // 读出来的消息与写入的一致
+            ByteBuffer readBuffer = byteBuffer.duplicate();
+            readBuffer.position(position);
+            MetaMessageWrapper decoded = MetaMessageDecoder.decode(readBuffer);
+            assertEquals("TOPIC_A", decoded.getMetaMessage().getTopic());
+            assertEquals("MSG_TYPE_A", decoded.getMetaMessage().getType());
+            assertEquals("attr", decoded.getMetaMessage().getAttribute());
+            assertEquals(i / 2, decoded.getMetaMessageAnnotation().getQueueOffset());
+            assertEquals(1000 + position, decoded.getMetaMessageAnnotation().getPhysicOffset());
+
+            // 延迟生成的消息ID与读出来的一致
+            assertEquals(decoded.getMetaMessageAnnotation().getMsgId(), result.getMsgId());
+        }
+    }
+
+
+    @Test
+    public void test_append_allocation_free() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.out.println("thread allocated bytes not supported, skip");
+            return;
+        }
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            System.out.println("thread allocated bytes not supported, skip");
+            return;
+        }
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        MetaQueuePhysical metaQueuePhysical = new MetaQueuePhysical(new DefaultMetaStore(new MetaStoreConfig()));
+        DefaultAppendMessageCallback callback = metaQueuePhysical.new DefaultAppendMessageCallback(1024);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(1024 * 1024);
+        MetaMessageWrapper wrapper = buildMessage(0);
+
+        final int times = 100000;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBytes = 0;
+        // 第一轮预热，让JIT编译完成
+        for (int round = 0; round < 2; round++) {
+            long begin = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < times; i++) {
+                if (byteBuffer.remaining() < 1024) {
+                    byteBuffer.clear();
+                }
+                callback.doAppend(0, byteBuffer, byteBuffer.remaining(), wrapper);
+            }
+            allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - begin;
+        }
+
+        // 稳定后每次写入只允许创建返回的AppendMessageResult对象
+        long bytesPerAppend = allocatedBytes / times;
+        System.out.println("allocated bytes per append: " + bytesPerAppend);
+        assertTrue(bytesPerAppend <= 96);
+    }
+}
@@ -5,6 +5,7 @@ package com.taobao.metaq.store;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
@@ -68,6 +69,10 @@ public class RecoverTest {
     private MetaStore metaStoreWrite1;
     private MetaStore metaStoreWrite2;
     private MetaStore metaStoreRead;
+    // 异常恢复线程数
+    private int recoverThreadNums = 1;
+    // 是否记录逻辑队列Offset快照
+    private boolean queueSnapshotEnable = false;
 
 
     private void destroy() {
@@ -107,6 +112,8 @@ public class RecoverTest {
         metaStoreConfig.setMapedFileSizePhysic(1024 * 32);
         // 每个逻辑映射文件
         metaStoreConfig.setMapedFileSizeLogics(1024);
+        metaStoreConfig.setRecoverThreadNums(this.recoverThreadNums);
+        metaStoreConfig.setQueueSnapshotEnable(this.queueSnapshotEnable);
 
         MetaStore metaStore = new DefaultMetaStore(metaStoreConfig);
         if (first) {
@@ -166,6 +173,8 @@ public class RecoverTest {
         metaStoreConfig.setMapedFileSizePhysic(1024 * 32);
         // 每个逻辑映射文件
         metaStoreConfig.setMapedFileSizeLogics(1024);
+        metaStoreConfig.setRecoverThreadNums(this.recoverThreadNums);
+        metaStoreConfig.setQueueSnapshotEnable(this.queueSnapshotEnable);
 
         metaStoreRead = new DefaultMetaStore(metaStoreConfig);
         // 第一步，load已有数据
@@ -250,4 +259,46 @@ public class RecoverTest {
         this.readMessage(2000);
         this.destroy();
     }
+
+
+    /**
+     * 异常关闭且Checkpoint、快照丢失后，从第一个物理文件开始并行校验恢复，验证是否有消息丢失
+     */
+    @Test
+    public void test_recover_abnormally_concurrently() throws Exception {
+        this.recoverThreadNums = 4;
+        this.writeMessage(false, true);
+        Thread.sleep(1000 * 3);
+        new File(new MetaStoreConfig().getStoreCheckpoint()).delete();
+        new File(new MetaStoreConfig().getStoreCheckpoint() + ".snapshot").delete();
+        this.readMessage(1000);
+
+        MetaStatsService metaStatsService = ((DefaultMetaStore) this.metaStoreRead).getMetaStatsService();
+        System.out.println("recover progress " + metaStatsService.getRecoverProgress());
+        assertTrue(metaStatsService.getRecoverPhysicTotalSize().get() > 1024 * 32);
+        assertTrue(metaStatsService.getRecoverPhysicCheckedSize().get() == metaStatsService
+            .getRecoverPhysicTotalSize().get());
+        assertTrue(metaStatsService.getRecoverLogicsTotal().get() >= QUEUE_TOTAL);
+        assertTrue(metaStatsService.getRecoverLogicsRecovered().get() == metaStatsService.getRecoverLogicsTotal()
+            .get());
+        assertTrue(metaStatsService.getRecoverEndTimestamp() >= metaStatsService.getRecoverBeginTimestamp());
+        this.destroy();
+    }
+
+
+    /**
+     * 正常关闭后，根据Offset快照直接恢复，不扫描文件，验证是否有消息丢失
+     */
+    @Test
+    public void test_recover_normally_by_snapshot() throws Exception {
+        this.queueSnapshotEnable = true;
+        this.writeMessage(true, true);
+        Thread.sleep(1000 * 3);
+        this.readMessage(1000);
+
+        MetaStatsService metaStatsService = ((DefaultMetaStore) this.metaStoreRead).getMetaStatsService();
+        assertTrue(metaStatsService.isRecoverBySnapshot());
+        assertTrue(metaStatsService.getRecoverPhysicCheckedSize().get() == 0);
+        this.destroy();
+    }
 }
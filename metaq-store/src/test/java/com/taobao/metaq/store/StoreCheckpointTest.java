@@ -5,6 +5,10 @@ package com.taobao.metaq.store;
 
 import static org.junit.Assert.assertTrue;
 
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -45,4 +49,42 @@ public class StoreCheckpointTest {
         }
 
     }
+
+
+    @Test
+    public void test_snapshot_write_read() {
+        try {
+            StoreCheckpoint storeCheckpoint = new StoreCheckpoint("./a/b/0001");
+            List<StoreCheckpoint.QueueOffset> queueOffsets = new ArrayList<StoreCheckpoint.QueueOffset>();
+            queueOffsets.add(new StoreCheckpoint.QueueOffset("TOPIC_A", 0, 100, 0xAABB));
+            queueOffsets.add(new StoreCheckpoint.QueueOffset("TOPIC_A", 1, 200, 0xCCDD));
+            assertTrue(storeCheckpoint.flushSnapshot(0xEEFF, true, queueOffsets));
+            storeCheckpoint.shutdown();
+
+            storeCheckpoint = new StoreCheckpoint("./a/b/0001");
+            assertTrue(storeCheckpoint.isSnapshotValid());
+            assertTrue(storeCheckpoint.isSnapshotNormal());
+            assertTrue(0xEEFF == storeCheckpoint.getSnapshotPhyOffset());
+            assertTrue(2 == storeCheckpoint.getSnapshotQueueNums());
+            assertTrue(200 == storeCheckpoint.getSnapshotQueueOffset("TOPIC_A", 1).getNextOffset());
+            assertTrue(0xCCDD == storeCheckpoint.getSnapshotQueueOffset("TOPIC_A", 1).getMaxPhysicOffset());
+            assertTrue(null == storeCheckpoint.getSnapshotQueueOffset("TOPIC_B", 0));
+            storeCheckpoint.shutdown();
+
+            // 破坏快照内容，校验失败后快照无效
+            RandomAccessFile raf = new RandomAccessFile("./a/b/0001.snapshot", "rw");
+            raf.seek(10);
+            raf.write(0x7F);
+            raf.close();
+
+            storeCheckpoint = new StoreCheckpoint("./a/b/0001");
+            assertTrue(!storeCheckpoint.isSnapshotValid());
+            storeCheckpoint.deleteSnapshot();
+            storeCheckpoint.shutdown();
+        }
+        catch (Throwable e) {
+            e.printStackTrace();
+            assertTrue(false);
+        }
+    }
 }